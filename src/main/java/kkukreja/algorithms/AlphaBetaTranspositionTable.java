@@ -0,0 +1,172 @@
+package kkukreja.algorithms;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.BasePropositionIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * @author kartikkukreja
+ * fixed-size, lock-free transposition table for alpha-beta search.
+ * An entry is three longs: the score, the packed depth, bound type, best move index and search
+ * generation, and the 64-bit hash XORed with the other two. An entry is only read if the three
+ * match, so entries torn by concurrent writers are discarded rather than locked against, and
+ * the table can be shared by several search threads.
+ * Scores are kept as exact doubles, since heuristic values are often tied, and alpha-beta
+ * relies on comparing them exactly.
+ * A hash maps to a bucket of BUCKET_SIZE consecutive slots. If the bucket is full, the entry is
+ * replaced that is not from the current generation, with ties broken by smallest depth.
+ * Entries carry no state, so two states with the same hash share an entry; with 64-bit hashes
+ * this is rare enough to be ignored, as in other game-playing programs.
+ */
+public final class AlphaBetaTranspositionTable {
+	public static final int EXACT = 0;
+	public static final int LOWER_BOUND = 1;
+	public static final int UPPER_BOUND = 2;
+
+	// depth stored for scores that don't depend on the search depth, such as goals of terminal states
+	public static final int MAX_DEPTH = 0xFF;
+	public static final int NO_MOVE = 0xFFFF;
+
+	private static final int BUCKET_SIZE = 4;
+	private static final long MIN_NODE_SALT = 0x5DEECE66DL;
+	// set in the info of every stored entry, so that an empty slot never matches
+	private static final long OCCUPIED = 1L << 63;
+
+	// a copy of an entry read from the table
+	public static final class Entry {
+		public double score;
+		public int depth;
+		public int bound;
+		// index of the best move in the legal moves of the player to move, or NO_MOVE
+		public int move;
+	}
+
+	private final long[] keys;
+	private final long[] infos;
+	private final long[] scores;
+	private final int mask;
+	private volatile int generation = 0;
+
+	// capacity is rounded up to a power of two
+	public AlphaBetaTranspositionTable (int capacity) {
+		int slotCount = Integer.highestOneBit(Math.max(capacity, BUCKET_SIZE) - 1) << 1;
+		this.keys = new long[slotCount];
+		this.infos = new long[slotCount];
+		this.scores = new long[slotCount];
+		this.mask = slotCount - 1;
+	}
+
+	// hash of a state. Keys come from the text of the sentences, so equal states hash the same
+	// whichever machine made them, and machines of different kinds can share a table.
+	public static long hash (MachineState state) {
+		if (state instanceof BitSetMachineState)
+			return ((BitSetMachineState) state).getZobristHash();
+		long hash = 0L;
+		for (GdlSentence sentence : state.getContents())
+			hash ^= BasePropositionIndex.getZobristKey(sentence);
+		return hash;
+	}
+
+	// hash of the node where the opponent replies to the given move in the state with the given hash
+	public static long hash (long stateHash, Move move) {
+		return stateHash ^ BasePropositionIndex.getZobristKey(move.hashCode()) ^ MIN_NODE_SALT;
+	}
+
+	public int getCapacity() {
+		return keys.length;
+	}
+
+	// entries stored before this call are the first to be replaced from now on
+	public void newGeneration() {
+		generation = (generation + 1) & 0x3F;
+	}
+
+	public void clear() {
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = 0L;
+			infos[i] = 0L;
+			scores[i] = 0L;
+		}
+	}
+
+	// copies the entry for the given hash into the given entry; returns false if there is none
+	public boolean probe (long hash, Entry entry) {
+		int start = (int) hash & mask;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			int slot = (start + i) & mask;
+			long info = infos[slot];
+			long score = scores[slot];
+			if ((keys[slot] ^ info ^ score) == hash && (info & OCCUPIED) != 0L) {
+				entry.score = Double.longBitsToDouble(score);
+				entry.depth = getDepth(info);
+				entry.bound = getBound(info);
+				entry.move = getMove(info);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void store (long hash, int depth, int bound, double score, int move) {
+		int currentGeneration = generation;
+		int start = (int) hash & mask;
+		int victim = -1;
+		long victimInfo = 0L;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			int slot = (start + i) & mask;
+			long info = infos[slot];
+			if ((info & OCCUPIED) != 0L && (keys[slot] ^ info ^ scores[slot]) == hash) {
+				// keep deeper results of the current search, and the best move if we found none
+				if (getGeneration(info) == currentGeneration && getDepth(info) > depth && bound != EXACT)
+					return;
+				if (move == NO_MOVE)
+					move = getMove(info);
+				victim = slot;
+				break;
+			}
+			if (victim < 0 || ((victimInfo & OCCUPIED) != 0L && isBetterVictim(info, victimInfo, currentGeneration))) {
+				victim = slot;
+				victimInfo = info;
+			}
+		}
+
+		long info = OCCUPIED
+				| ((long) currentGeneration << 56)
+				| ((long) (bound & 0x3) << 32)
+				| ((long) Math.min(Math.max(depth, 0), MAX_DEPTH) << 16)
+				| (move & 0xFFFF);
+		long scoreBits = Double.doubleToLongBits(score);
+		infos[victim] = info;
+		scores[victim] = scoreBits;
+		keys[victim] = hash ^ info ^ scoreBits;
+	}
+
+	private static int getMove (long info) {
+		return (int) info & 0xFFFF;
+	}
+
+	private static int getDepth (long info) {
+		return (int) (info >>> 16) & 0xFF;
+	}
+
+	private static int getBound (long info) {
+		return (int) (info >>> 32) & 0x3;
+	}
+
+	private static int getGeneration (long info) {
+		return (int) (info >>> 56) & 0x3F;
+	}
+
+	// empty slots are the best victims, then entries from earlier generations, then shallow ones
+	private static boolean isBetterVictim (long info, long victim, int currentGeneration) {
+		if ((info & OCCUPIED) == 0L)
+			return true;
+		boolean infoCurrent = getGeneration(info) == currentGeneration;
+		boolean victimCurrent = getGeneration(victim) == currentGeneration;
+		if (infoCurrent != victimCurrent)
+			return victimCurrent;
+		return getDepth(info) < getDepth(victim);
+	}
+}
@@ -0,0 +1,357 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
+import org.ggp.base.util.statemachine.DepthChargeBuffers;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * @author kartikkukreja
+ * MCTS for games with simultaneous moves. Unlike MCTS, which splits a joint move into one
+ * tree level per role, so that later roles see the moves of earlier ones, a node here is a
+ * state, and every role picks its move from statistics of its own moves only (decoupled
+ * selection). A node's children are indexed by joint move, but the statistics are kept per
+ * role, so selection has to learn the sum of the roles' branching factors rather than their
+ * product.
+ * Where more than one role has a choice, moves are picked with the configured Selection:
+ * UCT, or one of the bandit algorithms for adversarial rewards, EXP3 and regret matching,
+ * which play mixed strategies and can't be exploited by an opponent who guesses our move.
+ * Where only one role has a choice, UCT is always used.
+ */
+public final class DecoupledMCTS {
+	public static enum Selection {
+		UCT,
+		EXP3,
+		REGRET_MATCHING
+	}
+
+	// share of the probability that EXP3 and regret matching spread uniformly, for exploration
+	private static final double GAMMA = 0.2;
+
+	private Role[] roles;
+	private int playerIndex;
+	private StateMachine theMachine;
+	private Selection selection;
+	private Random theRandom = new Random();
+	private DepthChargeBuffers buffers;
+	// tree kept between turns, and the state it was built for
+	private DecoupledMCTSNode root = null;
+	private MachineState rootState = null;
+	// if set, states whose outcome is already decided are treated as terminal
+	private LatchAnalysis latches = null;
+
+	// path of the current iteration: nodes, and the move index and its probability for each role
+	private List<DecoupledMCTSNode> pathNodes = new ArrayList<DecoupledMCTSNode>();
+	private List<int[]> pathMoves = new ArrayList<int[]>();
+	private List<double[]> pathProbabilities = new ArrayList<double[]>();
+	private double[] probabilities = new double[0];
+
+	public DecoupledMCTS (StateMachine theMachine, Role role, Selection selection) {
+		this.theMachine = theMachine;
+		List<Role> roleList = theMachine.getRoles();
+		this.roles = roleList.toArray(new Role[roleList.size()]);
+		this.playerIndex = theMachine.getRoleIndices().get(role);
+		this.selection = selection;
+		this.buffers = theMachine.newDepthChargeBuffers();
+	}
+
+	// root of the tree kept between turns, or null before the first search
+	public DecoupledMCTSNode getRoot() {
+		return root;
+	}
+
+	// see MCTS.setLatchAnalysis
+	public void setLatchAnalysis (LatchAnalysis latches) {
+		this.latches = (latches != null && latches.canDecideGoals()) ? latches : null;
+	}
+
+	public Move nextMove (MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		long start = System.currentTimeMillis();
+
+		int reused = (root != null && state.equals(rootState)) ? root.visits : 0;
+		search(state, timeout);
+
+		Move selection = root.terminal ? theMachine.getLegalMoves(state, roles[playerIndex]).get(0) : bestMove(root);
+
+		long stop = System.currentTimeMillis();
+
+		System.out.println("Decoupled MCTS (" + this.selection + ") iterations: " + root.visits + " reused: " + reused
+				+ " av utility: " + Arrays.toString(root.utility) + " Time taken: " + (stop-start)/1000.0);
+		return selection;
+	}
+
+	/**
+	 * Runs iterations from the given state until the timeout, growing the tree kept for that
+	 * state if there is one, or starting a new one otherwise.
+	 */
+	public void search (MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		if (root == null || !state.equals(rootState)) {
+			root = new DecoupledMCTSNode(roles.length);
+			rootState = state;
+		}
+
+		double avStepTime = 0;
+		int numSteps = 0;
+		while (true) {
+			long before = System.currentTimeMillis();
+			if (before + avStepTime > timeout)
+				break;
+			doMCTS(state);
+			long after = System.currentTimeMillis();
+			avStepTime = (avStepTime * numSteps * 0.97 + (after - before)) / (numSteps + 1);
+			numSteps++;
+		}
+	}
+
+	/**
+	 * Re-roots the tree at the child reached by the given joint move, so that the statistics
+	 * gathered for it in earlier turns are reused by the next call to nextMove. The rest of the
+	 * tree is dropped. Should be called once per turn, with the joint move that was played.
+	 */
+	public void advance (List<Move> jointMove) throws TransitionDefinitionException {
+		if (root == null || !root.isExpanded()) {
+			root = null;
+			rootState = null;
+			return;
+		}
+
+		int[] moveIndices = new int[roles.length];
+		for (int r = 0; r < roles.length; r++) {
+			moveIndices[r] = Arrays.asList(root.legalMoves[r]).indexOf(jointMove.get(r));
+			if (moveIndices[r] < 0) {
+				root = null;
+				rootState = null;
+				return;
+			}
+		}
+
+		DecoupledMCTSNode child = root.getChild(root.getJointMoveIndex(moveIndices));
+		if (child == null) {
+			root = null;
+			rootState = null;
+			return;
+		}
+		root = child;
+		rootState = theMachine.getNextState(rootState, jointMove);
+	}
+
+	private void doMCTS (MachineState state)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		pathNodes.clear();
+		pathMoves.clear();
+		pathProbabilities.clear();
+
+		DecoupledMCTSNode node = root;
+		int[] utility;
+		while (true) {
+			if (!node.isExpanded() && !node.terminal) {
+				// perform random exploration from a node reached for the first time
+				if (node.visits == 0 && node != root) {
+					int[] decided = getDecidedGoals(state);
+					utility = (decided != null) ? decided : theMachine.simulate(state, buffers, theRandom);
+					break;
+				}
+				expand(node, state);
+			}
+			if (node.terminal) {
+				utility = node.goals;
+				break;
+			}
+
+			int[] moveIndices = new int[roles.length];
+			double[] moveProbabilities = new double[roles.length];
+			List<Move> jointMove = new ArrayList<Move>(roles.length);
+			for (int r = 0; r < roles.length; r++) {
+				moveProbabilities[r] = select(node, r, moveIndices);
+				jointMove.add(node.legalMoves[r][moveIndices[r]]);
+			}
+			pathNodes.add(node);
+			pathMoves.add(moveIndices);
+			pathProbabilities.add(moveProbabilities);
+
+			node = node.getOrCreateChild(node.getJointMoveIndex(moveIndices));
+			state = theMachine.getNextStateDestructively(state, jointMove);
+		}
+
+		update(node, utility);
+		for (int i = pathNodes.size() - 1; i >= 0; i--)
+			backpropagate(pathNodes.get(i), pathMoves.get(i), pathProbabilities.get(i), utility);
+	}
+
+	private void expand (DecoupledMCTSNode node, MachineState state)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		int[] decided = getDecidedGoals(state);
+		if (decided != null || theMachine.isTerminal(state)) {
+			node.terminal = true;
+			// a depth charge from a terminal state just reads its goals
+			node.goals = (decided != null) ? decided : theMachine.simulate(state, buffers, theRandom).clone();
+			return;
+		}
+
+		Move[][] legalMoves = new Move[roles.length][];
+		for (int r = 0; r < roles.length; r++) {
+			List<Move> moves = theMachine.getLegalMoves(state, roles[r]);
+			legalMoves[r] = moves.toArray(new Move[moves.size()]);
+		}
+		node.expand(legalMoves);
+	}
+
+	// picks a move for the given role, stores its index, and returns the probability it had
+	private double select (DecoupledMCTSNode node, int role, int[] moveIndices) {
+		int moveCount = node.legalMoves[role].length;
+		if (moveCount == 1) {
+			moveIndices[role] = 0;
+			return 1.0;
+		}
+		if (!node.simultaneous || selection == Selection.UCT) {
+			moveIndices[role] = selectUCT(node, role);
+			return 1.0;
+		}
+
+		if (selection == Selection.EXP3)
+			exp3Probabilities(node.moveWeight[role], moveCount);
+		else
+			regretMatchingProbabilities(node.moveWeight[role], moveCount);
+
+		double x = theRandom.nextDouble();
+		int m = 0;
+		while (m < moveCount - 1 && x >= probabilities[m]) {
+			x -= probabilities[m];
+			m++;
+		}
+		moveIndices[role] = m;
+		return probabilities[m];
+	}
+
+	private int selectUCT (DecoupledMCTSNode node, int role) {
+		int[] visits = node.moveVisits[role];
+		double[] utilitySums = node.moveUtility[role];
+		double score = -1.0;
+		int result = 0;
+		for (int m = 0; m < visits.length; m++) {
+			double newscore = selectfn(visits[m], utilitySums[m], node.visits);
+			if (newscore > score) {
+				score = newscore;
+				result = m;
+			}
+		}
+		return result;
+	}
+
+	private double selectfn (int visits, double utilitySum, int parentVisits) {
+		if (visits == 0)
+			return 1000 + theRandom.nextDouble();
+		return (utilitySum / 100.0 / visits) + 2*Math.sqrt(Math.log(parentVisits) / visits);
+	}
+
+	// EXP3: probabilities exponential in the estimated total rewards, mixed with uniform
+	private void exp3Probabilities (double[] rewards, int moveCount) {
+		ensureProbabilities(moveCount);
+		double eta = GAMMA / moveCount;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int m = 0; m < moveCount; m++)
+			max = Math.max(max, rewards[m]);
+
+		double sum = 0.0;
+		for (int m = 0; m < moveCount; m++) {
+			probabilities[m] = Math.exp(eta * (rewards[m] - max));
+			sum += probabilities[m];
+		}
+		for (int m = 0; m < moveCount; m++)
+			probabilities[m] = (1 - GAMMA) * probabilities[m] / sum + GAMMA / moveCount;
+	}
+
+	// regret matching: probabilities proportional to the positive regrets, mixed with uniform
+	private void regretMatchingProbabilities (double[] regrets, int moveCount) {
+		ensureProbabilities(moveCount);
+		double sum = 0.0;
+		for (int m = 0; m < moveCount; m++)
+			sum += Math.max(regrets[m], 0.0);
+
+		for (int m = 0; m < moveCount; m++) {
+			double p = (sum > 0.0) ? Math.max(regrets[m], 0.0) / sum : 1.0 / moveCount;
+			probabilities[m] = (1 - GAMMA) * p + GAMMA / moveCount;
+		}
+	}
+
+	private void ensureProbabilities (int moveCount) {
+		if (probabilities.length < moveCount)
+			probabilities = new double[moveCount];
+	}
+
+	private void update (DecoupledMCTSNode node, int[] utility) {
+		for (int r = 0; r < roles.length; r++)
+			node.utility[r] = (node.utility[r] * node.visits + utility[r]) / (node.visits + 1);
+		node.visits++;
+	}
+
+	private void backpropagate (DecoupledMCTSNode node, int[] moveIndices, double[] moveProbabilities, int[] utility) {
+		update(node, utility);
+		if (!node.simultaneous || selection == Selection.UCT) {
+			for (int r = 0; r < roles.length; r++) {
+				node.moveVisits[r][moveIndices[r]]++;
+				node.moveUtility[r][moveIndices[r]] += utility[r];
+			}
+			return;
+		}
+
+		for (int r = 0; r < roles.length; r++) {
+			int m = moveIndices[r];
+			node.moveVisits[r][m]++;
+			node.moveUtility[r][m] += utility[r];
+
+			// importance-weighted estimate of the reward of the move played; the others get none
+			double reward = utility[r] / 100.0;
+			double estimate = reward / moveProbabilities[r];
+			double[] weights = node.moveWeight[r];
+			if (selection == Selection.EXP3) {
+				weights[m] += estimate;
+			} else {
+				// regret of not having played each move instead
+				for (int other = 0; other < weights.length; other++)
+					weights[other] += ((other == m) ? estimate : 0.0) - reward;
+			}
+		}
+	}
+
+	// the player's move with the best average utility at the root, or under EXP3 and regret
+	// matching, the most played one, since the frequencies of play approach an equilibrium
+	private Move bestMove (DecoupledMCTSNode root) {
+		int[] visits = root.moveVisits[playerIndex];
+		double[] utilitySums = root.moveUtility[playerIndex];
+		boolean mixed = root.simultaneous && selection != Selection.UCT;
+
+		int best = 0;
+		double maxscore = -1;
+		for (int m = 0; m < visits.length; m++) {
+			if (visits[m] == 0)
+				continue;
+			double score = mixed ? visits[m] : utilitySums[m] / visits[m];
+			if (score > maxscore) {
+				maxscore = score;
+				best = m;
+			}
+		}
+		return root.legalMoves[playerIndex][best];
+	}
+
+	private int[] getDecidedGoals (MachineState state) {
+		return (latches != null) ? latches.getDecidedGoals(state) : null;
+	}
+}
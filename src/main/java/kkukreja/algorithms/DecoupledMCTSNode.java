@@ -0,0 +1,90 @@
+package kkukreja.algorithms;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * @author kartikkukreja
+ * node of DecoupledMCTS. A node is a state: every role picks its move here, and each role
+ * keeps statistics only for its own moves. Children are kept in a map keyed by joint move
+ * index, and are created when their joint move is first played, so a node with many joint
+ * moves only holds the ones that were tried.
+ */
+public final class DecoupledMCTSNode {
+	public int visits;
+	// average utility of each role over the iterations through this node
+	public double[] utility;
+	// the state ends the game, or latches have decided its goals
+	public boolean terminal;
+	public int[] goals;
+
+	// the rest is null until the node is expanded, and stays null if it is terminal
+	// legal moves of each role
+	public Move[][] legalMoves;
+	// per role and move: times played, sum of the role's utilities, and the weight used by
+	// EXP3 or regret matching
+	public int[][] moveVisits;
+	public double[][] moveUtility;
+	public double[][] moveWeight;
+	// more than one role has a choice here
+	public boolean simultaneous;
+	// children by joint move index; null until the first one is created
+	private Map<Long, DecoupledMCTSNode> children = null;
+
+	public DecoupledMCTSNode (int roleCount) {
+		utility = new double[roleCount];
+	}
+
+	public void expand (Move[][] legalMoves) {
+		this.legalMoves = legalMoves;
+		int roleCount = legalMoves.length;
+		moveVisits = new int[roleCount][];
+		moveUtility = new double[roleCount][];
+		moveWeight = new double[roleCount][];
+		long jointMoveCount = 1;
+		int choosingRoles = 0;
+		for (int r = 0; r < roleCount; r++) {
+			int moveCount = legalMoves[r].length;
+			moveVisits[r] = new int[moveCount];
+			moveUtility[r] = new double[moveCount];
+			moveWeight[r] = new double[moveCount];
+			if (jointMoveCount > Long.MAX_VALUE / moveCount)
+				throw new IllegalArgumentException("Too many joint moves to index in a long");
+			jointMoveCount *= moveCount;
+			if (moveCount > 1)
+				choosingRoles++;
+		}
+		simultaneous = choosingRoles > 1;
+	}
+
+	public boolean isExpanded() {
+		return legalMoves != null;
+	}
+
+	// index of the joint move made of the given move of each role
+	public long getJointMoveIndex (int[] moveIndices) {
+		long index = 0;
+		for (int r = 0; r < legalMoves.length; r++)
+			index = index * legalMoves[r].length + moveIndices[r];
+		return index;
+	}
+
+	// child reached by the given joint move, or null if that joint move hasn't been played
+	public DecoupledMCTSNode getChild (long jointMoveIndex) {
+		return (children == null) ? null : children.get(jointMoveIndex);
+	}
+
+	// child reached by the given joint move, created if this is the first time it's played
+	public DecoupledMCTSNode getOrCreateChild (long jointMoveIndex) {
+		if (children == null)
+			children = new HashMap<Long, DecoupledMCTSNode>();
+		DecoupledMCTSNode child = children.get(jointMoveIndex);
+		if (child == null) {
+			child = new DecoupledMCTSNode(utility.length);
+			children.put(jointMoveIndex, child);
+		}
+		return child;
+	}
+}
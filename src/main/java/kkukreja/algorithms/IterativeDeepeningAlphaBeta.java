@@ -1,10 +1,13 @@
 package kkukreja.algorithms;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.naming.TimeLimitExceededException;
 
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -15,21 +18,65 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 /**
  * @author kartikkukreja
- * alpha beta pruning with iterative deepening for two-player competitive games
+ * alpha beta pruning with iterative deepening for two-player competitive games.
+ * Bounds and best moves are kept in a transposition table shared across iterations and turns.
+ * Moves are searched best move from the table first (which follows the principal variation of
+ * the previous iteration), then killer moves of the same ply, then by history score.
+ * In every state the player's move is chosen first, and the opponent's reply is chosen knowing
+ * it. This is exact in turn-taking games, and in simultaneous-move games it gives the score
+ * the player can guarantee whatever the opponent does.
+ * Several searches can share a transposition table; see ParallelAlphaBeta.
  */
 public final class IterativeDeepeningAlphaBeta {
+	private static final int MAX_DEPTH = 100;
+	private static final int TABLE_CAPACITY = 1 << 20;
+	private static final int KILLER_PRIORITY = 1 << 29;
+
 	private Role role;
 	private Role opponent;
 	private StateMachine theMachine;
 	private LinearCombinationHeuristic heuristic;
-	private boolean playerFirst; // true if in the role definition, player comes first
+	private int roleIndex;
+	private int opponentIndex;
+	private int roleCount;
+	private LatchAnalysis latches = null; // if set, states whose outcome is decided are scored as terminal
+
+	private AlphaBetaTranspositionTable table;
+	private AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
+	// the two most recent moves at each ply that caused a cutoff, for the player and the opponent
+	private Move[][] killers = new Move[MAX_DEPTH + 1][2];
+	private Move[][] opponentKillers = new Move[MAX_DEPTH + 1][2];
+	// sums of squared depths at which each move caused a cutoff, halved every turn
+	private Map<Move, Integer> history = new HashMap<Move, Integer>();
+	private Map<Move, Integer> opponentHistory = new HashMap<Move, Integer>();
+	private Move rootMove;
+	private volatile boolean stopped = false;
+	private long nodes = 0;
 
 	public IterativeDeepeningAlphaBeta(Role role, Role opponent, StateMachine machine, LinearCombinationHeuristic heuristic, long timeout) {
+		this(role, opponent, machine, heuristic, new AlphaBetaTranspositionTable(TABLE_CAPACITY));
+	}
+
+	// a search that shares the given transposition table with other searches of the same game
+	IterativeDeepeningAlphaBeta(Role role, Role opponent, StateMachine machine, LinearCombinationHeuristic heuristic, AlphaBetaTranspositionTable table) {
 		this.role = role;
 		this.opponent = opponent;
 		theMachine = machine;
 		this.heuristic = heuristic;
-		playerFirst = theMachine.getRoleIndices().get(role) == 0;
+		this.table = table;
+		roleIndex = theMachine.getRoleIndices().get(role);
+		opponentIndex = theMachine.getRoleIndices().get(opponent);
+		roleCount = theMachine.getRoles().size();
+	}
+
+	/**
+	 * Makes the search score the states whose goals are already decided by latches with
+	 * those goals, rather than searching below them. Pass null to stop doing so.
+	 */
+	public void setLatchAnalysis(LatchAnalysis latches) {
+		this.latches = (latches != null && latches.canDecideGoals()) ? latches : null;
+		// scores in the table may have been found without the latches
+		table.clear();
 	}
 
 	public Move nextMove (MachineState state, long timeout)
@@ -44,23 +91,14 @@ public final class IterativeDeepeningAlphaBeta {
 		int depth = 0;
 
 		if (moves.size() > 1) {
-			for (depth = 1; depth < 100 && (System.currentTimeMillis()+100) < timeout; depth++) {
+			table.newGeneration();
+			newTurn();
+			for (depth = 1; depth < MAX_DEPTH && (System.currentTimeMillis()+100) < timeout; depth++) {
 				try {
-					double alpha = 0.0;
-					Move levelMove = moves.get(0);
-					for (Move move : moves) {
-						double result = minscore(move, state, depth, alpha, 100.0, timeout);
-						if (result > alpha) {
-							alpha = result;
-							levelMove = move;
-						}
-
-						if (alpha >= 100.0)
-							break;
-					}
-
-					score = alpha;
-					bestMove = levelMove;
+					score = searchDepth(state, depth, timeout);
+					if (rootMove == null) // the outcome is decided by latches
+						break;
+					bestMove = rootMove;
 					if (score >= 100.0)
 						break;
 				} catch (Exception e) {
@@ -71,55 +109,222 @@ public final class IterativeDeepeningAlphaBeta {
 
 		long stop = System.currentTimeMillis();
 
-		System.out.println("Iterative deepening alpha-beta. Move selected: " + bestMove + " Score: " + score + " Max depth reached: " + depth + " Time taken: " + (stop-start)/1000.0);
+		System.out.println("Iterative deepening alpha-beta. Move selected: " + bestMove + " Score: " + score + " Max depth reached: " + depth
+				+ " Principal variation: " + getPrincipalVariation(state, depth) + " Time taken: " + (stop-start)/1000.0);
 		return bestMove;
 	}
 
-	private double maxscore (MachineState state, int depth, double alpha, double beta, long maxclock)
+	// searches the given state to the given depth and returns its score; getRootMove() then
+	// returns the best move found, or null if the outcome is decided by latches
+	double searchDepth(MachineState state, int depth, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeLimitExceededException
+	{
+		rootMove = null;
+		return maxscore(state, depth, 0, 0.0, 100.0, timeout);
+	}
+
+	Move getRootMove() {
+		return rootMove;
+	}
+
+	// makes searches fail with TimeLimitExceededException until newTurn() is called
+	void stop() {
+		stopped = true;
+	}
+
+	// number of states visited since this object was created
+	long getNodes() {
+		return nodes;
+	}
+
+	// forgets the move ordering information that is specific to the previous turn
+	void newTurn() {
+		stopped = false;
+		for (int ply = 0; ply <= MAX_DEPTH; ply++) {
+			killers[ply][0] = killers[ply][1] = null;
+			opponentKillers[ply][0] = opponentKillers[ply][1] = null;
+		}
+		for (Map.Entry<Move, Integer> entry : history.entrySet())
+			entry.setValue(entry.getValue() / 2);
+		for (Map.Entry<Move, Integer> entry : opponentHistory.entrySet())
+			entry.setValue(entry.getValue() / 2);
+	}
+
+	private double maxscore (MachineState state, int depth, int ply, double alpha, double beta, long maxclock)
 			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeLimitExceededException
 	{
-		if (theMachine.isTerminal(state))
-			return theMachine.getGoal(state, role);
-		if (depth <= 0)
-			return heuristic.evalState(state);
-		if (System.currentTimeMillis() > maxclock)
+		nodes++;
+		long hash = AlphaBetaTranspositionTable.hash(state);
+		int tableMove = AlphaBetaTranspositionTable.NO_MOVE;
+		if (table.probe(hash, entry)) {
+			if (ply > 0 && entry.depth >= depth) {
+				if (entry.bound == AlphaBetaTranspositionTable.EXACT)
+					return entry.score;
+				if (entry.bound == AlphaBetaTranspositionTable.LOWER_BOUND && entry.score >= beta)
+					return beta;
+				if (entry.bound == AlphaBetaTranspositionTable.UPPER_BOUND && entry.score <= alpha)
+					return alpha;
+			}
+			tableMove = entry.move;
+		}
+
+		if (theMachine.isTerminal(state)) {
+			int goal = theMachine.getGoal(state, role);
+			table.store(hash, AlphaBetaTranspositionTable.MAX_DEPTH, AlphaBetaTranspositionTable.EXACT, goal, AlphaBetaTranspositionTable.NO_MOVE);
+			return goal;
+		}
+		if (latches != null) {
+			int goal = latches.getDecidedGoal(state, roleIndex);
+			if (goal >= 0) {
+				table.store(hash, AlphaBetaTranspositionTable.MAX_DEPTH, AlphaBetaTranspositionTable.EXACT, goal, AlphaBetaTranspositionTable.NO_MOVE);
+				return goal;
+			}
+		}
+		if (depth <= 0) {
+			double score = heuristic.evalState(state);
+			table.store(hash, 0, AlphaBetaTranspositionTable.EXACT, score, AlphaBetaTranspositionTable.NO_MOVE);
+			return score;
+		}
+		if (stopped || System.currentTimeMillis() > maxclock)
 			throw new TimeLimitExceededException();
 
 		List<Move> moves = theMachine.getLegalMoves(state, role);
-		for (Move move : moves) {
-			double score = minscore(move, state, depth, alpha, beta, maxclock);
+		double alphaOrig = alpha;
+		int bestMove = AlphaBetaTranspositionTable.NO_MOVE;
+		for (int i : orderMoves(moves, tableMove, killers[ply], history)) {
+			Move move = moves.get(i);
+			double score = minscore(move, state, hash, depth, ply, alpha, beta, maxclock);
+			if (score > alpha || bestMove == AlphaBetaTranspositionTable.NO_MOVE) {
+				bestMove = i;
+				if (ply == 0)
+					rootMove = move;
+			}
 			alpha = Math.max(alpha, score);
-			if (alpha >= beta)
+			if (alpha >= beta) {
+				recordCutoff(move, depth, killers[ply], history);
+				table.store(hash, depth, AlphaBetaTranspositionTable.LOWER_BOUND, beta, i);
 				return beta;
+			}
 		}
 
+		int bound = (alpha > alphaOrig) ? AlphaBetaTranspositionTable.EXACT : AlphaBetaTranspositionTable.UPPER_BOUND;
+		table.store(hash, depth, bound, alpha, (bound == AlphaBetaTranspositionTable.EXACT) ? bestMove : AlphaBetaTranspositionTable.NO_MOVE);
 		return alpha;
 	}
 
-	private double minscore(Move move, MachineState state, int depth, double alpha, double beta, long maxclock)
+	private double minscore(Move move, MachineState state, long stateHash, int depth, int ply, double alpha, double beta, long maxclock)
 			throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException, TimeLimitExceededException
 	{
-		if (System.currentTimeMillis() > maxclock)
+		if (stopped || System.currentTimeMillis() > maxclock)
 			throw new TimeLimitExceededException();
 
-		List<Move> moves = theMachine.getLegalMoves(state, opponent);
-		for (Move oppMove : moves) {
-			List<Move> jointMove = new LinkedList<Move>();
-			if (playerFirst) {
-				jointMove.add(move);
-				jointMove.add(oppMove);
-			} else {
-				jointMove.add(oppMove);
-				jointMove.add(move);
+		long hash = AlphaBetaTranspositionTable.hash(stateHash, move);
+		int tableMove = AlphaBetaTranspositionTable.NO_MOVE;
+		if (table.probe(hash, entry)) {
+			if (entry.depth >= depth) {
+				if (entry.bound == AlphaBetaTranspositionTable.EXACT)
+					return entry.score;
+				if (entry.bound == AlphaBetaTranspositionTable.LOWER_BOUND && entry.score >= beta)
+					return beta;
+				if (entry.bound == AlphaBetaTranspositionTable.UPPER_BOUND && entry.score <= alpha)
+					return alpha;
 			}
+			tableMove = entry.move;
+		}
 
-			MachineState newstate = theMachine.getNextState(state, jointMove);
-			double score = maxscore(newstate, depth-1, alpha, beta, maxclock);
+		List<Move> moves = theMachine.getLegalMoves(state, opponent);
+		double betaOrig = beta;
+		int bestMove = AlphaBetaTranspositionTable.NO_MOVE;
+		for (int i : orderMoves(moves, tableMove, opponentKillers[ply], opponentHistory)) {
+			Move oppMove = moves.get(i);
+			MachineState newstate = theMachine.getNextState(state, getJointMove(move, oppMove));
+			double score = maxscore(newstate, depth-1, ply+1, alpha, beta, maxclock);
+			if (score < beta || bestMove == AlphaBetaTranspositionTable.NO_MOVE)
+				bestMove = i;
 			beta = Math.min(beta, score);
-			if (beta <= alpha)
+			if (beta <= alpha) {
+				recordCutoff(oppMove, depth, opponentKillers[ply], opponentHistory);
+				table.store(hash, depth, AlphaBetaTranspositionTable.UPPER_BOUND, alpha, i);
 				return alpha;
+			}
 		}
 
+		int bound = (beta < betaOrig) ? AlphaBetaTranspositionTable.EXACT : AlphaBetaTranspositionTable.LOWER_BOUND;
+		table.store(hash, depth, bound, beta, (bound == AlphaBetaTranspositionTable.EXACT) ? bestMove : AlphaBetaTranspositionTable.NO_MOVE);
 		return beta;
 	}
-}
\ No newline at end of file
+
+	private List<Move> getJointMove(Move move, Move oppMove) {
+		List<Move> jointMove = new ArrayList<Move>(roleCount);
+		for (int i = 0; i < roleCount; i++)
+			jointMove.add(null);
+		jointMove.set(roleIndex, move);
+		jointMove.set(opponentIndex, oppMove);
+		return jointMove;
+	}
+
+	// indices of the given moves in the order they should be searched
+	private static int[] orderMoves(List<Move> moves, int tableMove, Move[] plyKillers, Map<Move, Integer> history) {
+		int n = moves.size();
+		int[] order = new int[n];
+		int[] priorities = new int[n];
+		for (int i = 0; i < n; i++) {
+			Move move = moves.get(i);
+			int priority;
+			if (i == tableMove)
+				priority = Integer.MAX_VALUE;
+			else if (move.equals(plyKillers[0]))
+				priority = KILLER_PRIORITY + 1;
+			else if (move.equals(plyKillers[1]))
+				priority = KILLER_PRIORITY;
+			else {
+				Integer score = history.get(move);
+				priority = (score == null) ? 0 : Math.min(score, KILLER_PRIORITY - 1);
+			}
+
+			// insertion sort, keeping the legal move order among equal priorities
+			int j = i;
+			while (j > 0 && priorities[j-1] < priority) {
+				order[j] = order[j-1];
+				priorities[j] = priorities[j-1];
+				j--;
+			}
+			order[j] = i;
+			priorities[j] = priority;
+		}
+		return order;
+	}
+
+	private static void recordCutoff(Move move, int depth, Move[] plyKillers, Map<Move, Integer> history) {
+		if (!move.equals(plyKillers[0])) {
+			plyKillers[1] = plyKillers[0];
+			plyKillers[0] = move;
+		}
+		Integer score = history.get(move);
+		history.put(move, ((score == null) ? 0 : score) + depth * depth);
+	}
+
+	// follows the best moves in the transposition table from the given state, for logging
+	private List<List<Move>> getPrincipalVariation(MachineState state, int maxLength) {
+		List<List<Move>> variation = new ArrayList<List<Move>>();
+		try {
+			while (variation.size() < maxLength && !theMachine.isTerminal(state)) {
+				long hash = AlphaBetaTranspositionTable.hash(state);
+				List<Move> moves = theMachine.getLegalMoves(state, role);
+				if (!table.probe(hash, entry) || entry.move >= moves.size())
+					break;
+				Move move = moves.get(entry.move);
+
+				List<Move> oppMoves = theMachine.getLegalMoves(state, opponent);
+				if (!table.probe(AlphaBetaTranspositionTable.hash(hash, move), entry) || entry.move >= oppMoves.size())
+					break;
+				List<Move> jointMove = getJointMove(move, oppMoves.get(entry.move));
+				variation.add(jointMove);
+				state = theMachine.getNextState(state, jointMove);
+			}
+		} catch (MoveDefinitionException | TransitionDefinitionException e) {
+			// the variation so far is still worth logging
+		}
+		return variation;
+	}
+}
@@ -15,12 +15,19 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 /**
  * @author kartikkukreja
- * DFS with iterative deepening for puzzles
+ * DFS with iterative deepening for puzzles.
+ * Scores of states are remembered in a transposition table along with the depth they were
+ * searched to, so states reached by different move orders, or searched by an earlier
+ * iteration, aren't searched again.
  */
 public final class IterativeDeepeningDFS {
+	private static final int TABLE_CAPACITY = 1 << 20;
+
 	private Role role;
 	private StateMachine theMachine;
 	private LinearCombinationHeuristic heuristic;
+	private AlphaBetaTranspositionTable table = new AlphaBetaTranspositionTable(TABLE_CAPACITY);
+	private AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
 
 	public IterativeDeepeningDFS(Role role, StateMachine machine, LinearCombinationHeuristic heuristic, long timeout) {
 		this.role = role;
@@ -33,6 +40,7 @@ public final class IterativeDeepeningDFS {
 	{
 		long start = System.currentTimeMillis();
 		timeout -= 1000;
+		table.newGeneration();
 
 		List<Move> moves = theMachine.getLegalMoves(state, role);
 		Move bestMove = moves.get(0);
@@ -74,10 +82,20 @@ public final class IterativeDeepeningDFS {
 	private double maxscore (MachineState state, int depth, long maxclock)
 			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeLimitExceededException
 	{
-		if (theMachine.isTerminal(state))
-			return theMachine.getGoal(state, role);
-		if (depth <= 0)
-			return heuristic.evalState(state);
+		long hash = AlphaBetaTranspositionTable.hash(state);
+		if (table.probe(hash, entry) && entry.depth >= depth)
+			return entry.score;
+
+		if (theMachine.isTerminal(state)) {
+			int goal = theMachine.getGoal(state, role);
+			table.store(hash, AlphaBetaTranspositionTable.MAX_DEPTH, AlphaBetaTranspositionTable.EXACT, goal, AlphaBetaTranspositionTable.NO_MOVE);
+			return goal;
+		}
+		if (depth <= 0) {
+			double score = heuristic.evalState(state);
+			table.store(hash, 0, AlphaBetaTranspositionTable.EXACT, score, AlphaBetaTranspositionTable.NO_MOVE);
+			return score;
+		}
 		if (System.currentTimeMillis() > maxclock)
 			throw new TimeLimitExceededException();
 
@@ -88,9 +106,12 @@ public final class IterativeDeepeningDFS {
 			if (score > bestScore)
 				bestScore = score;
 			if (bestScore >= 100.0)
-				return 100.0;
+				break;
 		}
 
+		// a win can't be improved on by searching deeper
+		int storedDepth = (bestScore >= 100.0) ? AlphaBetaTranspositionTable.MAX_DEPTH : depth;
+		table.store(hash, storedDepth, AlphaBetaTranspositionTable.EXACT, bestScore, AlphaBetaTranspositionTable.NO_MOVE);
 		return bestScore;
 	}
 
@@ -5,6 +5,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
+import org.ggp.base.util.statemachine.DepthChargeBuffers;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -13,13 +15,70 @@ import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+/**
+ * @author kartikkukreja
+ * MCTS over a tree in which each level chooses the move of one role, in role order.
+ * Selection is UCT, optionally combined with all-moves-as-first (AMAF) statistics: RAVE uses
+ * the AMAF statistics of the node itself, and GRAVE those of the closest ancestor with enough
+ * visits for them to be reliable. Playouts are uniformly random, or biased towards moves with
+ * a good average utility over all iterations so far (MAST).
+ * Move statistics are kept in arrays indexed by the ids of a MoveIndex, rather than in maps.
+ */
 public final class MCTS {
+	public static enum Selection {
+		UCT,
+		RAVE,
+		GRAVE
+	}
+
+	public static enum Playout {
+		RANDOM,
+		MAST
+	}
+
+	// GRAVE uses the AMAF statistics of the closest ancestor with at least this many visits
+	private static final int GRAVE_REFERENCE_VISITS = 50;
+	// bias in the weight AMAF statistics get relative to the node's own: visits are weighted
+	// with amaf / (amaf + visits + bias * amaf * visits)
+	private static final double AMAF_BIAS = 1e-5;
+	// temperature of the Gibbs distribution over the MAST averages, which range from 0 to 100
+	private static final double MAST_TEMPERATURE = 10.0;
+
 	private Role[] roles;
 	private int playerIndex;
 	private int maxRoleIndex;
 	private StateMachine theMachine;
 	private Random theRandom = new Random();
 	private MachineState simulationState;
+	// reused by every simulation, so that rollouts don't allocate on every ply
+	private DepthChargeBuffers buffers;
+	// tree kept between turns, and the state it was built for
+	private MCTSNode root = null;
+	private MachineState rootState = null;
+	// last state passed to the machine's updateRoot
+	private MachineState machineRoot = null;
+	// if set, states whose outcome is already decided are treated as terminal
+	private LatchAnalysis latches = null;
+
+	private Selection selectionPolicy = Selection.UCT;
+	private Playout playoutPolicy = Playout.RANDOM;
+	// set if selection or playouts use move statistics, which needs moves to be tracked
+	private boolean trackMoves = false;
+	private MoveIndex moveIndex;
+	// MAST: number of iterations in which each move of each role was played, and their total utility
+	private int[][] mastVisits;
+	private double[][] mastUtility;
+	// moves played by each role in the current iteration, without repetitions: playedStamp is
+	// the last iteration in which a move was played
+	private int[][] playedMoves;
+	private int[] playedCount;
+	private int[][] playedStamp;
+	private int iteration = 0;
+	private double[] gibbsWeights = new double[0];
+	private double moveValue = -1;
+
+	// while pondering, the only move of ours tried in the first joint move from the root
+	private Move ponderMove = null;
 
 	public MCTS (StateMachine theMachine, List<Role> roles, Role role, long timeout)
 			throws MoveDefinitionException, TransitionDefinitionException
@@ -29,6 +88,34 @@ public final class MCTS {
 		this.roles = roles.toArray(this.roles);
 		this.maxRoleIndex = this.roles.length - 1;
 		this.playerIndex = theMachine.getRoleIndices().get(role);
+		this.buffers = theMachine.newDepthChargeBuffers();
+		this.moveIndex = new MoveIndex(this.roles.length);
+		this.mastVisits = new int[this.roles.length][0];
+		this.mastUtility = new double[this.roles.length][0];
+		this.playedMoves = new int[this.roles.length][0];
+		this.playedCount = new int[this.roles.length];
+		this.playedStamp = new int[this.roles.length][0];
+	}
+
+	/**
+	 * Sets the selection and playout policies. The tree kept from earlier turns is dropped,
+	 * since its nodes have no move statistics if the old policies didn't use them.
+	 */
+	public void setPolicies (Selection selection, Playout playout) {
+		this.selectionPolicy = selection;
+		this.playoutPolicy = playout;
+		this.trackMoves = selection != Selection.UCT || playout != Playout.RANDOM;
+		root = null;
+		rootState = null;
+	}
+
+	/**
+	 * Makes the search stop at states whose goals are already decided by latches, as if they
+	 * were terminal, instead of expanding them or simulating from them. Pass null to stop
+	 * doing so.
+	 */
+	public void setLatchAnalysis (LatchAnalysis latches) {
+		this.latches = (latches != null && latches.canDecideGoals()) ? latches : null;
 	}
 
 	public Move nextMove (MachineState state, long timeout)
@@ -36,25 +123,12 @@ public final class MCTS {
 	{
 		long start = System.currentTimeMillis();
 
-		List<Move> jointMove = new ArrayList<Move>(roles.length);
-		for (int i = 0; i < roles.length; i++)
-			jointMove.add(null);
-
-		MCTSNode root = new MCTSNode(null, jointMove, 0, roles.length);
-		double avStepTime = 0;
-		int numSteps = 0;
-		while (true) {
-			long before = System.currentTimeMillis();
-			if (before + avStepTime > timeout)
-				break;
-			doMCTS(state, root);
-			long after = System.currentTimeMillis();
-			avStepTime = (avStepTime * numSteps * 0.97 + (after - before)) / (numSteps + 1);
-			numSteps++;
-		}
+		int reused = (root != null && state.equals(rootState)) ? root.visits : 0;
+		search(state, timeout);
 
 		MCTSNode node = root;
-		for (int i = 0; i <= playerIndex; i++) {
+		moveValue = -1;
+		for (int i = 0; i <= playerIndex && node != null; i++) {
 			double maxscore = -1;
 			MCTSNode bestchild = null;
 			for (MCTSNode child : node.children) {
@@ -66,24 +140,124 @@ public final class MCTS {
 			}
 
 			node = bestchild;
+			if (i == playerIndex && node != null)
+				moveValue = maxscore;
 		}
 
-		Move selection = node.jointMove.get(playerIndex);
+		// the tree has no moves if the root is terminal or no iteration was run
+		Move selection = (node != null) ? node.jointMove.get(playerIndex) : theMachine.getLegalMoves(state, roles[playerIndex]).get(0);
 
 		long stop = System.currentTimeMillis();
 
-		System.out.println("MCTS iterations: " + root.visits + " av utility: " + Arrays.toString(root.utility) + " Time taken: " + (stop-start)/1000.0);
+		System.out.println("MCTS iterations: " + root.visits + " reused: " + reused + " av utility: " + Arrays.toString(root.utility) + " Time taken: " + (stop-start)/1000.0);
 		return selection;
 	}
 
+	// root of the tree kept from the last search, or null if there is none
+	public MCTSNode getRoot() {
+		return root;
+	}
+
+	// our average utility for the move last returned by nextMove, or -1 if it wasn't searched
+	public double getMoveValue() {
+		return moveValue;
+	}
+
+	/**
+	 * Runs iterations from the given state until the timeout, growing the tree kept for that
+	 * state if there is one, or starting a new one otherwise. Returns how many were run.
+	 */
+	public int search (MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		if (root == null || !state.equals(rootState)) {
+			List<Move> jointMove = new ArrayList<Move>(roles.length);
+			for (int i = 0; i < roles.length; i++)
+				jointMove.add(null);
+
+			root = new MCTSNode(null, jointMove, 0, roles.length);
+			rootState = state;
+		}
+		// every iteration starts from the root, which a propnet machine can then restore cheaply
+		if (!state.equals(machineRoot)) {
+			theMachine.updateRoot(state);
+			machineRoot = state;
+		}
+
+		double avStepTime = 0;
+		int numSteps = 0;
+		while (true) {
+			long before = System.currentTimeMillis();
+			if (before + avStepTime > timeout)
+				break;
+			doMCTS(state, root);
+			long after = System.currentTimeMillis();
+			avStepTime = (avStepTime * numSteps * 0.97 + (after - before)) / (numSteps + 1);
+			numSteps++;
+		}
+		return numSteps;
+	}
+
+	/**
+	 * Like search, but only grows the part of the tree below the given move of ours from the
+	 * given state, which is where the game goes once that move is played.
+	 */
+	public int ponder (MachineState state, Move move, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		if (!theMachine.getLegalMoves(state, roles[playerIndex]).contains(move))
+			return search(state, timeout);
+		ponderMove = move;
+		try {
+			return search(state, timeout);
+		} finally {
+			ponderMove = null;
+		}
+	}
+
+	/**
+	 * Re-roots the tree at the subtree reached by the given joint move, so that the statistics
+	 * gathered for it in earlier turns are reused by the next call to nextMove. The rest of the
+	 * tree is dropped. Should be called once per turn, with the joint move that was played.
+	 */
+	public void advance (List<Move> jointMove) throws TransitionDefinitionException {
+		if (root == null)
+			return;
+
+		MCTSNode node = root;
+		for (int i = 0; i < roles.length && node != null; i++) {
+			MCTSNode next = null;
+			for (MCTSNode child : node.children) {
+				if (child.jointMove.get(node.index).equals(jointMove.get(node.index))) {
+					next = child;
+					break;
+				}
+			}
+			node = next;
+		}
+
+		if (node == null) {
+			root = null;
+			rootState = null;
+			return;
+		}
+		// detach the subtree, so that its unreachable siblings can be garbage collected
+		node.parent = null;
+		root = node;
+		rootState = theMachine.getNextState(rootState, jointMove);
+	}
+
 	private MCTSNode select (MCTSNode node) throws TransitionDefinitionException {
 		if (node.visits == 0 || node.children.size() == 0)
 			return node;
 
+		MCTSNode reference = (selectionPolicy == Selection.UCT) ? null : getAmafReference(node);
 		double score = -1.0;
 		MCTSNode result = node;
 		for (MCTSNode child : node.children) {
-			double newscore = selectfn(child);
+			if (isPonderedAway(child))
+				continue;
+			double newscore = (reference == null) ? selectfn(child) : selectfn(child, reference);
 			if (newscore > score) {
 				score = newscore;
 				result = child;
@@ -101,6 +275,42 @@ public final class MCTS {
 		return (node.utility[node.parent.index] / 100.0) + 2*Math.sqrt(Math.log(node.parent.visits) / node.visits);
 	}
 
+	// UCT with the average utility mixed with the AMAF average of the move at the reference node
+	private double selectfn (MCTSNode node, MCTSNode reference) {
+		int amafVisits = 0;
+		double amafValue = 0.0;
+		if (reference.amafVisits != null && node.moveId < reference.amafVisits.length && reference.amafVisits[node.moveId] > 0) {
+			amafVisits = reference.amafVisits[node.moveId];
+			amafValue = reference.amafUtility[node.moveId] / 100.0 / amafVisits;
+		}
+
+		// unvisited children are tried first, in the order of their AMAF averages
+		if (node.visits == 0)
+			return 1000 + ((amafVisits > 0) ? amafValue : theRandom.nextDouble());
+		double value = node.utility[node.parent.index] / 100.0;
+		double beta = amafVisits / (amafVisits + node.visits + AMAF_BIAS * amafVisits * node.visits);
+		return (1 - beta) * value + beta * amafValue + 2*Math.sqrt(Math.log(node.parent.visits) / node.visits);
+	}
+
+	// node whose AMAF statistics are used to select among the children of the given node:
+	// the node itself for RAVE, and for GRAVE, the closest ancestor choosing for the same
+	// role with enough visits, or the topmost one if none has
+	private MCTSNode getAmafReference (MCTSNode node) {
+		if (selectionPolicy == Selection.RAVE)
+			return node;
+
+		MCTSNode reference = node;
+		while (reference.visits < GRAVE_REFERENCE_VISITS) {
+			MCTSNode ancestor = reference;
+			for (int i = 0; i < roles.length && ancestor != null; i++)
+				ancestor = ancestor.parent;
+			if (ancestor == null)
+				break;
+			reference = ancestor;
+		}
+		return reference;
+	}
+
 	// Sparsely populate nodes until a new state (all players having made moves)
 	// Returns a randomly selected child node, which can be later simulated from
 	private MCTSNode expand (MCTSNode node) throws MoveDefinitionException, TransitionDefinitionException {
@@ -109,24 +319,58 @@ public final class MCTS {
 			List<Move> jointMove = new ArrayList<Move>(node.jointMove);
 			jointMove.set(node.index, move);
 			MCTSNode newnode = new MCTSNode(node, jointMove, (node.index == maxRoleIndex) ? 0 : node.index+1, roles.length);
+			if (trackMoves)
+				newnode.moveId = moveIndex.getId(node.index, move);
 			node.children.add(newnode);
 		}
 
 		if (node.index < maxRoleIndex)
-			return expand(node.children.get(theRandom.nextInt(node.children.size())));
+			return expand(randomChild(node));
 		else {
-			MCTSNode selection = node.children.get(theRandom.nextInt(node.children.size()));
+			MCTSNode selection = randomChild(node);
 			simulationState = theMachine.getNextStateDestructively(simulationState, selection.jointMove);
 			return selection;
 		}
 	}
 
-	private void backpropagate (MCTSNode node, List<Integer> utility) {
+	private MCTSNode randomChild (MCTSNode node) {
+		if (ponderMove != null && node.index == playerIndex && isFirstJointMove(node)) {
+			for (MCTSNode child : node.children) {
+				if (!isPonderedAway(child))
+					return child;
+			}
+		}
+		return node.children.get(theRandom.nextInt(node.children.size()));
+	}
+
+	// whether the child is for a move of ours other than the one being pondered, in the first
+	// joint move from the root
+	private boolean isPonderedAway (MCTSNode child) {
+		return ponderMove != null && child.parent.index == playerIndex && isFirstJointMove(child.parent)
+				&& !child.jointMove.get(playerIndex).equals(ponderMove);
+	}
+
+	// whether the node chooses a move of the first joint move from the root
+	private boolean isFirstJointMove (MCTSNode node) {
+		MCTSNode ancestor = node;
+		for (int i = 0; i < node.index; i++)
+			ancestor = ancestor.parent;
+		return ancestor == root;
+	}
+
+	private void backpropagate (MCTSNode node, int[] utility) {
 		int i = 0;
 		for (int util : utility) {
 			node.utility[i] = (node.utility[i] * node.visits + util) / (node.visits + 1);
 			i++;
 		}
+		if (trackMoves) {
+			// the moves of the node's role played after it, and then the move leading to it
+			if (selectionPolicy != Selection.UCT)
+				updateAmaf(node, utility);
+			if (node.parent != null)
+				markPlayed(node.parent.index, node.moveId);
+		}
 
 		node.visits++;
 		if (node.parent != null)
@@ -137,15 +381,132 @@ public final class MCTS {
 			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
 	{
 		simulationState = state;
+		if (trackMoves)
+			startIteration();
 		MCTSNode selection = select(node);
 
-		if (selection.index == 0 && theMachine.isTerminal(simulationState)) {
-			backpropagate(selection, theMachine.getGoals(simulationState));
+		int[] utility = null;
+		if (selection.index == 0) {
+			if (theMachine.isTerminal(simulationState)) {
+				// a depth charge from a terminal state just reads its goals
+				utility = theMachine.simulate(simulationState, buffers, theRandom);
+			} else if (selection != node) {
+				// the root is expanded even if its outcome is decided, since a move is chosen there
+				utility = getDecidedGoals(simulationState);
+			}
+		}
+
+		if (utility == null) {
+			// perform random exploration from only one child
+			selection = expand(selection);
+			utility = getDecidedGoals(simulationState);
+			if (utility == null)
+				utility = simulate(simulationState);
+		}
+
+		backpropagate(selection, utility);
+		if (playoutPolicy == Playout.MAST)
+			updateMast(utility);
+	}
+
+	// plays the game out from the given state, keeping track of the moves if needed, and
+	// returns the goals reached
+	private int[] simulate (MachineState state)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		if (!trackMoves)
+			return theMachine.simulate(state, buffers, theRandom);
+
+		while (!theMachine.isTerminal(state)) {
+			List<Move> jointMove = (playoutPolicy == Playout.MAST) ? getMastJointMove(state) : theMachine.getRandomJointMove(state, buffers, theRandom);
+			for (int r = 0; r < roles.length; r++)
+				markPlayed(r, moveIndex.getId(r, jointMove.get(r)));
+			state = theMachine.getNextStateDestructively(state, jointMove);
+		}
+		// a depth charge from a terminal state just reads its goals
+		return theMachine.simulate(state, buffers, theRandom);
+	}
+
+	// picks the move of each role from a Gibbs distribution over the MAST averages of its
+	// legal moves, with moves never played counting as wins
+	private List<Move> getMastJointMove (MachineState state) throws MoveDefinitionException {
+		for (int r = 0; r < roles.length; r++) {
+			List<Move> moves = theMachine.getLegalMoves(state, roles[r]);
+			int moveCount = moves.size();
+			int choice = 0;
+			if (moveCount > 1) {
+				if (gibbsWeights.length < moveCount)
+					gibbsWeights = new double[moveCount];
+				double sum = 0.0;
+				for (int m = 0; m < moveCount; m++) {
+					int id = moveIndex.getId(r, moves.get(m));
+					double average = (id < mastVisits[r].length && mastVisits[r][id] > 0) ? mastUtility[r][id] / mastVisits[r][id] : 100.0;
+					gibbsWeights[m] = Math.exp(average / MAST_TEMPERATURE);
+					sum += gibbsWeights[m];
+				}
+
+				double x = theRandom.nextDouble() * sum;
+				while (choice < moveCount - 1 && x >= gibbsWeights[choice]) {
+					x -= gibbsWeights[choice];
+					choice++;
+				}
+			}
+			buffers.jointMove.set(r, moves.get(choice));
+			buffers.moveIndices[r] = choice;
+		}
+		return buffers.jointMove;
+	}
+
+	private void startIteration() {
+		iteration++;
+		for (int r = 0; r < roles.length; r++)
+			playedCount[r] = 0;
+	}
+
+	private void markPlayed (int role, int id) {
+		if (id >= playedStamp[role].length)
+			playedStamp[role] = Arrays.copyOf(playedStamp[role], Math.max(2 * playedStamp[role].length, id + 1));
+		if (playedStamp[role][id] == iteration)
 			return;
+		playedStamp[role][id] = iteration;
+
+		if (playedCount[role] == playedMoves[role].length)
+			playedMoves[role] = Arrays.copyOf(playedMoves[role], Math.max(2 * playedCount[role], 8));
+		playedMoves[role][playedCount[role]++] = id;
+	}
+
+	// adds the iteration to the AMAF statistics of the moves of the node's role played so far
+	private void updateAmaf (MCTSNode node, int[] utility) {
+		int role = node.index;
+		int size = moveIndex.size(role);
+		if (node.amafVisits == null || node.amafVisits.length < size) {
+			node.amafVisits = (node.amafVisits == null) ? new int[size] : Arrays.copyOf(node.amafVisits, size);
+			node.amafUtility = (node.amafUtility == null) ? new double[size] : Arrays.copyOf(node.amafUtility, size);
+		}
+
+		int[] played = playedMoves[role];
+		for (int i = 0; i < playedCount[role]; i++) {
+			node.amafVisits[played[i]]++;
+			node.amafUtility[played[i]] += utility[role];
 		}
+	}
+
+	private void updateMast (int[] utility) {
+		for (int r = 0; r < roles.length; r++) {
+			int size = moveIndex.size(r);
+			if (mastVisits[r].length < size) {
+				mastVisits[r] = Arrays.copyOf(mastVisits[r], Math.max(2 * mastVisits[r].length, size));
+				mastUtility[r] = Arrays.copyOf(mastUtility[r], mastVisits[r].length);
+			}
+			int[] played = playedMoves[r];
+			for (int i = 0; i < playedCount[r]; i++) {
+				mastVisits[r][played[i]]++;
+				mastUtility[r][played[i]] += utility[r];
+			}
+		}
+	}
 
-		// perform random exploration from only one child
-		MCTSNode child = expand(selection);
-		backpropagate(child, theMachine.simulate(simulationState));
+	private int[] getDecidedGoals (MachineState state) {
+		return (latches != null) ? latches.getDecidedGoals(state) : null;
 	}
 }
\ No newline at end of file
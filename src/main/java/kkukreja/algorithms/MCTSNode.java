@@ -11,6 +11,13 @@ public class MCTSNode {
 	public List<MCTSNode> children;
 	public MCTSNode parent;
 	public List<Move> jointMove;
+	// id in MCTS's MoveIndex of the move of the parent's role that leads here, or -1 if MCTS
+	// doesn't need move ids
+	public int moveId = -1;
+	// all-moves-as-first statistics of the moves of this node's role, indexed by move id;
+	// null until first updated
+	public int[] amafVisits;
+	public double[] amafUtility;
 
 	public MCTSNode() {
 		visits = 0;
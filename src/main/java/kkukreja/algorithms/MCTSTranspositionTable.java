@@ -0,0 +1,227 @@
+package kkukreja.algorithms;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.BasePropositionIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * @author kartikkukreja
+ * bounded, thread-safe transposition table of MCTS statistics, keyed by state.
+ * The table has a fixed number of slots. A state hashes to a bucket of BUCKET_SIZE consecutive
+ * slots. If the bucket is full, the entry is replaced that was last used in the oldest search
+ * generation, with ties broken by fewest visits, so statistics of states that were searched
+ * heavily in the current turn survive.
+ * Every entry keeps the statistics of the joint moves out of its state (edge statistics),
+ * so the same state reached through different move orders shares one set of statistics.
+ * Edge statistics are created when their joint move is first played, so an entry takes memory
+ * in proportion to the joint moves tried from it rather than to all of its joint moves.
+ */
+public final class MCTSTranspositionTable {
+	private static final int BUCKET_SIZE = 4;
+
+	// statistics of one joint move out of a state
+	public static final class Edge {
+		private final AtomicInteger visits = new AtomicInteger();
+		// utility sums, indexed by role
+		private final AtomicLongArray sums;
+
+		private Edge (int roleCount) {
+			this.sums = new AtomicLongArray(roleCount);
+		}
+
+		public int getVisits() {
+			return visits.get();
+		}
+
+		public long getUtilitySum(int role) {
+			return sums.get(role);
+		}
+	}
+
+	public static final class Entry {
+		public final long hash;
+		public final MachineState state;
+		public final boolean terminal;
+		// goals of each role if terminal, null otherwise
+		public final int[] goals;
+		// legal moves of each role, and the stride of each role in the joint move index
+		public final Move[][] legalMoves;
+		private final long[] strides;
+
+		private final AtomicInteger visits = new AtomicInteger();
+		// statistics of the joint moves played so far, by joint move index; null if terminal
+		private final ConcurrentMap<Long, Edge> edges;
+		private volatile int generation;
+
+		private Entry (long hash, MachineState state, int[] goals, Move[][] legalMoves, int generation) {
+			this.hash = hash;
+			this.state = state;
+			this.terminal = goals != null;
+			this.goals = goals;
+			this.legalMoves = legalMoves;
+			this.generation = generation;
+
+			int roleCount = (legalMoves == null) ? 0 : legalMoves.length;
+			this.strides = new long[roleCount];
+			long count = 1;
+			for (int r = roleCount - 1; r >= 0; r--) {
+				strides[r] = count;
+				if (count > Long.MAX_VALUE / legalMoves[r].length)
+					throw new IllegalArgumentException("Too many joint moves to index in a long");
+				count *= legalMoves[r].length;
+			}
+			this.edges = terminal ? null : new ConcurrentHashMap<Long, Edge>(4, 0.75f, 1);
+		}
+
+		public int getVisits() {
+			return visits.get();
+		}
+
+		// statistics of the joint moves played so far, by joint move index
+		public Map<Long, Edge> getEdges() {
+			return Collections.unmodifiableMap(edges);
+		}
+
+		// index of the given role's move in legalMoves[role] within the given joint move
+		public int getMoveIndex(long jointMove, int role) {
+			return (int) ((jointMove / strides[role]) % legalMoves[role].length);
+		}
+
+		public Move getMove(long jointMove, int role) {
+			return legalMoves[role][getMoveIndex(jointMove, role)];
+		}
+
+		// index of the joint move made of the given move indices
+		public long getJointMove(int[] moveIndices) {
+			long jointMove = 0;
+			for (int r = 0; r < strides.length; r++)
+				jointMove += moveIndices[r] * strides[r];
+			return jointMove;
+		}
+
+		// records the result of a simulation that left this state through the given joint move
+		public void update (long jointMove, int[] utility) {
+			visits.incrementAndGet();
+			if (jointMove < 0)
+				return;
+			Edge edge = edges.get(jointMove);
+			if (edge == null) {
+				Edge newEdge = new Edge(strides.length);
+				edge = edges.putIfAbsent(jointMove, newEdge);
+				if (edge == null)
+					edge = newEdge;
+			}
+			edge.visits.incrementAndGet();
+			for (int r = 0; r < utility.length; r++)
+				edge.sums.addAndGet(r, utility[r]);
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final AtomicInteger size = new AtomicInteger();
+	private volatile int generation = 0;
+
+	// capacity is rounded up to a power of two
+	public MCTSTranspositionTable (int capacity) {
+		int slotCount = Integer.highestOneBit(Math.max(capacity, BUCKET_SIZE) - 1) << 1;
+		this.slots = new AtomicReferenceArray<Entry>(slotCount);
+		this.mask = slotCount - 1;
+	}
+
+	public static long hash (MachineState state) {
+		if (state instanceof BitSetMachineState)
+			return ((BitSetMachineState) state).getZobristHash();
+		long hash = 0L;
+		for (GdlSentence sentence : state.getContents())
+			hash ^= BasePropositionIndex.getZobristKey(sentence);
+		return hash;
+	}
+
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	// entries replaced from now on are the ones not used since the previous generation
+	public void newGeneration() {
+		generation++;
+	}
+
+	public Entry get (MachineState state) {
+		long hash = hash(state);
+		int start = (int) hash & mask;
+		for (int i = 0; i < BUCKET_SIZE; i++) {
+			Entry entry = slots.get((start + i) & mask);
+			if (entry != null && entry.hash == hash && entry.state.equals(state)) {
+				entry.generation = generation;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	// creates an entry for a terminal state with the given goals, or for a non-terminal state
+	// with the given legal moves for each role. Returns the entry for the state that is in the
+	// table, which was created by another thread if it got there first.
+	public Entry put (MachineState state, List<Integer> goals, List<List<Move>> legalMoves) {
+		int[] goalArray = null;
+		Move[][] moveArray = null;
+		if (goals != null) {
+			goalArray = new int[goals.size()];
+			for (int r = 0; r < goalArray.length; r++)
+				goalArray[r] = goals.get(r);
+		} else {
+			moveArray = new Move[legalMoves.size()][];
+			for (int r = 0; r < moveArray.length; r++)
+				moveArray[r] = legalMoves.get(r).toArray(new Move[legalMoves.get(r).size()]);
+		}
+		long hash = hash(state);
+		Entry newEntry = new Entry(hash, state, goalArray, moveArray, generation);
+
+		int start = (int) hash & mask;
+		while (true) {
+			int victim = -1;
+			Entry victimEntry = null;
+			for (int i = 0; i < BUCKET_SIZE; i++) {
+				int slot = (start + i) & mask;
+				Entry entry = slots.get(slot);
+				if (entry == null) {
+					if (slots.compareAndSet(slot, null, newEntry)) {
+						size.incrementAndGet();
+						return newEntry;
+					}
+					entry = slots.get(slot);
+				}
+				if (entry.hash == hash && entry.state.equals(state))
+					return entry;
+				if (victimEntry == null || isBetterVictim(entry, victimEntry)) {
+					victim = slot;
+					victimEntry = entry;
+				}
+			}
+			if (slots.compareAndSet(victim, victimEntry, newEntry))
+				return newEntry;
+		}
+	}
+
+	private static boolean isBetterVictim (Entry entry, Entry victim) {
+		if (entry.generation != victim.generation)
+			return entry.generation < victim.generation;
+		return entry.getVisits() < victim.getVisits();
+	}
+}
@@ -0,0 +1,41 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * @author kartikkukreja
+ * numbers the moves of each role consecutively from 0, in the order they are first seen, so
+ * that statistics about moves can be kept in arrays indexed by move id instead of in maps.
+ * Each role has its own ids, since the same move can mean different things for different
+ * roles.
+ */
+public final class MoveIndex {
+	private List<Map<Move, Integer>> ids;
+
+	public MoveIndex (int roleCount) {
+		ids = new ArrayList<Map<Move, Integer>>(roleCount);
+		for (int r = 0; r < roleCount; r++)
+			ids.add(new HashMap<Move, Integer>());
+	}
+
+	// id of the given move of the given role, assigning the next free one if it's new
+	public int getId (int role, Move move) {
+		Map<Move, Integer> roleIds = ids.get(role);
+		Integer id = roleIds.get(move);
+		if (id == null) {
+			id = roleIds.size();
+			roleIds.put(move, id);
+		}
+		return id;
+	}
+
+	// number of moves of the given role seen so far; their ids are below this
+	public int size (int role) {
+		return ids.get(role).size();
+	}
+}
@@ -0,0 +1,207 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.naming.TimeLimitExceededException;
+
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * @author kartikkukreja
+ * multi-threaded iterative deepening alpha-beta for two-player games (Lazy SMP).
+ * Every worker runs its own IterativeDeepeningAlphaBeta on its own state machine, and all of
+ * them share one transposition table. Workers don't otherwise coordinate: they speed each other
+ * up through the bounds and best moves they leave in the table, and because half of them start
+ * one ply deeper, they spread out over different parts of the tree. A worker that finishes an
+ * iteration skips to one ply deeper than the deepest iteration finished by any worker.
+ * The move played is the best move of the deepest finished iteration.
+ */
+public final class ParallelAlphaBeta {
+	private static final int MAX_DEPTH = 100;
+	private static final int TABLE_CAPACITY = 1 << 21;
+
+	private Role role;
+	private List<StateMachine> machines;
+	private List<IterativeDeepeningAlphaBeta> workers;
+	private AlphaBetaTranspositionTable table = new AlphaBetaTranspositionTable(TABLE_CAPACITY);
+	private ForkJoinPool pool;
+	private int maxDepth = MAX_DEPTH;
+
+	// result of the deepest iteration finished during the current call to nextMove
+	private int bestDepth;
+	private Move bestMove;
+	private double bestScore;
+	private volatile boolean finished;
+	private long lastNodes = 0;
+
+	// machines should be initialized with the same game, and must not be used by anything else
+	// while a move is being computed. One worker is run per machine, each with a copy of the
+	// heuristic that evaluates states with that worker's machine.
+	public ParallelAlphaBeta (List<StateMachine> machines, Role role, Role opponent, LinearCombinationHeuristic heuristic) {
+		this.role = role;
+		this.machines = new ArrayList<StateMachine>(machines);
+		this.workers = new ArrayList<IterativeDeepeningAlphaBeta>(machines.size());
+		for (StateMachine machine : machines) {
+			LinearCombinationHeuristic copy = new LinearCombinationHeuristic(machine, role, heuristic.getWeights());
+			workers.add(new IterativeDeepeningAlphaBeta(role, opponent, machine, copy, table));
+		}
+		this.pool = new ForkJoinPool(machines.size());
+	}
+
+	public int getThreadCount() {
+		return workers.size();
+	}
+
+	// limits the depth of the search, mostly so that benchmarks can time searches to a fixed depth
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = Math.min(maxDepth, MAX_DEPTH);
+	}
+
+	// see IterativeDeepeningAlphaBeta.setLatchAnalysis
+	public void setLatchAnalysis(LatchAnalysis latches) {
+		for (IterativeDeepeningAlphaBeta worker : workers)
+			worker.setLatchAnalysis(latches);
+	}
+
+	// depth of the deepest iteration finished during the last call to nextMove
+	public int getLastDepth() {
+		return bestDepth;
+	}
+
+	// number of states visited by all workers during the last call to nextMove
+	public long getLastNodes() {
+		return lastNodes;
+	}
+
+	public Move nextMove (final MachineState state, long timeout)
+			throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
+	{
+		long start = System.currentTimeMillis();
+		final long deadline = timeout - 1000;
+
+		List<Move> moves = machines.get(0).getLegalMoves(state, role);
+		if (moves.size() == 1)
+			return moves.get(0);
+
+		table.newGeneration();
+		bestDepth = 0;
+		bestMove = null;
+		bestScore = 0.0;
+		finished = false;
+		long nodesBefore = 0;
+		for (IterativeDeepeningAlphaBeta worker : workers) {
+			worker.newTurn();
+			nodesBefore += worker.getNodes();
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (int i = 0; i < workers.size(); i++) {
+			final IterativeDeepeningAlphaBeta worker = workers.get(i);
+			final int firstDepth = 1 + (i % 2);
+			futures.add(pool.submit(GdlPool.inCurrentArena(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					runWorker(worker, state, firstDepth, deadline);
+					return null;
+				}
+			})));
+		}
+		try {
+			for (Future<Void> future : futures)
+				waitFor(future);
+		} finally {
+			// stops the other workers if one of them failed
+			for (IterativeDeepeningAlphaBeta worker : workers)
+				worker.stop();
+		}
+
+		long nodes = -nodesBefore;
+		for (IterativeDeepeningAlphaBeta worker : workers)
+			nodes += worker.getNodes();
+		lastNodes = nodes;
+
+		Move selection = (bestMove != null) ? bestMove : moves.get(0);
+		long stop = System.currentTimeMillis();
+
+		System.out.println("Parallel alpha-beta (" + workers.size() + " threads). Move selected: " + selection + " Score: " + bestScore
+				+ " Depth: " + bestDepth + " Nodes: " + nodes + " Time taken: " + (stop-start)/1000.0);
+		return selection;
+	}
+
+	// stops the worker threads; the object can't be used afterwards
+	public void shutdown() {
+		finish();
+		pool.shutdownNow();
+	}
+
+	private void runWorker (IterativeDeepeningAlphaBeta worker, MachineState state, int depth, long deadline)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		while (!finished && depth <= maxDepth && (System.currentTimeMillis()+100) < deadline) {
+			double score;
+			try {
+				score = worker.searchDepth(state, depth, deadline);
+			} catch (TimeLimitExceededException e) {
+				break;
+			}
+
+			Move move = worker.getRootMove();
+			depth = report(depth, move, score) + 1;
+			// the outcome is decided by latches, or we found a win
+			if (move == null || score >= 100.0 || depth > maxDepth)
+				finish();
+		}
+	}
+
+	// records the result of an iteration, and returns the depth of the deepest finished iteration
+	private synchronized int report (int depth, Move move, double score) {
+		if (depth > bestDepth && move != null) {
+			bestDepth = depth;
+			bestMove = move;
+			bestScore = score;
+		}
+		return Math.max(depth, bestDepth);
+	}
+
+	private void finish() {
+		finished = true;
+		for (IterativeDeepeningAlphaBeta worker : workers)
+			worker.stop();
+	}
+
+	private static void waitFor (Future<Void> future)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// ForkJoinPool wraps checked exceptions thrown by a Callable in plain RuntimeExceptions
+			while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null)
+				cause = cause.getCause();
+			if (cause instanceof GoalDefinitionException)
+				throw (GoalDefinitionException) cause;
+			if (cause instanceof MoveDefinitionException)
+				throw (MoveDefinitionException) cause;
+			if (cause instanceof TransitionDefinitionException)
+				throw (TransitionDefinitionException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+}
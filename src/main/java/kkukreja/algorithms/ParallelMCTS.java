@@ -0,0 +1,283 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * @author kartikkukreja
+ * multi-threaded MCTS, with one worker thread per state machine.
+ * ROOT: every worker grows its own tree from the current state and the trees are merged
+ * when the time is up.
+ * TREE: all workers grow a single shared tree. A worker adds a virtual loss to every node
+ * on its path while it is simulating, which steers the other workers towards other paths.
+ * Either way, the statistics of the player's moves are summed over all trees, and the move
+ * with the highest average utility is played.
+ */
+public final class ParallelMCTS {
+	public enum Mode { ROOT, TREE }
+
+	private Role[] roles;
+	private int playerIndex;
+	private int maxRoleIndex;
+	private List<StateMachine> machines;
+	private Mode mode;
+	private ExecutorService executor;
+	private long lastIterations = 0;
+	private List<ParallelMCTSNode> lastRoots = new ArrayList<ParallelMCTSNode>();
+
+	// machines should be initialized with the same game, and must not be used by anything else
+	// while a move is being computed. One worker thread is started per machine.
+	public ParallelMCTS (List<StateMachine> machines, Role role, Mode mode) {
+		this.machines = new ArrayList<StateMachine>(machines);
+		this.mode = mode;
+		List<Role> roleList = machines.get(0).getRoles();
+		this.roles = roleList.toArray(new Role[roleList.size()]);
+		this.maxRoleIndex = roles.length - 1;
+		this.playerIndex = machines.get(0).getRoleIndices().get(role);
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(machines.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ParallelMCTS-worker-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public int getThreadCount() {
+		return machines.size();
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	// number of iterations completed by all workers during the last call to nextMove
+	public long getLastIterations() {
+		return lastIterations;
+	}
+
+	// roots of the trees grown during the last call to nextMove; a single one in TREE mode
+	public List<ParallelMCTSNode> getLastRoots() {
+		return lastRoots;
+	}
+
+	public Move nextMove (final MachineState state, final long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		long start = System.currentTimeMillis();
+
+		List<Move> jointMove = new ArrayList<Move>(roles.length);
+		for (int i = 0; i < roles.length; i++)
+			jointMove.add(null);
+
+		List<ParallelMCTSNode> roots = new ArrayList<ParallelMCTSNode>();
+		ParallelMCTSNode sharedRoot = new ParallelMCTSNode(null, jointMove, 0, roles.length);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (final StateMachine machine : machines) {
+			final ParallelMCTSNode root = (mode == Mode.TREE) ? sharedRoot : new ParallelMCTSNode(null, jointMove, 0, roles.length);
+			if (mode == Mode.ROOT || roots.isEmpty())
+				roots.add(root);
+			futures.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return runWorker(machine, state, root, timeout);
+				}
+			}));
+		}
+
+		long iterations = 0;
+		for (Future<Long> future : futures)
+			iterations += waitFor(future);
+		lastIterations = iterations;
+		lastRoots = roots;
+
+		Move selection = selectMove(roots);
+		if (selection == null)
+			selection = machines.get(0).getLegalMoves(state, roles[playerIndex]).get(0);
+
+		long stop = System.currentTimeMillis();
+
+		System.out.println("Parallel MCTS (" + mode + ", " + machines.size() + " threads) iterations: " + iterations + " Time taken: " + (stop-start)/1000.0);
+		return selection;
+	}
+
+	// stops the worker threads; the object can't be used afterwards
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private long runWorker (StateMachine machine, MachineState state, ParallelMCTSNode root, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		Random random = new Random();
+		double avStepTime = 0;
+		long numSteps = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			long before = System.currentTimeMillis();
+			if (before + avStepTime > timeout)
+				break;
+			doMCTS(machine, random, state, root);
+			long after = System.currentTimeMillis();
+			avStepTime = (avStepTime * numSteps * 0.97 + (after - before)) / (numSteps + 1);
+			numSteps++;
+		}
+		return numSteps;
+	}
+
+	private void doMCTS (StateMachine machine, Random random, MachineState state, ParallelMCTSNode root)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		boolean virtualLoss = (mode == Mode.TREE);
+		if (virtualLoss)
+			root.addVirtualLoss();
+
+		// selection: descend until reaching a terminal node, or expanding a new joint move
+		ParallelMCTSNode node = root;
+		boolean expanding = false;
+		List<Integer> goals = null;
+		while (true) {
+			List<ParallelMCTSNode> children = node.getChildren();
+			ParallelMCTSNode child;
+			if (children == null) {
+				if (node.index == 0 && machine.isTerminal(state)) {
+					node.markTerminal();
+					goals = machine.getGoals(state);
+					break;
+				}
+				// expansion: sparsely populate nodes until all players have made moves
+				children = node.expand(machine.getLegalMoves(state, roles[node.index]), maxRoleIndex);
+				expanding = true;
+				child = children.get(random.nextInt(children.size()));
+			} else if (children.isEmpty()) {
+				goals = machine.getGoals(state);
+				break;
+			} else {
+				child = expanding ? children.get(random.nextInt(children.size())) : selectChild(node, children, random);
+			}
+
+			if (virtualLoss)
+				child.addVirtualLoss();
+			node = child;
+			if (node.index == 0) {
+				state = machine.getNextStateDestructively(state, node.jointMove);
+				if (expanding) {
+					// perform random exploration from the newly expanded joint move
+					goals = machine.simulate(state);
+					break;
+				}
+			}
+		}
+
+		int[] utility = new int[goals.size()];
+		for (int i = 0; i < utility.length; i++)
+			utility[i] = goals.get(i);
+		for (ParallelMCTSNode n = node; n != null; n = n.parent)
+			n.update(utility, virtualLoss);
+	}
+
+	private ParallelMCTSNode selectChild (ParallelMCTSNode node, List<ParallelMCTSNode> children, Random random) {
+		double score = -1.0;
+		ParallelMCTSNode result = null;
+		int parentVisits = node.getVisits() + node.getVirtualLosses();
+		for (ParallelMCTSNode child : children) {
+			double newscore = selectfn(child, node.index, parentVisits, random);
+			if (newscore > score) {
+				score = newscore;
+				result = child;
+			}
+		}
+		return result;
+	}
+
+	// UCT, counting virtual losses as visits that scored 0
+	private double selectfn (ParallelMCTSNode node, int role, int parentVisits, Random random) {
+		int visits = node.getVisits() + node.getVirtualLosses();
+		if (visits == 0)
+			return 1000 + random.nextDouble();
+		return (node.getUtilitySum(role) / 100.0 / visits) + 2*Math.sqrt(Math.log(parentVisits) / visits);
+	}
+
+	// sums the statistics of the player's moves over all trees and returns the move with the best
+	// average utility, or null if no move has been tried yet
+	private Move selectMove (List<ParallelMCTSNode> roots) {
+		Map<Move, long[]> stats = new HashMap<Move, long[]>();
+		for (ParallelMCTSNode root : roots)
+			collectMoveStats(root, stats);
+
+		Move selection = null;
+		double maxscore = -1;
+		for (Map.Entry<Move, long[]> entry : stats.entrySet()) {
+			long[] stat = entry.getValue();
+			if (stat[0] == 0)
+				continue;
+			double util = (double) stat[1] / stat[0];
+			if (util > maxscore) {
+				maxscore = util;
+				selection = entry.getKey();
+			}
+		}
+		return selection;
+	}
+
+	// stats maps each of the player's moves to {visits, utility sum of the player}
+	private void collectMoveStats (ParallelMCTSNode node, Map<Move, long[]> stats) {
+		List<ParallelMCTSNode> children = node.getChildren();
+		if (children == null)
+			return;
+		for (ParallelMCTSNode child : children) {
+			if (node.index == playerIndex) {
+				Move move = child.jointMove.get(playerIndex);
+				long[] stat = stats.get(move);
+				if (stat == null) {
+					stat = new long[2];
+					stats.put(move, stat);
+				}
+				stat[0] += child.getVisits();
+				stat[1] += child.getUtilitySum(playerIndex);
+			} else {
+				collectMoveStats(child, stats);
+			}
+		}
+	}
+
+	private static long waitFor (Future<Long> future)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof GoalDefinitionException)
+				throw (GoalDefinitionException) cause;
+			if (cause instanceof MoveDefinitionException)
+				throw (MoveDefinitionException) cause;
+			if (cause instanceof TransitionDefinitionException)
+				throw (TransitionDefinitionException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * @author kartikkukreja
+ * node of the tree built by ParallelMCTS. As in MCTSNode, each node stands for the choice
+ * of one role (index), and its joint move is filled in up to the role before it.
+ * Nodes may be shared by worker threads: visits, virtual losses and utility sums are atomic,
+ * and the children are published once, by whichever thread expands the node first.
+ */
+public final class ParallelMCTSNode {
+	public final ParallelMCTSNode parent;
+	public final List<Move> jointMove;
+	public final int index;
+
+	private final AtomicInteger visits = new AtomicInteger();
+	private final AtomicInteger virtualLosses = new AtomicInteger();
+	private final AtomicLongArray utilitySums;
+	private volatile List<ParallelMCTSNode> children = null;
+
+	public ParallelMCTSNode (ParallelMCTSNode parent, List<Move> jointMove, int index, int roleCount) {
+		this.parent = parent;
+		this.jointMove = jointMove;
+		this.index = index;
+		this.utilitySums = new AtomicLongArray(roleCount);
+	}
+
+	public int getVisits() {
+		return visits.get();
+	}
+
+	public int getVirtualLosses() {
+		return virtualLosses.get();
+	}
+
+	public long getUtilitySum(int role) {
+		return utilitySums.get(role);
+	}
+
+	// Average utility of the given role over the completed visits
+	public double getUtility(int role) {
+		int n = visits.get();
+		return (n == 0) ? 0 : (double) utilitySums.get(role) / n;
+	}
+
+	// Returns null if the node hasn't been expanded yet, and an empty list if it is terminal
+	public List<ParallelMCTSNode> getChildren() {
+		return children;
+	}
+
+	// Creates one child per move of this node's role, unless another thread got there first.
+	// Returns the children that ended up in the tree.
+	public List<ParallelMCTSNode> expand (List<Move> moves, int maxRoleIndex) {
+		synchronized (this) {
+			if (children == null) {
+				List<ParallelMCTSNode> newChildren = new ArrayList<ParallelMCTSNode>(moves.size());
+				for (Move move : moves) {
+					List<Move> childMove = new ArrayList<Move>(jointMove);
+					childMove.set(index, move);
+					newChildren.add(new ParallelMCTSNode(this, childMove, (index == maxRoleIndex) ? 0 : index+1, utilitySums.length()));
+				}
+				children = newChildren;
+			}
+			return children;
+		}
+	}
+
+	public void markTerminal() {
+		synchronized (this) {
+			if (children == null)
+				children = Collections.emptyList();
+		}
+	}
+
+	public void addVirtualLoss() {
+		virtualLosses.incrementAndGet();
+	}
+
+	// Records the result of a simulation, and removes the virtual loss added on the way down if any
+	public void update (int[] goals, boolean removeVirtualLoss) {
+		for (int i = 0; i < goals.length; i++)
+			utilitySums.addAndGet(i, goals[i]);
+		visits.incrementAndGet();
+		if (removeVirtualLoss)
+			virtualLosses.decrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[visits=%d index=%d virtualLosses=%d children=%s jointMove=%s]",
+				visits.get(), index, virtualLosses.get(), (children == null) ? "none" : children.size(), jointMove);
+	}
+}
@@ -0,0 +1,388 @@
+package kkukreja.algorithms;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.TimeLimitExceededException;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.symbol.factory.exceptions.SymbolFormatException;
+
+/**
+ * @author kartikkukreja
+ * solver for single player games. Unlike NaiveDFS, it remembers the value and best move of
+ * every state it has solved in a transposition table, so a state reached by different move
+ * orders is only solved once. The table has a fixed size, which bounds the memory used: when
+ * it's full, old entries are evicted, and their states are solved again if they're reached.
+ * The search stops as soon as it finds a way to score 100.
+ * With more than one state machine, the moves from the root are solved in parallel, one
+ * worker per machine, with all workers sharing the table.
+ * Once a state is solved, the plan from it is followed move by move. Plans can be saved to a
+ * file, and loaded when the same game is played again.
+ */
+public final class PuzzleSolver {
+	private static final int DEFAULT_TABLE_CAPACITY = 1 << 22;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private Role role;
+	private List<StateMachine> machines;
+	private AlphaBetaTranspositionTable table;
+	private ForkJoinPool pool = null;
+	private volatile boolean stopped;
+	private AtomicLong nodes = new AtomicLong();
+
+	// the solved plan, and the state in which its next move is to be played
+	private List<Move> plan = null;
+	private int planScore = -1;
+	private int planIndex;
+	private MachineState planState;
+
+	// machines should be initialized with the same game, and must not be used by anything else
+	// while the solver is running. The first machine is used for everything but parallel search.
+	public PuzzleSolver (List<StateMachine> machines, Role role) {
+		this(machines, role, DEFAULT_TABLE_CAPACITY);
+	}
+
+	public PuzzleSolver (List<StateMachine> machines, Role role, int tableCapacity) {
+		this.role = role;
+		this.machines = new ArrayList<StateMachine>(machines);
+		this.table = new AlphaBetaTranspositionTable(tableCapacity);
+		if (machines.size() > 1)
+			this.pool = new ForkJoinPool(machines.size());
+	}
+
+	// file in which plans for the game with the given rules are kept, in the user's home directory
+	public static File getDefaultPlanFile (List<Gdl> description) {
+		File directory = new File(System.getProperty("user.home"), ".ggp-plancache");
+		return new File(directory, PropNetCache.getKey(description) + ".plan");
+	}
+
+	public boolean isSolved() {
+		return plan != null;
+	}
+
+	// score reached by following the plan, or -1 if there is no plan
+	public int getScore() {
+		return planScore;
+	}
+
+	// moves of the plan from the state it was found for
+	public List<Move> getPlan() {
+		return (plan == null) ? null : Collections.unmodifiableList(plan);
+	}
+
+	// number of states expanded so far
+	public long getNodes() {
+		return nodes.get();
+	}
+
+	/**
+	 * Solves the game from the given state, and makes a plan from it. Returns false if the time
+	 * runs out first; the states solved so far are kept, so solving again continues from there.
+	 */
+	public boolean solve (MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		long start = System.currentTimeMillis();
+		stopped = false;
+		try {
+			int score = (pool == null) ? solve(machines.get(0), new AlphaBetaTranspositionTable.Entry(), state, timeout) : solveInParallel(state, timeout);
+			List<Move> newPlan = buildPlan(state, score, timeout);
+			if (playPlan(newPlan, state) != score) {
+				// the table disagrees with itself, so solve again with nothing in it
+				System.out.println("Plan doesn't reach score " + score + ", solving again.");
+				table.clear();
+				score = solve(machines.get(0), new AlphaBetaTranspositionTable.Entry(), state, timeout);
+				newPlan = buildPlan(state, score, timeout);
+				score = playPlan(newPlan, state);
+			}
+			setPlan(newPlan, score, state);
+			System.out.println("Puzzle solved with score " + score + " in " + newPlan.size() + " moves. Nodes: " + nodes.get()
+					+ " Time taken: " + (System.currentTimeMillis()-start)/1000.0);
+			return true;
+		} catch (TimeLimitExceededException e) {
+			System.out.println("Puzzle not solved in time. Nodes: " + nodes.get() + " Time taken: " + (System.currentTimeMillis()-start)/1000.0);
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the next move of the plan if the given state is the one the plan has reached,
+	 * and otherwise solves the game from the given state. Returns null if that runs out of time.
+	 */
+	public Move nextMove (MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		if (plan == null || planIndex >= plan.size() || !state.equals(planState)) {
+			if (!solve(state, timeout))
+				return null;
+		}
+
+		Move move = plan.get(planIndex++);
+		planState = machines.get(0).getNextState(planState, Collections.singletonList(move));
+		return move;
+	}
+
+	// stops the worker threads; the object can't be used afterwards
+	public void shutdown() {
+		stopped = true;
+		if (pool != null)
+			pool.shutdownNow();
+	}
+
+	// writes the plan and its score to the given file, replacing it atomically
+	public void savePlan (File file) throws IOException {
+		if (plan == null)
+			throw new IllegalStateException("There is no plan to save.");
+
+		file.getAbsoluteFile().getParentFile().mkdirs();
+		// a unique name, so that players saving the same plan at once don't write into each other's file
+		File tempFile = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8);
+			try {
+				out.write(planScore + "\n");
+				for (Move move : plan)
+					out.write(move.getContents().toString() + "\n");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		if (!tempFile.renameTo(file)) {
+			// Windows won't rename over an existing file.
+			file.delete();
+			if (!tempFile.renameTo(file)) {
+				tempFile.delete();
+				throw new IOException("Could not rename " + tempFile + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * Loads a plan saved by savePlan, and makes it the plan from the given state. Returns false,
+	 * leaving the current plan alone, if there's no such file, or if playing the plan from the
+	 * given state doesn't end the game with the saved score.
+	 */
+	public boolean loadPlan (File file, MachineState state)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		if (!file.exists())
+			return false;
+
+		int score;
+		List<Move> newPlan = new ArrayList<Move>();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+			try {
+				score = Integer.parseInt(in.readLine().trim());
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (!line.trim().isEmpty())
+						newPlan.add(new Move(GdlFactory.createTerm(line)));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException | SymbolFormatException | RuntimeException e) {
+			System.err.println("Could not load plan: " + e);
+			return false;
+		}
+
+		if (playPlan(newPlan, state) != score)
+			return false;
+
+		setPlan(newPlan, score, state);
+		System.out.println("Loaded plan with score " + score + " in " + newPlan.size() + " moves.");
+		return true;
+	}
+
+	// returns the score at the end of the plan played from the given state, or -1 if a move
+	// isn't legal or the game doesn't end with the last move
+	private int playPlan (List<Move> plan, MachineState state)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		StateMachine machine = machines.get(0);
+		for (Move move : plan) {
+			if (machine.isTerminal(state) || !machine.getLegalMoves(state, role).contains(move))
+				return -1;
+			state = machine.getNextState(state, Collections.singletonList(move));
+		}
+		return machine.isTerminal(state) ? machine.getGoal(state, role) : -1;
+	}
+
+	private void setPlan (List<Move> newPlan, int score, MachineState state) {
+		plan = newPlan;
+		planScore = score;
+		planIndex = 0;
+		planState = state;
+	}
+
+	// returns the best score reachable from the given state
+	private int solve (StateMachine machine, AlphaBetaTranspositionTable.Entry entry, MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeLimitExceededException
+	{
+		long hash = AlphaBetaTranspositionTable.hash(state);
+		if (table.probe(hash, entry))
+			return (int) entry.score;
+
+		nodes.incrementAndGet();
+		if (machine.isTerminal(state)) {
+			int goal = machine.getGoal(state, role);
+			table.store(hash, AlphaBetaTranspositionTable.MAX_DEPTH, AlphaBetaTranspositionTable.EXACT, goal, AlphaBetaTranspositionTable.NO_MOVE);
+			return goal;
+		}
+		if (stopped || System.currentTimeMillis() > timeout)
+			throw new TimeLimitExceededException();
+
+		List<Move> moves = machine.getLegalMoves(state, role);
+		int bestScore = -1;
+		int bestMove = 0;
+		for (int i = 0; i < moves.size() && bestScore < 100; i++) {
+			MachineState nextState = machine.getNextState(state, Collections.singletonList(moves.get(i)));
+			int score = solve(machine, entry, nextState, timeout);
+			if (score > bestScore) {
+				bestScore = score;
+				bestMove = i;
+			}
+		}
+
+		table.store(hash, AlphaBetaTranspositionTable.MAX_DEPTH, AlphaBetaTranspositionTable.EXACT, bestScore, bestMove);
+		return bestScore;
+	}
+
+	// solves the states after each move from the given state in parallel, and then the state itself
+	private int solveInParallel (final MachineState state, final long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeLimitExceededException
+	{
+		final List<Move> moves = machines.get(0).getLegalMoves(state, role);
+		final AtomicInteger nextMove = new AtomicInteger();
+		final AtomicInteger winningMove = new AtomicInteger(-1);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (final StateMachine machine : machines) {
+			futures.add(pool.submit(GdlPool.inCurrentArena(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
+					if (machine.isTerminal(state))
+						return null;
+					for (int i = nextMove.getAndIncrement(); i < moves.size() && !stopped; i = nextMove.getAndIncrement()) {
+						MachineState nextState = machine.getNextState(state, Collections.singletonList(moves.get(i)));
+						// a win makes the other moves irrelevant
+						if (solve(machine, entry, nextState, timeout) >= 100) {
+							winningMove.compareAndSet(-1, i);
+							stopped = true;
+						}
+					}
+					return null;
+				}
+			})));
+		}
+
+		boolean timedOut = false;
+		for (Future<Void> future : futures)
+			timedOut |= waitFor(future);
+
+		// the other workers were cut short without storing their moves, so the state can't be
+		// solved again from its children; store the win found directly instead
+		stopped = false;
+		int win = winningMove.get();
+		if (win >= 0) {
+			table.store(AlphaBetaTranspositionTable.hash(state), AlphaBetaTranspositionTable.MAX_DEPTH, AlphaBetaTranspositionTable.EXACT, 100, win);
+			return 100;
+		}
+
+		// the children are in the table now, unless they were evicted already
+		int score = solve(machines.get(0), new AlphaBetaTranspositionTable.Entry(), state, timeout);
+		if (timedOut && score < 100)
+			throw new TimeLimitExceededException();
+		return score;
+	}
+
+	// follows the best moves in the table from the given state, solving again any evicted states.
+	// The moves are only trusted if they lead to the score expected: workers number the legal
+	// moves in their own machine's order, which may not be the first machine's.
+	private List<Move> buildPlan (MachineState state, int score, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, TimeLimitExceededException
+	{
+		StateMachine machine = machines.get(0);
+		AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
+		List<Move> newPlan = new ArrayList<Move>();
+		while (!machine.isTerminal(state)) {
+			List<Move> moves = machine.getLegalMoves(state, role);
+			int bestMove = -1;
+			int bestScore = -1;
+			if (table.probe(AlphaBetaTranspositionTable.hash(state), entry) && entry.move >= 0 && entry.move < moves.size())
+				bestMove = entry.move;
+			if (bestMove >= 0)
+				bestScore = solve(machine, entry, machine.getNextState(state, Collections.singletonList(moves.get(bestMove))), timeout);
+			for (int i = 0; i < moves.size() && bestScore != score; i++) {
+				int moveScore = solve(machine, entry, machine.getNextState(state, Collections.singletonList(moves.get(i))), timeout);
+				if (bestMove < 0 || moveScore == score || (moveScore > bestScore && bestScore < score)) {
+					bestMove = i;
+					bestScore = moveScore;
+				}
+			}
+			// after a wrong score, keep going for the best that's left
+			score = bestScore;
+			newPlan.add(moves.get(bestMove));
+			state = machine.getNextState(state, Collections.singletonList(moves.get(bestMove)));
+		}
+		return newPlan;
+	}
+
+	// returns true if the worker ran out of time
+	private static boolean waitFor (Future<Void> future)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		try {
+			future.get();
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			// ForkJoinPool wraps checked exceptions thrown by a Callable in plain RuntimeExceptions
+			while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null)
+				cause = cause.getCause();
+			if (cause instanceof TimeLimitExceededException)
+				return true;
+			if (cause instanceof GoalDefinitionException)
+				throw (GoalDefinitionException) cause;
+			if (cause instanceof MoveDefinitionException)
+				throw (MoveDefinitionException) cause;
+			if (cause instanceof TransitionDefinitionException)
+				throw (TransitionDefinitionException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.ggp.base.util.statemachine.DepthChargeBuffers;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * @author kartikkukreja
+ * MCTS over the game graph rather than the game tree: statistics are stored per state in a
+ * MCTSTranspositionTable, so transpositions share them. Results are backpropagated along the
+ * path actually taken in each iteration. The table outlives a single call to nextMove, so the
+ * iterations spent on a state in earlier turns are reused when the game reaches it.
+ * Joint moves are selected one role at a time, in role order, like the sequentialized tree
+ * of MCTS: each role maximizes UCT over the statistics of the joint moves consistent with the
+ * moves already chosen for the roles before it.
+ */
+public final class TranspositionMCTS {
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+	// guards against looping forever through cycles of states during selection
+	private static final int MAX_SELECTION_DEPTH = 1000;
+
+	private Role[] roles;
+	private int playerIndex;
+	private StateMachine theMachine;
+	private MCTSTranspositionTable table;
+	private Random theRandom = new Random();
+	private DepthChargeBuffers buffers;
+
+	public TranspositionMCTS (StateMachine theMachine, Role role) {
+		this(theMachine, role, new MCTSTranspositionTable(DEFAULT_CAPACITY));
+	}
+
+	public TranspositionMCTS (StateMachine theMachine, Role role, MCTSTranspositionTable table) {
+		this.theMachine = theMachine;
+		List<Role> roleList = theMachine.getRoles();
+		this.roles = roleList.toArray(new Role[roleList.size()]);
+		this.playerIndex = theMachine.getRoleIndices().get(role);
+		this.table = table;
+		this.buffers = theMachine.newDepthChargeBuffers();
+	}
+
+	public MCTSTranspositionTable getTable() {
+		return table;
+	}
+
+	public Move nextMove (MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		long start = System.currentTimeMillis();
+		table.newGeneration();
+
+		MCTSTranspositionTable.Entry root = table.get(state);
+		int reused = (root == null) ? 0 : root.getVisits();
+
+		int numSteps = search(state, timeout);
+
+		root = table.get(state);
+		Move selection = (root == null) ? theMachine.getLegalMoves(state, roles[playerIndex]).get(0) : bestMove(root);
+
+		long stop = System.currentTimeMillis();
+
+		System.out.println("Transposition MCTS iterations: " + numSteps + " reused: " + reused + " table size: " + table.size() + " Time taken: " + (stop-start)/1000.0);
+		return selection;
+	}
+
+	/**
+	 * Runs iterations from the given state until the timeout, and returns how many were run.
+	 */
+	public int search (MachineState state, long timeout)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		double avStepTime = 0;
+		int numSteps = 0;
+		List<MCTSTranspositionTable.Entry> pathEntries = new ArrayList<MCTSTranspositionTable.Entry>();
+		List<Long> pathMoves = new ArrayList<Long>();
+		while (true) {
+			long before = System.currentTimeMillis();
+			if (before + avStepTime > timeout)
+				break;
+			doMCTS(state, pathEntries, pathMoves);
+			long after = System.currentTimeMillis();
+			avStepTime = (avStepTime * numSteps * 0.97 + (after - before)) / (numSteps + 1);
+			numSteps++;
+		}
+		return numSteps;
+	}
+
+	private void doMCTS (MachineState state, List<MCTSTranspositionTable.Entry> pathEntries, List<Long> pathMoves)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		pathEntries.clear();
+		pathMoves.clear();
+
+		int[] utility;
+		while (true) {
+			MCTSTranspositionTable.Entry entry = table.get(state);
+			if (entry == null) {
+				entry = expand(state);
+				if (entry.terminal) {
+					utility = entry.goals;
+					pathEntries.add(entry);
+					pathMoves.add(-1L);
+					break;
+				}
+				// perform random exploration from one joint move of the new state
+				long jointMove = randomJointMove(entry);
+				pathEntries.add(entry);
+				pathMoves.add(jointMove);
+				utility = theMachine.simulate(theMachine.getNextStateDestructively(state, getJointMove(entry, jointMove)), buffers, theRandom);
+				break;
+			}
+			if (entry.terminal) {
+				utility = entry.goals;
+				pathEntries.add(entry);
+				pathMoves.add(-1L);
+				break;
+			}
+			if (pathEntries.size() >= MAX_SELECTION_DEPTH) {
+				utility = theMachine.simulate(state, buffers, theRandom);
+				break;
+			}
+
+			long jointMove = select(entry);
+			pathEntries.add(entry);
+			pathMoves.add(jointMove);
+			state = theMachine.getNextStateDestructively(state, getJointMove(entry, jointMove));
+		}
+
+		for (int i = 0; i < pathEntries.size(); i++)
+			pathEntries.get(i).update(pathMoves.get(i), utility);
+	}
+
+	private MCTSTranspositionTable.Entry expand (MachineState state)
+			throws GoalDefinitionException, MoveDefinitionException
+	{
+		if (theMachine.isTerminal(state))
+			return table.put(state, theMachine.getGoals(state), null);
+		List<List<Move>> legalMoves = new ArrayList<List<Move>>(roles.length);
+		for (Role role : roles)
+			legalMoves.add(theMachine.getLegalMoves(state, role));
+		return table.put(state, null, legalMoves);
+	}
+
+	private long randomJointMove (MCTSTranspositionTable.Entry entry) {
+		int[] chosen = new int[roles.length];
+		for (int r = 0; r < roles.length; r++)
+			chosen[r] = theRandom.nextInt(entry.legalMoves[r].length);
+		return entry.getJointMove(chosen);
+	}
+
+	// chooses the move of each role in turn, by UCT over the joint moves consistent with the
+	// moves chosen so far
+	private long select (MCTSTranspositionTable.Entry entry) {
+		int[] chosen = new int[roles.length];
+		for (int r = 0; r < roles.length; r++) {
+			int moveCount = entry.legalMoves[r].length;
+			if (moveCount == 1)
+				continue;
+			long[] visits = new long[moveCount];
+			long[] sums = new long[moveCount];
+			// joint moves that were never played have no statistics to add
+			for (Map.Entry<Long, MCTSTranspositionTable.Edge> edge : entry.getEdges().entrySet()) {
+				long j = edge.getKey();
+				if (!isConsistent(entry, j, chosen, r))
+					continue;
+				int m = entry.getMoveIndex(j, r);
+				visits[m] += edge.getValue().getVisits();
+				sums[m] += edge.getValue().getUtilitySum(r);
+			}
+			long total = 0;
+			for (long v : visits)
+				total += v;
+
+			double score = -1.0;
+			for (int m = 0; m < moveCount; m++) {
+				double newscore = selectfn(visits[m], sums[m], total);
+				if (newscore > score) {
+					score = newscore;
+					chosen[r] = m;
+				}
+			}
+		}
+		return entry.getJointMove(chosen);
+	}
+
+	private static boolean isConsistent (MCTSTranspositionTable.Entry entry, long jointMove, int[] chosen, int role) {
+		for (int r = 0; r < role; r++) {
+			if (entry.getMoveIndex(jointMove, r) != chosen[r])
+				return false;
+		}
+		return true;
+	}
+
+	private double selectfn (long visits, long utilitySum, long parentVisits) {
+		if (visits == 0)
+			return 1000 + theRandom.nextDouble();
+		return (utilitySum / 100.0 / visits) + 2*Math.sqrt(Math.log(parentVisits) / visits);
+	}
+
+	// the player's move with the best average utility at the root
+	private Move bestMove (MCTSTranspositionTable.Entry root) {
+		if (root.terminal)
+			return null;
+		int moveCount = root.legalMoves[playerIndex].length;
+		long[] visits = new long[moveCount];
+		long[] sums = new long[moveCount];
+		for (Map.Entry<Long, MCTSTranspositionTable.Edge> edge : root.getEdges().entrySet()) {
+			int m = root.getMoveIndex(edge.getKey(), playerIndex);
+			visits[m] += edge.getValue().getVisits();
+			sums[m] += edge.getValue().getUtilitySum(playerIndex);
+		}
+
+		int best = 0;
+		double maxscore = -1;
+		for (int m = 0; m < moveCount; m++) {
+			if (visits[m] == 0)
+				continue;
+			double util = (double) sums[m] / visits[m];
+			if (util > maxscore) {
+				maxscore = util;
+				best = m;
+			}
+		}
+		return root.legalMoves[playerIndex][best];
+	}
+
+	private List<Move> getJointMove (MCTSTranspositionTable.Entry entry, long jointMove) {
+		List<Move> moves = new ArrayList<Move>(roles.length);
+		for (int r = 0; r < roles.length; r++)
+			moves.add(entry.getMove(jointMove, r));
+		return moves;
+	}
+}
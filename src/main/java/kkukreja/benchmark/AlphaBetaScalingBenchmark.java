@@ -0,0 +1,100 @@
+package kkukreja.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import kkukreja.algorithms.LinearCombinationHeuristic;
+import kkukreja.algorithms.ParallelAlphaBeta;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.GameRepository;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+
+/**
+ * @author kartikkukreja
+ * measures how the time ParallelAlphaBeta takes to search the initial state of a two-player
+ * game to a fixed depth scales with the number of threads. Each run starts with an empty
+ * transposition table, and all workers share one compiled propnet.
+ *
+ * usage: AlphaBetaScalingBenchmark [game key] [depth] [max threads]
+ * defaults: every two-player game in the test game repository, depth 7, all available cores
+ */
+public final class AlphaBetaScalingBenchmark {
+	// weights of a fixed heuristic, so that runs with different thread counts search the same tree
+	private static final double[] WEIGHTS = {0.1, 0.1, 0.2, 0.1, 0.5};
+	private static final int WARMUP_RUNS = 5;
+
+	public static void main (String[] args) throws Exception {
+		GameRepository repository = new TestGameRepository();
+		List<String> gameKeys = new ArrayList<String>();
+		if (args.length > 0 && !args[0].equals("all")) {
+			gameKeys.add(args[0]);
+		} else {
+			for (String key : new TreeSet<String>(repository.getGameKeys())) {
+				Game game = repository.getGame(key);
+				if (game != null && Role.computeRoles(game.getRules()).size() == 2)
+					gameKeys.add(key);
+			}
+		}
+		int depth = (args.length > 1) ? Integer.parseInt(args[1]) : 7;
+		int maxThreads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		System.out.println("depth " + depth + ", " + Runtime.getRuntime().availableProcessors() + " cores");
+		System.out.println("game\tthreads\tseconds\tnodes/s\tspeedup");
+		for (String gameKey : gameKeys) {
+			Game game = repository.getGame(gameKey);
+			if (game == null)
+				throw new IllegalArgumentException("No such game in the test game repository: " + gameKey);
+			List<Gdl> rules = game.getRules();
+			CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(rules));
+
+			List<StateMachine> machines = new ArrayList<StateMachine>(maxThreads);
+			for (int i = 0; i < maxThreads; i++) {
+				PropNetStateMachine machine = new PropNetStateMachine();
+				machine.initialize(propNet);
+				machines.add(machine);
+			}
+			MachineState state = machines.get(0).getInitialState();
+
+			// search for the role that has a choice in the initial state
+			List<Role> roles = machines.get(0).getRoles();
+			int player = (machines.get(0).getLegalMoves(state, roles.get(0)).size() > 1) ? 0 : 1;
+
+			// warm up the JIT before the first measured run
+			for (int i = 0; i < WARMUP_RUNS; i++)
+				run(machines.subList(0, 1), roles.get(player), roles.get(1 - player), state, depth);
+
+			double baseline = 0;
+			for (int threads = 1; threads <= maxThreads; threads = (threads == maxThreads) ? threads + 1 : Math.min(2 * threads, maxThreads)) {
+				long[] result = run(machines.subList(0, threads), roles.get(player), roles.get(1 - player), state, depth);
+				double seconds = result[0] / 1000.0;
+				if (threads == 1)
+					baseline = seconds;
+				System.out.println(String.format("%s\t%d\t%.2f\t%.0f\t%.2f", gameKey, threads, seconds, result[1] / seconds, baseline / seconds));
+			}
+		}
+	}
+
+	// returns the milliseconds taken and the number of states visited
+	private static long[] run (List<StateMachine> machines, Role role, Role opponent, MachineState state, int depth) throws Exception {
+		LinearCombinationHeuristic heuristic = new LinearCombinationHeuristic(machines.get(0), role, WEIGHTS);
+		ParallelAlphaBeta search = new ParallelAlphaBeta(machines, role, opponent, heuristic);
+		try {
+			search.setMaxDepth(depth);
+			long start = System.currentTimeMillis();
+			search.nextMove(state, Long.MAX_VALUE);
+			long stop = System.currentTimeMillis();
+			return new long[] {Math.max(stop - start, 1), search.getLastNodes()};
+		} finally {
+			search.shutdown();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package kkukreja.benchmark;
+
+import kkukreja.algorithms.MCTS;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+
+/**
+ * @author kartikkukreja
+ * measures the number of MCTS iterations per second from the initial state of a game with
+ * each combination of selection and playout policy, and how it compares to plain UCT with
+ * random playouts. Each run starts with a new tree and new move statistics.
+ *
+ * usage: MCTSPolicyBenchmark [game key] [seconds per run]
+ * defaults: connectFour from the test game repository, 5 seconds
+ */
+public final class MCTSPolicyBenchmark {
+	public static void main (String[] args) throws Exception {
+		String gameKey = (args.length > 0) ? args[0] : "connectFour";
+		long millis = (args.length > 1) ? Long.parseLong(args[1]) * 1000 : 5000;
+
+		Game game = new TestGameRepository().getGame(gameKey);
+		if (game == null)
+			throw new IllegalArgumentException("No such game in the test game repository: " + gameKey);
+		PropNetStateMachine machine = new PropNetStateMachine();
+		machine.initialize(CompiledPropNet.compile(OptimizingPropNetFactory.create(game.getRules())));
+		MachineState state = machine.getInitialState();
+
+		// warm up the JIT before the first measured run
+		for (MCTS.Selection selection : MCTS.Selection.values()) {
+			for (MCTS.Playout playout : MCTS.Playout.values())
+				run(machine, selection, playout, state, millis / 5);
+		}
+
+		System.out.println("game: " + gameKey + ", " + millis / 1000.0 + "s per run");
+		System.out.println("selection\tplayout\titerations/s\trelative");
+		double baseline = 0;
+		for (MCTS.Selection selection : MCTS.Selection.values()) {
+			for (MCTS.Playout playout : MCTS.Playout.values()) {
+				double rate = run(machine, selection, playout, state, millis);
+				if (baseline == 0)
+					baseline = rate;
+				System.out.println(String.format("%s\t%s\t%.1f\t%.2f", selection, playout, rate, rate / baseline));
+			}
+		}
+	}
+
+	private static double run (PropNetStateMachine machine, MCTS.Selection selection, MCTS.Playout playout, MachineState state, long millis) throws Exception {
+		// search for the role that has a choice in the initial state
+		Role player = machine.getRoles().get(0);
+		for (Role role : machine.getRoles()) {
+			if (machine.getLegalMoves(state, role).size() > 1) {
+				player = role;
+				break;
+			}
+		}
+
+		MCTS mcts = new MCTS(machine, machine.getRoles(), player, 0);
+		mcts.setPolicies(selection, playout);
+		long start = System.currentTimeMillis();
+		int iterations = mcts.search(state, start + millis);
+		long stop = System.currentTimeMillis();
+		return iterations * 1000.0 / (stop - start);
+	}
+}
@@ -0,0 +1,72 @@
+package kkukreja.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kkukreja.algorithms.ParallelMCTS;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+
+/**
+ * @author kartikkukreja
+ * measures how the number of ParallelMCTS iterations per second scales with the number of
+ * threads, in both root and tree parallel mode. All workers share one compiled propnet.
+ *
+ * usage: MCTSScalingBenchmark [game key] [seconds per run] [max threads]
+ * defaults: connectFour from the test game repository, 5 seconds, all available cores
+ */
+public final class MCTSScalingBenchmark {
+	public static void main (String[] args) throws Exception {
+		String gameKey = (args.length > 0) ? args[0] : "connectFour";
+		long millis = (args.length > 1) ? Long.parseLong(args[1]) * 1000 : 5000;
+		int maxThreads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		Game game = new TestGameRepository().getGame(gameKey);
+		if (game == null)
+			throw new IllegalArgumentException("No such game in the test game repository: " + gameKey);
+		List<Gdl> rules = game.getRules();
+		CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(rules));
+
+		List<StateMachine> machines = new ArrayList<StateMachine>(maxThreads);
+		for (int i = 0; i < maxThreads; i++) {
+			PropNetStateMachine machine = new PropNetStateMachine();
+			machine.initialize(propNet);
+			machines.add(machine);
+		}
+		MachineState state = machines.get(0).getInitialState();
+
+		System.out.println("game: " + gameKey + ", " + millis / 1000.0 + "s per run, " + Runtime.getRuntime().availableProcessors() + " cores");
+		System.out.println("mode\tthreads\titerations/s\tspeedup");
+		for (ParallelMCTS.Mode mode : ParallelMCTS.Mode.values()) {
+			// warm up the JIT before the first measured run
+			run(machines.subList(0, 1), mode, state, millis);
+
+			double baseline = 0;
+			for (int threads = 1; threads <= maxThreads; threads = (threads == maxThreads) ? threads + 1 : Math.min(2 * threads, maxThreads)) {
+				double rate = run(machines.subList(0, threads), mode, state, millis);
+				if (threads == 1)
+					baseline = rate;
+				System.out.println(String.format("%s\t%d\t%.1f\t%.2f", mode, threads, rate, rate / baseline));
+			}
+		}
+	}
+
+	private static double run (List<StateMachine> machines, ParallelMCTS.Mode mode, MachineState state, long millis) throws Exception {
+		ParallelMCTS mcts = new ParallelMCTS(machines, machines.get(0).getRoles().get(0), mode);
+		try {
+			long start = System.currentTimeMillis();
+			mcts.nextMove(state, start + millis);
+			long stop = System.currentTimeMillis();
+			return mcts.getLastIterations() * 1000.0 / (stop - start);
+		} finally {
+			mcts.shutdown();
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package kkukreja.players;
+
+import kkukreja.algorithms.MCTS;
+
+// MCTSGamer with GRAVE selection and MAST playouts
+public final class GraveMastMCTSGamer extends MCTSGamer
+{
+	public GraveMastMCTSGamer() {
+		super(MCTS.Selection.GRAVE, MCTS.Playout.MAST);
+	}
+
+	@Override
+	public String getName() {
+		return "GRAVE_MAST_MCTS_GAMER";
+	}
+}
@@ -12,14 +12,13 @@ import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.player.gamer.exception.GamePreviewException;
 import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
 import org.ggp.base.util.game.Game;
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
-import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 public final class IterativeDeepeningAlphaBetaPruningGamer extends StateMachineGamer
 {
@@ -48,7 +47,7 @@ public final class IterativeDeepeningAlphaBetaPruningGamer extends StateMachineG
 
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		return newPropNetStateMachine();
 	}
 
 	@Override
@@ -73,8 +72,12 @@ public final class IterativeDeepeningAlphaBetaPruningGamer extends StateMachineG
 				}
 			}
 
+			// leave most of the meta-game to the heuristic search
+			long start = System.currentTimeMillis();
+			LatchAnalysis latches = Util.analyzeLatches(this, start + (timeout - start) / 4);
 			LinearCombinationHeuristic heuristic = Util.findBestHeuristic(theMachine, role, timeout);
 			gamer = new IterativeDeepeningAlphaBeta(role, opponent, theMachine, heuristic, timeout - 1000);
+			gamer.setLatchAnalysis(latches);
 		}
 	}
 
@@ -15,11 +15,9 @@ import org.ggp.base.util.game.Game;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
-import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 public final class IterativeDeepeningDFSAndMCTSGamer extends StateMachineGamer
 {
@@ -37,6 +35,11 @@ public final class IterativeDeepeningDFSAndMCTSGamer extends StateMachineGamer
 	{
 		long start = System.currentTimeMillis();
 
+		// reuse the part of the search tree that is still reachable
+		List<Move> lastJointMove = Util.getMostRecentJointMove(this);
+		if (lastJointMove != null && mctsGamer != null)
+			mctsGamer.advance(lastJointMove);
+
 		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
 		Move selection = null;
 		if (moves.size() == 1)
@@ -54,7 +57,7 @@ public final class IterativeDeepeningDFSAndMCTSGamer extends StateMachineGamer
 
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		return newPropNetStateMachine();
 	}
 
 	@Override
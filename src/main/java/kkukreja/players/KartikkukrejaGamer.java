@@ -1,13 +1,17 @@
 package kkukreja.players;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
 import kkukreja.algorithms.AlphaBetaPruning;
-import kkukreja.algorithms.IterativeDeepeningAlphaBeta;
 import kkukreja.algorithms.IterativeDeepeningDFS;
 import kkukreja.algorithms.LinearCombinationHeuristic;
 import kkukreja.algorithms.NaiveDFS;
+import kkukreja.algorithms.ParallelAlphaBeta;
+import kkukreja.algorithms.PuzzleSolver;
 
 import org.ggp.base.apps.player.detail.DetailPanel;
 import org.ggp.base.apps.player.detail.SimpleDetailPanel;
@@ -18,19 +22,19 @@ import org.ggp.base.util.game.Game;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.StateMachine;
-import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 
 public class KartikkukrejaGamer extends StateMachineGamer
 {
 	private GameType gametype = null;
 	private NaiveDFS solveSmallPuzzle = null;
 	private IterativeDeepeningDFS solveLargePuzzle = null;
+	private PuzzleSolver puzzleSolver = null;
+	private File planFile = null;
 	private AlphaBetaPruning solveSmall2Player = null;
-	private IterativeDeepeningAlphaBeta solveLarge2Player = null;
+	private ParallelAlphaBeta solveLarge2Player = null;
 	private StateMachine theMachine = null;
 	private List<Role> roles = null;
 	private Role role = null;
@@ -54,7 +58,15 @@ public class KartikkukrejaGamer extends StateMachineGamer
 			selection = solveSmallPuzzle.nextMove(getCurrentState());
 			break;
 		case LargePuzzle:
-			selection = solveLargePuzzle.nextMove(getCurrentState(), timeout - 1000);
+			// keep half of the time for the heuristic search if the puzzle isn't solved yet
+			boolean solved = puzzleSolver.isSolved();
+			selection = puzzleSolver.nextMove(getCurrentState(), solved ? timeout - 1000 : start + (timeout - start) / 2);
+			if (selection != null && !solved)
+				savePlan();
+			if (selection == null && solveLargePuzzle != null)
+				selection = solveLargePuzzle.nextMove(getCurrentState(), timeout - 1000);
+			if (selection == null)
+				selection = moves.get(theRandom.nextInt(moves.size()));
 			break;
 		case Small2Player:
 			selection = solveSmall2Player.nextMove(getCurrentState());
@@ -76,7 +88,7 @@ public class KartikkukrejaGamer extends StateMachineGamer
 
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		return newPropNetStateMachine();
 	}
 
 	@Override
@@ -105,8 +117,17 @@ public class KartikkukrejaGamer extends StateMachineGamer
 			solveSmallPuzzle = new NaiveDFS(theMachine, timeout);
 			break;
 		case LargePuzzle:
-			LinearCombinationHeuristic heuristic = Util.findBestHeuristic(theMachine, role, timeout);
-			solveLargePuzzle = new IterativeDeepeningDFS(role, theMachine, heuristic, timeout);
+			// try to solve the puzzle with most of the start clock, and search with a heuristic if that fails
+			long start = System.currentTimeMillis();
+			puzzleSolver = new PuzzleSolver(createMachines(), role);
+			planFile = PuzzleSolver.getDefaultPlanFile(getMatch().getGame().getRules());
+			if (!puzzleSolver.loadPlan(planFile, getCurrentState())
+					&& puzzleSolver.solve(getCurrentState(), start + 3 * (timeout - start) / 4))
+				savePlan();
+			if (!puzzleSolver.isSolved()) {
+				LinearCombinationHeuristic heuristic = Util.findBestHeuristic(theMachine, role, timeout);
+				solveLargePuzzle = new IterativeDeepeningDFS(role, theMachine, heuristic, timeout);
+			}
 			break;
 		case Small2Player:
 			Role opponent = null;
@@ -128,8 +149,8 @@ public class KartikkukrejaGamer extends StateMachineGamer
 				}
 			}
 
-			heuristic = Util.findBestHeuristic(theMachine, role, timeout);
-			solveLarge2Player = new IterativeDeepeningAlphaBeta(role, opponent, theMachine, heuristic, timeout);
+			LinearCombinationHeuristic heuristic = Util.findBestHeuristic(theMachine, role, timeout);
+			solveLarge2Player = new ParallelAlphaBeta(createMachines(), role, opponent, heuristic);
 			break;
 		default:
 			break;
@@ -146,11 +167,17 @@ public class KartikkukrejaGamer extends StateMachineGamer
 			break;
 		case LargePuzzle:
 			solveLargePuzzle = null;
+			if (puzzleSolver != null)
+				puzzleSolver.shutdown();
+			puzzleSolver = null;
+			planFile = null;
 			break;
 		case Small2Player:
 			solveSmall2Player = null;
 			break;
 		case Large2Player:
+			if (solveLarge2Player != null)
+				solveLarge2Player.shutdown();
 			solveLarge2Player = null;
 			break;
 		default:
@@ -171,11 +198,17 @@ public class KartikkukrejaGamer extends StateMachineGamer
 			break;
 		case LargePuzzle:
 			solveLargePuzzle = null;
+			if (puzzleSolver != null)
+				puzzleSolver.shutdown();
+			puzzleSolver = null;
+			planFile = null;
 			break;
 		case Small2Player:
 			solveSmall2Player = null;
 			break;
 		case Large2Player:
+			if (solveLarge2Player != null)
+				solveLarge2Player.shutdown();
 			solveLarge2Player = null;
 			break;
 		default:
@@ -188,6 +221,27 @@ public class KartikkukrejaGamer extends StateMachineGamer
 		role = null;
 	}
 
+	// one search thread per core, each with its own state machine
+	private List<StateMachine> createMachines() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<StateMachine> machines = new ArrayList<StateMachine>(threads);
+		for (int i = 0; i < threads; i++) {
+			StateMachine machine = getInitialStateMachine();
+			machine.initialize(getMatch().getGame().getRules());
+			machines.add(machine);
+		}
+		return machines;
+	}
+
+	// the plan is kept for the next match of the same game, but losing it is harmless
+	private void savePlan() {
+		try {
+			puzzleSolver.savePlan(planFile);
+		} catch (IOException e) {
+			System.err.println("Could not save plan: " + e);
+		}
+	}
+
 	@Override
 	public DetailPanel getDetailPanel() {
 		return new SimpleDetailPanel();
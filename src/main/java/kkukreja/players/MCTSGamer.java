@@ -1,5 +1,6 @@
 package kkukreja.players;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import kkukreja.algorithms.MCTS;
@@ -10,17 +11,40 @@ import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
 import org.ggp.base.player.gamer.exception.GamePreviewException;
 import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
 import org.ggp.base.util.game.Game;
+import org.ggp.base.util.propnet.analysis.Factor;
+import org.ggp.base.util.propnet.analysis.FactorAnalysis;
+import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.StateMachine;
-import org.ggp.base.util.statemachine.cache.CachedStateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
-import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
 
-public final class MCTSGamer extends StateMachineGamer
+// plain UCT with random playouts; the subclasses below pick other policies, since players are
+// created through the no-argument constructor. Games made of independent factors are searched
+// one factor at a time.
+public class MCTSGamer extends StateMachineGamer
 {
 	private MCTS gamer = null;
+	private MCTS.Selection selection;
+	private MCTS.Playout playout;
+	// the move selected in the current state, or null before the first one
+	private Move ourMove = null;
+
+	// one search per factor, or null if the game isn't split into factors
+	private List<Factor> factors = null;
+	private List<PropNetStateMachine> factorMachines = null;
+	private List<MCTS> factorSearches = null;
+
+	public MCTSGamer() {
+		this(MCTS.Selection.UCT, MCTS.Playout.RANDOM);
+	}
+
+	protected MCTSGamer(MCTS.Selection selection, MCTS.Playout playout) {
+		this.selection = selection;
+		this.playout = playout;
+	}
 
 	@Override
 	public String getName() {
@@ -32,18 +56,78 @@ public final class MCTSGamer extends StateMachineGamer
 	{
 		long start = System.currentTimeMillis();
 
+		// reuse the part of the search tree that is still reachable
+		List<Move> lastJointMove = Util.getMostRecentJointMove(this);
+		if (lastJointMove != null && gamer != null)
+			gamer.advance(lastJointMove);
+
 		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
-		Move selection = (moves.size() > 1) ? gamer.nextMove(getCurrentState(), timeout-1000) : moves.get(0);
+		Move selection;
+		if (moves.size() <= 1)
+			selection = moves.get(0);
+		else if (factorSearches != null)
+			selection = selectFactorMove(moves, timeout-1000);
+		else
+			selection = gamer.nextMove(getCurrentState(), timeout-1000);
 
+		ourMove = selection;
 		long stop = System.currentTimeMillis();
 
 		notifyObservers(new GamerSelectedMoveEvent(moves, selection, stop - start));
 		return selection;
 	}
 
+	// searches each factor that isn't over for an equal share of the time, and plays the move
+	// that is worth the most in its own factor
+	private Move selectFactorMove(List<Move> moves, long timeout)
+			throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		List<Integer> open = new ArrayList<Integer>();
+		List<MachineState> states = new ArrayList<MachineState>();
+		for (int i = 0; i < factors.size(); i++) {
+			MachineState state = factors.get(i).getFactorState(factorMachines.get(i), getCurrentState());
+			if (!factorMachines.get(i).isTerminal(state)) {
+				open.add(i);
+				states.add(state);
+			}
+		}
+
+		Move selection = moves.get(0);
+		double bestValue = -1;
+		for (int i = 0; i < open.size(); i++) {
+			long share = (timeout - System.currentTimeMillis()) / (open.size() - i);
+			MCTS search = factorSearches.get(open.get(i));
+			Move move = search.nextMove(states.get(i), System.currentTimeMillis() + share);
+			if (moves.contains(move) && search.getMoveValue() > bestValue) {
+				selection = move;
+				bestValue = search.getMoveValue();
+			}
+		}
+		return selection;
+	}
+
+	// keep growing the tree below the move we played while the other players think, a few
+	// milliseconds at a time
+	@Override
+	public boolean stateMachinePonder() throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		if (gamer == null || factorSearches != null)
+			return false;
+		if (ourMove != null)
+			gamer.ponder(getCurrentState(), ourMove, System.currentTimeMillis() + 10);
+		else
+			gamer.search(getCurrentState(), System.currentTimeMillis() + 10);
+		return true;
+	}
+
+	@Override
+	public boolean isPonderingEnabled() {
+		return true;
+	}
+
 	@Override
 	public StateMachine getInitialStateMachine() {
-		return new CachedStateMachine(new ProverStateMachine());
+		return newPropNetStateMachine();
 	}
 
 	@Override
@@ -56,16 +140,42 @@ public final class MCTSGamer extends StateMachineGamer
 	{
 		StateMachine theMachine = getStateMachine();
 		gamer = new MCTS(theMachine, theMachine.getRoles(), getRole(), timeout - 1000);
+		gamer.setPolicies(selection, playout);
+
+		// half of the time for factors, and the rest for latches
+		long start = System.currentTimeMillis();
+		FactorAnalysis analysis = Util.analyzeFactors(this, start + (timeout - 1000 - start) / 2);
+		if (analysis != null) {
+			factors = analysis.getFactors();
+			factorMachines = new ArrayList<PropNetStateMachine>();
+			factorSearches = new ArrayList<MCTS>();
+			for (Factor factor : factors) {
+				PropNetStateMachine factorMachine = factor.createStateMachine();
+				MCTS search = new MCTS(factorMachine, factorMachine.getRoles(), getRole(), timeout - 1000);
+				search.setPolicies(selection, playout);
+				factorMachines.add(factorMachine);
+				factorSearches.add(search);
+			}
+		}
+		gamer.setLatchAnalysis(Util.analyzeLatches(this, timeout - 1000));
 	}
 
 	@Override
 	public void stateMachineStop() {
-		gamer = null;
+		cleanup();
 	}
 
 	@Override
 	public void stateMachineAbort() {
+		cleanup();
+	}
+
+	private void cleanup() {
 		gamer = null;
+		ourMove = null;
+		factors = null;
+		factorMachines = null;
+		factorSearches = null;
 	}
 
 	@Override
@@ -0,0 +1,90 @@
+package kkukreja.players;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import kkukreja.algorithms.ParallelMCTS;
+
+import org.ggp.base.apps.player.detail.DetailPanel;
+import org.ggp.base.apps.player.detail.SimpleDetailPanel;
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.player.gamer.exception.GamePreviewException;
+import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * @author kartikkukreja
+ * tree-parallel MCTS with one worker per available core, each with its own state machine
+ */
+public final class ParallelMCTSGamer extends StateMachineGamer
+{
+	private ParallelMCTS gamer = null;
+
+	@Override
+	public String getName() {
+		return "PARALLEL_MCTS_GAMER";
+	}
+
+	@Override
+	public Move stateMachineSelectMove(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		long start = System.currentTimeMillis();
+
+		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
+		Move selection = (moves.size() > 1) ? gamer.nextMove(getCurrentState(), timeout-1000) : moves.get(0);
+
+		long stop = System.currentTimeMillis();
+
+		notifyObservers(new GamerSelectedMoveEvent(moves, selection, stop - start));
+		return selection;
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		return newPropNetStateMachine();
+	}
+
+	@Override
+	public void preview(Game g, long timeout) throws GamePreviewException {
+		// does no game previewing.
+	}
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<StateMachine> machines = new ArrayList<StateMachine>(threads);
+		for (int i = 0; i < threads; i++) {
+			StateMachine machine = getInitialStateMachine();
+			machine.initialize(getMatch().getGame().getRules());
+			machines.add(machine);
+		}
+		gamer = new ParallelMCTS(machines, getRole(), ParallelMCTS.Mode.TREE);
+	}
+
+	@Override
+	public void stateMachineStop() {
+		cleanup();
+	}
+
+	@Override
+	public void stateMachineAbort() {
+		cleanup();
+	}
+
+	private void cleanup() {
+		if (gamer != null)
+			gamer.shutdown();
+		gamer = null;
+	}
+
+	@Override
+	public DetailPanel getDetailPanel() {
+		return new SimpleDetailPanel();
+	}
+}
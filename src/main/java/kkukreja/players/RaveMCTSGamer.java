@@ -0,0 +1,16 @@
+package kkukreja.players;
+
+import kkukreja.algorithms.MCTS;
+
+// MCTSGamer with RAVE selection and random playouts
+public final class RaveMCTSGamer extends MCTSGamer
+{
+	public RaveMCTSGamer() {
+		super(MCTS.Selection.RAVE, MCTS.Playout.RANDOM);
+	}
+
+	@Override
+	public String getName() {
+		return "RAVE_MCTS_GAMER";
+	}
+}
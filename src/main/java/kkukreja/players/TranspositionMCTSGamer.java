@@ -0,0 +1,88 @@
+package kkukreja.players;
+
+import java.util.List;
+
+import kkukreja.algorithms.TranspositionMCTS;
+
+import org.ggp.base.apps.player.detail.DetailPanel;
+import org.ggp.base.apps.player.detail.SimpleDetailPanel;
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.player.gamer.exception.GamePreviewException;
+import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+public final class TranspositionMCTSGamer extends StateMachineGamer
+{
+	private TranspositionMCTS gamer = null;
+
+	@Override
+	public String getName() {
+		return "TRANSPOSITION_MCTS_GAMER";
+	}
+
+	@Override
+	public Move stateMachineSelectMove(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		long start = System.currentTimeMillis();
+
+		List<Move> moves = getStateMachine().getLegalMoves(getCurrentState(), getRole());
+		Move selection = (moves.size() > 1) ? gamer.nextMove(getCurrentState(), timeout-1000) : moves.get(0);
+
+		long stop = System.currentTimeMillis();
+
+		notifyObservers(new GamerSelectedMoveEvent(moves, selection, stop - start));
+		return selection;
+	}
+
+	// keep growing the tree while the other players think, a few milliseconds at a time
+	@Override
+	public boolean stateMachinePonder() throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		if (gamer == null)
+			return false;
+		gamer.search(getCurrentState(), System.currentTimeMillis() + 10);
+		return true;
+	}
+
+	@Override
+	public boolean isPonderingEnabled() {
+		return true;
+	}
+
+	@Override
+	public StateMachine getInitialStateMachine() {
+		return newPropNetStateMachine();
+	}
+
+	@Override
+	public void preview(Game g, long timeout) throws GamePreviewException {
+		// does no game previewing.
+	}
+
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		StateMachine theMachine = getStateMachine();
+		gamer = new TranspositionMCTS(theMachine, getRole());
+	}
+
+	@Override
+	public void stateMachineStop() {
+		gamer = null;
+	}
+
+	@Override
+	public void stateMachineAbort() {
+		gamer = null;
+	}
+
+	@Override
+	public DetailPanel getDetailPanel() {
+		return new SimpleDetailPanel();
+	}
+}
\ No newline at end of file
@@ -1,10 +1,26 @@
 package kkukreja.players;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import kkukreja.algorithms.LinearCombinationHeuristic;
 
+import org.ggp.base.player.gamer.statemachine.StateMachineGamer;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.analysis.FactorAnalysis;
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.DepthChargeBuffers;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -12,9 +28,103 @@ import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
 
 public final class Util {
 
+	/**
+	 * @return the joint move that led to the gamer's current state, or null at the start of the match
+	 */
+	public static List<Move> getMostRecentJointMove (StateMachineGamer gamer) {
+		List<GdlTerm> lastMoves = gamer.getMatch().getMostRecentMoves();
+		if (lastMoves == null)
+			return null;
+
+		List<Move> jointMove = new ArrayList<Move>(lastMoves.size());
+		for (GdlTerm term : lastMoves)
+			jointMove.add(gamer.getStateMachine().getMoveFromTerm(term));
+		return jointMove;
+	}
+
+	/**
+	 * @return the compiled propnet the given machine plays with, looking through a failsafe
+	 * machine, or null if it isn't a propnet machine
+	 */
+	public static CompiledPropNet getCompiledPropNet (StateMachine theMachine) {
+		if (theMachine instanceof FailsafeStateMachine)
+			theMachine = ((FailsafeStateMachine) theMachine).getBackingMachine();
+		return (theMachine instanceof PropNetStateMachine) ? ((PropNetStateMachine) theMachine).getPropNet() : null;
+	}
+
+	/**
+	 * finds the latches of the gamer's game, on a separate thread so that the analysis can be
+	 * abandoned at the timeout. The propnet of the gamer's state machine is used if it has one,
+	 * and otherwise the propnet is loaded from the cache or built.
+	 * @return the analysis, or null if it didn't finish in time or no goal depends on a latch
+	 */
+	public static LatchAnalysis analyzeLatches (StateMachineGamer gamer, final long timeout) {
+		long start = System.currentTimeMillis();
+		final List<Gdl> rules = gamer.getMatch().getGame().getRules();
+		final CompiledPropNet machinePropNet = getCompiledPropNet(gamer.getStateMachine());
+		FutureTask<LatchAnalysis> task = new FutureTask<LatchAnalysis>(new Callable<LatchAnalysis>() {
+			@Override
+			public LatchAnalysis call() throws InterruptedException {
+				CompiledPropNet propNet = (machinePropNet != null) ? machinePropNet : PropNetCache.getDefault().getPropNet(rules);
+				return LatchAnalysis.analyze(propNet, timeout);
+			}
+		});
+		Thread thread = new Thread(task, "Latch analysis");
+		thread.setDaemon(true);
+		thread.start();
+
+		LatchAnalysis latches = null;
+		try {
+			latches = task.get(Math.max(0, timeout - start), TimeUnit.MILLISECONDS);
+			System.out.println(latches);
+		} catch (TimeoutException e) {
+			// the propnet factory stops when interrupted
+			task.cancel(true);
+			System.out.println("Latch analysis ran out of time");
+		} catch (InterruptedException | ExecutionException e) {
+			task.cancel(true);
+			System.err.println("Latch analysis failed: " + e);
+		}
+		return (latches != null && latches.canDecideGoals()) ? latches : null;
+	}
+
+	/**
+	 * builds a propnet for the gamer's game and splits it into independent factors, on a separate
+	 * thread so that both can be abandoned at the timeout. The analysis needs the propnet's
+	 * components, which the propnet cache doesn't keep, so the propnet is built again.
+	 * @return the analysis, or null if it didn't finish in time or the game has a single factor
+	 */
+	public static FactorAnalysis analyzeFactors (StateMachineGamer gamer, final long timeout) {
+		long start = System.currentTimeMillis();
+		final List<Gdl> rules = gamer.getMatch().getGame().getRules();
+		FutureTask<FactorAnalysis> task = new FutureTask<FactorAnalysis>(new Callable<FactorAnalysis>() {
+			@Override
+			public FactorAnalysis call() throws InterruptedException {
+				return FactorAnalysis.analyze(OptimizingPropNetFactory.create(rules), timeout);
+			}
+		});
+		Thread thread = new Thread(task, "Factor analysis");
+		thread.setDaemon(true);
+		thread.start();
+
+		FactorAnalysis factors = null;
+		try {
+			factors = task.get(Math.max(0, timeout - start), TimeUnit.MILLISECONDS);
+			System.out.println(factors);
+		} catch (TimeoutException e) {
+			task.cancel(true);
+			System.out.println("Factor analysis ran out of time");
+		} catch (InterruptedException | ExecutionException e) {
+			task.cancel(true);
+			System.err.println("Factor analysis failed: " + e);
+		}
+		return (factors != null && factors.isFactored()) ? factors : null;
+	}
+
 	/**
 	 * @return (av. branching factor) ^ (av. game tree depth) for 20 randomly played games
 	 * @throws TransitionDefinitionException
@@ -129,6 +239,7 @@ public final class Util {
 	public static int playoff (StateMachine theMachine, Role role, MachineState initialState, int roleIndex, LinearCombinationHeuristic heuristic, Random theRandom)
 			throws MoveDefinitionException, TransitionDefinitionException, GoalDefinitionException
 	{
+		DepthChargeBuffers buffers = theMachine.newDepthChargeBuffers();
 		MachineState state = initialState;
 		while (!theMachine.isTerminal(state)) {
 			// find the best move against a 3-random move looking goal-directed player looking at 3 random moves according to the given heuristic
@@ -142,7 +253,7 @@ public final class Util {
 				int minscore = 101;
 
 				for (int i = 0; i < 3; i++) {
-					MachineState randomstate = theMachine.getNextStateDestructively(state, theMachine.getRandomJointMove(state, role, m));
+					MachineState randomstate = theMachine.getNextStateDestructively(state, theMachine.getRandomJointMove(state, role, m, buffers, theRandom));
 					int score = theMachine.getGoal(randomstate, role);
 					if (score < minscore) {
 						minscore = score;
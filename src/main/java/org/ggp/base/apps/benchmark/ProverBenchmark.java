@@ -0,0 +1,124 @@
+package org.ggp.base.apps.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.prover.Prover;
+import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.prover.aima.SubstitutionAimaProver;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+/**
+ * ProverBenchmark compares the speed of the {@link AimaProver} with the
+ * {@link SubstitutionAimaProver} it replaced. It samples states from random
+ * playouts of each game, then times how many times per second each prover
+ * can answer the queries a state machine asks in them: the legal moves,
+ * the goals, whether the state is terminal, and the next state after a
+ * random joint move.
+ *
+ * Each measurement is preceded by a warmup of the same length, so that the
+ * JIT compiler has done its work. The games are given as arguments, as keys
+ * in the test game repository; the default is ticTacToe and connectFour.
+ */
+public final class ProverBenchmark {
+	private static final int SAMPLED_STATES = 200;
+	private static final long MEASUREMENT_MILLIS = 3000;
+
+	private static final GdlVariable X = GdlPool.getVariable("?x");
+	private static final GdlVariable Y = GdlPool.getVariable("?y");
+	private static final GdlSentence LEGAL_QUERY = GdlPool.getRelation(GdlPool.LEGAL, new GdlTerm[] {X, Y});
+	private static final GdlSentence GOAL_QUERY = GdlPool.getRelation(GdlPool.GOAL, new GdlTerm[] {X, Y});
+	private static final GdlSentence TERMINAL_QUERY = GdlPool.getProposition(GdlPool.TERMINAL);
+	private static final GdlSentence NEXT_QUERY = GdlPool.getRelation(GdlPool.NEXT, new GdlTerm[] {X});
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			args = new String[] {"ticTacToe", "connectFour"};
+		}
+		for (String gameKey : args) {
+			List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+			List<Set<GdlSentence>> states = new ArrayList<Set<GdlSentence>>();
+			List<Set<GdlSentence>> transitions = new ArrayList<Set<GdlSentence>>();
+			sampleStates(rules, states, transitions);
+
+			System.out.println(gameKey + ": " + states.size() + " sampled states");
+			benchmark("legal", LEGAL_QUERY, states, rules);
+			benchmark("goal", GOAL_QUERY, states, rules);
+			benchmark("terminal", TERMINAL_QUERY, states, rules);
+			benchmark("next", NEXT_QUERY, transitions, rules);
+		}
+	}
+
+	// Fills in the contents of sampled states, and of the same states with a random joint move.
+	private static void sampleStates(List<Gdl> rules, List<Set<GdlSentence>> states, List<Set<GdlSentence>> transitions) throws Exception {
+		StateMachine theMachine = new ProverStateMachine();
+		theMachine.initialize(rules);
+		List<Role> roles = theMachine.getRoles();
+		Random random = new Random(0);
+
+		MachineState state = theMachine.getInitialState();
+		while (states.size() < SAMPLED_STATES) {
+			if (theMachine.isTerminal(state)) {
+				state = theMachine.getInitialState();
+				continue;
+			}
+			List<Move> jointMove = theMachine.getRandomJointMove(state);
+			Set<GdlSentence> transition = new HashSet<GdlSentence>(state.getContents());
+			for (int i = 0; i < roles.size(); i++) {
+				transition.add(GdlPool.getRelation(GdlPool.DOES, new GdlTerm[] {roles.get(i).getName(), jointMove.get(i).getContents()}));
+			}
+			states.add(state.getContents());
+			transitions.add(transition);
+
+			// Skip ahead a random number of moves, so the samples cover the whole game.
+			int skip = random.nextInt(3);
+			state = theMachine.getNextState(state, jointMove);
+			for (int i = 0; i < skip && !theMachine.isTerminal(state); i++) {
+				state = theMachine.getRandomNextState(state);
+			}
+		}
+	}
+
+	private static void benchmark(String name, GdlSentence query, List<Set<GdlSentence>> contexts, List<Gdl> rules) {
+		double substitutionRate = measure(new SubstitutionAimaProver(rules), query, contexts);
+		double aimaRate = measure(new AimaProver(rules), query, contexts);
+		System.out.println(String.format("  %-8s SubstitutionAimaProver %10.1f/s   AimaProver %10.1f/s   (%.2fx)",
+				name, substitutionRate, aimaRate, aimaRate / substitutionRate));
+	}
+
+	// Returns the number of queries answered per second, after a warmup.
+	private static double measure(Prover prover, GdlSentence query, List<Set<GdlSentence>> contexts) {
+		run(prover, query, contexts, MEASUREMENT_MILLIS);
+		return run(prover, query, contexts, MEASUREMENT_MILLIS) * 1000.0 / MEASUREMENT_MILLIS;
+	}
+
+	private static long run(Prover prover, GdlSentence query, List<Set<GdlSentence>> contexts, long millis) {
+		long count = 0;
+		int answers = 0;
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			for (Set<GdlSentence> context : contexts) {
+				answers += prover.askAll(query, context).size();
+				count++;
+			}
+		}
+		// Use the answers, so that the queries can't be optimized away.
+		if (answers == -1) {
+			System.out.println();
+		}
+		return count;
+	}
+}
@@ -12,7 +12,11 @@ import org.ggp.base.player.event.PlayerSentMessageEvent;
 import org.ggp.base.player.gamer.Gamer;
 import org.ggp.base.player.gamer.statemachine.random.RandomGamer;
 import org.ggp.base.player.request.factory.RequestFactory;
+import org.ggp.base.player.request.grammar.AbortRequest;
 import org.ggp.base.player.request.grammar.Request;
+import org.ggp.base.player.request.grammar.StopRequest;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlPoolArena;
 import org.ggp.base.util.http.HttpReader;
 import org.ggp.base.util.http.HttpWriter;
 import org.ggp.base.util.logging.GamerLogger;
@@ -82,6 +86,10 @@ public final class GamePlayer extends Thread implements Subject
 	@Override
 	public void run()
 	{
+		// Everything the gamer interns during a match goes into this arena, which
+		// is released once the match is over.
+		GdlPoolArena arena = new GdlPoolArena("GamePlayer on port " + port);
+		GdlPool.setArena(arena);
 		while (listener != null) {
 			try {
 				Socket connection = listener.accept();
@@ -100,6 +108,11 @@ public final class GamePlayer extends Thread implements Subject
 				connection.close();
 				notifyObservers(new PlayerSentMessageEvent(out));
 				GamerLogger.log("GamePlayer", "[Sent at " + System.currentTimeMillis() + "] " + out, GamerLogger.LOG_LEVEL_DATA_DUMP);
+
+				if (request instanceof StopRequest || request instanceof AbortRequest) {
+					GamerLogger.log("GamePlayer", GdlPool.getMemoryReport());
+					arena.release();
+				}
 			} catch (Exception e) {
 				GamerLogger.log("GamePlayer", "[Dropped data at " + System.currentTimeMillis() + "] Due to " + e, GamerLogger.LOG_LEVEL_DATA_DUMP);
 				notifyObservers(new PlayerDroppedPacketEvent());
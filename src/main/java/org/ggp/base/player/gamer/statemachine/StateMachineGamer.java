@@ -10,6 +10,8 @@ import org.ggp.base.player.gamer.exception.MoveSelectionException;
 import org.ggp.base.player.gamer.exception.StoppingException;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -17,6 +19,7 @@ import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
 
 
 /**
@@ -32,6 +35,10 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
  */
 public abstract class StateMachineGamer extends Gamer
 {
+    // Shared by every gamer in the process, so that a game's propnet is only
+    // built the first time any of them plays it.
+    private static final PropNetCache PROPNET_CACHE = PropNetCache.getDefault();
+
     // =====================================================================
     // First, the abstract methods which need to be overriden by subclasses.
     // These determine what state machine is used, what the gamer does during
@@ -43,6 +50,22 @@ public abstract class StateMachineGamer extends Gamer
      */
     public abstract StateMachine getInitialStateMachine();
 
+    /**
+     * Returns a new state machine backed by a differential propnet, for use
+     * by getInitialStateMachine. The propnet is loaded from the on-disk
+     * {@link PropNetCache} when the game has been played before. Otherwise it
+     * is built, with up to half of the start clock to do so; if it isn't
+     * ready by then, can't be built, or fails later on, the machine falls
+     * back to a prover.
+     */
+    protected StateMachine newPropNetStateMachine() {
+        PropNetStateMachine theMachine = new PropNetStateMachine(PropNetStateMachine.Evaluation.DIFFERENTIAL, PROPNET_CACHE);
+        if (getMatch() != null) {
+            theMachine.setBuildDeadline(System.currentTimeMillis() + getMatch().getStartClock() * 500L);
+        }
+        return new FailsafeStateMachine(theMachine);
+    }
+
     /**
      * Defines the metagaming action taken by a player during the START_CLOCK
      * @param timeout time in milliseconds since the era when this function must return
@@ -72,6 +95,41 @@ public abstract class StateMachineGamer extends Gamer
      */
     public abstract void stateMachineAbort();
 
+    /**
+     * Defines the work that the player does in the background between
+     * answering a request and receiving the next one, such as growing its
+     * search tree while the opponents are thinking. When pondering is enabled
+     * (see {@link #isPonderingEnabled()}), this is called repeatedly on a
+     * separate thread from the moment the player answers a START or PLAY
+     * request until the next request arrives.
+     *
+     * Each call should return within a few milliseconds, since the next
+     * request is not processed until the call in progress returns. Nothing
+     * else touches the state machine or the gamer while pondering, so this
+     * may use both freely. Returning false stops pondering until the next
+     * move has been selected.
+     *
+     * The default implementation does nothing and returns false.
+     *
+     * @throws TransitionDefinitionException
+     * @throws MoveDefinitionException
+     * @throws GoalDefinitionException
+     */
+    public boolean stateMachinePonder() throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return false;
+    }
+
+    /**
+     * Returns whether the gamer ponders between requests. Gamers that
+     * implement {@link #stateMachinePonder()} should override this to return
+     * true. Pondering is disabled by default.
+     */
+    public boolean isPonderingEnabled()
+    {
+        return false;
+    }
+
     // =====================================================================
     // Next, methods which can be used by subclasses to get information about
     // the current state of the game, and tweak the state machine on the fly.
@@ -178,6 +236,7 @@ public abstract class StateMachineGamer extends Gamer
 	{
 		try
 		{
+			stopPondering();
 			stateMachine = getInitialStateMachine();
 			stateMachine.initialize(getMatch().getGame().getRules());
 			currentState = stateMachine.getInitialState();
@@ -185,6 +244,7 @@ public abstract class StateMachineGamer extends Gamer
 			getMatch().appendState(currentState.getContents());
 
 			stateMachineMetaGame(timeout);
+			startPondering();
 		}
 		catch (Exception e)
 		{
@@ -204,6 +264,7 @@ public abstract class StateMachineGamer extends Gamer
 	{
 		try
 		{
+			stopPondering();
 			stateMachine.doPerMoveWork();
 
 			List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
@@ -219,7 +280,9 @@ public abstract class StateMachineGamer extends Gamer
 				getMatch().appendState(currentState.getContents());
 			}
 
-			return stateMachineSelectMove(timeout).getContents();
+			GdlTerm selection = stateMachineSelectMove(timeout).getContents();
+			startPondering();
+			return selection;
 		}
 		catch (Exception e)
 		{
@@ -231,6 +294,7 @@ public abstract class StateMachineGamer extends Gamer
 	@Override
 	public void stop() throws StoppingException {
 		try {
+			stopPondering();
 			stateMachine.doPerMoveWork();
 
 			List<GdlTerm> lastMoves = getMatch().getMostRecentMoves();
@@ -259,6 +323,7 @@ public abstract class StateMachineGamer extends Gamer
 	@Override
 	public void abort() throws AbortingException {
 		try {
+			stopPondering();
 			stateMachineAbort();
 		}
 		catch (Exception e)
@@ -268,8 +333,50 @@ public abstract class StateMachineGamer extends Gamer
 		}
 	}
 
+    /**
+     * Starts calling stateMachinePonder on a background thread, if pondering
+     * is enabled.
+     */
+    private void startPondering() {
+        if (!isPonderingEnabled())
+            return;
+
+        final Thread thread = new Thread(getName() + "-ponder") {
+            @Override
+            public void run() {
+                try {
+                    while (ponderThread == this && !isInterrupted()) {
+                        if (!stateMachinePonder())
+                            break;
+                    }
+                } catch (Exception e) {
+                    GamerLogger.log("GamePlayer", "Caught an exception while pondering!");
+                    GamerLogger.logStackTrace("GamePlayer", e);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        ponderThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the pondering thread, if there is one, and waits for the call to
+     * stateMachinePonder in progress to return. Afterwards the caller has
+     * exclusive access to the state machine and the gamer again.
+     */
+    private void stopPondering() throws InterruptedException {
+        Thread thread = ponderThread;
+        if (thread == null)
+            return;
+
+        ponderThread = null;
+        thread.join();
+    }
+
     // Internal state about the current state of the state machine.
     private Role role;
     private MachineState currentState;
     private StateMachine stateMachine;
+    private volatile Thread ponderThread;
 }
\ No newline at end of file
@@ -1,20 +1,25 @@
 package org.ggp.base.player.gamer.statemachine.sample;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
-import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.DepthChargeExecutor;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
+import com.google.common.base.Supplier;
+
 /**
  * SampleMonteCarloGamer is a simple state-machine-based Gamer. It will use a
  * pure Monte Carlo approach towards picking moves, doing simulations and then
  * choosing the move that has the highest expected score. It should be slightly
  * more challenging than the RandomGamer, while still playing reasonably fast.
+ * The simulations run in batches on a {@link DepthChargeExecutor}, with one
+ * worker thread per available processor.
  *
  * However, right now it isn't challenging at all. It's extremely mediocre, and
  * doesn't even block obvious one-move wins. This is partially due to the speed
@@ -25,6 +30,27 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
  */
 public final class SampleMonteCarloGamer extends SampleGamer
 {
+	// Number of depth charges per candidate move in each batch.
+	private static final int BATCH_SIZE = 64;
+
+	private DepthChargeExecutor executor;
+
+	/**
+	 * Sets up a pool of worker threads, each with its own state machine, to
+	 * run depth charges in parallel.
+	 */
+	@Override
+	public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+	{
+		shutdownExecutor();
+		executor = new DepthChargeExecutor(new Supplier<StateMachine>() {
+			@Override
+			public StateMachine get() {
+				return getInitialStateMachine();
+			}
+		}, getMatch().getGame().getRules());
+	}
+
 	/**
 	 * Employs a simple sample "Monte Carlo" algorithm.
 	 */
@@ -38,24 +64,29 @@ public final class SampleMonteCarloGamer extends SampleGamer
 		List<Move> moves = theMachine.getLegalMoves(getCurrentState(), getRole());
 		Move selection = moves.get(0);
 		if (moves.size() > 1) {
-    		int[] moveTotalPoints = new int[moves.size()];
+    		long[] moveTotalPoints = new long[moves.size()];
     		int[] moveTotalAttempts = new int[moves.size()];
+    		int roleIndex = theMachine.getRoleIndices().get(getRole());
 
-    		// Perform depth charges for each candidate move, and keep track
-    		// of the total score and total attempts accumulated for each move.
-    		for (int i = 0; true; i = (i+1) % moves.size()) {
-    		    if (System.currentTimeMillis() > finishBy)
-    		        break;
-
-    		    int theScore = performDepthChargeFromMove(getCurrentState(), moves.get(i));
-    		    moveTotalPoints[i] += theScore;
-    		    moveTotalAttempts[i] += 1;
+    		// Perform batches of depth charges for each candidate move on the
+    		// worker threads, and keep track of the total score and total
+    		// attempts accumulated for each move.
+    		List<DepthChargeExecutor.Request> batch = new ArrayList<DepthChargeExecutor.Request>();
+    		for (Move move : moves) {
+    		    batch.add(new DepthChargeExecutor.Request(getCurrentState(), getRole(), move, BATCH_SIZE));
+    		}
+    		while (System.currentTimeMillis() < finishBy) {
+    		    List<DepthChargeExecutor.Result> results = executor.run(batch, finishBy);
+    		    for (int i = 0; i < moves.size(); i++) {
+    		        moveTotalPoints[i] += results.get(i).getGoalSum(roleIndex);
+    		        moveTotalAttempts[i] += results.get(i).getCount();
+    		    }
     		}
 
     		// Compute the expected score for each move.
     		double[] moveExpectedPoints = new double[moves.size()];
     		for (int i = 0; i < moves.size(); i++) {
-    		    moveExpectedPoints[i] = (double)moveTotalPoints[i] / moveTotalAttempts[i];
+    		    moveExpectedPoints[i] = (moveTotalAttempts[i] == 0) ? 0 : (double)moveTotalPoints[i] / moveTotalAttempts[i];
     		}
 
     		// Find the move with the best expected score.
@@ -76,15 +107,19 @@ public final class SampleMonteCarloGamer extends SampleGamer
 		return selection;
 	}
 
-	private int[] depth = new int[1];
-	int performDepthChargeFromMove(MachineState theState, Move myMove) {
-	    StateMachine theMachine = getStateMachine();
-	    try {
-            MachineState finalState = theMachine.performDepthCharge(theMachine.getRandomNextState(theState, getRole(), myMove), depth);
-            return theMachine.getGoal(finalState, getRole());
-        } catch (Exception e) {
-            e.printStackTrace();
-            return 0;
-        }
+	@Override
+	public void stateMachineStop() {
+		shutdownExecutor();
+	}
+
+	@Override
+	public void stateMachineAbort() {
+		shutdownExecutor();
+	}
+
+	private void shutdownExecutor() {
+		if (executor != null)
+			executor.shutdown();
+		executor = null;
 	}
 }
\ No newline at end of file
@@ -26,6 +26,8 @@ import org.ggp.base.server.threads.PreviewRequestThread;
 import org.ggp.base.server.threads.RandomPlayRequestThread;
 import org.ggp.base.server.threads.StartRequestThread;
 import org.ggp.base.server.threads.StopRequestThread;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlPoolArena;
 import org.ggp.base.util.match.Match;
 import org.ggp.base.util.match.MatchPublisher;
 import org.ggp.base.util.observer.Event;
@@ -42,6 +44,7 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
 public final class GameServer extends Thread implements Subject
 {
     private final Match match;
+    private final GdlPoolArena arena;
     private final StateMachine stateMachine;
     private MachineState currentState;
 
@@ -72,9 +75,17 @@ public final class GameServer extends Thread implements Subject
         playerPlaysRandomly = new Boolean[hosts.size()];
         Arrays.fill(playerPlaysRandomly, Boolean.FALSE);
 
-        stateMachine = new ProverStateMachine();
-        stateMachine.initialize(match.getGame().getRules());
-        currentState = stateMachine.getInitialState();
+        // The match's Gdl objects are interned in an arena of its own, which is
+        // released when the match is over.
+        arena = new GdlPoolArena("GameServer for " + match.getMatchId());
+        GdlPoolArena previousArena = GdlPool.setArena(arena);
+        try {
+            stateMachine = new ProverStateMachine();
+            stateMachine.initialize(match.getGame().getRules());
+            currentState = stateMachine.getInitialState();
+        } finally {
+            GdlPool.setArena(previousArena);
+        }
         previousMoves = null;
 
         mostRecentErrors = new HashMap<Role,String>();
@@ -151,6 +162,7 @@ public final class GameServer extends Thread implements Subject
 
     @Override
     public void run() {
+        GdlPool.setArena(arena);
         try {
         	if (match.getPreviewClock() >= 0) {
         		sendPreviewRequests();
@@ -195,6 +207,8 @@ public final class GameServer extends Thread implements Subject
         	}
         } catch (Exception e) {
         	e.printStackTrace();
+        } finally {
+            arena.release();
         }
     }
 
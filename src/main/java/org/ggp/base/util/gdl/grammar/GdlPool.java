@@ -6,13 +6,13 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.MapMaker;
 
 /**
  * The GdlPool manages the creation of {@link Gdl} objects. It is the only way Gdl
@@ -21,25 +21,29 @@ import com.google.common.collect.MapMaker;
  * objects may be checked for equality with an instance-equality check (==) rather
  * than a more expensive recursive equality check.
  * <p>
+ * Objects are interned in a {@link GdlPoolArena}: the one attached to the current
+ * thread with {@link #setArena(GdlPoolArena)}, if any, and otherwise the default
+ * arena. A thread started by a thread with an arena starts out with the same
+ * arena. Work handed to thread pools that outlive a match should be wrapped with
+ * {@link #inCurrentArena(Callable)}. Keyword constants, and the propositions made
+ * of them, belong to no arena and are shared by all of them.
+ * <p>
  * A long-lived game player may accumulate lots of objects in its pool. To remove
- * them, it may call {@link #drainPool()} in between games. Note that if this
- * method is called while references to Gdl objects other than keyword constants
- * are held elsewhere, bad things will happen.
+ * them, it may call {@link #drainPool()} in between games, or better, intern each
+ * game's objects in an arena of its own and release that arena at the end of the
+ * game. Note that if a pool is drained while references to Gdl objects other than
+ * keyword constants are held elsewhere, bad things will happen.
  */
 public final class GdlPool
 {
-	private static final ConcurrentMap<GdlTerm, ConcurrentMap<GdlTerm, GdlDistinct>> distinctPool = new ConcurrentHashMap<GdlTerm, ConcurrentMap<GdlTerm, GdlDistinct>>();
-	private static final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlFunction>> functionPool = new ConcurrentHashMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlFunction>>();
-	private static final ConcurrentMap<GdlLiteral, GdlNot> notPool = new ConcurrentHashMap<GdlLiteral, GdlNot>();
-	private static final ConcurrentMap<List<GdlLiteral>, GdlOr> orPool = new ConcurrentHashMap<List<GdlLiteral>, GdlOr>();
-	private static final ConcurrentMap<GdlConstant, GdlProposition> propositionPool = new ConcurrentHashMap<GdlConstant, GdlProposition>();
-	private static final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlRelation>> relationPool = new ConcurrentHashMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlRelation>>();
-	private static final ConcurrentMap<GdlSentence, ConcurrentMap<List<GdlLiteral>, GdlRule>> rulePool = new ConcurrentHashMap<GdlSentence, ConcurrentMap<List<GdlLiteral>, GdlRule>>();
-	private static final ConcurrentMap<String, GdlVariable> variablePool = new ConcurrentHashMap<String, GdlVariable>();
-    private static final ConcurrentMap<String, GdlConstant> constantPool = new ConcurrentHashMap<String, GdlConstant>();
-    //Access to constantCases and variableCases should be synchronized using their monitor locks.
-    private static final Map<String,String> constantCases = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
-    private static final Map<String,String> variableCases = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+	// Arenas in use, for the memory report
+	private static final Map<GdlPoolArena, Boolean> arenas = Collections.synchronizedMap(new WeakHashMap<GdlPoolArena, Boolean>());
+	private static volatile GdlPoolArena defaultArena = new GdlPoolArena("default", GdlPoolArena.Retention.SOFT);
+	private static final InheritableThreadLocal<GdlPoolArena> currentArena = new InheritableThreadLocal<GdlPoolArena>();
+	// Whether any thread has had an arena attached; until then, all threads use the default arena.
+	private static volatile boolean arenasAttached = false;
+
+	private static final ConcurrentMap<GdlConstant, GdlProposition> keywordPropositionPool = new ConcurrentHashMap<GdlConstant, GdlProposition>();
 
     // Controls whether we normalize the case of incoming constants and variables.
     public static volatile boolean caseSensitive = true;
@@ -51,8 +55,10 @@ public final class GdlPool
     // as if one had attempted to create the GdlConstant "true", regardless of whether the
     // game-specific constants are case-sensitive or not. These special keywords are never
     // sent over the network in PLAY requests and responses, so this should be safe.
+    // They live outside of the arenas, so that they are the same objects in every arena.
     public static final ImmutableSet<String> KEYWORDS = ImmutableSet.of(
     		"init","true","next","role","does","goal","legal","terminal","base","input","_");
+    private static final ImmutableMap<String, GdlConstant> keywordConstants = createKeywordConstants();
     public static final GdlConstant BASE = getConstant("base");
     public static final GdlConstant DOES = getConstant("does");
     public static final GdlConstant GOAL = getConstant("goal");
@@ -73,116 +79,136 @@ public final class GdlPool
     	// Not instantiable
     }
 
+    private static ImmutableMap<String, GdlConstant> createKeywordConstants() {
+    	Map<String, GdlConstant> constants = new HashMap<String, GdlConstant>();
+    	for (String keyword : KEYWORDS) {
+    		constants.put(keyword, new GdlConstant(keyword));
+    	}
+    	return ImmutableMap.copyOf(constants);
+    }
+
     /**
-	 * Drains the contents of the GdlPool. Useful to control memory usage
-	 * once you have finished playing a large game.
+	 * Drains the contents of the arena used by the current thread (usually
+	 * the default arena). Useful to control memory usage once you have
+	 * finished playing a large game.
 	 *
 	 * WARNING: Should only be called *between games*, when there are no
-	 * references to Gdl objects (other than keyword constants) outside the
-	 * pool.
+	 * references to Gdl objects (other than keyword constants) from that
+	 * arena outside the pool.
 	 */
 	public static void drainPool() {
-	    distinctPool.clear();
-	    functionPool.clear();
-	    notPool.clear();
-	    orPool.clear();
-	    propositionPool.clear();
-	    relationPool.clear();
-	    rulePool.clear();
-	    variablePool.clear();
-	    synchronized (variableCases) {
-	    	variableCases.clear();
-	    }
-
-	    // When draining the pool between matches, we still need to preserve the keywords
-	    // since there are global references to them. For example, the Prover state machine
-	    // has a reference to the GdlConstant "true", and that reference must still point
-	    // to the authoritative GdlConstant "true" after the pool is drained and another
-	    // game has begun. As such, when draining the constant pool, these special keywords
-	    // are set aside and returned to the pool after all of the other constants (which
-	    // were game-specific) have been drained.
-	    Map<String, GdlConstant> keywordConstants = new HashMap<String, GdlConstant>();
-	    for (String keyword : KEYWORDS) {
-	    	keywordConstants.put(keyword, GdlPool.getConstant(keyword));
-	    }
-	    synchronized (constantCases) {
-	    	constantPool.clear();
-	    	constantCases.clear();
-	    	for (Map.Entry<String,GdlConstant> keywordEntry : keywordConstants.entrySet()) {
-	    		constantCases.put(keywordEntry.getKey(), keywordEntry.getKey());
-	    		constantPool.put(keywordEntry.getKey(), keywordEntry.getValue());
-	    	}
-	    }
+		// Keywords live outside the arenas, so they survive this. There are global
+		// references to them: for example, the Prover state machine has a reference
+		// to the GdlConstant "true", and that reference must still point to the
+		// authoritative GdlConstant "true" after the pool is drained and another
+		// game has begun.
+		getArena().release();
 	}
 
 	/**
-	 * If the pool does not have a mapping for the given key, adds a mapping from key to value
-	 * to the pool.
-	 *
-	 * Note that even if you've checked to make sure that the pool doesn't contain the key,
-	 * you still shouldn't assume that this method actually inserts the given value, since
-	 * this class is accessed by multiple threads simultaneously.
+	 * Returns the arena that the current thread interns Gdl objects in.
+	 */
+	public static GdlPoolArena getArena() {
+		if (arenasAttached) {
+			GdlPoolArena arena = currentArena.get();
+			if (arena != null)
+				return arena;
+		}
+		return defaultArena;
+	}
+
+	/**
+	 * Attaches the given arena to the current thread, so that the Gdl objects
+	 * it creates from now on are interned there; threads that it starts later
+	 * will use the same arena. Passing null attaches the default arena again.
 	 *
-	 * @return the value mapped to by key in the pool
+	 * @return the arena previously attached to the thread, or null if it was
+	 * using the default arena
 	 */
-	private static <K,V> V addToPool(K key, V value, ConcurrentMap<K, V> pool) {
-		V prevValue = pool.putIfAbsent(key, value);
-		if(prevValue == null)
-			return value;
+	public static GdlPoolArena setArena(GdlPoolArena arena) {
+		arenasAttached = true;
+		GdlPoolArena previous = currentArena.get();
+		if (arena == null)
+			currentArena.remove();
 		else
-			return prevValue;
+			currentArena.set(arena);
+		return previous;
+	}
+
+	/**
+	 * Returns a task that runs the given one in the arena of the current thread,
+	 * whichever thread it's run on.
+	 */
+	public static <T> Callable<T> inCurrentArena(final Callable<T> task) {
+		final GdlPoolArena arena = arenasAttached ? currentArena.get() : null;
+		if (arena == null)
+			return task;
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				GdlPoolArena previous = setArena(arena);
+				try {
+					return task.call();
+				} finally {
+					setArena(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the arena used by threads that have no arena attached.
+	 */
+	public static GdlPoolArena getDefaultArena() {
+		return defaultArena;
+	}
+
+	/**
+	 * Replaces the arena used by threads that have no arena attached. A
+	 * long-running process can use this to make the default arena a weak one,
+	 * but should do so at startup, before any Gdl objects are created.
+	 */
+	public static void setDefaultArena(GdlPoolArena arena) {
+		defaultArena = arena;
+	}
+
+	/**
+	 * Returns a description of the size of every arena that's still in use.
+	 */
+	public static String getMemoryReport() {
+		List<GdlPoolArena> live;
+		synchronized (arenas) {
+			live = new ArrayList<GdlPoolArena>(arenas.keySet());
+		}
+		StringBuilder report = new StringBuilder();
+		report.append("GdlPool: ").append(live.size()).append(" arenas, ");
+		report.append(keywordConstants.size() + keywordPropositionPool.size()).append(" keyword objects");
+		for (GdlPoolArena arena : live) {
+			report.append("\n  ").append(arena);
+		}
+		return report.toString();
+	}
+
+	static void register(GdlPoolArena arena) {
+		arenas.put(arena, Boolean.TRUE);
 	}
 
 	public static GdlConstant getConstant(String value)
 	{
-		if (KEYWORDS.contains(value.toLowerCase())) {
-			value = value.toLowerCase();
-		}
-	    if (!caseSensitive) {
-	    	synchronized (constantCases) {
-	    		if (constantCases.containsKey(value)) {
-	    			value = constantCases.get(value);
-	    		} else {
-	    			constantCases.put(value, value);
-	    		}
-	    	}
-	    }
-
-		GdlConstant ret = constantPool.get(value);
-		if(ret == null)
-			ret = addToPool(value, new GdlConstant(value), constantPool);
-		return ret;
+		GdlConstant keyword = keywordConstants.get(value.toLowerCase());
+		if (keyword != null)
+			return keyword;
+		return getArena().getConstant(value, caseSensitive);
 	}
 
     public static GdlVariable getVariable(String name)
     {
-        if (!caseSensitive) {
-        	synchronized (variableCases) {
-        		if (variableCases.containsKey(name)) {
-        			name = variableCases.get(name);
-        		} else {
-        			variableCases.put(name, name);
-        		}
-        	}
-        }
-
-        GdlVariable ret = variablePool.get(name);
-        if(ret == null)
-            ret = addToPool(name, new GdlVariable(name), variablePool);
-        return ret;
+        return getArena().getVariable(name, caseSensitive);
     }
 
 	public static GdlDistinct getDistinct(GdlTerm arg1, GdlTerm arg2)
 	{
-		ConcurrentMap<GdlTerm, GdlDistinct> bucket = distinctPool.get(arg1);
-		if(bucket == null)
-			bucket = addToPool(arg1, new ConcurrentHashMap<GdlTerm, GdlDistinct>(), distinctPool);
-
-		GdlDistinct ret = bucket.get(arg2);
-		if(ret == null)
-			ret = addToPool(arg2, new GdlDistinct(arg1, arg2), bucket);
-
-		return ret;
+		return getArena().getDistinct(arg1, arg2);
 	}
 
 	public static GdlFunction getFunction(GdlConstant name)
@@ -198,28 +224,12 @@ public final class GdlPool
 
 	public static GdlFunction getFunction(GdlConstant name, List<GdlTerm> body)
 	{
-		ConcurrentMap<List<GdlTerm>, GdlFunction> bucket = functionPool.get(name);
-		if(bucket == null) {
-			ConcurrentMap<List<GdlTerm>, GdlFunction> newMap = new MapMaker().softValues().makeMap();
-			bucket = addToPool(name, newMap, functionPool);
-		}
-
-		GdlFunction ret = bucket.get(body);
-		if(ret == null) {
-		    ImmutableList<GdlTerm> immutableBody = ImmutableList.copyOf(body);
-			ret = addToPool(immutableBody, new GdlFunction(name, immutableBody), bucket);
-		}
-
-		return ret;
+		return getArena().getFunction(name, body);
 	}
 
 	public static GdlNot getNot(GdlLiteral body)
 	{
-		GdlNot ret = notPool.get(body);
-		if(ret == null)
-			ret = addToPool(body, new GdlNot(body), notPool);
-
-		return ret;
+		return getArena().getNot(body);
 	}
 
 	public static GdlOr getOr(GdlLiteral[] disjuncts)
@@ -229,22 +239,22 @@ public final class GdlPool
 
 	public static GdlOr getOr(List<GdlLiteral> disjuncts)
 	{
-		GdlOr ret = orPool.get(disjuncts);
-		if(ret == null) {
-		    ImmutableList<GdlLiteral> immutableDisjuncts = ImmutableList.copyOf(disjuncts);
-			ret = addToPool(immutableDisjuncts, new GdlOr(immutableDisjuncts), orPool);
-		}
-
-		return ret;
+		return getArena().getOr(disjuncts);
 	}
 
 	public static GdlProposition getProposition(GdlConstant name)
 	{
-		GdlProposition ret = propositionPool.get(name);
-		if(ret == null)
-			ret = addToPool(name, new GdlProposition(name), propositionPool);
-
-		return ret;
+		if (keywordConstants.get(name.getValue()) == name) {
+			GdlProposition ret = keywordPropositionPool.get(name);
+			if(ret == null) {
+				GdlProposition newProposition = new GdlProposition(name);
+				ret = keywordPropositionPool.putIfAbsent(name, newProposition);
+				if(ret == null)
+					ret = newProposition;
+			}
+			return ret;
+		}
+		return getArena().getProposition(name);
 	}
 
 	public static GdlRelation getRelation(GdlConstant name)
@@ -260,19 +270,7 @@ public final class GdlPool
 
 	public static GdlRelation getRelation(GdlConstant name, List<GdlTerm> body)
 	{
-		ConcurrentMap<List<GdlTerm>, GdlRelation> bucket = relationPool.get(name);
-		if(bucket == null) {
-			ConcurrentMap<List<GdlTerm>, GdlRelation> newMap = new MapMaker().softValues().makeMap();
-			bucket = addToPool(name, newMap, relationPool);
-		}
-
-		GdlRelation ret = bucket.get(body);
-		if(ret == null) {
-		    ImmutableList<GdlTerm> immutableBody = ImmutableList.copyOf(body);
-			ret = addToPool(immutableBody, new GdlRelation(name, immutableBody), bucket);
-		}
-
-		return ret;
+		return getArena().getRelation(name, body);
 	}
 
 	public static GdlRule getRule(GdlSentence head)
@@ -288,17 +286,7 @@ public final class GdlPool
 
 	public static GdlRule getRule(GdlSentence head, List<GdlLiteral> body)
 	{
-		ConcurrentMap<List<GdlLiteral>, GdlRule> bucket = rulePool.get(head);
-		if(bucket == null)
-			bucket = addToPool(head, new ConcurrentHashMap<List<GdlLiteral>, GdlRule>(), rulePool);
-
-		GdlRule ret = bucket.get(body);
-		if(ret == null) {
-		    ImmutableList<GdlLiteral> immutableBody = ImmutableList.copyOf(body);
-			ret = addToPool(immutableBody, new GdlRule(head, immutableBody), bucket);
-		}
-
-		return ret;
+		return getArena().getRule(head, body);
 	}
 
 	/**
@@ -0,0 +1,340 @@
+package org.ggp.base.util.gdl.grammar;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+
+/**
+ * A GdlPoolArena holds the interned Gdl objects of one scope, such as a match.
+ * The {@link GdlPool} creates objects in the arena attached to the current
+ * thread (see {@link GdlPool#setArena(GdlPoolArena)}), or in the default arena
+ * if none is. Keyword constants such as "true" and "does" are shared by all
+ * arenas.
+ * <p>
+ * Gdl objects are only canonical within their arena: the same sentence
+ * interned in two arenas gives two different objects, which are not equal.
+ * Gdl objects from different arenas should therefore never be mixed.
+ * <p>
+ * Arenas come in three kinds. A {@link Retention#STRONG} arena keeps what it
+ * interns until it's released, which is what a match wants, and releasing it
+ * at the end of the match frees its contents. A {@link Retention#WEAK} arena
+ * only holds its objects weakly, so that anything no longer used elsewhere is
+ * garbage collected; this suits long-running processes that never get a
+ * chance to release their pool, at the cost of slower interning. A
+ * {@link Retention#SOFT} arena sits in between: it holds sentences and
+ * functions, the bulk of a pool, softly, so that the ones no longer used
+ * elsewhere go when memory runs short. That's how the pool always behaved
+ * before arenas, so the default arena is a soft one.
+ */
+public final class GdlPoolArena
+{
+	public enum Retention
+	{
+		/** Objects are kept until the arena is released. */
+		STRONG,
+		/** Like STRONG, except that unused sentences and functions may go when memory runs short. */
+		SOFT,
+		/** Objects are kept as long as they're referenced from outside the arena. */
+		WEAK,
+	}
+
+	private final String name;
+	private final Retention retention;
+
+	private final ConcurrentMap<GdlTerm, ConcurrentMap<GdlTerm, GdlDistinct>> distinctPool;
+	private final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlFunction>> functionPool;
+	private final ConcurrentMap<GdlLiteral, GdlNot> notPool;
+	private final ConcurrentMap<List<GdlLiteral>, GdlOr> orPool;
+	private final ConcurrentMap<GdlConstant, GdlProposition> propositionPool;
+	private final ConcurrentMap<GdlConstant, ConcurrentMap<List<GdlTerm>, GdlRelation>> relationPool;
+	private final ConcurrentMap<GdlSentence, ConcurrentMap<List<GdlLiteral>, GdlRule>> rulePool;
+	private final ConcurrentMap<String, GdlVariable> variablePool;
+	private final ConcurrentMap<String, GdlConstant> constantPool;
+	//Access to constantCases and variableCases should be synchronized using their monitor locks.
+	private final Map<String,String> constantCases = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+	private final Map<String,String> variableCases = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+
+	public GdlPoolArena(String name)
+	{
+		this(name, Retention.STRONG);
+	}
+
+	public GdlPoolArena(String name, Retention retention)
+	{
+		this.name = name;
+		this.retention = retention;
+		distinctPool = newOuterMap();
+		functionPool = newOuterMap();
+		notPool = newMap();
+		orPool = newMap();
+		propositionPool = newMap();
+		relationPool = newOuterMap();
+		rulePool = newOuterMap();
+		variablePool = newMap();
+		constantPool = newMap();
+		GdlPool.register(this);
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public Retention getRetention()
+	{
+		return retention;
+	}
+
+	/**
+	 * Drops everything interned in this arena. The arena can still be used
+	 * afterwards, and starts out empty.
+	 *
+	 * WARNING: Should only be called when there are no references to Gdl
+	 * objects from this arena (other than keyword constants) that will still
+	 * be used, for instance at the end of a match.
+	 */
+	public void release()
+	{
+		distinctPool.clear();
+		functionPool.clear();
+		notPool.clear();
+		orPool.clear();
+		propositionPool.clear();
+		relationPool.clear();
+		rulePool.clear();
+		variablePool.clear();
+		synchronized (variableCases) {
+			variableCases.clear();
+		}
+		synchronized (constantCases) {
+			constantPool.clear();
+			constantCases.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of objects of each kind in this arena, by kind. In a
+	 * weak arena, this may count objects that are about to be collected.
+	 */
+	public Map<String, Integer> getSizes()
+	{
+		Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+		sizes.put("constants", constantPool.size());
+		sizes.put("variables", variablePool.size());
+		sizes.put("functions", countNested(functionPool));
+		sizes.put("propositions", propositionPool.size());
+		sizes.put("relations", countNested(relationPool));
+		sizes.put("rules", countNested(rulePool));
+		sizes.put("nots", notPool.size());
+		sizes.put("ors", orPool.size());
+		sizes.put("distincts", countNested(distinctPool));
+		return sizes;
+	}
+
+	/**
+	 * Returns the total number of objects in this arena.
+	 */
+	public int getSize()
+	{
+		int size = 0;
+		for (int kindSize : getSizes().values()) {
+			size += kindSize;
+		}
+		return size;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + " (" + retention.toString().toLowerCase() + "): " + getSize() + " objects " + getSizes();
+	}
+
+	GdlConstant getConstant(String value, boolean caseSensitive)
+	{
+		if (!caseSensitive) {
+			synchronized (constantCases) {
+				if (constantCases.containsKey(value)) {
+					value = constantCases.get(value);
+				} else {
+					constantCases.put(value, value);
+				}
+			}
+		}
+
+		GdlConstant ret = constantPool.get(value);
+		if(ret == null)
+			ret = addToPool(value, new GdlConstant(value), constantPool);
+		return ret;
+	}
+
+	GdlVariable getVariable(String name, boolean caseSensitive)
+	{
+		if (!caseSensitive) {
+			synchronized (variableCases) {
+				if (variableCases.containsKey(name)) {
+					name = variableCases.get(name);
+				} else {
+					variableCases.put(name, name);
+				}
+			}
+		}
+
+		GdlVariable ret = variablePool.get(name);
+		if(ret == null)
+			ret = addToPool(name, new GdlVariable(name), variablePool);
+		return ret;
+	}
+
+	GdlDistinct getDistinct(GdlTerm arg1, GdlTerm arg2)
+	{
+		ConcurrentMap<GdlTerm, GdlDistinct> bucket = distinctPool.get(arg1);
+		if(bucket == null)
+			bucket = addToPool(arg1, this.<GdlTerm, GdlDistinct>newMap(), distinctPool);
+
+		GdlDistinct ret = bucket.get(arg2);
+		if(ret == null)
+			ret = addToPool(arg2, new GdlDistinct(arg1, arg2), bucket);
+
+		return ret;
+	}
+
+	GdlFunction getFunction(GdlConstant name, List<GdlTerm> body)
+	{
+		ConcurrentMap<List<GdlTerm>, GdlFunction> bucket = functionPool.get(name);
+		if(bucket == null)
+			bucket = addToPool(name, this.<List<GdlTerm>, GdlFunction>newSentenceMap(), functionPool);
+
+		GdlFunction ret = bucket.get(body);
+		if(ret == null) {
+			ImmutableList<GdlTerm> immutableBody = ImmutableList.copyOf(body);
+			ret = addToPool(immutableBody, new GdlFunction(name, immutableBody), bucket);
+		}
+
+		return ret;
+	}
+
+	GdlNot getNot(GdlLiteral body)
+	{
+		GdlNot ret = notPool.get(body);
+		if(ret == null)
+			ret = addToPool(body, new GdlNot(body), notPool);
+
+		return ret;
+	}
+
+	GdlOr getOr(List<GdlLiteral> disjuncts)
+	{
+		GdlOr ret = orPool.get(disjuncts);
+		if(ret == null) {
+			ImmutableList<GdlLiteral> immutableDisjuncts = ImmutableList.copyOf(disjuncts);
+			ret = addToPool(immutableDisjuncts, new GdlOr(immutableDisjuncts), orPool);
+		}
+
+		return ret;
+	}
+
+	GdlProposition getProposition(GdlConstant name)
+	{
+		GdlProposition ret = propositionPool.get(name);
+		if(ret == null)
+			ret = addToPool(name, new GdlProposition(name), propositionPool);
+
+		return ret;
+	}
+
+	GdlRelation getRelation(GdlConstant name, List<GdlTerm> body)
+	{
+		ConcurrentMap<List<GdlTerm>, GdlRelation> bucket = relationPool.get(name);
+		if(bucket == null)
+			bucket = addToPool(name, this.<List<GdlTerm>, GdlRelation>newSentenceMap(), relationPool);
+
+		GdlRelation ret = bucket.get(body);
+		if(ret == null) {
+			ImmutableList<GdlTerm> immutableBody = ImmutableList.copyOf(body);
+			ret = addToPool(immutableBody, new GdlRelation(name, immutableBody), bucket);
+		}
+
+		return ret;
+	}
+
+	GdlRule getRule(GdlSentence head, List<GdlLiteral> body)
+	{
+		ConcurrentMap<List<GdlLiteral>, GdlRule> bucket = rulePool.get(head);
+		if(bucket == null)
+			bucket = addToPool(head, this.<List<GdlLiteral>, GdlRule>newMap(), rulePool);
+
+		GdlRule ret = bucket.get(body);
+		if(ret == null) {
+			ImmutableList<GdlLiteral> immutableBody = ImmutableList.copyOf(body);
+			ret = addToPool(immutableBody, new GdlRule(head, immutableBody), bucket);
+		}
+
+		return ret;
+	}
+
+	/**
+	 * If the pool does not have a mapping for the given key, adds a mapping from key to value
+	 * to the pool.
+	 *
+	 * Note that even if you've checked to make sure that the pool doesn't contain the key,
+	 * you still shouldn't assume that this method actually inserts the given value, since
+	 * this class is accessed by multiple threads simultaneously.
+	 *
+	 * @return the value mapped to by key in the pool
+	 */
+	private static <K,V> V addToPool(K key, V value, ConcurrentMap<K, V> pool)
+	{
+		V prevValue = pool.putIfAbsent(key, value);
+		if(prevValue == null)
+			return value;
+		else
+			return prevValue;
+	}
+
+	/** Returns a map from keys to the Gdl objects interned for them. */
+	private <K,V> ConcurrentMap<K, V> newMap()
+	{
+		if (retention == Retention.WEAK)
+			return new MapMaker().weakValues().makeMap();
+		return new ConcurrentHashMap<K, V>();
+	}
+
+	/**
+	 * Returns a map from bodies to sentences or functions. These are the bulk
+	 * of a pool, so a soft arena lets go of them under memory pressure.
+	 */
+	private <K,V> ConcurrentMap<K, V> newSentenceMap()
+	{
+		if (retention == Retention.WEAK)
+			return new MapMaker().weakValues().makeMap();
+		if (retention == Retention.SOFT)
+			return new MapMaker().softValues().makeMap();
+		return new ConcurrentHashMap<K, V>();
+	}
+
+	/**
+	 * Returns a map from Gdl objects to buckets of the objects built from
+	 * them. In a weak arena, a bucket goes once the object it's for does.
+	 */
+	private <K,V> ConcurrentMap<K, V> newOuterMap()
+	{
+		if (retention == Retention.WEAK)
+			return new MapMaker().weakKeys().makeMap();
+		return new ConcurrentHashMap<K, V>();
+	}
+
+	private static int countNested(ConcurrentMap<?, ? extends Map<?, ?>> pool)
+	{
+		int count = 0;
+		for (Map<?, ?> bucket : pool.values()) {
+			count += bucket.size();
+		}
+		return count;
+	}
+}
@@ -44,6 +44,7 @@ public class AssignmentsImpl implements Assignments {
 	private List<GdlVariable> varsToAssign;
 	private List<ImmutableList<GdlConstant>> valuesToIterate;
 	private List<AssignmentFunction> valuesToCompute;
+	private IterationOrderCandidate iterationOrder;
 	private List<Integer> indicesToChangeWhenNull; //See note below
 	private List<GdlDistinct> distincts;
 	private List<GdlVariable> varsToChangePerDistinct; //indexing same as distincts
@@ -84,6 +85,24 @@ public class AssignmentsImpl implements Assignments {
 			GdlRule rule, Map<GdlVariable, Set<GdlConstant>> varDomains,
 			Map<SentenceForm, ? extends FunctionInfo> functionInfoMap,
 			Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues) {
+		this(headAssignment, rule, varDomains, functionInfoMap, completedSentenceFormValues, null);
+	}
+
+	/**
+	 * As above, but iterates in the given order instead of searching for the
+	 * best one. The order should come from {@link #getIterationOrder()} on an
+	 * Assignments object for the same rule, with the same variables in the
+	 * head assignment, and with values for the same sentence forms. This
+	 * saves the search when the same rule is evaluated over and over against
+	 * different sentences, e.g. once per game state.
+	 *
+	 * @param iterationOrder The order to use, or null to search for the best one.
+	 */
+	public AssignmentsImpl(Map<GdlVariable, GdlConstant> headAssignment,
+			GdlRule rule, Map<GdlVariable, Set<GdlConstant>> varDomains,
+			Map<SentenceForm, ? extends FunctionInfo> functionInfoMap,
+			Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues,
+			IterationOrderCandidate iterationOrder) {
 		empty = false;
 		this.headAssignment = headAssignment;
 
@@ -118,8 +137,10 @@ public class AssignmentsImpl implements Assignments {
 		for(GdlVariable var : varDomains.keySet())
 			varDomainSizes.put(var, varDomains.get(var).size());
 
-		IterationOrderCandidate bestOrdering;
-		bestOrdering = getBestIterationOrderCandidate(rule, varDomains,/*model,*/ functionInfoMap, completedSentenceFormSizes, headAssignment, false); //TODO: True here?
+		IterationOrderCandidate bestOrdering = iterationOrder;
+		if(bestOrdering == null)
+			bestOrdering = getBestIterationOrderCandidate(rule, varDomains,/*model,*/ functionInfoMap, completedSentenceFormSizes, headAssignment, false); //TODO: True here?
+		this.iterationOrder = bestOrdering;
 
 		//Want to replace next few things with order
 		//Need a few extra things to handle the use of iteration over existing tuples
@@ -307,6 +328,15 @@ public class AssignmentsImpl implements Assignments {
 //		System.out.println("sourceDefiningSlot: " + sourceDefiningSlot);
 	}
 
+	/**
+	 * Returns the iteration order chosen for this rule, which can be passed
+	 * to the constructor to skip the search next time. Returns null if the
+	 * assignment is impossible.
+	 */
+	public IterationOrderCandidate getIterationOrder() {
+		return iterationOrder;
+	}
+
 	private GdlVariable getRightmostVar(Collection<GdlVariable> vars) {
 		GdlVariable rightmostVar = null;
 		for(GdlVariable var : varsToAssign)
@@ -5,7 +5,6 @@ import java.util.Set;
 
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
 import org.ggp.base.util.gdl.grammar.GdlPool;
-import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
@@ -40,12 +39,12 @@ public class ConstantCheckerFactory {
 	public static ImmutableConstantChecker createWithForwardChaining(SentenceDomainModel model) throws InterruptedException {
 		GdlChainingReasoner reasoner = GdlChainingReasoner.create(model);
 		GdlSentenceSet sentencesByForm = reasoner.getConstantSentences();
-		addSentencesTrueByRulesDifferentially(sentencesByForm, model, reasoner);
+		sentencesByForm = addSentencesTrueByRulesDifferentially(sentencesByForm, model, reasoner);
 		return ImmutableConstantChecker.create(model,
 				Multimaps.filterKeys(sentencesByForm.getSentences(), Predicates.in(model.getConstantSentenceForms())));
 	}
 
-	private static void addSentencesTrueByRulesDifferentially(
+	private static GdlSentenceSet addSentencesTrueByRulesDifferentially(
 			GdlSentenceSet sentencesByForm,
 			SentenceDomainModel domainModel, GdlChainingReasoner reasoner) throws InterruptedException {
 		SentenceFormModel model = domainModel;
@@ -56,41 +55,7 @@ public class ConstantCheckerFactory {
 		dependencySubgraph = Multimaps.filterValues(model.getDependencyGraph(), Predicates.in(constantForms));
 		dependencySubgraph = ImmutableMultimap.copyOf(dependencySubgraph);
 		List<Set<SentenceForm>> ordering = DependencyGraphs.toposortSafe(constantForms, dependencySubgraph);
-
-		for (Set<SentenceForm> stratum : ordering) {
-			// One non-differential pass, collecting the changes
-			GdlSentenceSet newlyTrueSentences = GdlSentenceSet.create();
-			for (SentenceForm form : stratum) {
-				for (GdlRule rule : model.getRules(form)) {
-					GdlSentenceSet ruleResults =
-							reasoner.getRuleResults(rule, domainModel, sentencesByForm);
-					if (!reasoner.isSubsetOf(sentencesByForm, ruleResults)) {
-						sentencesByForm = reasoner.getUnion(sentencesByForm, ruleResults);
-						newlyTrueSentences = reasoner.getUnion(newlyTrueSentences, ruleResults);
-					}
-				}
-			}
-
-			// Now a lot of differential passes to deal with recursion efficiently
-			boolean somethingChanged = true;
-			while (somethingChanged) {
-				somethingChanged = false;
-				GdlSentenceSet newStuffInThisPass = GdlSentenceSet.create();
-				for (SentenceForm form : stratum) {
-					for (GdlRule rule : model.getRules(form)) {
-						GdlSentenceSet ruleResults =
-								reasoner.getRuleResultsForNewSentences(rule, domainModel, sentencesByForm,
-										newlyTrueSentences);
-						if (!reasoner.isSubsetOf(sentencesByForm, ruleResults)) {
-							somethingChanged = true;
-							newStuffInThisPass = reasoner.getUnion(newStuffInThisPass, ruleResults);
-						}
-					}
-				}
-				sentencesByForm = reasoner.getUnion(sentencesByForm, newStuffInThisPass);
-				newlyTrueSentences = newStuffInThisPass;
-			}
-		}
+		return reasoner.addRuleResults(ordering, domainModel, sentencesByForm);
 	}
 
 	/**
@@ -0,0 +1,108 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+
+
+/**
+ * One of the independent parts of a game found by a {@link FactorAnalysis}:
+ * a set of base propositions, together with the moves that affect them.
+ *
+ * A factor can be searched on its own through the state machine returned by
+ * {@link #createStateMachine()}. That machine plays the full game, except
+ * that the only legal moves are those of this factor and the no-op moves;
+ * the bases of other factors keep following their own transitions, with
+ * none of their moves ever being made. States of the full game are turned
+ * into states of the factor with {@link #getFactorState(PropNetStateMachine, MachineState)}.
+ * In a state where a role has no move in this factor, asking the factor's
+ * machine for that role's legal moves throws a MoveDefinitionException.
+ */
+public final class Factor
+{
+	private final FactorAnalysis analysis;
+	private final Set<Proposition> basePropositions;
+	private final Set<Proposition> inputPropositions;
+
+	Factor(FactorAnalysis analysis, Set<Proposition> basePropositions, Set<Proposition> inputPropositions)
+	{
+		this.analysis = analysis;
+		this.basePropositions = Collections.unmodifiableSet(basePropositions);
+		this.inputPropositions = Collections.unmodifiableSet(inputPropositions);
+	}
+
+	/**
+	 * Returns the base propositions of the original propnet that belong to
+	 * this factor, not counting the shared ones.
+	 */
+	public Set<Proposition> getBasePropositions()
+	{
+		return basePropositions;
+	}
+
+	/**
+	 * Returns the input propositions of the original propnet that belong to
+	 * this factor, not counting the no-ops.
+	 */
+	public Set<Proposition> getInputPropositions()
+	{
+		return inputPropositions;
+	}
+
+	/**
+	 * Builds a new propnet for this factor, made of copies of the components
+	 * of the original propnet.
+	 */
+	public PropNet createPropNet()
+	{
+		return analysis.createPropNet(this);
+	}
+
+	/**
+	 * Builds a state machine that plays only this factor's moves.
+	 */
+	public PropNetStateMachine createStateMachine()
+	{
+		PropNetStateMachine machine = new PropNetStateMachine();
+		machine.initialize(CompiledPropNet.compile(createPropNet()));
+		return machine;
+	}
+
+	/**
+	 * Converts a state of the full game into a state of the given machine,
+	 * which must have been created by {@link #createStateMachine()}.
+	 */
+	public MachineState getFactorState(PropNetStateMachine factorMachine, MachineState state)
+	{
+		CompiledPropNet propNet = factorMachine.getPropNet();
+		Set<GdlSentence> contents = new HashSet<GdlSentence>();
+		for (GdlSentence sentence : state.getContents()) {
+			if (propNet.getBaseIndex(sentence) >= 0)
+				contents.add(sentence);
+		}
+		return factorMachine.getMachineStateFromSentenceList(contents);
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder moves = new StringBuilder();
+		for (Proposition input : inputPropositions) {
+			if (moves.length() > 0)
+				moves.append(", ");
+			if (moves.length() > 60) {
+				moves.append("...");
+				break;
+			}
+			moves.append(input.getName());
+		}
+		return basePropositions.size() + " bases, " + inputPropositions.size() + " moves [" + moves + "]";
+	}
+}
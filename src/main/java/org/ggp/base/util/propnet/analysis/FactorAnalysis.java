@@ -0,0 +1,499 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+
+/**
+ * Splits a {@link PropNet} into independent factors: disjoint groups of base
+ * and input propositions that don't influence one another, and only meet in
+ * the goal and terminal propositions. A game made of several boards played
+ * side by side, such as double tic-tac-toe, has one factor per board.
+ *
+ * The analysis looks at what each transition and each legal proposition
+ * depends on in the current state:
+ * <ul>
+ * <li>A base proposition is <i>move-dependent</i> if its transition depends
+ * on an input proposition, or on another move-dependent base. Bases that
+ * evolve the same way whatever the players do, such as step counters or
+ * whose turn it is, are <i>shared</i> by all factors rather than tying them
+ * together.</li>
+ * <li>Every move-dependent base is grouped with the move-dependent bases and
+ * the inputs its transition depends on.</li>
+ * <li>Every input with an effect on the state is grouped with the
+ * move-dependent bases its legal proposition depends on, since whether the
+ * move can be made is part of its factor.</li>
+ * <li>Inputs that affect no transition at all (typically <tt>noop</tt>) are
+ * no-ops, which belong to every factor.</li>
+ * <li>Factors may meet in the goal and terminal propositions only through
+ * conditions on each factor as a whole, such as "there's a line on board
+ * A". A gate there that combines bare base propositions of several factors,
+ * like the lines across the columns of connect four, merges them.</li>
+ * </ul>
+ * Each resulting group is a {@link Factor}, from which a state machine for
+ * that factor alone can be built.
+ *
+ * The analysis is meant to run during the meta-game, so it stops once its
+ * deadline has passed; in that case it reports no factors, and the game
+ * should be searched as a whole.
+ */
+public final class FactorAnalysis
+{
+	private final PropNet propNet;
+	private final List<Factor> factors;
+	private final Set<Proposition> sharedBases;
+	private final Set<Proposition> noOpInputs;
+	private final boolean complete;
+	private final long analysisTime;
+
+	private FactorAnalysis(PropNet propNet, List<Factor> factors, Set<Proposition> sharedBases,
+			Set<Proposition> noOpInputs, boolean complete, long analysisTime)
+	{
+		this.propNet = propNet;
+		this.factors = Collections.unmodifiableList(factors);
+		this.sharedBases = Collections.unmodifiableSet(sharedBases);
+		this.noOpInputs = Collections.unmodifiableSet(noOpInputs);
+		this.complete = complete;
+		this.analysisTime = analysisTime;
+	}
+
+	/**
+	 * Finds the factors of the given propnet, giving up once the system time
+	 * passes <tt>timeout</tt>. The propnet is not modified.
+	 */
+	public static FactorAnalysis analyze(PropNet propNet, long timeout)
+	{
+		long startTime = System.currentTimeMillis();
+		Set<Proposition> bases = new HashSet<Proposition>(propNet.getBasePropositions().values());
+		Set<Proposition> inputs = new HashSet<Proposition>(propNet.getInputPropositions().values());
+
+		// What the transition of each base depends on.
+		Map<Proposition, Set<Proposition>> baseDependencies = new HashMap<Proposition, Set<Proposition>>();
+		Map<Proposition, Set<Proposition>> inputDependencies = new HashMap<Proposition, Set<Proposition>>();
+		for (Proposition base : bases) {
+			if (System.currentTimeMillis() > timeout)
+				return incomplete(propNet, startTime);
+			Set<Proposition> baseDependency = new HashSet<Proposition>();
+			Set<Proposition> inputDependency = new HashSet<Proposition>();
+			collectDependencies(base.getSingleInput(), bases, inputs, baseDependency, inputDependency);
+			baseDependencies.put(base, baseDependency);
+			inputDependencies.put(base, inputDependency);
+		}
+
+		// A base is move-dependent if anything it depends on is.
+		Map<Proposition, List<Proposition>> dependents = new HashMap<Proposition, List<Proposition>>();
+		Deque<Proposition> queue = new ArrayDeque<Proposition>();
+		Set<Proposition> moveDependent = new HashSet<Proposition>();
+		for (Proposition base : bases) {
+			for (Proposition dependency : baseDependencies.get(base)) {
+				if (!dependents.containsKey(dependency))
+					dependents.put(dependency, new ArrayList<Proposition>());
+				dependents.get(dependency).add(base);
+			}
+			if (!inputDependencies.get(base).isEmpty() && moveDependent.add(base))
+				queue.add(base);
+		}
+		while (!queue.isEmpty()) {
+			List<Proposition> next = dependents.get(queue.remove());
+			if (next == null)
+				continue;
+			for (Proposition base : next) {
+				if (moveDependent.add(base))
+					queue.add(base);
+			}
+		}
+
+		UnionFind<Proposition> groups = new UnionFind<Proposition>();
+		Set<Proposition> effectiveInputs = new HashSet<Proposition>();
+		for (Proposition base : moveDependent) {
+			groups.add(base);
+			for (Proposition dependency : baseDependencies.get(base)) {
+				if (moveDependent.contains(dependency))
+					groups.union(base, dependency);
+			}
+			for (Proposition input : inputDependencies.get(base)) {
+				groups.union(base, input);
+				effectiveInputs.add(input);
+			}
+		}
+		Map<Proposition, Proposition> legalInputMap = propNet.getLegalInputMap();
+		for (Proposition input : effectiveInputs) {
+			if (System.currentTimeMillis() > timeout)
+				return incomplete(propNet, startTime);
+			Proposition legal = legalInputMap.get(input);
+			if (legal == null)
+				continue;
+			Set<Proposition> legalDependency = new HashSet<Proposition>();
+			collectDependencies(legal, bases, inputs, legalDependency, new HashSet<Proposition>());
+			for (Proposition base : legalDependency) {
+				if (moveDependent.contains(base))
+					groups.union(input, base);
+			}
+		}
+
+		if (System.currentTimeMillis() > timeout)
+			return incomplete(propNet, startTime);
+		mergeFactorsCoupledByBases(propNet, bases, moveDependent, groups);
+
+		Set<Proposition> sharedBases = new HashSet<Proposition>(bases);
+		sharedBases.removeAll(moveDependent);
+		Set<Proposition> noOpInputs = new HashSet<Proposition>(inputs);
+		noOpInputs.removeAll(effectiveInputs);
+
+		Map<Proposition, Set<Proposition>> groupMembers = groups.getGroups();
+		List<Factor> factors = new ArrayList<Factor>(groupMembers.size());
+		FactorAnalysis analysis = new FactorAnalysis(propNet, factors, sharedBases, noOpInputs, true,
+				System.currentTimeMillis() - startTime);
+		for (Set<Proposition> members : groupMembers.values()) {
+			Set<Proposition> factorBases = new HashSet<Proposition>();
+			Set<Proposition> factorInputs = new HashSet<Proposition>();
+			for (Proposition member : members) {
+				if (bases.contains(member)) {
+					factorBases.add(member);
+				} else {
+					factorInputs.add(member);
+				}
+			}
+			factors.add(new Factor(analysis, factorBases, factorInputs));
+		}
+		return analysis;
+	}
+
+	private static FactorAnalysis incomplete(PropNet propNet, long startTime)
+	{
+		return new FactorAnalysis(propNet, new ArrayList<Factor>(), new HashSet<Proposition>(),
+				new HashSet<Proposition>(), false, System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Merges the factors whose move-dependent bases are combined directly by
+	 * some gate in the cones of the goal and terminal propositions.
+	 */
+	private static void mergeFactorsCoupledByBases(PropNet propNet, Set<Proposition> bases,
+			Set<Proposition> moveDependent, UnionFind<Proposition> groups)
+	{
+		List<Component> roots = new ArrayList<Component>();
+		if (propNet.getTerminalProposition() != null)
+			roots.add(propNet.getTerminalProposition());
+		for (Set<Proposition> goals : propNet.getGoalPropositions().values()) {
+			roots.addAll(goals);
+		}
+
+		// The factors each component depends on, filled in bottom-up. A
+		// component on a cycle sees only what its cycle had found so far.
+		Map<Component, Set<Proposition>> supports = new HashMap<Component, Set<Proposition>>();
+		Set<Component> visiting = new HashSet<Component>();
+		Deque<Component> stack = new ArrayDeque<Component>(roots);
+		while (!stack.isEmpty()) {
+			Component c = stack.peek();
+			if (supports.containsKey(c)) {
+				stack.pop();
+				continue;
+			}
+			Set<Proposition> support = new HashSet<Proposition>();
+			if (bases.contains(c)) {
+				if (moveDependent.contains(c))
+					support.add(groups.find((Proposition) c));
+			} else if (visiting.add(c)) {
+				for (Component input : c.getInputs()) {
+					if (!supports.containsKey(input) && !visiting.contains(input))
+						stack.push(input);
+				}
+				continue;
+			} else {
+				for (Component input : c.getInputs()) {
+					if (supports.containsKey(input))
+						support.addAll(supports.get(input));
+				}
+			}
+			supports.put(c, support);
+			stack.pop();
+		}
+
+		for (Map.Entry<Component, Set<Proposition>> entry : supports.entrySet()) {
+			if (entry.getValue().size() < 2)
+				continue;
+			for (Component input : entry.getKey().getInputs()) {
+				if (moveDependent.contains(input)) {
+					Proposition first = entry.getValue().iterator().next();
+					for (Proposition factor : entry.getValue()) {
+						groups.union(first, factor);
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds to <tt>baseDependencies</tt> and <tt>inputDependencies</tt> the
+	 * base and input propositions that the given component depends on in the
+	 * current state; that is, without looking past base propositions into
+	 * the previous state.
+	 */
+	private static void collectDependencies(Component start, Set<Proposition> bases, Set<Proposition> inputs,
+			Set<Proposition> baseDependencies, Set<Proposition> inputDependencies)
+	{
+		Set<Component> visited = new HashSet<Component>();
+		Deque<Component> stack = new ArrayDeque<Component>();
+		stack.push(start);
+		visited.add(start);
+		while (!stack.isEmpty()) {
+			Component c = stack.pop();
+			if (bases.contains(c)) {
+				baseDependencies.add((Proposition) c);
+				continue;
+			}
+			if (inputs.contains(c)) {
+				inputDependencies.add((Proposition) c);
+				continue;
+			}
+			for (Component input : c.getInputs()) {
+				if (visited.add(input))
+					stack.push(input);
+			}
+		}
+	}
+
+	/**
+	 * Builds the propnet of the given factor: the goal and terminal
+	 * propositions, the legal and input propositions of the factor's moves
+	 * and the no-op moves, and everything they depend on, in the current
+	 * state or any earlier one. The legal propositions of other factors'
+	 * moves are left out, so those moves are never made, but the bases of
+	 * other factors that the goals or terminal depend on keep following
+	 * their transitions. The factor's game is over as soon as the full game
+	 * is, or some role has no move left in the factor.
+	 */
+	PropNet createPropNet(Factor factor)
+	{
+		Map<Proposition, Proposition> legalInputMap = propNet.getLegalInputMap();
+		Set<Component> roots = new HashSet<Component>();
+		if (propNet.getTerminalProposition() != null)
+			roots.add(propNet.getTerminalProposition());
+		for (Set<Proposition> goals : propNet.getGoalPropositions().values()) {
+			roots.addAll(goals);
+		}
+		Set<Proposition> moves = new HashSet<Proposition>(factor.getInputPropositions());
+		moves.addAll(noOpInputs);
+		roots.addAll(moves);
+		for (Set<Proposition> legals : propNet.getLegalPropositions().values()) {
+			for (Proposition legal : legals) {
+				Proposition input = legalInputMap.get(legal);
+				// Legal moves with no input proposition have no effect either.
+				if (input == null || moves.contains(input))
+					roots.add(legal);
+			}
+		}
+
+		Map<Component, Component> copies = new LinkedHashMap<Component, Component>();
+		Deque<Component> stack = new ArrayDeque<Component>(roots);
+		for (Component root : roots) {
+			copies.put(root, copyOf(root));
+		}
+		while (!stack.isEmpty()) {
+			Component c = stack.pop();
+			for (Component input : c.getInputs()) {
+				if (!copies.containsKey(input)) {
+					copies.put(input, copyOf(input));
+					stack.push(input);
+				}
+			}
+		}
+		for (Map.Entry<Component, Component> entry : copies.entrySet()) {
+			for (Component input : entry.getKey().getInputs()) {
+				link(copies.get(input), entry.getValue());
+			}
+		}
+		Set<Component> components = new HashSet<Component>(copies.values());
+
+		// Also end the game when a role runs out of moves in this factor.
+		Component terminal = copies.get(propNet.getTerminalProposition());
+		if (terminal == null) {
+			terminal = new Proposition(GdlPool.getProposition(GdlPool.TERMINAL));
+			components.add(terminal);
+		}
+		Component over = new Or();
+		components.add(over);
+		for (Component input : new ArrayList<Component>(terminal.getInputs())) {
+			terminal.removeInput(input);
+			input.removeOutput(terminal);
+			link(input, over);
+		}
+		link(over, terminal);
+		for (Set<Proposition> legals : propNet.getLegalPropositions().values()) {
+			Component anyMove = new Or();
+			Component noMove = new Not();
+			for (Proposition legal : legals) {
+				if (copies.containsKey(legal))
+					link(copies.get(legal), anyMove);
+			}
+			link(anyMove, noMove);
+			link(noMove, over);
+			components.add(anyMove);
+			components.add(noMove);
+		}
+		return new PropNet(propNet.getRoles(), components);
+	}
+
+	private static void link(Component input, Component output)
+	{
+		output.addInput(input);
+		input.addOutput(output);
+	}
+
+	private static Component copyOf(Component c)
+	{
+		if (c instanceof Proposition)
+			return new Proposition(((Proposition) c).getName());
+		if (c instanceof Transition)
+			return new Transition();
+		if (c instanceof And)
+			return new And();
+		if (c instanceof Or)
+			return new Or();
+		if (c instanceof Not)
+			return new Not();
+		if (c instanceof Constant)
+			return new Constant(c.getValue());
+		throw new IllegalArgumentException("Unknown component type: " + c.getClass());
+	}
+
+	public PropNet getPropNet()
+	{
+		return propNet;
+	}
+
+	/**
+	 * Returns the factors found, or an empty list if the analysis ran out of
+	 * time. A game that can't be split has a single factor.
+	 */
+	public List<Factor> getFactors()
+	{
+		return factors;
+	}
+
+	/**
+	 * Returns whether the game splits into more than one factor.
+	 */
+	public boolean isFactored()
+	{
+		return factors.size() > 1;
+	}
+
+	/**
+	 * Returns the base propositions whose transitions don't depend on the
+	 * moves made, which all factors share.
+	 */
+	public Set<Proposition> getSharedBases()
+	{
+		return sharedBases;
+	}
+
+	/**
+	 * Returns the input propositions that have no effect on the state, which
+	 * belong to all factors.
+	 */
+	public Set<Proposition> getNoOpInputs()
+	{
+		return noOpInputs;
+	}
+
+	/**
+	 * Returns whether the analysis finished before its deadline.
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (!complete)
+			return "Factor analysis ran out of time after " + analysisTime + "ms";
+		StringBuilder report = new StringBuilder();
+		report.append("Found ").append(factors.size()).append(factors.size() == 1 ? " factor" : " factors");
+		report.append(" in ").append(analysisTime).append("ms (");
+		report.append(sharedBases.size()).append(" shared bases, ");
+		report.append(noOpInputs.size()).append(" no-op moves)");
+		for (Factor factor : factors) {
+			report.append("\n  ").append(factor);
+		}
+		return report.toString();
+	}
+
+	/** A disjoint-set forest with path halving and union by size. */
+	private static final class UnionFind<T>
+	{
+		private final Map<T, T> parents = new HashMap<T, T>();
+		private final Map<T, Integer> sizes = new HashMap<T, Integer>();
+
+		public void add(T x)
+		{
+			if (!parents.containsKey(x)) {
+				parents.put(x, x);
+				sizes.put(x, 1);
+			}
+		}
+
+		public T find(T x)
+		{
+			add(x);
+			T parent = parents.get(x);
+			while (parent != x) {
+				T grandparent = parents.get(parent);
+				parents.put(x, grandparent);
+				x = grandparent;
+				parent = parents.get(x);
+			}
+			return x;
+		}
+
+		public void union(T x, T y)
+		{
+			T rootX = find(x);
+			T rootY = find(y);
+			if (rootX == rootY)
+				return;
+			if (sizes.get(rootX) < sizes.get(rootY)) {
+				T swap = rootX;
+				rootX = rootY;
+				rootY = swap;
+			}
+			parents.put(rootY, rootX);
+			sizes.put(rootX, sizes.get(rootX) + sizes.get(rootY));
+		}
+
+		/** Returns the members of each group, keyed by the root of the group. */
+		public Map<T, Set<T>> getGroups()
+		{
+			Map<T, Set<T>> groups = new LinkedHashMap<T, Set<T>>();
+			for (T x : new ArrayList<T>(parents.keySet())) {
+				T root = find(x);
+				if (!groups.containsKey(root))
+					groups.put(root, new HashSet<T>());
+				groups.get(root).add(x);
+			}
+			return groups;
+		}
+	}
+}
@@ -0,0 +1,546 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.statemachine.BitSetMachineState;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+
+
+/**
+ * Finds the latches of a {@link CompiledPropNet}, and uses them to tell when
+ * the outcome of a game is decided before the game is over.
+ *
+ * A base proposition is a <i>positive latch</i> if, once it is true, it stays
+ * true whatever the players do, and a <i>negative latch</i> if, once false, it
+ * stays false. The marks on a tic-tac-toe board are positive latches, and the
+ * blank cells negative ones. A base proposition is found to be a latch if its
+ * transition is forced to the latched value by the latched base alone, with
+ * every other base and input proposition unknown.
+ *
+ * Since latches keep their values, so does anything that they alone force.
+ * {@link #getDecidedGoals(MachineState)} evaluates the goal propositions in a
+ * three-valued logic, where the latches that have latched in the given state
+ * take their values and everything else is unknown. If this fixes the goal of
+ * every role, the game will end with those goals, and a search can treat the
+ * state as terminal. Goals are also considered fixed when all of a role's
+ * goal propositions but one are forced false, which relies on the game being
+ * well formed. The latches that decide a role's goal on their own are
+ * reported by {@link #getGoalLatches(Role)}.
+ *
+ * Evaluation uses a small circuit made of the parts of the goal propositions
+ * that depend on latches, so it's much cheaper than a state update. A
+ * LatchAnalysis is immutable, and can be used by several threads at once.
+ */
+public final class LatchAnalysis
+{
+	private static final byte UNKNOWN = 0;
+	private static final byte KNOWN_TRUE = 1;
+	private static final byte KNOWN_FALSE = 2;
+
+	private static final byte POSITIVE = 1;
+	private static final byte NEGATIVE = 2;
+
+	// The first nodes of the goal circuit are constants, followed by a node for
+	// each latch in it.
+	private static final int UNKNOWN_NODE = 0;
+	private static final int TRUE_NODE = 1;
+	private static final int FALSE_NODE = 2;
+	private static final int FIRST_LEAF = 3;
+
+	private final CompiledPropNet propNet;
+	private final Set<GdlSentence> positiveLatches;
+	private final Set<GdlSentence> negativeLatches;
+	private final List<Set<GdlSentence>> goalLatches;
+	private final boolean complete;
+	private final long analysisTime;
+
+	// The goal circuit, in topological order, with its inputs in CSR form
+	private final byte[] nodeTypes;
+	private final int[] nodeInputOffsets;
+	private final int[] nodeInputs;
+	private final int[] leafBases;
+	private final GdlSentence[] leafNames;
+	private final byte[] leafKinds;
+	private final int[][] goalNodes;
+
+	private LatchAnalysis(CompiledPropNet propNet, byte[] latches, boolean complete, long timeout, long startTime)
+	{
+		this.propNet = propNet;
+		this.complete = complete;
+
+		GdlSentence[] baseNames = propNet.getBaseNames();
+		Set<GdlSentence> positive = new HashSet<GdlSentence>();
+		Set<GdlSentence> negative = new HashSet<GdlSentence>();
+		for (int i = 0; i < latches.length; i++) {
+			if ((latches[i] & POSITIVE) != 0)
+				positive.add(baseNames[i]);
+			if ((latches[i] & NEGATIVE) != 0)
+				negative.add(baseNames[i]);
+		}
+		positiveLatches = Collections.unmodifiableSet(positive);
+		negativeLatches = Collections.unmodifiableSet(negative);
+
+		// Keep the components of the goal propositions that depend on a latch;
+		// everything else takes the value it has with nothing known.
+		byte[] types = propNet.getTypes();
+		int[] inputOffsets = propNet.getInputOffsets();
+		int[] inputs = propNet.getInputs();
+		int[] bases = propNet.getBaseComponents();
+		byte[] unknownValues = evaluateUnknown(propNet);
+		boolean[] dependent = new boolean[types.length];
+		int[] stack = new int[types.length];
+		int size = 0;
+		for (int i = 0; i < bases.length; i++) {
+			if (latches[i] != 0) {
+				dependent[bases[i]] = true;
+				stack[size++] = bases[i];
+			}
+		}
+		int[] outputOffsets = propNet.getOutputOffsets();
+		int[] outputs = propNet.getOutputs();
+		while (size > 0) {
+			int c = stack[--size];
+			for (int k = outputOffsets[c]; k < outputOffsets[c + 1]; k++) {
+				int o = outputs[k];
+				if (!dependent[o] && types[o] != CompiledPropNet.TRANSITION) {
+					dependent[o] = true;
+					stack[size++] = o;
+				}
+			}
+		}
+
+		boolean[] inCircuit = new boolean[types.length];
+		int[][] goals = propNet.getGoalComponents();
+		for (int[] roleGoals : goals) {
+			for (int g : roleGoals) {
+				if (dependent[g] && !inCircuit[g]) {
+					inCircuit[g] = true;
+					stack[size++] = g;
+				}
+			}
+		}
+		while (size > 0) {
+			int c = stack[--size];
+			if (types[c] == CompiledPropNet.BASE)
+				continue;
+			for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+				int input = inputs[k];
+				if (dependent[input] && !inCircuit[input]) {
+					inCircuit[input] = true;
+					stack[size++] = input;
+				}
+			}
+		}
+
+		// Number the circuit's latches and then its gates, in topological order.
+		int[] nodes = new int[types.length];
+		Arrays.fill(nodes, -1);
+		List<Integer> leaves = new ArrayList<Integer>();
+		for (int i = 0; i < bases.length; i++) {
+			if (inCircuit[bases[i]]) {
+				nodes[bases[i]] = FIRST_LEAF + leaves.size();
+				leaves.add(i);
+			}
+		}
+		List<Integer> gates = new ArrayList<Integer>();
+		for (int c : propNet.getOrdering()) {
+			if (inCircuit[c]) {
+				nodes[c] = FIRST_LEAF + leaves.size() + gates.size();
+				gates.add(c);
+			}
+		}
+
+		leafBases = new int[leaves.size()];
+		leafNames = new GdlSentence[leaves.size()];
+		leafKinds = new byte[leaves.size()];
+		for (int l = 0; l < leafBases.length; l++) {
+			leafBases[l] = leaves.get(l);
+			leafNames[l] = baseNames[leafBases[l]];
+			leafKinds[l] = latches[leafBases[l]];
+		}
+		int nodeCount = FIRST_LEAF + leaves.size() + gates.size();
+		nodeTypes = new byte[nodeCount];
+		nodeInputOffsets = new int[nodeCount + 1];
+		nodeTypes[UNKNOWN_NODE] = CompiledPropNet.INPUT;
+		nodeTypes[TRUE_NODE] = CompiledPropNet.TRUE;
+		nodeTypes[FALSE_NODE] = CompiledPropNet.FALSE;
+		for (int n = FIRST_LEAF; n < FIRST_LEAF + leaves.size(); n++) {
+			nodeTypes[n] = CompiledPropNet.BASE;
+		}
+		List<Integer> links = new ArrayList<Integer>();
+		for (int j = 0; j < gates.size(); j++) {
+			int c = gates.get(j);
+			int n = FIRST_LEAF + leaves.size() + j;
+			nodeTypes[n] = types[c];
+			for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+				int input = inputs[k];
+				links.add(nodes[input] >= 0 ? nodes[input] : getConstantNode(unknownValues[input]));
+			}
+			nodeInputOffsets[n + 1] = links.size();
+		}
+		nodeInputs = toArray(links);
+
+		goalNodes = new int[goals.length][];
+		for (int r = 0; r < goals.length; r++) {
+			goalNodes[r] = new int[goals[r].length];
+			for (int g = 0; g < goals[r].length; g++) {
+				int c = goals[r][g];
+				goalNodes[r][g] = nodes[c] >= 0 ? nodes[c] : getConstantNode(unknownValues[c]);
+			}
+		}
+
+		// Find the latches that decide a goal on their own.
+		goalLatches = new ArrayList<Set<GdlSentence>>(goals.length);
+		for (int r = 0; r < goals.length; r++) {
+			goalLatches.add(new HashSet<GdlSentence>());
+		}
+		byte[] leafValues = new byte[leafBases.length];
+		for (int l = 0; l < leafBases.length && System.currentTimeMillis() < timeout; l++) {
+			for (byte kind : new byte[] {POSITIVE, NEGATIVE}) {
+				if ((leafKinds[l] & kind) == 0)
+					continue;
+				leafValues[l] = (kind == POSITIVE) ? KNOWN_TRUE : KNOWN_FALSE;
+				byte[] values = evaluateCircuit(leafValues);
+				for (int r = 0; r < goals.length; r++) {
+					if (getDecidedGoal(values, r) >= 0)
+						goalLatches.get(r).add(leafNames[l]);
+				}
+			}
+			leafValues[l] = UNKNOWN;
+		}
+		for (int r = 0; r < goals.length; r++) {
+			goalLatches.set(r, Collections.unmodifiableSet(goalLatches.get(r)));
+		}
+
+		analysisTime = System.currentTimeMillis() - startTime;
+	}
+
+	/**
+	 * Finds the latches of the given propnet, giving up once the system time
+	 * passes <tt>timeout</tt>. The latches found by then are still latches, so
+	 * an incomplete analysis can be used just like a complete one; it simply
+	 * decides fewer states.
+	 */
+	public static LatchAnalysis analyze(CompiledPropNet propNet, long timeout)
+	{
+		long startTime = System.currentTimeMillis();
+		byte[] types = propNet.getTypes();
+		int[] ordering = propNet.getOrdering();
+		int[] outputOffsets = propNet.getOutputOffsets();
+		int[] outputs = propNet.getOutputs();
+		int[] bases = propNet.getBaseComponents();
+		int[] transitions = propNet.getBaseTransitions();
+
+		int[] positions = new int[types.length];
+		Arrays.fill(positions, -1);
+		for (int i = 0; i < ordering.length; i++) {
+			positions[ordering[i]] = i;
+		}
+
+		// Assume each value of each base in turn, and work out what that forces
+		// by re-evaluating the components it reaches in topological order.
+		// Inside a cycle, a component may be evaluated before some of its
+		// inputs are, in which case it sees their values with nothing known;
+		// this only makes the analysis miss some latches.
+		byte[] unknownValues = evaluateUnknown(propNet);
+		byte[] values = unknownValues.clone();
+		byte[] latches = new byte[bases.length];
+		int[] visited = new int[types.length];
+		int[] stack = new int[types.length];
+		int[] reached = new int[types.length];
+		boolean complete = true;
+		for (int i = 0; i < bases.length; i++) {
+			if (System.currentTimeMillis() > timeout) {
+				complete = false;
+				break;
+			}
+
+			int base = bases[i];
+			int count = 0;
+			int size = 0;
+			stack[size++] = base;
+			visited[base] = i + 1;
+			while (size > 0) {
+				int c = stack[--size];
+				for (int k = outputOffsets[c]; k < outputOffsets[c + 1]; k++) {
+					int o = outputs[k];
+					if (visited[o] != i + 1 && positions[o] >= 0) {
+						visited[o] = i + 1;
+						reached[count++] = positions[o];
+						if (types[o] != CompiledPropNet.TRANSITION)
+							stack[size++] = o;
+					}
+				}
+			}
+			Arrays.sort(reached, 0, count);
+
+			for (byte assumed : new byte[] {KNOWN_TRUE, KNOWN_FALSE}) {
+				values[base] = assumed;
+				for (int j = 0; j < count; j++) {
+					int c = ordering[reached[j]];
+					values[c] = computeValue(propNet, c, values);
+				}
+				if (values[transitions[i]] == assumed)
+					latches[i] |= (assumed == KNOWN_TRUE) ? POSITIVE : NEGATIVE;
+			}
+			values[base] = UNKNOWN;
+			for (int j = 0; j < count; j++) {
+				int c = ordering[reached[j]];
+				values[c] = unknownValues[c];
+			}
+		}
+
+		return new LatchAnalysis(propNet, latches, complete, timeout, startTime);
+	}
+
+	/**
+	 * Returns the propnet that was analyzed.
+	 */
+	public CompiledPropNet getPropNet()
+	{
+		return propNet;
+	}
+
+	/**
+	 * Returns the base propositions that stay true once they are true.
+	 */
+	public Set<GdlSentence> getPositiveLatches()
+	{
+		return positiveLatches;
+	}
+
+	/**
+	 * Returns the base propositions that stay false once they are false.
+	 */
+	public Set<GdlSentence> getNegativeLatches()
+	{
+		return negativeLatches;
+	}
+
+	/**
+	 * Returns the latches that fix the goal of the given role as soon as they
+	 * have latched, whatever the rest of the state.
+	 */
+	public Set<GdlSentence> getGoalLatches(Role role)
+	{
+		return goalLatches.get(propNet.getRoles().indexOf(role));
+	}
+
+	/**
+	 * Returns whether every base proposition was checked before the deadline.
+	 */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/**
+	 * Returns whether any goal depends on a latch. If not, every state gets
+	 * the same answer from {@link #getDecidedGoals(MachineState)}, and
+	 * there's no point in asking.
+	 */
+	public boolean canDecideGoals()
+	{
+		for (int[] roleGoals : goalNodes) {
+			for (int n : roleGoals) {
+				if (n >= FIRST_LEAF)
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the goal that the given role is certain to get at the end of any
+	 * game going through the given state, or -1 if it isn't decided yet. The
+	 * role is given by its index in the game's roles.
+	 */
+	public int getDecidedGoal(MachineState state, int role)
+	{
+		return getDecidedGoal(evaluateCircuit(getLeafValues(state)), role);
+	}
+
+	/**
+	 * Returns the goals that every role is certain to get at the end of any
+	 * game going through the given state, in the order of the game's roles,
+	 * or null if any of them isn't decided yet.
+	 */
+	public int[] getDecidedGoals(MachineState state)
+	{
+		byte[] values = evaluateCircuit(getLeafValues(state));
+		int[] decided = new int[goalNodes.length];
+		for (int r = 0; r < goalNodes.length; r++) {
+			decided[r] = getDecidedGoal(values, r);
+			if (decided[r] < 0)
+				return null;
+		}
+		return decided;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder report = new StringBuilder();
+		report.append("Found ").append(positiveLatches.size()).append(" positive and ");
+		report.append(negativeLatches.size()).append(" negative latches in ").append(analysisTime).append("ms");
+		if (!complete)
+			report.append(" before running out of time");
+		List<Role> roles = propNet.getRoles();
+		for (int r = 0; r < roles.size(); r++) {
+			report.append("\n  ").append(roles.get(r)).append(": ");
+			report.append(goalLatches.get(r).size()).append(" latches decide the goal on their own");
+		}
+		return report.toString();
+	}
+
+	private int getDecidedGoal(byte[] values, int role)
+	{
+		int[] goalValues = propNet.getGoalValues()[role];
+		int decided = -1;
+		int open = -1;
+		int openCount = 0;
+		for (int g = 0; g < goalNodes[role].length; g++) {
+			byte value = values[goalNodes[role][g]];
+			if (value == KNOWN_TRUE) {
+				if (decided >= 0 && decided != goalValues[g])
+					return -1;
+				decided = goalValues[g];
+			} else if (value == UNKNOWN) {
+				open = goalValues[g];
+				openCount++;
+			}
+		}
+		if (decided >= 0)
+			return decided;
+		return (openCount == 1) ? open : -1;
+	}
+
+	/**
+	 * Returns the value of each latch of the goal circuit in the given state:
+	 * its latched value if it has latched, and unknown otherwise.
+	 */
+	private byte[] getLeafValues(MachineState state)
+	{
+		byte[] leafValues = new byte[leafBases.length];
+		BitSetMachineState bitSetState = (state instanceof BitSetMachineState) ? (BitSetMachineState) state : null;
+		boolean sameIndex = bitSetState != null && bitSetState.getIndex() == propNet.getBasePropositionIndex();
+		for (int l = 0; l < leafBases.length; l++) {
+			boolean value;
+			if (sameIndex) {
+				value = bitSetState.get(leafBases[l]);
+			} else if (bitSetState != null) {
+				int index = bitSetState.getIndex().getIndex(leafNames[l]);
+				value = index >= 0 && bitSetState.get(index);
+			} else {
+				value = state.getContents().contains(leafNames[l]);
+			}
+			if (value && (leafKinds[l] & POSITIVE) != 0)
+				leafValues[l] = KNOWN_TRUE;
+			else if (!value && (leafKinds[l] & NEGATIVE) != 0)
+				leafValues[l] = KNOWN_FALSE;
+		}
+		return leafValues;
+	}
+
+	private byte[] evaluateCircuit(byte[] leafValues)
+	{
+		byte[] values = new byte[nodeTypes.length];
+		values[TRUE_NODE] = KNOWN_TRUE;
+		values[FALSE_NODE] = KNOWN_FALSE;
+		System.arraycopy(leafValues, 0, values, FIRST_LEAF, leafValues.length);
+		for (int n = FIRST_LEAF + leafValues.length; n < nodeTypes.length; n++) {
+			values[n] = computeValue(nodeTypes[n], nodeInputOffsets[n], nodeInputOffsets[n + 1], nodeInputs, values);
+		}
+		return values;
+	}
+
+	/**
+	 * Evaluates the whole propnet with every base and input proposition
+	 * unknown.
+	 */
+	private static byte[] evaluateUnknown(CompiledPropNet propNet)
+	{
+		byte[] types = propNet.getTypes();
+		byte[] values = new byte[types.length];
+		for (int c = 0; c < types.length; c++) {
+			if (types[c] == CompiledPropNet.TRUE)
+				values[c] = KNOWN_TRUE;
+			else if (types[c] == CompiledPropNet.FALSE)
+				values[c] = KNOWN_FALSE;
+		}
+		for (int c : propNet.getOrdering()) {
+			values[c] = computeValue(propNet, c, values);
+		}
+		return values;
+	}
+
+	private static byte computeValue(CompiledPropNet propNet, int c, byte[] values)
+	{
+		int[] inputOffsets = propNet.getInputOffsets();
+		return computeValue(propNet.getTypes()[c], inputOffsets[c], inputOffsets[c + 1], propNet.getInputs(), values);
+	}
+
+	/**
+	 * Computes the three-valued output of a gate whose inputs are
+	 * <tt>inputs[start]</tt> through <tt>inputs[end-1]</tt>.
+	 */
+	private static byte computeValue(byte type, int start, int end, int[] inputs, byte[] values)
+	{
+		byte result;
+		switch (type) {
+		case CompiledPropNet.AND:
+			result = KNOWN_TRUE;
+			for (int k = start; k < end; k++) {
+				byte value = values[inputs[k]];
+				if (value == KNOWN_FALSE)
+					return KNOWN_FALSE;
+				if (value == UNKNOWN)
+					result = UNKNOWN;
+			}
+			return result;
+		case CompiledPropNet.VIEW:
+		case CompiledPropNet.OR:
+		case CompiledPropNet.TRANSITION:
+			result = KNOWN_FALSE;
+			for (int k = start; k < end; k++) {
+				byte value = values[inputs[k]];
+				if (value == KNOWN_TRUE)
+					return KNOWN_TRUE;
+				if (value == UNKNOWN)
+					result = UNKNOWN;
+			}
+			return result;
+		case CompiledPropNet.NOT:
+			byte value = values[inputs[start]];
+			return (value == UNKNOWN) ? UNKNOWN : (value == KNOWN_TRUE) ? KNOWN_FALSE : KNOWN_TRUE;
+		case CompiledPropNet.TRUE:
+			return KNOWN_TRUE;
+		case CompiledPropNet.FALSE:
+			return KNOWN_FALSE;
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	private static int getConstantNode(byte value)
+	{
+		return (value == KNOWN_TRUE) ? TRUE_NODE : (value == KNOWN_FALSE) ? FALSE_NODE : UNKNOWN_NODE;
+	}
+
+	private static int[] toArray(List<Integer> list)
+	{
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,331 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+
+
+/**
+ * A BytecodePropNet evaluates a {@link CompiledPropNet} with a Java class
+ * generated for that particular network. Instead of looking up the type and
+ * the inputs of every component in the arrays of the compiled net, the
+ * generated class spells out one statement per component, in topological
+ * order, such as <tt>v[12] = v[3] &amp; v[7];</tt>. The JIT compiles that
+ * into straight-line code with no table lookups, switches or loops. Gates
+ * use the non-short-circuit operators, so that a gate's inputs are combined
+ * without a branch per input. The code isn't free of branches, though:
+ * negations and the packing of states compile to conditional jumps, the
+ * next state is stored one <tt>if</tt> per bit, and gates with more inputs
+ * than fit in one statement skip their later groups of inputs with an
+ * <tt>if</tt> once their value is decided.
+ *
+ * The generated class also packs and unpacks states: it loads the base
+ * propositions from the words of a {@link org.ggp.base.util.statemachine.BitSetMachineState}
+ * and stores the next state from the transitions into such words, each with
+ * a constant mask per bit. Legal, goal and terminal propositions need no
+ * code of their own; they're read from the value vector after a pass.
+ *
+ * The JVM limits a method to 64KB of bytecode, and HotSpot won't JIT
+ * compile a method of more than 8000 bytes, so the statements are split
+ * into many small methods which are called in sequence. Gates with very
+ * many inputs are computed over several statements, which accumulate the
+ * result in the gate's own entry of the value vector. Cyclic groups in
+ * the network are handed back to {@link CompiledPropNet#evaluateCycle(int, boolean[])},
+ * since iterating them to a fixed point doesn't gain much from being
+ * unrolled. If the network is too big for a single class (in practice,
+ * because it needs too many entries in the constant pool), or the class
+ * can't be generated for some other reason, {@link #generate(CompiledPropNet)}
+ * returns null, and callers should fall back to evaluating the compiled net
+ * directly.
+ *
+ * Classes are generated with javassist from Java source, and each is defined
+ * in a class loader of its own, so it can be unloaded once the game is over.
+ * A BytecodePropNet has no state of its own, so one instance can be shared
+ * by any number of threads, each with its own value vector.
+ */
+public abstract class BytecodePropNet
+{
+	/** The estimated bytecode size of a generated method, which keeps it under 8000 bytes. */
+	private static final int MAX_METHOD_SIZE = 6000;
+	/** Array reads per statement, which bounds the size of a statement and the recursion in javassist's compiler. */
+	private static final int MAX_TERMS_PER_STATEMENT = 64;
+	/** Estimated bytes of bytecode per array read in an expression. */
+	private static final int TERM_SIZE = 12;
+	/** Estimated bytes of bytecode per base proposition loaded or stored. */
+	private static final int BIT_SIZE = 24;
+	/** Constant pool entries we allow ourselves, out of the 65535 in a class file. */
+	private static final int MAX_CONSTANTS = 60000;
+
+	private static final AtomicInteger classCount = new AtomicInteger();
+
+	protected final CompiledPropNet propNet;
+
+	protected BytecodePropNet(CompiledPropNet propNet)
+	{
+		this.propNet = propNet;
+	}
+
+	public CompiledPropNet getPropNet()
+	{
+		return propNet;
+	}
+
+	/**
+	 * Brings every computed component in <tt>values</tt> up to date with the
+	 * base and input propositions, in a single topological pass, just like
+	 * {@link CompiledPropNet#evaluate(boolean[])}.
+	 */
+	public abstract void evaluate(boolean[] values);
+
+	/**
+	 * Sets every base proposition in <tt>values</tt> from the bit with its
+	 * base index in <tt>state</tt>, which must have one bit per base
+	 * proposition.
+	 */
+	public abstract void loadBases(long[] state, boolean[] values);
+
+	/**
+	 * Sets the bit of every base proposition in <tt>state</tt> to the value
+	 * of its transition in <tt>values</tt>. Every word of <tt>state</tt> is
+	 * overwritten.
+	 */
+	public abstract void storeNextState(boolean[] values, long[] state);
+
+	/**
+	 * Generates and loads a class that evaluates the given network, and
+	 * returns an instance of it, or null if the network can't be turned into
+	 * a class.
+	 */
+	public static BytecodePropNet generate(CompiledPropNet propNet)
+	{
+		if (countConstants(propNet) > MAX_CONSTANTS)
+			return null;
+
+		String simpleName = "Generated" + classCount.incrementAndGet();
+		String name = BytecodePropNet.class.getName() + "$" + simpleName;
+		try {
+			ClassPool pool = new ClassPool(true);
+			pool.appendClassPath(new ClassClassPath(BytecodePropNet.class));
+			CtClass generated = pool.makeClass(name);
+			generated.setSuperclass(pool.get(BytecodePropNet.class.getName()));
+			generated.addConstructor(CtNewConstructor.make(
+					"public " + simpleName + "(" + CompiledPropNet.class.getName() + " p) { super(p); }", generated));
+
+			addMethods(generated, "evaluate", "boolean[] v", "v", getEvaluateStatements(propNet));
+			addMethods(generated, "loadBases", "long[] s, boolean[] v", "s, v", getLoadStatements(propNet));
+			addMethods(generated, "storeNextState", "boolean[] v, long[] s", "v, s", getStoreStatements(propNet));
+
+			byte[] bytecode = generated.toBytecode();
+			generated.detach();
+			Class<?> c = new GeneratedClassLoader(BytecodePropNet.class.getClassLoader()).define(name, bytecode);
+			return (BytecodePropNet) c.getConstructor(CompiledPropNet.class).newInstance(propNet);
+		} catch (LinkageError e) {
+			// Most likely a VerifyError or ClassFormatError on a class that
+			// exceeds some limit of the class file format.
+			System.err.println("Could not load bytecode propnet: " + e);
+			return null;
+		} catch (Exception e) {
+			System.err.println("Could not generate bytecode propnet: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the public method with the given name and parameters, which runs
+	 * the given statements. The statements are split among private methods
+	 * that the public one calls in turn.
+	 */
+	private static void addMethods(CtClass generated, String name, String parameters, String arguments,
+			List<Statement> statements) throws CannotCompileException
+	{
+		StringBuilder calls = new StringBuilder();
+		StringBuilder body = new StringBuilder();
+		int size = 0;
+		int chunks = 0;
+		for (int i = 0; i <= statements.size(); i++) {
+			if (i == statements.size() || (size > 0 && size + statements.get(i).size > MAX_METHOD_SIZE)) {
+				if (size == 0 && i == statements.size())
+					break;
+				String chunk = name + chunks++;
+				generated.addMethod(CtNewMethod.make(
+						"private void " + chunk + "(" + parameters + ") {\n" + body + "}", generated));
+				calls.append(chunk).append('(').append(arguments).append(");\n");
+				body.setLength(0);
+				size = 0;
+			}
+			if (i < statements.size()) {
+				body.append(statements.get(i).code);
+				size += statements.get(i).size;
+			}
+		}
+		CtMethod method = CtNewMethod.make("public void " + name + "(" + parameters + ") {\n" + calls + "}", generated);
+		generated.addMethod(method);
+	}
+
+	private static List<Statement> getEvaluateStatements(CompiledPropNet propNet)
+	{
+		byte[] types = propNet.getTypes();
+		int[] inputOffsets = propNet.getInputOffsets();
+		int[] inputs = propNet.getInputs();
+		int[] ordering = propNet.getOrdering();
+		int[] cycles = propNet.getCycles();
+
+		List<Statement> statements = new ArrayList<Statement>(ordering.length);
+		int nextCycle = 0;
+		for (int i = 0; i < ordering.length; i++) {
+			if (nextCycle < cycles.length && cycles[nextCycle] == i) {
+				statements.add(new Statement("propNet.evaluateCycle(" + (nextCycle / 2) + ", v);\n", TERM_SIZE));
+				i = cycles[nextCycle + 1] - 1;
+				nextCycle += 2;
+				continue;
+			}
+
+			int c = ordering[i];
+			int start = inputOffsets[c];
+			int end = inputOffsets[c + 1];
+			switch (types[c]) {
+			case CompiledPropNet.AND:
+				addJunction(statements, c, inputs, start, end, "&", "true");
+				break;
+			case CompiledPropNet.VIEW:
+			case CompiledPropNet.OR:
+			case CompiledPropNet.TRANSITION:
+				addJunction(statements, c, inputs, start, end, "|", "false");
+				break;
+			case CompiledPropNet.NOT:
+				statements.add(new Statement("v[" + c + "] = !v[" + inputs[start] + "];\n", TERM_SIZE));
+				break;
+			case CompiledPropNet.TRUE:
+				statements.add(new Statement("v[" + c + "] = true;\n", TERM_SIZE));
+				break;
+			case CompiledPropNet.FALSE:
+				statements.add(new Statement("v[" + c + "] = false;\n", TERM_SIZE));
+				break;
+			default:
+				// Base and input propositions keep their values.
+				break;
+			}
+		}
+		return statements;
+	}
+
+	/**
+	 * Adds the statements that set component <tt>c</tt> to the conjunction
+	 * or disjunction of the given inputs. Gates with many inputs are computed
+	 * a group of inputs at a time, each group only being looked at while the
+	 * result is still undecided.
+	 */
+	private static void addJunction(List<Statement> statements, int c, int[] inputs, int start, int end,
+			String operator, String identity)
+	{
+		if (start == end) {
+			statements.add(new Statement("v[" + c + "] = " + identity + ";\n", TERM_SIZE));
+			return;
+		}
+		// The result is undecided while it equals the identity.
+		String undecided = identity.equals("true") ? "v[" + c + "]" : "!v[" + c + "]";
+		for (int k = start; k < end; k += MAX_TERMS_PER_STATEMENT) {
+			int groupEnd = Math.min(k + MAX_TERMS_PER_STATEMENT, end);
+			String assignment = "v[" + c + "] = " + getExpression(inputs, k, groupEnd, operator) + ";\n";
+			if (k == start) {
+				statements.add(new Statement(assignment, (groupEnd - k) * TERM_SIZE));
+			} else {
+				statements.add(new Statement("if (" + undecided + ") " + assignment, (groupEnd - k + 1) * TERM_SIZE));
+			}
+		}
+	}
+
+	private static String getExpression(int[] inputs, int start, int end, String operator)
+	{
+		StringBuilder expression = new StringBuilder();
+		for (int k = start; k < end; k++) {
+			if (k > start)
+				expression.append(' ').append(operator).append(' ');
+			expression.append("v[").append(inputs[k]).append(']');
+		}
+		return expression.toString();
+	}
+
+	private static List<Statement> getLoadStatements(CompiledPropNet propNet)
+	{
+		int[] bases = propNet.getBaseComponents();
+		List<Statement> statements = new ArrayList<Statement>(bases.length);
+		for (int i = 0; i < bases.length; i++) {
+			statements.add(new Statement("v[" + bases[i] + "] = (s[" + (i >> 6) + "] & " + getMask(i) + ") != 0L;\n", BIT_SIZE));
+		}
+		return statements;
+	}
+
+	/**
+	 * Returns one statement per word of the state, which gathers the bits of
+	 * that word in a local and then stores it.
+	 */
+	private static List<Statement> getStoreStatements(CompiledPropNet propNet)
+	{
+		int[] transitions = propNet.getBaseTransitions();
+		List<Statement> statements = new ArrayList<Statement>();
+		for (int word = 0; word << 6 < transitions.length; word++) {
+			StringBuilder code = new StringBuilder("{\nlong w = 0L;\n");
+			int end = Math.min((word + 1) << 6, transitions.length);
+			for (int i = word << 6; i < end; i++) {
+				code.append("if (v[").append(transitions[i]).append("]) w |= ").append(getMask(i)).append(";\n");
+			}
+			code.append("s[").append(word).append("] = w;\n}\n");
+			statements.add(new Statement(code.toString(), (end - (word << 6)) * BIT_SIZE));
+		}
+		return statements;
+	}
+
+	private static String getMask(int bit)
+	{
+		return "0x" + Long.toHexString(1L << bit) + "L";
+	}
+
+	/**
+	 * Returns an upper bound on the number of constant pool entries the
+	 * generated class needs: one for every component id too large to be
+	 * pushed with <tt>sipush</tt>, one for every mask, and a few per method.
+	 */
+	private static int countConstants(CompiledPropNet propNet)
+	{
+		int largeIds = Math.max(0, propNet.getComponentCount() - Short.MAX_VALUE);
+		int masks = Math.min(64, propNet.getBaseCount());
+		int methods = (TERM_SIZE * propNet.getInputs().length + 2 * BIT_SIZE * propNet.getBaseCount()) / MAX_METHOD_SIZE;
+		return largeIds + masks + 4 * methods + 100;
+	}
+
+	/** A statement of generated source, and the estimated size of its bytecode. */
+	private static final class Statement
+	{
+		public final String code;
+		public final int size;
+
+		public Statement(String code, int size)
+		{
+			this.code = code;
+			this.size = size;
+		}
+	}
+
+	/** Defines a single generated class. */
+	private static final class GeneratedClassLoader extends ClassLoader
+	{
+		public GeneratedClassLoader(ClassLoader parent)
+		{
+			super(parent);
+		}
+
+		public Class<?> define(String name, byte[] bytecode)
+		{
+			return defineClass(name, bytecode, 0, bytecode.length);
+		}
+	}
+}
@@ -0,0 +1,682 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.BasePropositionIndex;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+
+
+/**
+ * The CompiledPropNet class is a flattened, read-only view of a {@link PropNet}
+ * that is designed for fast evaluation.
+ *
+ * Every component of the original PropNet is assigned a dense integer id. The
+ * type of each component is recorded in a byte array, and the links between
+ * components are stored in compressed sparse row (CSR) form: the inputs of
+ * component <tt>c</tt> are <tt>inputs[inputOffsets[c]]</tt> through
+ * <tt>inputs[inputOffsets[c+1]-1]</tt>, and likewise for the outputs.
+ *
+ * The components whose values have to be computed (views, gates and
+ * transitions) are listed in topological order, so that a single pass over
+ * {@link #getOrdering()} is enough to bring every component up to date once
+ * the base and input propositions have been set. Propositions defined through
+ * recursive rules can produce cycles in the network; each such strongly
+ * connected group is kept contiguous in the ordering and is reported through
+ * {@link #getCycles()}, so that evaluators can iterate it to a fixed point.
+ *
+ * A CompiledPropNet holds no component values itself. The value vector lives
+ * in whatever evaluates the network, which means that a single compiled net
+ * can be shared between any number of threads, each evaluating it with its
+ * own value vector.
+ */
+public final class CompiledPropNet
+{
+	/** A base proposition, whose value is set from the current state. */
+	public static final byte BASE = 0;
+	/** An input proposition, whose value is set from the current joint move. */
+	public static final byte INPUT = 1;
+	/** Any other proposition; true if and only if one of its inputs is true. */
+	public static final byte VIEW = 2;
+	public static final byte AND = 3;
+	public static final byte OR = 4;
+	public static final byte NOT = 5;
+	public static final byte TRANSITION = 6;
+	public static final byte TRUE = 7;
+	public static final byte FALSE = 8;
+
+	/** The player roles, in game description order. */
+	private final List<Role> roles;
+
+	/** The type of every component, indexed by component id. */
+	private final byte[] types;
+	/** CSR offsets into {@link #inputs}; has one more entry than there are components. */
+	private final int[] inputOffsets;
+	private final int[] inputs;
+	/** CSR offsets into {@link #outputs}; has one more entry than there are components. */
+	private final int[] outputOffsets;
+	private final int[] outputs;
+
+	/** The computed components, in topological order. */
+	private final int[] ordering;
+	/** Pairs of [start, end) positions in the ordering that form cycles. */
+	private final int[] cycles;
+
+	/** Component ids of the base propositions, indexed by base index. */
+	private final int[] baseComponents;
+	/** Component ids of the transitions feeding each base proposition. */
+	private final int[] baseTransitions;
+	private final GdlSentence[] baseNames;
+	/** Base indices of the propositions that are true in the initial state. */
+	private final int[] initialBases;
+
+	/** Component ids of the input propositions, indexed by input index. */
+	private final int[] inputComponents;
+	private final GdlSentence[] inputNames;
+
+	/** Per role, the component ids of its legal propositions. */
+	private final int[][] legalComponents;
+	/** Per role, the move corresponding to each legal proposition. */
+	private final Move[][] legalMoves;
+	/** Per role, the input index paired with each legal proposition, or -1. */
+	private final int[][] legalInputs;
+
+	/** Per role, the component ids of its goal propositions. */
+	private final int[][] goalComponents;
+	/** Per role, the goal value of each goal proposition. */
+	private final int[][] goalValues;
+
+	/** The component id of the terminal proposition, or -1 if there is none. */
+	private final int terminal;
+
+	/** Indexes the base propositions in the same order as the base arrays. */
+	private final BasePropositionIndex baseIndex;
+	private final List<Map<Move, Integer>> inputIndices;
+
+	CompiledPropNet(List<Role> roles, byte[] types, int[] inputOffsets, int[] inputs,
+			int[] outputOffsets, int[] outputs, int[] ordering, int[] cycles,
+			int[] baseComponents, int[] baseTransitions, GdlSentence[] baseNames, int[] initialBases,
+			int[] inputComponents, GdlSentence[] inputNames,
+			int[][] legalComponents, Move[][] legalMoves, int[][] legalInputs,
+			int[][] goalComponents, int[][] goalValues, int terminal)
+	{
+		this.roles = Collections.unmodifiableList(new ArrayList<Role>(roles));
+		this.types = types;
+		this.inputOffsets = inputOffsets;
+		this.inputs = inputs;
+		this.outputOffsets = outputOffsets;
+		this.outputs = outputs;
+		this.ordering = ordering;
+		this.cycles = cycles;
+		this.baseComponents = baseComponents;
+		this.baseTransitions = baseTransitions;
+		this.baseNames = baseNames;
+		this.initialBases = initialBases;
+		this.inputComponents = inputComponents;
+		this.inputNames = inputNames;
+		this.legalComponents = legalComponents;
+		this.legalMoves = legalMoves;
+		this.legalInputs = legalInputs;
+		this.goalComponents = goalComponents;
+		this.goalValues = goalValues;
+		this.terminal = terminal;
+
+		this.baseIndex = new BasePropositionIndex(Arrays.asList(baseNames));
+		this.inputIndices = new ArrayList<Map<Move, Integer>>(roles.size());
+		for (int r = 0; r < roles.size(); r++) {
+			inputIndices.add(new HashMap<Move, Integer>());
+		}
+		for (int i = 0; i < inputNames.length; i++) {
+			GdlRelation does = (GdlRelation) inputNames[i];
+			int r = this.roles.indexOf(new Role((GdlConstant) does.get(0)));
+			if (r >= 0) {
+				inputIndices.get(r).put(new Move(does.get(1)), i);
+			}
+		}
+	}
+
+	/**
+	 * Flattens the given PropNet. The PropNet itself is not modified, and
+	 * can be discarded once this returns.
+	 */
+	public static CompiledPropNet compile(PropNet propNet)
+	{
+		List<Role> roles = propNet.getRoles();
+
+		// Assign every component a dense id.
+		List<Component> components = new ArrayList<Component>(propNet.getComponents());
+		Map<Component, Integer> ids = new HashMap<Component, Integer>();
+		for (int i = 0; i < components.size(); i++) {
+			ids.put(components.get(i), i);
+		}
+		int n = components.size();
+
+		Set<Proposition> basePropositions = new HashSet<Proposition>(propNet.getBasePropositions().values());
+		Set<Proposition> inputPropositions = new HashSet<Proposition>(propNet.getInputPropositions().values());
+
+		byte[] types = new byte[n];
+		for (int i = 0; i < n; i++) {
+			types[i] = typeOf(components.get(i), basePropositions, inputPropositions);
+		}
+
+		int[] inputOffsets = new int[n + 1];
+		int[] outputOffsets = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			inputOffsets[i + 1] = inputOffsets[i] + countKnown(components.get(i).getInputs(), ids);
+			outputOffsets[i + 1] = outputOffsets[i] + countKnown(components.get(i).getOutputs(), ids);
+		}
+		int[] inputs = new int[inputOffsets[n]];
+		int[] outputs = new int[outputOffsets[n]];
+		for (int i = 0; i < n; i++) {
+			int k = inputOffsets[i];
+			for (Component input : components.get(i).getInputs()) {
+				Integer id = ids.get(input);
+				if (id != null)
+					inputs[k++] = id;
+			}
+			k = outputOffsets[i];
+			for (Component output : components.get(i).getOutputs()) {
+				Integer id = ids.get(output);
+				if (id != null)
+					outputs[k++] = id;
+			}
+		}
+
+		List<int[]> cycleList = new ArrayList<int[]>();
+		int[] ordering = computeOrdering(types, outputOffsets, outputs, cycleList);
+		int[] cycles = new int[cycleList.size() * 2];
+		for (int i = 0; i < cycleList.size(); i++) {
+			cycles[2 * i] = cycleList.get(i)[0];
+			cycles[2 * i + 1] = cycleList.get(i)[1];
+		}
+
+		// Base propositions, and which of them hold initially.
+		Proposition init = propNet.getInitProposition();
+		List<Proposition> bases = new ArrayList<Proposition>(basePropositions);
+		int[] baseComponents = new int[bases.size()];
+		int[] baseTransitions = new int[bases.size()];
+		GdlSentence[] baseNames = new GdlSentence[bases.size()];
+		List<Integer> initialBaseList = new ArrayList<Integer>();
+		for (int i = 0; i < bases.size(); i++) {
+			Proposition base = bases.get(i);
+			Component transition = base.getSingleInput();
+			baseComponents[i] = ids.get(base);
+			baseTransitions[i] = ids.get(transition);
+			baseNames[i] = base.getName();
+			if (init != null && isFedByInit(transition, init)) {
+				initialBaseList.add(i);
+			}
+		}
+		int[] initialBases = toIntArray(initialBaseList);
+
+		List<Proposition> inputProps = new ArrayList<Proposition>(inputPropositions);
+		int[] inputComponents = new int[inputProps.size()];
+		GdlSentence[] inputNames = new GdlSentence[inputProps.size()];
+		Map<Proposition, Integer> inputIndexByProp = new HashMap<Proposition, Integer>();
+		for (int i = 0; i < inputProps.size(); i++) {
+			inputComponents[i] = ids.get(inputProps.get(i));
+			inputNames[i] = inputProps.get(i).getName();
+			inputIndexByProp.put(inputProps.get(i), i);
+		}
+
+		Map<Proposition, Proposition> legalInputMap = propNet.getLegalInputMap();
+		int[][] legalComponents = new int[roles.size()][];
+		Move[][] legalMoves = new Move[roles.size()][];
+		int[][] legalInputs = new int[roles.size()][];
+		int[][] goalComponents = new int[roles.size()][];
+		int[][] goalValues = new int[roles.size()][];
+		for (int r = 0; r < roles.size(); r++) {
+			Role role = roles.get(r);
+			List<Proposition> legals = new ArrayList<Proposition>();
+			if (propNet.getLegalPropositions().containsKey(role))
+				legals.addAll(propNet.getLegalPropositions().get(role));
+			legalComponents[r] = new int[legals.size()];
+			legalMoves[r] = new Move[legals.size()];
+			legalInputs[r] = new int[legals.size()];
+			for (int i = 0; i < legals.size(); i++) {
+				Proposition legal = legals.get(i);
+				legalComponents[r][i] = ids.get(legal);
+				legalMoves[r][i] = new Move(legal.getName().get(1));
+				Integer inputIndex = inputIndexByProp.get(legalInputMap.get(legal));
+				legalInputs[r][i] = (inputIndex == null) ? -1 : inputIndex;
+			}
+
+			List<Proposition> goals = new ArrayList<Proposition>();
+			if (propNet.getGoalPropositions().containsKey(role))
+				goals.addAll(propNet.getGoalPropositions().get(role));
+			goalComponents[r] = new int[goals.size()];
+			goalValues[r] = new int[goals.size()];
+			for (int i = 0; i < goals.size(); i++) {
+				goalComponents[r][i] = ids.get(goals.get(i));
+				goalValues[r][i] = getGoalValue(goals.get(i));
+			}
+		}
+
+		Proposition terminalProposition = propNet.getTerminalProposition();
+		int terminal = (terminalProposition == null) ? -1 : ids.get(terminalProposition);
+
+		return new CompiledPropNet(roles, types, inputOffsets, inputs, outputOffsets, outputs,
+				ordering, cycles, baseComponents, baseTransitions, baseNames, initialBases,
+				inputComponents, inputNames, legalComponents, legalMoves, legalInputs,
+				goalComponents, goalValues, terminal);
+	}
+
+	private static byte typeOf(Component c, Set<Proposition> basePropositions, Set<Proposition> inputPropositions)
+	{
+		if (c instanceof Proposition) {
+			if (basePropositions.contains(c))
+				return BASE;
+			if (inputPropositions.contains(c))
+				return INPUT;
+			return VIEW;
+		} else if (c instanceof And) {
+			return AND;
+		} else if (c instanceof Or) {
+			return OR;
+		} else if (c instanceof Not) {
+			return NOT;
+		} else if (c instanceof Transition) {
+			return TRANSITION;
+		} else if (c instanceof Constant) {
+			return c.getValue() ? TRUE : FALSE;
+		}
+		throw new IllegalArgumentException("Unknown component type: " + c.getClass());
+	}
+
+	private static int countKnown(Set<Component> components, Map<Component, Integer> ids)
+	{
+		int count = 0;
+		for (Component c : components) {
+			if (ids.containsKey(c))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * The factory connects INIT to the transition of every base proposition that
+	 * holds in the initial state, either directly or through the Or that merges
+	 * it with the regular "next" input. Reading that structure directly avoids
+	 * evaluating the network against an empty state, which can spuriously
+	 * satisfy "next" rules that contain negations.
+	 */
+	private static boolean isFedByInit(Component transition, Proposition init)
+	{
+		List<Component> frontier = new ArrayList<Component>(transition.getInputs());
+		while (!frontier.isEmpty()) {
+			Component c = frontier.remove(frontier.size() - 1);
+			if (c == init)
+				return true;
+			if (c instanceof Or)
+				frontier.addAll(c.getInputs());
+		}
+		return false;
+	}
+
+	private static boolean isComputed(byte type)
+	{
+		return type == VIEW || type == AND || type == OR || type == NOT || type == TRANSITION;
+	}
+
+	/**
+	 * Orders the computed components topologically, using an iterative version
+	 * of Tarjan's strongly connected components algorithm. Edges leading into
+	 * base propositions are ignored, since those only take effect on the next
+	 * turn. Each cyclic component group is appended to <tt>cycles</tt> as a
+	 * [start, end) range of the returned ordering.
+	 */
+	private static int[] computeOrdering(byte[] types, int[] outputOffsets, int[] outputs, List<int[]> cycles)
+	{
+		int n = types.length;
+		int[] index = new int[n];
+		int[] lowlink = new int[n];
+		boolean[] onStack = new boolean[n];
+		Arrays.fill(index, -1);
+
+		int[] stack = new int[n];
+		int stackSize = 0;
+		int[] callStack = new int[n];
+		int[] edgeCursor = new int[n];
+		int nextIndex = 0;
+
+		// Strongly connected components come out of Tarjan's algorithm in
+		// reverse topological order, so fill the ordering from the back.
+		int computedCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (isComputed(types[i]))
+				computedCount++;
+		}
+		int[] ordering = new int[computedCount];
+		int fill = computedCount;
+		List<int[]> reversedCycles = new ArrayList<int[]>();
+
+		for (int root = 0; root < n; root++) {
+			if (!isComputed(types[root]) || index[root] != -1)
+				continue;
+
+			int depth = 0;
+			callStack[depth] = root;
+			edgeCursor[root] = outputOffsets[root];
+			index[root] = lowlink[root] = nextIndex++;
+			stack[stackSize++] = root;
+			onStack[root] = true;
+
+			while (depth >= 0) {
+				int v = callStack[depth];
+				if (edgeCursor[v] < outputOffsets[v + 1]) {
+					int w = outputs[edgeCursor[v]++];
+					if (!isComputed(types[w]))
+						continue;
+					if (index[w] == -1) {
+						index[w] = lowlink[w] = nextIndex++;
+						stack[stackSize++] = w;
+						onStack[w] = true;
+						edgeCursor[w] = outputOffsets[w];
+						callStack[++depth] = w;
+					} else if (onStack[w]) {
+						lowlink[v] = Math.min(lowlink[v], index[w]);
+					}
+				} else {
+					if (lowlink[v] == index[v]) {
+						int end = fill;
+						int w;
+						do {
+							w = stack[--stackSize];
+							onStack[w] = false;
+							ordering[--fill] = w;
+						} while (w != v);
+						if (end - fill > 1 || hasSelfLoop(v, outputOffsets, outputs)) {
+							reversedCycles.add(new int[] {fill, end});
+						}
+					}
+					depth--;
+					if (depth >= 0) {
+						int parent = callStack[depth];
+						lowlink[parent] = Math.min(lowlink[parent], lowlink[v]);
+					}
+				}
+			}
+		}
+
+		for (int i = reversedCycles.size() - 1; i >= 0; i--) {
+			cycles.add(reversedCycles.get(i));
+		}
+		return ordering;
+	}
+
+	private static boolean hasSelfLoop(int v, int[] outputOffsets, int[] outputs)
+	{
+		for (int k = outputOffsets[v]; k < outputOffsets[v + 1]; k++) {
+			if (outputs[k] == v)
+				return true;
+		}
+		return false;
+	}
+
+	private static int getGoalValue(Proposition goalProposition)
+	{
+		GdlRelation relation = (GdlRelation) goalProposition.getName();
+		GdlConstant constant = (GdlConstant) relation.get(1);
+		return Integer.parseInt(constant.toString());
+	}
+
+	private static int[] toIntArray(List<Integer> list)
+	{
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Computes the value that component <tt>c</tt> should take, given the
+	 * current values of its inputs. Base and input propositions and constants
+	 * simply keep their current value.
+	 */
+	public boolean computeValue(int c, boolean[] values)
+	{
+		switch (types[c]) {
+		case AND:
+			for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+				if (!values[inputs[k]])
+					return false;
+			}
+			return true;
+		case VIEW:
+		case OR:
+		case TRANSITION:
+			for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+				if (values[inputs[k]])
+					return true;
+			}
+			return false;
+		case NOT:
+			return !values[inputs[inputOffsets[c]]];
+		case TRUE:
+			return true;
+		case FALSE:
+			return false;
+		default:
+			return values[c];
+		}
+	}
+
+	/**
+	 * Brings every computed component in <tt>values</tt> up to date with the
+	 * base and input propositions, in a single topological pass. Cyclic groups
+	 * are cleared and then iterated until they reach their least fixed point.
+	 */
+	public void evaluate(boolean[] values)
+	{
+		int nextCycle = 0;
+		for (int i = 0; i < ordering.length; i++) {
+			if (nextCycle < cycles.length && cycles[nextCycle] == i) {
+				evaluateCycle(nextCycle / 2, values);
+				i = cycles[nextCycle + 1] - 1;
+				nextCycle += 2;
+			} else {
+				int c = ordering[i];
+				values[c] = computeValue(c, values);
+			}
+		}
+	}
+
+	/**
+	 * Brings the components of the given cyclic group up to date, assuming
+	 * everything before it in the ordering already is: the group is cleared
+	 * and then iterated until it reaches its least fixed point.
+	 */
+	public void evaluateCycle(int cycle, boolean[] values)
+	{
+		int start = cycles[2 * cycle];
+		int end = cycles[2 * cycle + 1];
+		for (int j = start; j < end; j++) {
+			values[ordering[j]] = false;
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int j = start; j < end; j++) {
+				int c = ordering[j];
+				boolean value = computeValue(c, values);
+				if (value != values[c]) {
+					values[c] = value;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a freshly allocated value vector for this network, with the
+	 * constants already set.
+	 */
+	public boolean[] newValueVector()
+	{
+		boolean[] values = new boolean[types.length];
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == TRUE)
+				values[i] = true;
+		}
+		return values;
+	}
+
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	public int getComponentCount()
+	{
+		return types.length;
+	}
+
+	public byte[] getTypes()
+	{
+		return types;
+	}
+
+	public int[] getInputOffsets()
+	{
+		return inputOffsets;
+	}
+
+	public int[] getInputs()
+	{
+		return inputs;
+	}
+
+	public int[] getOutputOffsets()
+	{
+		return outputOffsets;
+	}
+
+	public int[] getOutputs()
+	{
+		return outputs;
+	}
+
+	public int[] getOrdering()
+	{
+		return ordering;
+	}
+
+	public int[] getCycles()
+	{
+		return cycles;
+	}
+
+	public int getBaseCount()
+	{
+		return baseComponents.length;
+	}
+
+	public int[] getBaseComponents()
+	{
+		return baseComponents;
+	}
+
+	public int[] getBaseTransitions()
+	{
+		return baseTransitions;
+	}
+
+	public GdlSentence[] getBaseNames()
+	{
+		return baseNames;
+	}
+
+	public int[] getInitialBases()
+	{
+		return initialBases;
+	}
+
+	/**
+	 * Returns the base index of the base proposition with the given name, or
+	 * -1 if the PropNet has no such base proposition.
+	 */
+	public int getBaseIndex(GdlSentence name)
+	{
+		int index = baseIndex.getIndex(name);
+		return (index < baseNames.length) ? index : -1;
+	}
+
+	/**
+	 * Returns an index over the base propositions that agrees with the base
+	 * arrays: the sentence with index i is <tt>getBaseNames()[i]</tt>. States
+	 * encoded over this index can be shared by every machine that uses this
+	 * CompiledPropNet.
+	 */
+	public BasePropositionIndex getBasePropositionIndex()
+	{
+		return baseIndex;
+	}
+
+	public int[] getInputComponents()
+	{
+		return inputComponents;
+	}
+
+	public GdlSentence[] getInputNames()
+	{
+		return inputNames;
+	}
+
+	/**
+	 * Returns the input index for the given role making the given move, or -1
+	 * if the PropNet has no input proposition for it (which happens when no
+	 * rule depends on that move being made).
+	 */
+	public int getInputIndex(int role, Move move)
+	{
+		Integer index = inputIndices.get(role).get(move);
+		return (index == null) ? -1 : index;
+	}
+
+	public int[][] getLegalComponents()
+	{
+		return legalComponents;
+	}
+
+	public Move[][] getLegalMoves()
+	{
+		return legalMoves;
+	}
+
+	public int[][] getLegalInputs()
+	{
+		return legalInputs;
+	}
+
+	public int[][] getGoalComponents()
+	{
+		return goalComponents;
+	}
+
+	public int[][] getGoalValues()
+	{
+		return goalValues;
+	}
+
+	public int getTerminal()
+	{
+		return terminal;
+	}
+}
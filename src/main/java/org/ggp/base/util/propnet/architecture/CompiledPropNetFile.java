@@ -0,0 +1,300 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+
+
+/**
+ * Reads and writes {@link CompiledPropNet}s in a compact binary format, so
+ * that a propnet built for a game once can be loaded again without running
+ * the factory.
+ *
+ * The format stores the arrays of the compiled propnet as they are: the
+ * component types, the inputs and outputs in CSR form, the ordering and
+ * cycles, and the index tables of the base, input, legal and goal
+ * propositions. All the GDL (role names, base and input sentences, and legal
+ * moves) goes in a string table at the start of the file, and is referred to
+ * by its position in the table. Numbers are written big-endian, as by
+ * {@link DataOutputStream}; each array is preceded by its length.
+ *
+ * Files are read through a memory-mapped buffer, so loading one amounts to
+ * bulk copies out of the page cache plus parsing the GDL names.
+ */
+public final class CompiledPropNetFile
+{
+	private static final int MAGIC = 0x4747504E; // "GGPN"
+	/** Change this whenever the format changes, so old files are rebuilt. */
+	private static final int VERSION = 1;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private CompiledPropNetFile()
+	{
+	}
+
+	/**
+	 * Writes the compiled propnet to the given file, replacing it if it
+	 * exists. The file is written under a unique temporary name first and
+	 * then renamed, so that a concurrent reader never sees a partial file.
+	 */
+	public static void write(CompiledPropNet propNet, File file) throws IOException
+	{
+		StringTable strings = new StringTable();
+		int[] roleNames = new int[propNet.getRoles().size()];
+		for (int r = 0; r < roleNames.length; r++) {
+			roleNames[r] = strings.indexOf(propNet.getRoles().get(r).getName().toString());
+		}
+		int[] baseNames = strings.indicesOf(propNet.getBaseNames());
+		int[] inputNames = strings.indicesOf(propNet.getInputNames());
+		int[][] legalMoves = new int[roleNames.length][];
+		for (int r = 0; r < roleNames.length; r++) {
+			Move[] moves = propNet.getLegalMoves()[r];
+			legalMoves[r] = new int[moves.length];
+			for (int i = 0; i < moves.length; i++) {
+				legalMoves[r][i] = strings.indexOf(moves[i].getContents().toString());
+			}
+		}
+
+		// The temporary name is unique, so that concurrent writers of the same
+		// file don't write over each other's temporary files.
+		File tempFile = File.createTempFile(file.getName() + ".", ".tmp", file.getAbsoluteFile().getParentFile());
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(strings.size());
+			for (String s : strings.getStrings()) {
+				byte[] bytes = s.getBytes(UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+
+			writeInts(out, roleNames);
+			out.writeInt(propNet.getTypes().length);
+			out.write(propNet.getTypes());
+			writeInts(out, propNet.getInputOffsets());
+			writeInts(out, propNet.getInputs());
+			writeInts(out, propNet.getOutputOffsets());
+			writeInts(out, propNet.getOutputs());
+			writeInts(out, propNet.getOrdering());
+			writeInts(out, propNet.getCycles());
+
+			writeInts(out, propNet.getBaseComponents());
+			writeInts(out, propNet.getBaseTransitions());
+			writeInts(out, baseNames);
+			writeInts(out, propNet.getInitialBases());
+			writeInts(out, propNet.getInputComponents());
+			writeInts(out, inputNames);
+			for (int r = 0; r < roleNames.length; r++) {
+				writeInts(out, propNet.getLegalComponents()[r]);
+				writeInts(out, legalMoves[r]);
+				writeInts(out, propNet.getLegalInputs()[r]);
+				writeInts(out, propNet.getGoalComponents()[r]);
+				writeInts(out, propNet.getGoalValues()[r]);
+			}
+			out.writeInt(propNet.getTerminal());
+			out.close();
+		} catch (IOException e) {
+			if (out != null)
+				out.close();
+			tempFile.delete();
+			throw e;
+		}
+		if (!tempFile.renameTo(file)) {
+			// Windows won't rename over an existing file.
+			file.delete();
+			if (!tempFile.renameTo(file)) {
+				tempFile.delete();
+				throw new IOException("Could not rename " + tempFile + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * Reads a compiled propnet written by {@link #write(CompiledPropNet, File)}.
+	 *
+	 * @throws IOException if the file can't be read, or isn't a propnet file
+	 * of the current version.
+	 */
+	public static CompiledPropNet read(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer);
+		} catch (RuntimeException e) {
+			// A truncated or otherwise corrupt file
+			throw new IOException("Could not read propnet from " + file, e);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static CompiledPropNet read(ByteBuffer in) throws IOException
+	{
+		if (in.getInt() != MAGIC)
+			throw new IOException("Not a propnet file");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported propnet file version " + version);
+		String[] strings = new String[in.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			strings[i] = new String(bytes, UTF_8);
+		}
+		GdlParser parser = new GdlParser(strings);
+
+		int[] roleNames = readInts(in);
+		List<Role> roles = new ArrayList<Role>(roleNames.length);
+		for (int name : roleNames) {
+			roles.add(new Role((GdlConstant) parser.getTerm(name)));
+		}
+		byte[] types = new byte[in.getInt()];
+		in.get(types);
+		int[] inputOffsets = readInts(in);
+		int[] inputs = readInts(in);
+		int[] outputOffsets = readInts(in);
+		int[] outputs = readInts(in);
+		int[] ordering = readInts(in);
+		int[] cycles = readInts(in);
+
+		int[] baseComponents = readInts(in);
+		int[] baseTransitions = readInts(in);
+		GdlSentence[] baseNames = parser.getSentences(readInts(in));
+		int[] initialBases = readInts(in);
+		int[] inputComponents = readInts(in);
+		GdlSentence[] inputNames = parser.getSentences(readInts(in));
+
+		int[][] legalComponents = new int[roles.size()][];
+		Move[][] legalMoves = new Move[roles.size()][];
+		int[][] legalInputs = new int[roles.size()][];
+		int[][] goalComponents = new int[roles.size()][];
+		int[][] goalValues = new int[roles.size()][];
+		for (int r = 0; r < roles.size(); r++) {
+			legalComponents[r] = readInts(in);
+			int[] moveNames = readInts(in);
+			legalMoves[r] = new Move[moveNames.length];
+			for (int i = 0; i < moveNames.length; i++) {
+				legalMoves[r][i] = new Move(parser.getTerm(moveNames[i]));
+			}
+			legalInputs[r] = readInts(in);
+			goalComponents[r] = readInts(in);
+			goalValues[r] = readInts(in);
+		}
+		int terminal = in.getInt();
+
+		return new CompiledPropNet(roles, types, inputOffsets, inputs, outputOffsets, outputs,
+				ordering, cycles, baseComponents, baseTransitions, baseNames, initialBases,
+				inputComponents, inputNames, legalComponents, legalMoves, legalInputs,
+				goalComponents, goalValues, terminal);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] array) throws IOException
+	{
+		out.writeInt(array.length);
+		for (int x : array) {
+			out.writeInt(x);
+		}
+	}
+
+	private static int[] readInts(ByteBuffer in)
+	{
+		int[] array = new int[in.getInt()];
+		IntBuffer ints = in.asIntBuffer();
+		ints.get(array);
+		in.position(in.position() + 4 * array.length);
+		return array;
+	}
+
+	/** Numbers the distinct strings written to a file. */
+	private static class StringTable
+	{
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<String, Integer> indices = new HashMap<String, Integer>();
+
+		public int indexOf(String s)
+		{
+			Integer index = indices.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.add(s);
+				indices.put(s, index);
+			}
+			return index;
+		}
+
+		public int[] indicesOf(GdlSentence[] sentences)
+		{
+			int[] result = new int[sentences.length];
+			for (int i = 0; i < sentences.length; i++) {
+				result[i] = indexOf(sentences[i].toString());
+			}
+			return result;
+		}
+
+		public int size()
+		{
+			return strings.size();
+		}
+
+		public List<String> getStrings()
+		{
+			return strings;
+		}
+	}
+
+	/** Parses the GDL in the string table of a file being read. */
+	private static class GdlParser
+	{
+		private final String[] strings;
+
+		public GdlParser(String[] strings)
+		{
+			this.strings = strings;
+		}
+
+		public GdlSentence[] getSentences(int[] names) throws IOException
+		{
+			GdlSentence[] sentences = new GdlSentence[names.length];
+			for (int i = 0; i < names.length; i++) {
+				try {
+					sentences[i] = (GdlSentence) GdlFactory.create(strings[names[i]]);
+				} catch (Exception e) {
+					throw new IOException("Bad GDL in propnet file: " + strings[names[i]], e);
+				}
+			}
+			return sentences;
+		}
+
+		public GdlTerm getTerm(int name) throws IOException
+		{
+			try {
+				return GdlFactory.createTerm(strings[name]);
+			} catch (Exception e) {
+				throw new IOException("Bad GDL in propnet file: " + strings[name], e);
+			}
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package org.ggp.base.util.propnet.architecture;
+
+
+/**
+ * The DifferentialPropagator keeps the value of every component of a
+ * {@link CompiledPropNet} up to date incrementally. Rather than recomputing
+ * the whole network, it propagates only the changes: when a base or input
+ * proposition is set to a new value, the components that it feeds are
+ * queued, and only those whose value actually flips pass the change on.
+ *
+ * Each gate keeps a count of its true inputs, so that recomputing an And, Or
+ * or Not after one of its inputs changes takes constant time. Queued
+ * components are kept in a bitset over their positions in the topological
+ * ordering, and processed in a single sweep over it. Since a component only
+ * ever queues components that come after it in the ordering, every component
+ * is recomputed at most once per call to {@link #propagate()}, after all of
+ * its inputs have settled.
+ *
+ * Counting only works if the network has no cycles, so a propagator can only
+ * be created for an acyclic CompiledPropNet; see {@link #supports}.
+ *
+ * A propagator is not thread-safe. Since the compiled net is only read, any
+ * number of propagators can share it.
+ */
+public final class DifferentialPropagator
+{
+	private final byte[] types;
+	private final int[] inputOffsets;
+	private final int[] outputOffsets;
+	private final int[] outputs;
+	private final int[] ordering;
+	/** The position of every component in the ordering, or -1 if it isn't computed. */
+	private final int[] positions;
+
+	/** The value of every component of the propnet. */
+	private final boolean[] values;
+	/** The number of true inputs of every computed component. */
+	private final int[] trueInputs;
+
+	/** A bitset of the ordering positions awaiting recomputation. */
+	private final long[] queued;
+	/** The range of words of {@link #queued} that may have bits set. */
+	private int firstQueuedWord;
+	private int lastQueuedWord;
+
+	/**
+	 * A copy of the values and counters of a propagator, which it can later
+	 * be reset to with {@link DifferentialPropagator#restore(Snapshot)}.
+	 */
+	public static final class Snapshot
+	{
+		private final boolean[] values;
+		private final int[] trueInputs;
+
+		private Snapshot(boolean[] values, int[] trueInputs)
+		{
+			this.values = values;
+			this.trueInputs = trueInputs;
+		}
+	}
+
+	/**
+	 * Returns whether a DifferentialPropagator can be created for the given
+	 * propnet, i.e. whether it is acyclic.
+	 */
+	public static boolean supports(CompiledPropNet propNet)
+	{
+		return propNet.getCycles().length == 0;
+	}
+
+	/**
+	 * Creates a propagator whose base and input propositions are all false,
+	 * and whose other components are up to date with them.
+	 *
+	 * @throws IllegalArgumentException if the propnet has cycles.
+	 */
+	public DifferentialPropagator(CompiledPropNet propNet)
+	{
+		if (!supports(propNet))
+			throw new IllegalArgumentException("Differential propagation requires an acyclic propnet");
+
+		this.types = propNet.getTypes();
+		this.inputOffsets = propNet.getInputOffsets();
+		this.outputOffsets = propNet.getOutputOffsets();
+		this.outputs = propNet.getOutputs();
+		this.ordering = propNet.getOrdering();
+
+		int componentCount = propNet.getComponentCount();
+		this.positions = new int[componentCount];
+		for (int c = 0; c < componentCount; c++) {
+			positions[c] = -1;
+		}
+		for (int i = 0; i < ordering.length; i++) {
+			positions[ordering[i]] = i;
+		}
+
+		this.values = propNet.newValueVector();
+		propNet.evaluate(values);
+		this.trueInputs = new int[componentCount];
+		int[] inputs = propNet.getInputs();
+		for (int c : ordering) {
+			for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+				if (values[inputs[k]])
+					trueInputs[c]++;
+			}
+		}
+
+		this.queued = new long[(ordering.length + 63) >> 6];
+		this.firstQueuedWord = queued.length;
+		this.lastQueuedWord = -1;
+	}
+
+	/**
+	 * Returns the value vector, indexed by component id. The values of computed
+	 * components are only up to date after {@link #propagate()}. The array is
+	 * owned by the propagator and must not be modified.
+	 */
+	public boolean[] getValues()
+	{
+		return values;
+	}
+
+	/**
+	 * Sets the value of a base or input proposition. The change is only
+	 * propagated to the rest of the network by {@link #propagate()}.
+	 */
+	public void set(int component, boolean value)
+	{
+		if (values[component] != value) {
+			values[component] = value;
+			enqueueOutputs(component, value);
+		}
+	}
+
+	/**
+	 * Brings every computed component up to date with the base and input
+	 * propositions.
+	 */
+	public void propagate()
+	{
+		for (int w = firstQueuedWord; w <= lastQueuedWord; w++) {
+			long word;
+			while ((word = queued[w]) != 0L) {
+				queued[w] = word & (word - 1);
+				int c = ordering[(w << 6) + Long.numberOfTrailingZeros(word)];
+				boolean value = computeValue(c);
+				if (value != values[c]) {
+					values[c] = value;
+					enqueueOutputs(c, value);
+				}
+			}
+		}
+		firstQueuedWord = queued.length;
+		lastQueuedWord = -1;
+	}
+
+	/**
+	 * Returns a copy of the current values and counters. Changes that have not
+	 * been propagated yet are propagated first.
+	 */
+	public Snapshot snapshot()
+	{
+		propagate();
+		return new Snapshot(values.clone(), trueInputs.clone());
+	}
+
+	/**
+	 * Resets every value and counter to the given snapshot, which must have been
+	 * taken from this propagator. This costs two array copies, regardless of
+	 * how far the propagator has moved away from the snapshot.
+	 */
+	public void restore(Snapshot snapshot)
+	{
+		for (int w = firstQueuedWord; w <= lastQueuedWord; w++) {
+			queued[w] = 0L;
+		}
+		firstQueuedWord = queued.length;
+		lastQueuedWord = -1;
+		System.arraycopy(snapshot.values, 0, values, 0, values.length);
+		System.arraycopy(snapshot.trueInputs, 0, trueInputs, 0, trueInputs.length);
+	}
+
+	private boolean computeValue(int c)
+	{
+		switch (types[c]) {
+		case CompiledPropNet.AND:
+			return trueInputs[c] == inputOffsets[c + 1] - inputOffsets[c];
+		case CompiledPropNet.NOT:
+			return trueInputs[c] == 0;
+		default:
+			return trueInputs[c] > 0;
+		}
+	}
+
+	private void enqueueOutputs(int c, boolean value)
+	{
+		int delta = value ? 1 : -1;
+		for (int k = outputOffsets[c]; k < outputOffsets[c + 1]; k++) {
+			int output = outputs[k];
+			int position = positions[output];
+			// Transitions feed base propositions, which are only set from states.
+			if (position < 0)
+				continue;
+			trueInputs[output] += delta;
+			int w = position >> 6;
+			queued[w] |= 1L << position;
+			if (w < firstQueuedWord)
+				firstQueuedWord = w;
+			if (w > lastQueuedWord)
+				lastQueuedWord = w;
+		}
+	}
+}
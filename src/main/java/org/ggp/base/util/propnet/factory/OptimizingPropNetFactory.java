@@ -5,13 +5,21 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.ggp.base.util.Pair;
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
@@ -56,12 +64,11 @@ import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.architecture.components.Transition;
 import org.ggp.base.util.statemachine.Role;
 
-import com.google.common.collect.HashMultiset;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Multiset;
 
 
 /*
@@ -103,6 +110,11 @@ public class OptimizingPropNetFactory {
     static final private GdlConstant INPUT = GdlPool.getConstant("input");
 	static final private GdlProposition TEMP = GdlPool.getProposition(GdlPool.getConstant("TEMP"));
 
+	//Shared by the builds that aren't given a pool of their own
+	static final private ForkJoinPool DEFAULT_POOL = new ForkJoinPool();
+	//Smaller chunks of components aren't worth handing to another thread
+	static final private int MIN_CHUNK_SIZE = 1024;
+
 	/**
 	 * Creates a PropNet for the game with the given description.
 	 *
@@ -114,9 +126,24 @@ public class OptimizingPropNetFactory {
 	}
 
 	public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
+		return create(description, verbose, DEFAULT_POOL);
+	}
+
+	/**
+	 * Creates a PropNet for the game with the given description, using the
+	 * given pool for the parts of the work that can be done in parallel.
+	 * Sentence forms at the same depth of the dependency graph don't depend
+	 * on one another, so their rules are enumerated concurrently; the
+	 * components are then connected on the calling thread, one sentence form
+	 * at a time, as in a sequential build.
+	 *
+	 * @throws InterruptedException if the thread is interrupted during
+	 * PropNet creation.
+	 */
+	public static PropNet create(List<Gdl> description, boolean verbose, ForkJoinPool pool) throws InterruptedException {
 		System.out.println("Building propnet...");
 
-		long startTime = System.currentTimeMillis();
+		PhaseTimer timer = new PhaseTimer();
 
 		description = GdlCleaner.run(description);
 		description = DeORer.run(description);
@@ -124,6 +151,7 @@ public class OptimizingPropNetFactory {
 		description = Relationizer.run(description);
 
 		description = CondensationIsolator.run(description);
+		timer.endPhase("transforms");
 
 
 		if(verbose)
@@ -137,6 +165,7 @@ public class OptimizingPropNetFactory {
 		//See chinesecheckers4's "count" relation for an example of why this
 		//could be useful.
 		model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
+		timer.endPhase("domain model");
 
 		if(verbose)
 			System.out.println("Setting constants...");
@@ -144,6 +173,7 @@ public class OptimizingPropNetFactory {
 		ConstantChecker constantChecker = ConstantCheckerFactory.createWithForwardChaining(model);
 		if(verbose)
 			System.out.println("Done setting constants");
+		timer.endPhase("constants");
 
 		Set<String> sentenceFormNames = SentenceForms.getNames(model.getSentenceForms());
 		boolean usingBase = sentenceFormNames.contains("base");
@@ -161,6 +191,7 @@ public class OptimizingPropNetFactory {
 		}
 		ConcurrencyUtils.checkForInterruption();
 		List<SentenceForm> topologicalOrdering = getTopologicalOrdering(model.getSentenceForms(), dependencyGraph, usingBase, usingInput);
+		List<List<SentenceForm>> levels = getDependencyLevels(topologicalOrdering, dependencyGraph, usingBase, usingInput);
 		if(verbose)
 			System.out.println("done");
 
@@ -171,20 +202,41 @@ public class OptimizingPropNetFactory {
 		Constant falseComponent = new Constant(false);
 		Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
 		Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-		for(SentenceForm form : topologicalOrdering) {
+		for(List<SentenceForm> level : levels) {
 			ConcurrencyUtils.checkForInterruption();
 
-			if(verbose) {
-				System.out.print("Adding sentence form " + form);
-				System.out.flush();
+			//Recursive forms rewire the components they use when their
+			//temporary components are processed, so they're planned and
+			//added one at a time, after the rest of the level.
+			List<SentenceForm> constantForms = new ArrayList<SentenceForm>();
+			List<SentenceForm> plannedForms = new ArrayList<SentenceForm>();
+			List<SentenceForm> recursiveForms = new ArrayList<SentenceForm>();
+			for(SentenceForm form : level) {
+				if(constantChecker.isConstantForm(form)) {
+					constantForms.add(form);
+				} else if(dependencyGraph.get(form).contains(form)) {
+					recursiveForms.add(form);
+				} else {
+					plannedForms.add(form);
+				}
 			}
-			if(constantChecker.isConstantForm(form)) {
+			List<FunctionInfo> functionInfos = invokeAll(pool,
+					getFunctionInfoTasks(constantForms, constantChecker));
+			List<FormPlan> plans = invokeAll(pool,
+					getPlanningTasks(plannedForms, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues));
+
+			for(int i = 0; i < constantForms.size(); i++) {
+				SentenceForm form = constantForms.get(i);
+				ConcurrencyUtils.checkForInterruption();
+
 				if(verbose)
-					System.out.println(" (constant)");
-				//Only add it if it's important
+					System.out.println("Adding sentence form " + form + " (constant)");
+				//Only add it if it's important. Constant "next" sentences
+				//still need transitions into their base propositions.
 				if(form.getName().equals(LEGAL)
 						|| form.getName().equals(GOAL)
-						|| form.getName().equals(INIT)) {
+						|| form.getName().equals(INIT)
+						|| form.getName().equals(NEXT)) {
 					//Add it
 					for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
 						Proposition trueProp = new Proposition(trueSentence);
@@ -194,29 +246,39 @@ public class OptimizingPropNetFactory {
 					}
 				}
 
-				if(verbose)
-					System.out.println("Checking whether " + form + " is a functional constant...");
-				addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+				functionInfoMap.put(form, functionInfos.get(i));
 				addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+			}
+			for(FormPlan plan : plans) {
+				ConcurrencyUtils.checkForInterruption();
 
-				continue;
+				if(verbose)
+					System.out.println("Adding sentence form " + plan.form);
+				Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+				Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+				Collection<GdlSentence> sentences = addSentenceForm(plan, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(plan.form), temporaryComponents, temporaryNegations, constantChecker);
+				completedSentenceFormValues.put(plan.form, sentences);
+			}
+			for(SentenceForm form : recursiveForms) {
+				ConcurrencyUtils.checkForInterruption();
+
+				if(verbose)
+					System.out.println("Adding sentence form " + form);
+				//TODO: Adjust "recursive forms" appropriately
+				//Add a temporary sentence form thingy? ...
+				Set<SentenceForm> recursionForms = Collections.singleton(form);
+				Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+				Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+				FormPlan plan = planSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, recursionForms, functionInfoMap, constantChecker, completedSentenceFormValues);
+				Collection<GdlSentence> sentences = addSentenceForm(plan, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, recursionForms, temporaryComponents, temporaryNegations, constantChecker);
+				//TODO: Pass these over groups of multiple sentence forms
+				if(verbose && !temporaryComponents.isEmpty())
+					System.out.println("Processing temporary components...");
+				processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
+				completedSentenceFormValues.put(form, sentences);
 			}
-			if(verbose)
-				System.out.println();
-			//TODO: Adjust "recursive forms" appropriately
-			//Add a temporary sentence form thingy? ...
-			Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-			Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-			addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
-			//TODO: Pass these over groups of multiple sentence forms
-			if(verbose && !temporaryComponents.isEmpty())
-				System.out.println("Processing temporary components...");
-			processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-			addFormToCompletedValues(form, completedSentenceFormValues, components);
-			//if(verbose)
-				//TODO: Add this, but with the correct total number of components (not just Propositions)
-				//System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
 		}
+		timer.endPhase("sentence forms");
 		//Connect "next" to "true"
 		if(verbose)
 			System.out.println("Adding transitions...");
@@ -241,14 +303,183 @@ public class OptimizingPropNetFactory {
 		//how we want it to look
 		normalizePropositions(componentSet);
 		PropNet propnet = new PropNet(roles, componentSet);
+		timer.endPhase("wiring");
 		if(verbose) {
-			System.out.println("Done setting up propnet; took " + (System.currentTimeMillis() - startTime) + "ms, has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
+			System.out.println("Built propnet in " + timer.getTotalTime() + "ms (" + timer + ")");
+			System.out.println("Done setting up propnet; has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
 			System.out.println("Propnet has " +propnet.getNumAnds()+" ands; "+propnet.getNumOrs()+" ors; "+propnet.getNumNots()+" nots");
 		}
 		//System.out.println(propnet);
 		return propnet;
 	}
 
+	/**
+	 * Keeps track of how long each phase of building the propnet takes, so
+	 * that the slow phases on a large game show up in the log.
+	 */
+	private static class PhaseTimer {
+		private final long startTime = System.currentTimeMillis();
+		private long phaseStartTime = startTime;
+		private final StringBuilder phases = new StringBuilder();
+
+		public void endPhase(String name) {
+			long now = System.currentTimeMillis();
+			if(phases.length() > 0)
+				phases.append(", ");
+			phases.append(name).append(' ').append(now - phaseStartTime).append("ms");
+			phaseStartTime = now;
+		}
+
+		public long getTotalTime() {
+			return System.currentTimeMillis() - startTime;
+		}
+
+		@Override
+		public String toString() {
+			return phases.toString();
+		}
+	}
+
+	/**
+	 * Runs the tasks on the pool and returns their results, in order. If
+	 * there's only one task, or the pool only has one thread, the tasks are
+	 * run on the calling thread instead. If one of the tasks fails, or the
+	 * calling thread is interrupted, the rest are cancelled: the ones that
+	 * haven't started won't, and the ones that are running are interrupted.
+	 */
+	private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) throws InterruptedException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if(tasks.size() <= 1 || pool.getParallelism() <= 1) {
+				for(Callable<T> task : tasks) {
+					ConcurrencyUtils.checkForInterruption();
+					results.add(task.call());
+				}
+				return results;
+			}
+			//Cancelling a ForkJoinPool future doesn't interrupt a task that's
+			//already running, so the tasks look out for this flag themselves
+			AtomicBoolean cancelled = new AtomicBoolean(false);
+			List<CancellableTask<T>> running = new ArrayList<CancellableTask<T>>(tasks.size());
+			List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+			//The pool's threads outlive the match, so they don't have its GdlPool arena
+			for(Callable<T> task : tasks) {
+				CancellableTask<T> cancellable = new CancellableTask<T>(GdlPool.inCurrentArena(task), cancelled);
+				running.add(cancellable);
+				futures.add(pool.submit(cancellable));
+			}
+			boolean done = false;
+			try {
+				for(Future<T> future : futures)
+					results.add(future.get());
+				done = true;
+			} finally {
+				if(!done) {
+					cancelled.set(true);
+					for(CancellableTask<T> task : running)
+						task.interrupt();
+					for(Future<T> future : futures)
+						future.cancel(true);
+				}
+			}
+			return results;
+		} catch (ExecutionException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+			throw Throwables.propagate(e.getCause());
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			throw Throwables.propagate(e);
+		}
+	}
+
+	/**
+	 * A task that doesn't start once its build has been cancelled, and that
+	 * is interrupted if the build is cancelled while it's running. The
+	 * interrupt reaches the checks for interruption that the propnet code
+	 * already makes; it's cleared before the pool's thread moves on to
+	 * another task.
+	 */
+	private static class CancellableTask<T> implements Callable<T> {
+		private final Callable<T> task;
+		private final AtomicBoolean cancelled;
+		//The thread running the task, if it's running; guarded by this
+		private Thread runner;
+
+		public CancellableTask(Callable<T> task, AtomicBoolean cancelled) {
+			this.task = task;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		public T call() throws Exception {
+			synchronized(this) {
+				if(cancelled.get())
+					throw new CancellationException();
+				runner = Thread.currentThread();
+			}
+			try {
+				return task.call();
+			} finally {
+				synchronized(this) {
+					runner = null;
+				}
+				//An interrupt from cancelling this task mustn't leak into the next one
+				if(cancelled.get())
+					Thread.interrupted();
+			}
+		}
+
+		public synchronized void interrupt() {
+			if(runner != null)
+				runner.interrupt();
+		}
+	}
+
+	/**
+	 * Splits a large list of components into about as many chunks as the
+	 * pool has threads, for the optimization passes that go over them in
+	 * parallel.
+	 */
+	private static <T> List<List<T>> split(List<T> items, ForkJoinPool pool) {
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (items.size() + pool.getParallelism() - 1) / pool.getParallelism());
+		return Lists.partition(items, chunkSize);
+	}
+
+	private static List<Callable<FunctionInfo>> getFunctionInfoTasks(List<SentenceForm> forms,
+			final ConstantChecker constantChecker) {
+		List<Callable<FunctionInfo>> tasks = new ArrayList<Callable<FunctionInfo>>(forms.size());
+		for(final SentenceForm form : forms) {
+			tasks.add(new Callable<FunctionInfo>() {
+				@Override
+				public FunctionInfo call() throws InterruptedException {
+					return FunctionInfoImpl.create(form, constantChecker);
+				}
+			});
+		}
+		return tasks;
+	}
+
+	private static List<Callable<FormPlan>> getPlanningTasks(List<SentenceForm> forms,
+			final SentenceDomainModel model,
+			final Map<GdlSentence, Component> components,
+			final Map<GdlSentence, Component> negations,
+			final Constant trueComponent, final Constant falseComponent,
+			final boolean usingBase, final boolean usingInput,
+			final Map<SentenceForm, FunctionInfo> functionInfoMap, final ConstantChecker constantChecker,
+			final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) {
+		List<Callable<FormPlan>> tasks = new ArrayList<Callable<FormPlan>>(forms.size());
+		for(final SentenceForm form : forms) {
+			tasks.add(new Callable<FormPlan>() {
+				@Override
+				public FormPlan call() throws InterruptedException {
+					return planSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), functionInfoMap, constantChecker, completedSentenceFormValues);
+				}
+			});
+		}
+		return tasks;
+	}
+
 
 	private static void removeUselessBasePropositions(
 			Map<GdlSentence, Component> components, Map<GdlSentence, Component> negations, Constant trueComponent,
@@ -304,31 +535,6 @@ public class OptimizingPropNetFactory {
 	}
 
 
-	private static void addFormToCompletedValues(
-			SentenceForm form,
-			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
-			Map<GdlSentence, Component> components) throws InterruptedException {
-		//Kind of inefficient. Could do better by collecting these as we go,
-		//then adding them back into the CSFV map once the sentence forms are complete.
-		//completedSentenceFormValues.put(form, new ArrayList<GdlSentence>());
-		List<GdlSentence> sentences = new ArrayList<GdlSentence>();
-		for(GdlSentence sentence : components.keySet()) {
-			ConcurrencyUtils.checkForInterruption();
-			if(form.matches(sentence)) {
-				//The sentence has a node associated with it
-				sentences.add(sentence);
-			}
-		}
-		completedSentenceFormValues.put(form, sentences);
-	}
-
-
-	private static void addConstantsToFunctionInfo(SentenceForm form,
-			ConstantChecker constantChecker, Map<SentenceForm, FunctionInfo> functionInfoMap) throws InterruptedException {
-		functionInfoMap.put(form, FunctionInfoImpl.create(form, constantChecker));
-	}
-
-
 	private static void processTemporaryComponents(
 			Map<GdlSentence, Component> temporaryComponents,
 			Map<GdlSentence, Component> temporaryNegations,
@@ -828,65 +1034,102 @@ public class OptimizingPropNetFactory {
 		return ordering;
 	}
 
-	private static void addSentenceForm(SentenceForm form, SentenceDomainModel model,
+	/**
+	 * Groups the sentence forms of a topological ordering into levels, so
+	 * that each form only depends on forms in earlier levels (and maybe on
+	 * itself). The forms in a level keep their topological order.
+	 */
+	private static List<List<SentenceForm>> getDependencyLevels(
+			List<SentenceForm> topologicalOrdering,
+			Multimap<SentenceForm, SentenceForm> dependencyGraph, boolean usingBase, boolean usingInput) {
+		Map<SentenceForm, Integer> levelsByForm = new HashMap<SentenceForm, Integer>();
+		List<List<SentenceForm>> levels = new ArrayList<List<SentenceForm>>();
+		for(SentenceForm form : topologicalOrdering) {
+			int level = 0;
+			for(SentenceForm dependency : dependencyGraph.get(form)) {
+				if(!dependency.equals(form))
+					level = Math.max(level, levelsByForm.get(dependency) + 1);
+			}
+			//The same extra constraints as in the topological ordering
+			if(usingBase && (form.getName().equals(TRUE) || form.getName().equals(NEXT) || form.getName().equals(INIT)))
+				level = Math.max(level, levelsByForm.get(form.withName(BASE)) + 1);
+			if(usingInput && (form.getName().equals(DOES) || form.getName().equals(LEGAL)))
+				level = Math.max(level, levelsByForm.get(form.withName(INPUT)) + 1);
+
+			levelsByForm.put(form, level);
+			while(levels.size() <= level)
+				levels.add(new ArrayList<SentenceForm>());
+			levels.get(level).add(form);
+		}
+		return levels;
+	}
+
+	/**
+	 * The ways of making the sentences of one sentence form true, as found
+	 * by {@link #planSentenceForm}: for each sentence, the conjunctions of
+	 * other sentences and negated sentences that imply it.
+	 */
+	private static class FormPlan {
+		private final SentenceForm form;
+		private final Map<GdlSentence, List<List<Conjunct>>> conjunctions = new HashMap<GdlSentence, List<List<Conjunct>>>();
+
+		public FormPlan(SentenceForm form) {
+			this.form = form;
+		}
+
+		public void addConjunction(GdlSentence sentence, List<Conjunct> conjunction) {
+			List<List<Conjunct>> sentenceConjunctions = conjunctions.get(sentence);
+			if(sentenceConjunctions == null) {
+				sentenceConjunctions = new ArrayList<List<Conjunct>>();
+				conjunctions.put(sentence, sentenceConjunctions);
+			}
+			sentenceConjunctions.add(conjunction);
+		}
+	}
+
+	private static class Conjunct {
+		private final GdlSentence sentence;
+		private final boolean negated;
+
+		public Conjunct(GdlSentence sentence, boolean negated) {
+			this.sentence = sentence;
+			this.negated = negated;
+		}
+	}
+
+	/**
+	 * Enumerates the rule instances of a sentence form that could make its
+	 * sentences true, given the components built so far. This only reads
+	 * the components, so forms that don't depend on one another can be
+	 * planned in parallel; {@link #addSentenceForm} then builds the
+	 * components for the plan.
+	 */
+	private static FormPlan planSentenceForm(SentenceForm form, SentenceDomainModel model,
 			Map<GdlSentence, Component> components,
 			Map<GdlSentence, Component> negations,
 			Constant trueComponent, Constant falseComponent,
 			boolean usingBase, boolean usingInput,
 			Set<SentenceForm> recursionForms,
-			Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
 			Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
 			Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
 		//This is the meat of it (along with the entire Assignments class).
 		//We need to enumerate the possible propositions in the sentence form...
-		//We also need to hook up the sentence form to the inputs that can make it true.
+		//We also need to find the inputs that can make it true.
 		//We also try to optimize as we go, which means possibly removing the
 		//proposition if it isn't actually possible, or replacing it with
 		//true/false if it's a constant.
+		FormPlan plan = new FormPlan(form);
 
-		Set<GdlSentence> alwaysTrueSentences = model.getSentencesListedAsTrue(form);
-		Set<GdlRule> rules = model.getRules(form);
-
-		for(GdlSentence alwaysTrueSentence : alwaysTrueSentences) {
-			//We add the sentence as a constant
-			if(alwaysTrueSentence.getName().equals(LEGAL)
-					|| alwaysTrueSentence.getName().equals(NEXT)
-					|| alwaysTrueSentence.getName().equals(GOAL)) {
-				Proposition prop = new Proposition(alwaysTrueSentence);
-				//Attach to true
-				trueComponent.addOutput(prop);
-				prop.addInput(trueComponent);
-				//Still want the same components;
-				//we just don't want this to be anonymized
-			}
-			//Assign as true
-			components.put(alwaysTrueSentence, trueComponent);
-			negations.put(alwaysTrueSentence, falseComponent);
-			continue;
+		//Does/true sentences based on input/base don't come from rules
+		if((usingInput && form.getName().equals(DOES))
+				|| (usingBase && form.getName().equals(TRUE))) {
+			return plan;
 		}
 
-		//For does/true, make nodes based on input/base, if available
-		if(usingInput && form.getName().equals(DOES)) {
-			//Add only those propositions for which there is a corresponding INPUT
-			SentenceForm inputForm = form.withName(INPUT);
-			for (GdlSentence inputSentence : constantChecker.getTrueSentences(inputForm)) {
-				GdlSentence doesSentence = GdlPool.getRelation(DOES, inputSentence.getBody());
-				Proposition prop = new Proposition(doesSentence);
-				components.put(doesSentence, prop);
-			}
-			return;
-		}
-		if(usingBase && form.getName().equals(TRUE)) {
-			SentenceForm baseForm = form.withName(BASE);
-			for (GdlSentence baseSentence : constantChecker.getTrueSentences(baseForm)) {
-				GdlSentence trueSentence = GdlPool.getRelation(TRUE, baseSentence.getBody());
-				Proposition prop = new Proposition(trueSentence);
-				components.put(trueSentence, prop);
-			}
-			return;
-		}
+		//These will be assigned as true before the plan is added
+		Set<GdlSentence> alwaysTrueSentences = model.getSentencesListedAsTrue(form);
+		Set<GdlRule> rules = model.getRules(form);
 
-		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
 		for(GdlRule rule : rules) {
 			Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
 
@@ -907,7 +1150,8 @@ public class OptimizingPropNetFactory {
 				GdlSentence sentence = CommonTransforms.replaceVariables(rule.getHead(), assignment);
 
 				//Now we go through the conjuncts as before, but we wait to hook them up.
-				List<Component> componentsToConnect = new ArrayList<Component>(rule.arity());
+				List<Conjunct> conjunction = new ArrayList<Conjunct>(rule.arity());
+				boolean impossible = false;
 				for(GdlLiteral literal : rule.getBody()) {
 					if(literal instanceof GdlSentence) {
 						//Get the sentence post-substitutions
@@ -919,34 +1163,29 @@ public class OptimizingPropNetFactory {
 							if(!constantChecker.isTrueConstant(transformed)) {
 								List<GdlVariable> varsToChange = getVarsInConjunct(literal);
 								asnItr.changeOneInNext(varsToChange, assignment);
-								componentsToConnect.add(null);
+								impossible = true;
 							}
 							continue;
 						}
 
 						Component conj = components.get(transformed);
-						//If conj is null and this is a sentence form we're still handling,
-						//hook up to a temporary sentence form
-						if(conj == null) {
-							conj = temporaryComponents.get(transformed);
-						}
-						if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
-							//Set up a temporary component
-							Proposition tempProp = new Proposition(transformed);
-							temporaryComponents.put(transformed, tempProp);
-							conj = tempProp;
+						if(conj == null && alwaysTrueSentences.contains(transformed)) {
+							conj = trueComponent;
 						}
+						//If conj is null and this is a sentence form we're still handling,
+						//it will be hooked up to a temporary component
+						boolean temporary = (conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms));
 						//Let's say this is false; we want to backtrack and change the right variable
-						if(conj == null || isThisConstant(conj, falseComponent)) {
+						if((conj == null && !temporary) || isThisConstant(conj, falseComponent)) {
 							List<GdlVariable> varsInConjunct = getVarsInConjunct(literal);
 							asnItr.changeOneInNext(varsInConjunct, assignment);
 							//These last steps just speed up the process
 							//telling the factory to ignore this rule
-							componentsToConnect.add(null);
+							impossible = true;
 							continue; //look at all the other restrictions we'll face
 						}
 
-						componentsToConnect.add(conj);
+						conjunction.add(new Conjunct(transformed, false));
 					} else if(literal instanceof GdlNot) {
 						//Add a "not" if necessary
 						//Look up the negation
@@ -959,20 +1198,135 @@ public class OptimizingPropNetFactory {
 							if(constantChecker.isTrueConstant(transformed)) {
 								List<GdlVariable> varsToChange = getVarsInConjunct(literal);
 								asnItr.changeOneInNext(varsToChange, assignment);
-								componentsToConnect.add(null);
+								impossible = true;
 							}
 							continue;
 						}
 
 						Component conj = negations.get(transformed);
+						if(conj == null && alwaysTrueSentences.contains(transformed)) {
+							conj = falseComponent;
+						}
 						if(isThisConstant(conj, falseComponent)) {
 							//We need to change one of the variables inside
 							List<GdlVariable> varsInConjunct = getVarsInConjunct(internal);
 							asnItr.changeOneInNext(varsInConjunct, assignment);
 							//ignore this rule
-							componentsToConnect.add(null);
+							impossible = true;
 							continue;
 						}
+						if(conj == null
+								&& !SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)
+								&& components.get(transformed) == null) {
+							//So the positive can't possibly be true (unless we have recursion)
+							//and so this would be positive always
+							//We want to just skip this conjunct, so we continue to the next
+							continue; //to the next conjunct
+						}
+						conjunction.add(new Conjunct(transformed, true));
+					} else if(literal instanceof GdlDistinct) {
+						//Already handled; ignore
+					} else {
+						throw new RuntimeException("Unwanted GdlLiteral type");
+					}
+				}
+				if(!impossible) {
+					//None of the conjuncts is false, so neither is their conjunction
+					plan.addConjunction(sentence, conjunction);
+					//We'll want to make sure at least one of the non-constant
+					//components is changing
+					if(preventDuplicatesFromConstants) {
+						asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
+					}
+				}
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Adds the components for a planned sentence form, and returns the
+	 * sentences of the form that now have components.
+	 */
+	private static Collection<GdlSentence> addSentenceForm(FormPlan plan, SentenceDomainModel model,
+			Map<GdlSentence, Component> components,
+			Map<GdlSentence, Component> negations,
+			Constant trueComponent, Constant falseComponent,
+			boolean usingBase, boolean usingInput,
+			Set<SentenceForm> recursionForms,
+			Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
+			ConstantChecker constantChecker) throws InterruptedException {
+		SentenceForm form = plan.form;
+		Set<GdlSentence> addedSentences = new LinkedHashSet<GdlSentence>();
+		Set<GdlSentence> alwaysTrueSentences = model.getSentencesListedAsTrue(form);
+
+		for(GdlSentence alwaysTrueSentence : alwaysTrueSentences) {
+			//We add the sentence as a constant
+			if(alwaysTrueSentence.getName().equals(LEGAL)
+					|| alwaysTrueSentence.getName().equals(NEXT)
+					|| alwaysTrueSentence.getName().equals(GOAL)) {
+				Proposition prop = new Proposition(alwaysTrueSentence);
+				//Attach to true
+				trueComponent.addOutput(prop);
+				prop.addInput(trueComponent);
+				//Still want the same components;
+				//we just don't want this to be anonymized
+			}
+			//Assign as true
+			components.put(alwaysTrueSentence, trueComponent);
+			negations.put(alwaysTrueSentence, falseComponent);
+			addedSentences.add(alwaysTrueSentence);
+			continue;
+		}
+
+		//For does/true, make nodes based on input/base, if available
+		if(usingInput && form.getName().equals(DOES)) {
+			//Add only those propositions for which there is a corresponding INPUT
+			SentenceForm inputForm = form.withName(INPUT);
+			for (GdlSentence inputSentence : constantChecker.getTrueSentences(inputForm)) {
+				GdlSentence doesSentence = GdlPool.getRelation(DOES, inputSentence.getBody());
+				Proposition prop = new Proposition(doesSentence);
+				components.put(doesSentence, prop);
+				addedSentences.add(doesSentence);
+			}
+			return new ArrayList<GdlSentence>(addedSentences);
+		}
+		if(usingBase && form.getName().equals(TRUE)) {
+			SentenceForm baseForm = form.withName(BASE);
+			for (GdlSentence baseSentence : constantChecker.getTrueSentences(baseForm)) {
+				GdlSentence trueSentence = GdlPool.getRelation(TRUE, baseSentence.getBody());
+				Proposition prop = new Proposition(trueSentence);
+				components.put(trueSentence, prop);
+				addedSentences.add(trueSentence);
+			}
+			return new ArrayList<GdlSentence>(addedSentences);
+		}
+
+		Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
+		for(Entry<GdlSentence, List<List<Conjunct>>> entry : plan.conjunctions.entrySet()) {
+			GdlSentence sentence = entry.getKey();
+			for(List<Conjunct> conjunction : entry.getValue()) {
+				ConcurrencyUtils.checkForInterruption();
+
+				List<Component> componentsToConnect = new ArrayList<Component>(conjunction.size());
+				for(Conjunct conjunct : conjunction) {
+					GdlSentence transformed = conjunct.sentence;
+					if(!conjunct.negated) {
+						Component conj = components.get(transformed);
+						//If conj is null, this is a sentence form we're still handling,
+						//so hook up to a temporary sentence form
+						if(conj == null) {
+							conj = temporaryComponents.get(transformed);
+						}
+						if(conj == null) {
+							//Set up a temporary component
+							Proposition tempProp = new Proposition(transformed);
+							temporaryComponents.put(transformed, tempProp);
+							conj = tempProp;
+						}
+						componentsToConnect.add(conj);
+					} else {
+						Component conj = negations.get(transformed);
 						if(conj == null) {
 							conj = temporaryNegations.get(transformed);
 						}
@@ -999,55 +1353,33 @@ public class OptimizingPropNetFactory {
 							conj = not;
 						}
 						if(conj == null) {
+							//The plan only has these if the positive exists
 							Component positive = components.get(transformed);
-							//No, because then that will be attached to "negations", which could be bad
-
-							if(positive == null) {
-								//So the positive can't possibly be true (unless we have recurstion)
-								//and so this would be positive always
-								//We want to just skip this conjunct, so we continue to the next
-
-								continue; //to the next conjunct
-							}
 
 							//Check if we're sharing a component with another sentence with a negation
 							//(i.e. look for "nots" in our outputs and use those instead)
 							Not existingNotOutput = getNotOutput(positive);
 							if(existingNotOutput != null) {
-								componentsToConnect.add(existingNotOutput);
 								negations.put(transformed, existingNotOutput);
-								continue; //to the next conjunct
+								conj = existingNotOutput;
+							} else {
+								Not not = new Not();
+								not.addInput(positive);
+								positive.addOutput(not);
+								negations.put(transformed, not);
+								conj = not;
 							}
-
-							Not not = new Not();
-							not.addInput(positive);
-							positive.addOutput(not);
-							negations.put(transformed, not);
-							conj = not;
 						}
 						componentsToConnect.add(conj);
-					} else if(literal instanceof GdlDistinct) {
-						//Already handled; ignore
-					} else {
-						throw new RuntimeException("Unwanted GdlLiteral type");
-					}
-				}
-				if(!componentsToConnect.contains(null)) {
-					//Connect all the components
-					Proposition andComponent = new Proposition(TEMP);
-
-					andify(componentsToConnect, andComponent, trueComponent);
-					if(!isThisConstant(andComponent, falseComponent)) {
-						if(!inputsToOr.containsKey(sentence))
-							inputsToOr.put(sentence, new HashSet<Component>());
-						inputsToOr.get(sentence).add(andComponent);
-						//We'll want to make sure at least one of the non-constant
-						//components is changing
-						if(preventDuplicatesFromConstants) {
-							asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
-						}
 					}
 				}
+
+				//Connect all the components
+				Proposition andComponent = new Proposition(TEMP);
+				andify(componentsToConnect, andComponent, trueComponent);
+				if(!inputsToOr.containsKey(sentence))
+					inputsToOr.put(sentence, new HashSet<Component>());
+				inputsToOr.get(sentence).add(andComponent);
 			}
 		}
 
@@ -1071,6 +1403,7 @@ public class OptimizingPropNetFactory {
 			Proposition prop = new Proposition(sentence);
 			orify(realInputs, prop, falseComponent);
 			components.put(sentence, prop);
+			addedSentences.add(sentence);
 		}
 
 		//True/does sentences will have none of these rules, but
@@ -1083,9 +1416,11 @@ public class OptimizingPropNetFactory {
 
 				Proposition prop = new Proposition(sentence);
 				components.put(sentence, prop);
+				addedSentences.add(sentence);
 			}
 		}
 
+		return new ArrayList<GdlSentence>(addedSentences);
 	}
 
 
@@ -1263,16 +1598,23 @@ public class OptimizingPropNetFactory {
 	 * first turn of the game.
 	 */
 	public static void removeUnreachableBasesAndInputs(PropNet pn, Set<Proposition> basesTrueByInit) throws InterruptedException {
-		//If this doesn't contain a component, that's the equivalent of Type.NEITHER
-		Map<Component, Type> reachability = Maps.newHashMap();
-		//Keep track of the number of true inputs to AND gates and false inputs to
-		//OR gates.
-		Multiset<Component> numTrueInputs = HashMultiset.create();
-		Multiset<Component> numFalseInputs = HashMultiset.create();
-		Stack<Pair<Component, Type>> toAdd = new Stack<Pair<Component, Type>>();
+		removeUnreachableBasesAndInputs(pn, basesTrueByInit, DEFAULT_POOL);
+	}
+
+	/**
+	 * Like {@link #removeUnreachableBasesAndInputs(PropNet, Set)}, but the
+	 * types are inferred in rounds, with each round's components split among
+	 * the threads of the given pool.
+	 */
+	public static void removeUnreachableBasesAndInputs(PropNet pn, Set<Proposition> basesTrueByInit, ForkJoinPool pool) throws InterruptedException {
+		final Map<Component, Reachability> reachability = Maps.newHashMap();
+		for (Component c : pn.getComponents()) {
+			reachability.put(c, new Reachability());
+		}
+		List<Pair<Component, Type>> toAdd = new ArrayList<Pair<Component, Type>>();
 
 		//It's easier here if we get just the one-way version of the map
-		Map<Proposition, Proposition> legalsToInputs = Maps.newHashMap();
+		final Map<Proposition, Proposition> legalsToInputs = Maps.newHashMap();
 		for (Proposition legalProp : Iterables.concat(pn.getLegalPropositions().values())) {
 			Proposition inputProp = pn.getLegalInputMap().get(legalProp);
 			if (inputProp != null) {
@@ -1308,15 +1650,101 @@ public class OptimizingPropNetFactory {
 	    Proposition initProposition = pn.getInitProposition();
     	toAdd.add(Pair.of((Component) initProposition, Type.BOTH));
 
+    	//Each round sends the types found in the last round to the
+    	//children of the components that found them
     	while (!toAdd.isEmpty()) {
+    		List<Callable<List<Pair<Component, Type>>>> tasks = new ArrayList<Callable<List<Pair<Component, Type>>>>();
+    		for (final List<Pair<Component, Type>> chunk : split(toAdd, pool)) {
+    			tasks.add(new Callable<List<Pair<Component, Type>>>() {
+    				@Override
+    				public List<Pair<Component, Type>> call() throws InterruptedException {
+    					return propagateTypes(chunk, reachability, legalsToInputs);
+    				}
+    			});
+    		}
+    		toAdd = new ArrayList<Pair<Component, Type>>();
+    		for (List<Pair<Component, Type>> newEntries : invokeAll(pool, tasks)) {
+    			toAdd.addAll(newEntries);
+    		}
+    	}
+
+	    Constant trueConst = new Constant(true);
+	    Constant falseConst = new Constant(false);
+	    pn.addComponent(trueConst);
+	    pn.addComponent(falseConst);
+	    //Make them the input of all false/true components
+	    for(Entry<Component, Reachability> entry : reachability.entrySet()) {
+	        Type type = entry.getValue().getType();
+	        if(type == Type.TRUE || type == Type.FALSE) {
+	            Component c = entry.getKey();
+	            if (c instanceof Constant) {
+	            	//Don't bother trying to remove this
+	            	continue;
+	            }
+	            //Disconnect from inputs
+	            for(Component input : c.getInputs()) {
+	                input.removeOutput(c);
+	            }
+	            c.removeAllInputs();
+	            if(type == Type.TRUE ^ (c instanceof Not)) {
+	                c.addInput(trueConst);
+	                trueConst.addOutput(c);
+	            } else {
+                    c.addInput(falseConst);
+                    falseConst.addOutput(c);
+	            }
+	        }
+	    }
+
+	    optimizeAwayTrueAndFalse(pn, trueConst, falseConst);
+	}
+
+	/**
+	 * The types a component has been found to have so far, in
+	 * {@link OptimizingPropNetFactory#removeUnreachableBasesAndInputs(PropNet, Set, ForkJoinPool)},
+	 * along with the number of true inputs (for an AND gate) or false inputs
+	 * (for an OR gate) it has seen. Both can be updated from several threads.
+	 */
+	private static class Reachability {
+		private static final Type[] TYPES = Type.values();
+
+		//The ordinal of the type
+		private final AtomicInteger type = new AtomicInteger(Type.NEITHER.ordinal());
+		private final AtomicInteger numCountedInputs = new AtomicInteger();
+
+		public Type getType() {
+			return TYPES[type.get()];
+		}
+
+		/**
+		 * Adds the given type, and returns the part of it that wasn't
+		 * known before.
+		 */
+		public Type add(Type typeToAdd) {
+			while (true) {
+				Type oldType = getType();
+				if (oldType.includes(typeToAdd)) {
+					return Type.NEITHER;
+				}
+				if (type.compareAndSet(oldType.ordinal(), typeToAdd.with(oldType).ordinal())) {
+					return typeToAdd.minus(oldType);
+				}
+			}
+		}
+
+		public int countInput() {
+			return numCountedInputs.incrementAndGet();
+		}
+	}
+
+	private static List<Pair<Component, Type>> propagateTypes(List<Pair<Component, Type>> entries,
+			Map<Component, Reachability> reachability, Map<Proposition, Proposition> legalsToInputs) throws InterruptedException {
+		List<Pair<Component, Type>> toAdd = new ArrayList<Pair<Component, Type>>();
+		for (Pair<Component, Type> curEntry : entries) {
 			ConcurrencyUtils.checkForInterruption();
-    		Pair<Component, Type> curEntry = toAdd.pop();
     		Component curComp = curEntry.left;
     		Type newInputType = curEntry.right;
-    		Type oldType = reachability.get(curComp);
-    		if (oldType == null) {
-    			oldType = Type.NEITHER;
-    		}
+    		Reachability curReachability = reachability.get(curComp);
 
     		//We want to send only the new addition to our children,
     		//for consistency in our parent-true and parent-false
@@ -1334,8 +1762,7 @@ public class OptimizingPropNetFactory {
     			typeToAdd = newInputType.opposite();
     		} else if (curComp instanceof And) {
     			if (newInputType.hasTrue) {
-    				numTrueInputs.add(curComp);
-    				if (numTrueInputs.count(curComp) == curComp.getInputs().size()) {
+    				if (curReachability.countInput() == curComp.getInputs().size()) {
     					typeToAdd = Type.TRUE;
     				}
     			}
@@ -1344,8 +1771,7 @@ public class OptimizingPropNetFactory {
     			}
     		} else if (curComp instanceof Or) {
     			if (newInputType.hasFalse) {
-    				numFalseInputs.add(curComp);
-    				if (numFalseInputs.count(curComp) == curComp.getInputs().size()) {
+    				if (curReachability.countInput() == curComp.getInputs().size()) {
     					typeToAdd = Type.FALSE;
     				}
     			}
@@ -1356,17 +1782,13 @@ public class OptimizingPropNetFactory {
     			throw new RuntimeException("Unhandled component type " + curComp.getClass());
     		}
 
-    		if (oldType.includes(typeToAdd)) {
+    		typeToAdd = curReachability.add(typeToAdd);
+    		if (typeToAdd == Type.NEITHER) {
     			//We don't know anything new about curComp
     			continue;
     		}
-    		reachability.put(curComp, typeToAdd.with(oldType));
-    		typeToAdd = typeToAdd.minus(oldType);
-    		if (typeToAdd == Type.NEITHER) {
-    			throw new RuntimeException("Something's messed up here");
-    		}
 
-    		//Add all our children to the stack
+    		//Add all our children to the next round
     		for (Component output : curComp.getOutputs()) {
     			toAdd.add(Pair.of(output, typeToAdd));
     		}
@@ -1377,37 +1799,8 @@ public class OptimizingPropNetFactory {
 				}
 				toAdd.add(Pair.of((Component) inputProp, typeToAdd));
 			}
-    	}
-
-	    Constant trueConst = new Constant(true);
-	    Constant falseConst = new Constant(false);
-	    pn.addComponent(trueConst);
-	    pn.addComponent(falseConst);
-	    //Make them the input of all false/true components
-	    for(Entry<Component, Type> entry : reachability.entrySet()) {
-	        Type type = entry.getValue();
-	        if(type == Type.TRUE || type == Type.FALSE) {
-	            Component c = entry.getKey();
-	            if (c instanceof Constant) {
-	            	//Don't bother trying to remove this
-	            	continue;
-	            }
-	            //Disconnect from inputs
-	            for(Component input : c.getInputs()) {
-	                input.removeOutput(c);
-	            }
-	            c.removeAllInputs();
-	            if(type == Type.TRUE ^ (c instanceof Not)) {
-	                c.addInput(trueConst);
-	                trueConst.addOutput(c);
-	            } else {
-                    c.addInput(falseConst);
-                    falseConst.addOutput(c);
-	            }
-	        }
-	    }
-
-	    optimizeAwayTrueAndFalse(pn, trueConst, falseConst);
+		}
+		return toAdd;
 	}
 
     /**
@@ -1418,25 +1811,50 @@ public class OptimizingPropNetFactory {
 	 * TODO: Currently fails on propnets with cycles.
 	 * @param pn
 	 */
-	public static void lopUselessLeaves(PropNet pn) {
+	public static void lopUselessLeaves(PropNet pn) throws InterruptedException {
+		lopUselessLeaves(pn, DEFAULT_POOL);
+	}
+
+	/**
+	 * Like {@link #lopUselessLeaves(PropNet)}, but searching backwards from
+	 * all the components found so far at once, on the threads of the given
+	 * pool.
+	 */
+	public static void lopUselessLeaves(PropNet pn, ForkJoinPool pool) throws InterruptedException {
 		//Approach: Collect useful propositions based on a backwards
 		//search from goal/legal/terminal (passing through transitions)
-		Set<Component> usefulComponents = new HashSet<Component>();
-		//TODO: Also try with queue?
-		Stack<Component> toAdd = new Stack<Component>();
-		toAdd.add(pn.getTerminalProposition());
+		final Set<Component> usefulComponents = Collections.newSetFromMap(new ConcurrentHashMap<Component, Boolean>());
 		usefulComponents.add(pn.getInitProposition()); //Can't remove it...
-		for(Set<Proposition> goalProps : pn.getGoalPropositions().values())
-			toAdd.addAll(goalProps);
-		for(Set<Proposition> legalProps : pn.getLegalPropositions().values())
-			toAdd.addAll(legalProps);
+		List<Component> toAdd = new ArrayList<Component>();
+		if(usefulComponents.add(pn.getTerminalProposition()))
+			toAdd.add(pn.getTerminalProposition());
+		for(Proposition goalProp : Iterables.concat(pn.getGoalPropositions().values()))
+			if(usefulComponents.add(goalProp))
+				toAdd.add(goalProp);
+		for(Proposition legalProp : Iterables.concat(pn.getLegalPropositions().values()))
+			if(usefulComponents.add(legalProp))
+				toAdd.add(legalProp);
 		while(!toAdd.isEmpty()) {
-			Component curComp = toAdd.pop();
-			if(usefulComponents.contains(curComp))
-				//We've already added it
-				continue;
-			usefulComponents.add(curComp);
-			toAdd.addAll(curComp.getInputs());
+			List<Callable<List<Component>>> tasks = new ArrayList<Callable<List<Component>>>();
+			for(final List<Component> chunk : split(toAdd, pool)) {
+				tasks.add(new Callable<List<Component>>() {
+					@Override
+					public List<Component> call() throws InterruptedException {
+						List<Component> newComponents = new ArrayList<Component>();
+						for(Component curComp : chunk) {
+							ConcurrencyUtils.checkForInterruption();
+							for(Component input : curComp.getInputs()) {
+								if(usefulComponents.add(input))
+									newComponents.add(input);
+							}
+						}
+						return newComponents;
+					}
+				});
+			}
+			toAdd = new ArrayList<Component>();
+			for(List<Component> newComponents : invokeAll(pool, tasks))
+				toAdd.addAll(newComponents);
 		}
 
 		//Remove the components not marked as useful
@@ -1477,10 +1895,59 @@ public class OptimizingPropNetFactory {
 	 *
 	 * @param pn
 	 */
-	public static void removeAnonymousPropositions(PropNet pn) {
+	public static void removeAnonymousPropositions(PropNet pn) throws InterruptedException {
+		removeAnonymousPropositions(pn, DEFAULT_POOL);
+	}
+
+	/**
+	 * Like {@link #removeAnonymousPropositions(PropNet)}, but finding the
+	 * propositions to remove on the threads of the given pool.
+	 */
+	public static void removeAnonymousPropositions(PropNet pn, ForkJoinPool pool) throws InterruptedException {
+		List<Callable<Pair<List<Proposition>, List<Proposition>>>> tasks = new ArrayList<Callable<Pair<List<Proposition>, List<Proposition>>>>();
+		for(final List<Proposition> chunk : split(new ArrayList<Proposition>(pn.getPropositions()), pool)) {
+			tasks.add(new Callable<Pair<List<Proposition>, List<Proposition>>>() {
+				@Override
+				public Pair<List<Proposition>, List<Proposition>> call() {
+					return findAnonymousPropositions(chunk);
+				}
+			});
+		}
 		List<Proposition> toSplice = new ArrayList<Proposition>();
 		List<Proposition> toReplaceWithFalse = new ArrayList<Proposition>();
-		for(Proposition p : pn.getPropositions()) {
+		for(Pair<List<Proposition>, List<Proposition>> found : invokeAll(pool, tasks)) {
+			toSplice.addAll(found.left);
+			toReplaceWithFalse.addAll(found.right);
+		}
+		for(Proposition p : toSplice) {
+			//Get the inputs and outputs...
+			Set<Component> inputs = p.getInputs();
+			Set<Component> outputs = p.getOutputs();
+			//Remove the proposition...
+			pn.removeComponent(p);
+			//And splice the inputs and outputs back together
+			if(inputs.size() > 1)
+				System.err.println("Programmer made a bad assumption here... might lead to trouble?");
+			for(Component input : inputs) {
+				for(Component output : outputs) {
+					input.addOutput(output);
+					output.addInput(input);
+				}
+			}
+		}
+		for(Proposition p : toReplaceWithFalse) {
+			System.out.println("Should be replacing " + p + " with false, but should do that in the OPNF, really; better equipped to do that there");
+		}
+	}
+
+	/**
+	 * Returns the propositions with no special meaning to splice out of the
+	 * propnet, and the ones with no inputs to replace with false.
+	 */
+	private static Pair<List<Proposition>, List<Proposition>> findAnonymousPropositions(List<Proposition> propositions) {
+		List<Proposition> toSplice = new ArrayList<Proposition>();
+		List<Proposition> toReplaceWithFalse = new ArrayList<Proposition>();
+		for(Proposition p : propositions) {
 			//If it's important, continue to the next proposition
 			if(p.getInputs().size() == 1 && p.getSingleInput() instanceof Transition)
 				//It's a base proposition
@@ -1509,24 +1976,6 @@ public class OptimizingPropNetFactory {
 			//System.out.println("Removing " + p);
 			toSplice.add(p);
 		}
-		for(Proposition p : toSplice) {
-			//Get the inputs and outputs...
-			Set<Component> inputs = p.getInputs();
-			Set<Component> outputs = p.getOutputs();
-			//Remove the proposition...
-			pn.removeComponent(p);
-			//And splice the inputs and outputs back together
-			if(inputs.size() > 1)
-				System.err.println("Programmer made a bad assumption here... might lead to trouble?");
-			for(Component input : inputs) {
-				for(Component output : outputs) {
-					input.addOutput(output);
-					output.addInput(input);
-				}
-			}
-		}
-		for(Proposition p : toReplaceWithFalse) {
-			System.out.println("Should be replacing " + p + " with false, but should do that in the OPNF, really; better equipped to do that there");
-		}
+		return Pair.of(toSplice, toReplaceWithFalse);
 	}
 }
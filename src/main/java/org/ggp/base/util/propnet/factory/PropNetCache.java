@@ -0,0 +1,108 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.scrambler.GdlScrambler;
+import org.ggp.base.util.gdl.scrambler.NoOpGdlScrambler;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.CompiledPropNetFile;
+
+/**
+ * An on-disk cache of compiled propnets, so that a game we've played before
+ * doesn't have to go through the {@link OptimizingPropNetFactory} again.
+ *
+ * Each game gets its own directory in the cache, named by a hash of its
+ * rules, with the propnet stored in it in the format of
+ * {@link CompiledPropNetFile}. The rules are hashed in a normalized form:
+ * each rule is rendered by a non-scrambling {@link GdlScrambler}, and the
+ * rules are sorted, so that the key doesn't depend on the formatting or the
+ * order of the rule sheet. The role sentences are kept in their original
+ * order, since that's the order of the roles in the propnet.
+ *
+ * Loading a cached propnet skips the factory entirely; if the cache entry
+ * is missing or can't be read, the propnet is built and the entry written
+ * again. Writes are atomic, so several players can share one cache.
+ */
+public final class PropNetCache {
+	private static final String PROPNET_FILE = "propnet.bin";
+
+	private final File theCacheDirectory;
+
+	public PropNetCache(File theCacheDirectory) {
+		this.theCacheDirectory = theCacheDirectory;
+	}
+
+	/**
+	 * Returns a cache in the ".ggp-propnetcache" directory in the user's
+	 * home directory.
+	 */
+	public static PropNetCache getDefault() {
+		return new PropNetCache(new File(System.getProperty("user.home"), ".ggp-propnetcache"));
+	}
+
+	/**
+	 * Returns the compiled propnet for the game with the given rules, loading
+	 * it from the cache if it's there, and otherwise building it and adding
+	 * it to the cache.
+	 *
+	 * @throws InterruptedException if the thread is interrupted while the
+	 * propnet is being built.
+	 */
+	public CompiledPropNet getPropNet(List<Gdl> description) throws InterruptedException {
+		File theGameDirectory = new File(theCacheDirectory, getKey(description));
+		File thePropNetFile = new File(theGameDirectory, PROPNET_FILE);
+		if (thePropNetFile.exists()) {
+			try {
+				long startTime = System.currentTimeMillis();
+				CompiledPropNet propNet = CompiledPropNetFile.read(thePropNetFile);
+				System.out.println("Loaded cached propnet in " + (System.currentTimeMillis() - startTime) + "ms");
+				return propNet;
+			} catch (IOException e) {
+				// Fall through and rebuild it.
+				System.err.println("Could not load cached propnet: " + e);
+			}
+		}
+
+		CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(description));
+		try {
+			theGameDirectory.mkdirs();
+			CompiledPropNetFile.write(propNet, thePropNetFile);
+		} catch (IOException e) {
+			// The cache is only an optimization; carry on without it.
+			System.err.println("Could not cache propnet: " + e);
+		}
+		return propNet;
+	}
+
+	/**
+	 * Returns the key under which the propnet for the given rules is cached:
+	 * the SHA1 hash of the normalized rules, in hexadecimal.
+	 */
+	public static String getKey(List<Gdl> description) {
+		GdlScrambler theRenderer = new NoOpGdlScrambler();
+		StringBuilder theRoles = new StringBuilder();
+		List<String> theRules = new ArrayList<String>(description.size());
+		for (Gdl gdl : description) {
+			String theRule = theRenderer.scramble(gdl);
+			if (gdl instanceof GdlRelation && ((GdlRelation) gdl).getName() == GdlPool.ROLE) {
+				theRoles.append(theRule).append('\n');
+			}
+			theRules.add(theRule);
+		}
+		Collections.sort(theRules);
+
+		StringBuilder theNormalizedRules = theRoles.append('\n');
+		for (String theRule : theRules) {
+			theNormalizedRules.append(theRule).append('\n');
+		}
+		return BaseHashing.computeSHA1Hash(theNormalizedRules.toString());
+	}
+}
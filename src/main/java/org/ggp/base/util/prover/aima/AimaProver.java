@@ -1,231 +1,394 @@
 package org.ggp.base.util.prover.aima;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
-import org.ggp.base.util.gdl.grammar.GdlDistinct;
-import org.ggp.base.util.gdl.grammar.GdlLiteral;
-import org.ggp.base.util.gdl.grammar.GdlNot;
-import org.ggp.base.util.gdl.grammar.GdlOr;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
 import org.ggp.base.util.gdl.transforms.DistinctAndNotMover;
 import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.cache.ProverCache;
+import org.ggp.base.util.prover.aima.knowledge.ContextIndex;
 import org.ggp.base.util.prover.aima.knowledge.KnowledgeBase;
-import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
-import org.ggp.base.util.prover.aima.substituter.Substituter;
-import org.ggp.base.util.prover.aima.substitution.Substitution;
-import org.ggp.base.util.prover.aima.unifier.Unifier;
+import org.ggp.base.util.prover.aima.renamer.SlotRenamer;
+import org.ggp.base.util.prover.aima.renamer.SlotRenamer.Clause;
+import org.ggp.base.util.prover.aima.renamer.SlotRenamer.Distinct;
+import org.ggp.base.util.prover.aima.renamer.SlotRenamer.Not;
+import org.ggp.base.util.prover.aima.renamer.SlotRenamer.Or;
+import org.ggp.base.util.prover.aima.substitution.Bindings;
 
 import com.google.common.collect.Sets;
 
-
+/**
+ * A backward-chaining prover over the rules of a game.
+ * <p>
+ * Rules are compiled once, with their variables numbered into slots by the
+ * {@link SlotRenamer}, and a proof keeps its variable bindings in a single
+ * {@link Bindings} array with an undo trail. Using a rule takes a fresh
+ * block of slots rather than a renamed copy of the rule, and backtracking
+ * undoes bindings rather than discarding substitutions, so the inner loop
+ * of a proof allocates very little.
+ * <p>
+ * Answers to subqueries are cached by the subquery with its variables
+ * renamed into a canonical form: for the whole game if they don't depend
+ * on the state or the moves, and for the rest of the query otherwise. A
+ * {@link StateCache} also keeps the answers that depend on the state but
+ * not the moves, across all the queries asked about one state.
+ * {@link SubstitutionAimaProver} is the same prover built on {@link
+ * org.ggp.base.util.prover.aima.substitution.Substitution}s.
+ */
 public final class AimaProver implements Prover
 {
 
 	private final KnowledgeBase knowledgeBase;
+	private final Map<GdlRule, Clause> clauses;
 
 	private final ProverCache fixedAnswerCache = ProverCache.createMultiThreadedCache();
 
-	public AimaProver(List<Gdl> description)
-	{
-		description = DistinctAndNotMover.run(description);
-		knowledgeBase = new KnowledgeBase(Sets.newHashSet(description));
-	}
-
-	private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
+	// What the answers to a subquery depend on, besides the rules.
+	private static final int CONSTANT = 0;
+	private static final int DEPENDS_ON_STATE = 1;
+	private static final int DEPENDS_ON_MOVES = 2;
+	// Answers cut short by recursion are only good for the query they were found in.
+	private static final int DEPENDS_ON_QUERY = DEPENDS_ON_STATE | DEPENDS_ON_MOVES;
+
+	/**
+	 * A cache for the answers that hold in one state, whatever moves are made
+	 * in it, such as the answers to subqueries about lines or open cells that
+	 * the legal, goal, terminal and next queries all ask. Queries asked with
+	 * the same StateCache share these answers.
+	 * <p>
+	 * A StateCache is opened for the contents of one state, and is only valid
+	 * for queries whose context is those contents, plus any does sentences.
+	 * It holds nothing else, so it is dropped along with the last reference
+	 * to it. StateCaches are thread-safe.
+	 */
+	public static final class StateCache
 	{
-		LinkedList<GdlLiteral> goals = new LinkedList<GdlLiteral>();
-		goals.add(query);
+		private final Set<GdlSentence> state;
+		private final ProverCache cache = ProverCache.createMultiThreadedCache();
 
-		Set<Substitution> answers = new HashSet<Substitution>();
-		Set<GdlSentence> alreadyAsking = new HashSet<GdlSentence>();
-		ask(goals, new KnowledgeBase(context), new Substitution(), ProverCache.createSingleThreadedCache(),
-				new VariableRenamer(), askOne, answers, alreadyAsking);
-
-		Set<GdlSentence> results = new HashSet<GdlSentence>();
-		for (Substitution theta : answers)
+		private StateCache(Set<GdlSentence> state)
 		{
-			results.add(Substituter.substitute(query, theta));
+			this.state = state;
 		}
 
-		return results;
+		/** Returns the contents of the state this cache was opened for. */
+		public Set<GdlSentence> getState()
+		{
+			return state;
+		}
 	}
 
-	// Returns true iff the result is constant across all possible states of the game.
-	private boolean ask(LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, Set<GdlSentence> alreadyAsking)
+	public AimaProver(List<Gdl> description)
 	{
-		if (goals.size() == 0)
+		description = DistinctAndNotMover.run(description);
+		knowledgeBase = new KnowledgeBase(Sets.newHashSet(description));
+
+		// Rules are interned by the GdlPool, so these are the same objects
+		// the knowledge base returns.
+		clauses = new HashMap<GdlRule, Clause>();
+		for (Gdl gdl : description)
 		{
-			results.add(theta);
-			return true;
+			GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
+			clauses.put(rule, SlotRenamer.compile(rule));
 		}
-		else
-		{
-			GdlLiteral literal = goals.removeFirst();
-			GdlLiteral qPrime = Substituter.substitute(literal, theta);
+	}
 
-			boolean isConstant;
+	private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne, StateCache stateCache)
+	{
+		Clause clause = SlotRenamer.compile(query);
+		Proof proof = new Proof(new ContextIndex(context), (stateCache == null) ? null : stateCache.cache);
+		int frame = proof.bindings.allocate(clause.slotCount);
+
+		Collector results = new Collector(clause.head, frame, askOne);
+		results.variables = clause.variables;
+		proof.solve(new Goals(new Object[] { clause.head }, 0, frame, null), results);
+		return results.answers;
+	}
 
-			if (qPrime instanceof GdlDistinct)
-			{
-				GdlDistinct distinct = (GdlDistinct) qPrime;
-				isConstant = askDistinct(distinct, goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
-			}
-			else if (qPrime instanceof GdlNot)
-			{
-				GdlNot not = (GdlNot) qPrime;
-				isConstant = askNot(not, goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
-			}
-			else if (qPrime instanceof GdlOr)
-			{
-				GdlOr or = (GdlOr) qPrime;
-				isConstant = askOr(or, goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
-			}
-			else
-			{
-				GdlSentence sentence = (GdlSentence) qPrime;
-				isConstant = askSentence(sentence, goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
-			}
+	@Override
+	public Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> context)
+	{
+		return ask(query, context, false, null);
+	}
 
-			goals.addFirst(literal);
-			return isConstant;
-		}
+	/**
+	 * Like {@link #askAll(GdlSentence, Set)}, sharing answers with the other
+	 * queries asked with the given StateCache. The context must be the state
+	 * the cache was opened for, plus any does sentences.
+	 */
+	public Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> context, StateCache stateCache)
+	{
+		return ask(query, context, false, stateCache);
 	}
 
 	@Override
-	public Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> context)
+	public GdlSentence askOne(GdlSentence query, Set<GdlSentence> context)
 	{
-		return ask(query, context, false);
+		Set<GdlSentence> results = ask(query, context, true, null);
+		return (results.size() > 0) ? results.iterator().next() : null;
 	}
 
-	// Returns true iff the result is constant across all possible states of the game.
-	private boolean askDistinct(GdlDistinct distinct, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, Set<GdlSentence> alreadyAsking)
+	@Override
+	public boolean prove(GdlSentence query, Set<GdlSentence> context)
 	{
-		if (!distinct.getArg1().equals(distinct.getArg2()))
-		{
-			return ask(goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
+		return askOne(query, context) != null;
+	}
+
+	/**
+	 * Like {@link #prove(GdlSentence, Set)}, sharing answers with the other
+	 * queries asked with the given StateCache. The context must be the state
+	 * the cache was opened for, plus any does sentences.
+	 */
+	public boolean prove(GdlSentence query, Set<GdlSentence> context, StateCache stateCache)
+	{
+		return ask(query, context, true, stateCache).size() > 0;
+	}
+
+	/**
+	 * Opens a cache for the answers that hold in the state with the given
+	 * contents, to share between the queries asked about it.
+	 */
+	public StateCache openStateCache(Set<GdlSentence> state)
+	{
+		return new StateCache(state);
+	}
+
+	private static int getDependencies(GdlSentence sentence) {
+		GdlConstant name = sentence.getName();
+		if (name == GdlPool.TRUE) {
+			return DEPENDS_ON_STATE;
+		} else if (name == GdlPool.DOES) {
+			return DEPENDS_ON_MOVES;
 		}
-		return true;
+		return CONSTANT;
 	}
 
-	// Returns true iff the result is constant across all possible states of the game.
-	private boolean askNot(GdlNot not, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, Set<GdlSentence> alreadyAsking)
+	/**
+	 * The literals left to prove: the rest of a body, starting at the given
+	 * index, with its slots in the given frame, followed by the goals that
+	 * come after that body.
+	 */
+	private static final class Goals
 	{
-		LinkedList<GdlLiteral> notGoals = new LinkedList<GdlLiteral>();
-		notGoals.add(not.getBody());
+		final Object[] body;
+		final int index;
+		final int frame;
+		final Goals next;
 
-		Set<Substitution> notResults = new HashSet<Substitution>();
-		boolean isConstant = true;
-		isConstant &= ask(notGoals, context, theta, cache, renamer, true, notResults, alreadyAsking);
+		Goals(Object[] body, int index, int frame, Goals next)
+		{
+			this.body = body;
+			this.index = index;
+			this.frame = frame;
+			this.next = next;
+		}
 
-		if (notResults.size() == 0)
+		Goals rest()
 		{
-			isConstant &= ask(goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
+			return (index + 1 < body.length) ? new Goals(body, index + 1, frame, next) : next;
 		}
-		return isConstant;
 	}
 
-	@Override
-	public GdlSentence askOne(GdlSentence query, Set<GdlSentence> context)
+	/**
+	 * Collects the instances of a literal for which the goals are proved, or
+	 * only whether they are proved at all if there is no literal.
+	 */
+	private static final class Collector
 	{
-		Set<GdlSentence> results = ask(query, context, true);
-		return (results.size() > 0) ? results.iterator().next() : null;
+		final Object literal;
+		final int frame;
+		final boolean askOne;
+		final Set<GdlSentence> answers = new HashSet<GdlSentence>();
+		boolean found = false;
+		/** The names to give the literal's unbound variables, or null for canonical names. */
+		GdlVariable[] variables = null;
+
+		Collector(Object literal, int frame, boolean askOne)
+		{
+			this.literal = literal;
+			this.frame = frame;
+			this.askOne = askOne;
+		}
+
+		boolean isDone()
+		{
+			return askOne && found;
+		}
 	}
 
-	// Returns true iff the result is constant across all possible states of the game.
-	private boolean askOr(GdlOr or, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, Set<GdlSentence> alreadyAsking)
+	/**
+	 * The state of a single query. Every method leaves the bindings as it
+	 * found them.
+	 */
+	private final class Proof
 	{
-		boolean isConstant = true;
-		for (int i = 0; i < or.arity(); i++)
+		final Bindings bindings = new Bindings();
+		final ContextIndex context;
+		final ProverCache stateCache;
+		final ProverCache cache = ProverCache.createSingleThreadedCache();
+		final Set<GdlSentence> alreadyAsking = new HashSet<GdlSentence>();
+
+		Proof(ContextIndex context, ProverCache stateCache)
+		{
+			this.context = context;
+			this.stateCache = stateCache;
+		}
+
+		// Returns what the result depends on, as a combination of the DEPENDS_ON flags.
+		int solve(Goals goals, Collector results)
 		{
-			goals.addFirst(or.get(i));
-			isConstant &= ask(goals, context, theta, cache, renamer, askOne, results, alreadyAsking);
-			goals.removeFirst();
+			if (goals == null)
+			{
+				results.found = true;
+				if (results.literal != null)
+				{
+					results.answers.add(bindings.toSentence(results.literal, results.frame, results.variables));
+				}
+				return CONSTANT;
+			}
+
+			Object literal = goals.body[goals.index];
+			if (literal instanceof Distinct)
+			{
+				Distinct distinct = (Distinct) literal;
+				if (!bindings.identical(distinct.arg1, goals.frame, distinct.arg2, goals.frame))
+				{
+					return solve(goals.rest(), results);
+				}
+				return CONSTANT;
+			}
+			else if (literal instanceof Not)
+			{
+				Object body = ((Not) literal).body;
+				Collector notResults = new Collector(null, goals.frame, true);
+				int dependencies = solve(new Goals(new Object[] { body }, 0, goals.frame, null), notResults);
 
-			if (askOne && (results.size() > 0))
+				if (!notResults.found)
+				{
+					dependencies |= solve(goals.rest(), results);
+				}
+				return dependencies;
+			}
+			else if (literal instanceof Or)
+			{
+				Goals rest = goals.rest();
+				int dependencies = CONSTANT;
+				for (Object[] disjunct : ((Or) literal).disjuncts)
+				{
+					dependencies |= solve(new Goals(disjunct, 0, goals.frame, rest), results);
+					if (results.isDone())
+					{
+						break;
+					}
+				}
+				return dependencies;
+			}
+			else
 			{
-				break;
+				return askSentence(literal, goals.frame, goals.rest(), results);
 			}
 		}
-		return isConstant;
-	}
 
-	// Returns true iff the result is constant across all possible states of the game.
-	private boolean askSentence(GdlSentence sentence, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, Set<GdlSentence> alreadyAsking)
-	{
-		GdlSentence varRenamedSentence = new VariableRenamer().rename(sentence);
-		if (!fixedAnswerCache.contains(varRenamedSentence) && !cache.contains(varRenamedSentence))
+		// Returns what the result depends on, as a combination of the DEPENDS_ON flags.
+		int askSentence(Object literal, int frame, Goals rest, Collector results)
 		{
-			//Prevent infinite loops on certain recursive queries.
-			if(alreadyAsking.contains(sentence)) {
-				return false;
+			GdlSentence varRenamedSentence = bindings.toSentence(literal, frame);
+			Set<GdlSentence> answers = fixedAnswerCache.getAnswers(varRenamedSentence);
+			int dependencies = CONSTANT;
+			if (answers == null && stateCache != null)
+			{
+				answers = stateCache.getAnswers(varRenamedSentence);
+				dependencies = DEPENDS_ON_STATE;
+			}
+			if (answers == null)
+			{
+				answers = cache.getAnswers(varRenamedSentence);
+				dependencies = DEPENDS_ON_QUERY;
 			}
-			alreadyAsking.add(sentence);
-			List<GdlRule> candidates = new ArrayList<GdlRule>();
-			candidates.addAll(knowledgeBase.fetch(sentence));
-			candidates.addAll(context.fetch(sentence));
-			boolean isConstant = !isTrueOrDoesSentence(sentence);
-
-			Set<Substitution> sentenceResults = new HashSet<Substitution>();
-			for (GdlRule rule : candidates)
+			if (answers == null)
 			{
-				GdlRule r = renamer.rename(rule);
-				Substitution thetaPrime = Unifier.unify(r.getHead(), sentence);
+				//Prevent infinite loops on certain recursive queries.
+				if (alreadyAsking.contains(varRenamedSentence)) {
+					return DEPENDS_ON_QUERY;
+				}
+				alreadyAsking.add(varRenamedSentence);
+				dependencies = getDependencies(varRenamedSentence);
 
-				if (thetaPrime != null)
+				Collector sentenceResults = new Collector(literal, frame, false);
+				for (GdlRule rule : knowledgeBase.fetch(varRenamedSentence))
+				{
+					Clause clause = clauses.get(rule);
+					int mark = bindings.mark();
+					int ruleFrame = bindings.allocate(clause.slotCount);
+					if (bindings.unify(clause.head, ruleFrame, literal, frame))
+					{
+						Goals body = (clause.body.length == 0) ? null : new Goals(clause.body, 0, ruleFrame, null);
+						dependencies |= solve(body, sentenceResults);
+					}
+					bindings.undo(mark);
+					bindings.release(ruleFrame);
+				}
+				// Context facts are ground, so they are their own answers.
+				for (GdlSentence fact : context.fetch(varRenamedSentence))
 				{
-					LinkedList<GdlLiteral> sentenceGoals = new LinkedList<GdlLiteral>();
-					for (int i = 0; i < r.arity(); i++)
+					int mark = bindings.mark();
+					if (bindings.unify(literal, frame, fact, 0))
 					{
-						sentenceGoals.add(r.get(i));
+						sentenceResults.found = true;
+						sentenceResults.answers.add(fact);
 					}
+					bindings.undo(mark);
+				}
 
-					isConstant &= ask(sentenceGoals, context, theta.compose(thetaPrime), cache, renamer, false, sentenceResults, alreadyAsking);
+				answers = sentenceResults.answers;
+				if (dependencies == CONSTANT) {
+					fixedAnswerCache.putAnswers(varRenamedSentence, answers);
+				} else if (dependencies == DEPENDS_ON_STATE && stateCache != null) {
+					stateCache.putAnswers(varRenamedSentence, answers);
+				} else {
+					cache.putAnswers(varRenamedSentence, answers);
 				}
-			}
 
-			if (isConstant) {
-				fixedAnswerCache.put(sentence, varRenamedSentence, sentenceResults);
-			} else {
-				cache.put(sentence, varRenamedSentence, sentenceResults);
+				alreadyAsking.remove(varRenamedSentence);
 			}
 
-			alreadyAsking.remove(sentence);
+			for (GdlSentence answer : answers)
+			{
+				int mark = bindings.mark();
+				int answerFrame = bindings.allocate(0);
+				if (unifyAnswer(literal, frame, answer))
+				{
+					dependencies |= solve(rest, results);
+				}
+				bindings.undo(mark);
+				bindings.release(answerFrame);
+				if (results.isDone())
+				{
+					break;
+				}
+			}
+			return dependencies;
 		}
 
-		List<Substitution> cachedResults = fixedAnswerCache.get(sentence, varRenamedSentence);
-		boolean isConstant = (cachedResults != null);
-		if (cachedResults == null) {
-			cachedResults = cache.get(sentence, varRenamedSentence);
-		}
-		for (Substitution thetaPrime : cachedResults)
+		private boolean unifyAnswer(Object literal, int frame, GdlSentence answer)
 		{
-			isConstant &= ask(goals, context, theta.compose(thetaPrime), cache, renamer, askOne, results, alreadyAsking);
-			if (askOne && (results.size() > 0))
+			if (answer.isGround())
 			{
-				break;
+				return bindings.unify(literal, frame, answer, 0);
 			}
+			// Only unsafe rules give answers with variables left in them.
+			Clause clause = SlotRenamer.compile(answer);
+			return bindings.unify(clause.head, bindings.allocate(clause.slotCount), literal, frame);
 		}
-		return isConstant;
-	}
-
-	private boolean isTrueOrDoesSentence(GdlSentence sentence) {
-		GdlConstant name = sentence.getName();
-		return name == GdlPool.TRUE || name == GdlPool.DOES;
-	}
-
-	@Override
-	public boolean prove(GdlSentence query, Set<GdlSentence> context)
-	{
-		return askOne(query, context) != null;
 	}
 
 }
@@ -54,6 +54,24 @@ public final class ProverCache
 		return new ArrayList<Substitution>(results);
 	}
 
+	/**
+	 * Returns the answers stored for the given sentence, or null if there
+	 * are none. The sentence and the answers are as given to {@link #putAnswers}.
+	 */
+	public Set<GdlSentence> getAnswers(GdlSentence renamedSentence)
+	{
+		return contents.get(renamedSentence);
+	}
+
+	/**
+	 * Stores the answers to a sentence, given as instances of it, under the
+	 * sentence with its variables renamed into a canonical form.
+	 */
+	public void putAnswers(GdlSentence renamedSentence, Set<GdlSentence> answers)
+	{
+		contents.put(renamedSentence, answers);
+	}
+
 	public void put(GdlSentence sentence, GdlSentence renamedSentence,
 			Set<Substitution> answers)
 	{
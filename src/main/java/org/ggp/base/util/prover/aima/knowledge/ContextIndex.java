@@ -0,0 +1,90 @@
+package org.ggp.base.util.prover.aima.knowledge;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * The ground facts given as the context of a query, such as the contents of
+ * a state and the moves made in it, indexed like the facts of a {@link KnowledgeBase}.
+ * <p>
+ * Queries are asked with a new context each time, so this is built lazily:
+ * a ground query is answered by the set of facts itself, and the facts are
+ * only indexed by relation name and first argument when a query with
+ * variables is asked.
+ * <p>
+ * A ContextIndex is not thread-safe.
+ */
+public final class ContextIndex
+{
+	private final Set<GdlSentence> facts;
+	private Map<GdlConstant, List<GdlSentence>> factsByName;
+	private Map<GdlConstant, Map<Object, List<GdlSentence>>> factsByFirstArgument;
+
+	public ContextIndex(Set<GdlSentence> facts)
+	{
+		this.facts = facts;
+	}
+
+	/**
+	 * Returns the facts that may unify with the given sentence.
+	 */
+	public List<GdlSentence> fetch(GdlSentence sentence)
+	{
+		if (sentence.isGround())
+		{
+			return facts.contains(sentence) ? Collections.singletonList(sentence) : Collections.<GdlSentence>emptyList();
+		}
+
+		if (factsByName == null)
+		{
+			buildIndex();
+		}
+		GdlConstant name = sentence.getName();
+		Object key = KnowledgeBase.getIndexKey(sentence, 0);
+		List<GdlSentence> result;
+		if (key == null)
+		{
+			result = factsByName.get(name);
+		}
+		else
+		{
+			Map<Object, List<GdlSentence>> byFirstArgument = factsByFirstArgument.get(name);
+			result = (byFirstArgument == null) ? null : byFirstArgument.get(key);
+		}
+		return (result == null) ? Collections.<GdlSentence>emptyList() : result;
+	}
+
+	private void buildIndex()
+	{
+		factsByName = new HashMap<GdlConstant, List<GdlSentence>>();
+		factsByFirstArgument = new HashMap<GdlConstant, Map<Object, List<GdlSentence>>>();
+		for (GdlSentence fact : facts)
+		{
+			GdlConstant name = fact.getName();
+			if (!factsByName.containsKey(name))
+			{
+				factsByName.put(name, new ArrayList<GdlSentence>());
+				factsByFirstArgument.put(name, new HashMap<Object, List<GdlSentence>>());
+			}
+			factsByName.get(name).add(fact);
+
+			Object key = KnowledgeBase.getIndexKey(fact, 0);
+			if (key != null)
+			{
+				Map<Object, List<GdlSentence>> byFirstArgument = factsByFirstArgument.get(name);
+				if (!byFirstArgument.containsKey(key))
+				{
+					byFirstArgument.put(key, new ArrayList<GdlSentence>());
+				}
+				byFirstArgument.get(key).add(fact);
+			}
+		}
+	}
+}
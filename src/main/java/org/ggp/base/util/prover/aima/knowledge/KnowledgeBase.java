@@ -1,6 +1,7 @@
 package org.ggp.base.util.prover.aima.knowledge;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,42 +9,254 @@ import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
 
-
+/**
+ * The rules of a game, indexed for lookup by the head of the rule.
+ * <p>
+ * Rules are indexed by relation name, then by the first {@link #INDEXED_ARGUMENTS}
+ * arguments of their head, as in Prolog's argument indexing: a constant
+ * argument is indexed by its value, and a function by its name and arity.
+ * A query whose argument is known in the same way only gets the rules whose
+ * head could match it there. Facts with a ground head are also kept in a
+ * hash table, so a ground query finds the fact it matches, if any, without
+ * looking at the others.
+ * <p>
+ * A KnowledgeBase is immutable once built, so it can be read by any number
+ * of threads without locking.
+ */
 public final class KnowledgeBase
 {
-	private final Map<GdlConstant, List<GdlRule>> contents;
+	/** The number of head arguments indexed, after the relation name. */
+	public static final int INDEXED_ARGUMENTS = 2;
+	/** Lists of rules shorter than this aren't worth indexing further. */
+	private static final int MIN_RULES_TO_INDEX = 4;
+
+	/** Every rule, by relation name. */
+	private final Map<GdlConstant, IndexNode> contents;
+	/** Every rule but the ground facts, by relation name. */
+	private final Map<GdlConstant, IndexNode> nonGroundContents;
+	private final Map<GdlSentence, GdlRule> groundFacts;
 
 	public KnowledgeBase(Set<? extends Gdl> description)
 	{
-		contents = new HashMap<GdlConstant, List<GdlRule>>();
+		Map<GdlConstant, List<GdlRule>> rules = new HashMap<GdlConstant, List<GdlRule>>();
+		Map<GdlConstant, List<GdlRule>> nonGroundRules = new HashMap<GdlConstant, List<GdlRule>>();
+		groundFacts = new HashMap<GdlSentence, GdlRule>();
 		for (Gdl gdl : description)
 		{
 			GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
 			GdlConstant key = rule.getHead().getName();
 
-			if (!contents.containsKey(key))
+			add(rules, key, rule);
+			if (rule.arity() == 0 && rule.getHead().isGround())
 			{
-				contents.put(key, new ArrayList<GdlRule>());
+				groundFacts.put(rule.getHead(), rule);
+			}
+			else
+			{
+				add(nonGroundRules, key, rule);
 			}
-			contents.get(key).add(rule);
 		}
+
+		contents = buildIndex(rules);
+		nonGroundContents = buildIndex(nonGroundRules);
 	}
 
-	public synchronized List<GdlRule> fetch(GdlSentence sentence)
+	/**
+	 * Returns the rules whose head may unify with the given sentence, in the
+	 * order they were given in. The list is unmodifiable.
+	 */
+	public List<GdlRule> fetch(GdlSentence sentence)
 	{
 		GdlConstant key = sentence.getName();
 
-		if (contents.containsKey(key))
+		if (sentence.isGround())
+		{
+			GdlRule fact = groundFacts.get(sentence);
+			IndexNode node = nonGroundContents.get(key);
+			List<GdlRule> rules = (node == null) ? Collections.<GdlRule>emptyList() : node.fetch(sentence, 0);
+			if (fact == null)
+			{
+				return rules;
+			}
+			else if (rules.isEmpty())
+			{
+				return Collections.singletonList(fact);
+			}
+			List<GdlRule> result = new ArrayList<GdlRule>(rules.size() + 1);
+			result.add(fact);
+			result.addAll(rules);
+			return Collections.unmodifiableList(result);
+		}
+
+		IndexNode node = contents.get(key);
+		return (node == null) ? Collections.<GdlRule>emptyList() : node.fetch(sentence, 0);
+	}
+
+	/**
+	 * Returns the key under which the given argument of a sentence is
+	 * indexed: the constant itself, the name and arity of a function, or
+	 * null for a variable or a missing argument, which match any key.
+	 */
+	static Object getIndexKey(GdlSentence sentence, int argument)
+	{
+		if (argument >= sentence.arity())
+		{
+			return null;
+		}
+		GdlTerm term = sentence.get(argument);
+		if (term instanceof GdlConstant)
+		{
+			return term;
+		}
+		else if (term instanceof GdlFunction)
+		{
+			GdlFunction function = (GdlFunction) term;
+			return new Functor(function.getName(), function.arity());
+		}
+		return null;
+	}
+
+	private static void add(Map<GdlConstant, List<GdlRule>> rules, GdlConstant key, GdlRule rule)
+	{
+		if (!rules.containsKey(key))
+		{
+			rules.put(key, new ArrayList<GdlRule>());
+		}
+		rules.get(key).add(rule);
+	}
+
+	private static Map<GdlConstant, IndexNode> buildIndex(Map<GdlConstant, List<GdlRule>> rules)
+	{
+		Map<GdlConstant, IndexNode> index = new HashMap<GdlConstant, IndexNode>();
+		for (Map.Entry<GdlConstant, List<GdlRule>> entry : rules.entrySet())
+		{
+			index.put(entry.getKey(), new IndexNode(entry.getValue(), 0));
+		}
+		return index;
+	}
+
+	/**
+	 * The rules whose heads match a query on the arguments before the given
+	 * one, split further by the key of the given argument where worthwhile.
+	 */
+	private static final class IndexNode
+	{
+		private final List<GdlRule> rules;
+		/** The rules that match any key of the argument, if split. */
+		private final List<GdlRule> unkeyedRules;
+		/** The rules split by the key of the argument, or null if not split. */
+		private final Map<Object, IndexNode> children;
+		/** The same rules indexed on the next argument, if not split. */
+		private final IndexNode next;
+
+		IndexNode(List<GdlRule> rules, int argument)
 		{
-			return contents.get(key);
+			this.rules = Collections.unmodifiableList(rules);
+			if (argument >= INDEXED_ARGUMENTS || rules.size() < MIN_RULES_TO_INDEX)
+			{
+				this.unkeyedRules = null;
+				this.children = null;
+				this.next = null;
+				return;
+			}
+
+			// Rules that match any key go in every list, so that each list
+			// keeps the order the rules were given in.
+			Map<Object, List<GdlRule>> rulesByKey = new HashMap<Object, List<GdlRule>>();
+			List<GdlRule> unkeyed = new ArrayList<GdlRule>();
+			for (GdlRule rule : rules)
+			{
+				Object key = getIndexKey(rule.getHead(), argument);
+				if (key == null)
+				{
+					unkeyed.add(rule);
+					for (List<GdlRule> keyed : rulesByKey.values())
+					{
+						keyed.add(rule);
+					}
+				}
+				else
+				{
+					if (!rulesByKey.containsKey(key))
+					{
+						rulesByKey.put(key, new ArrayList<GdlRule>(unkeyed));
+					}
+					rulesByKey.get(key).add(rule);
+				}
+			}
+
+			if (rulesByKey.isEmpty() || (rulesByKey.size() == 1 && unkeyed.isEmpty()))
+			{
+				// This argument doesn't tell the rules apart; maybe the next one does.
+				this.unkeyedRules = null;
+				this.children = null;
+				this.next = new IndexNode(rules, argument + 1);
+			}
+			else
+			{
+				this.unkeyedRules = Collections.unmodifiableList(unkeyed);
+				this.children = new HashMap<Object, IndexNode>();
+				for (Map.Entry<Object, List<GdlRule>> entry : rulesByKey.entrySet())
+				{
+					children.put(entry.getKey(), new IndexNode(entry.getValue(), argument + 1));
+				}
+				this.next = null;
+			}
 		}
-		else
+
+		List<GdlRule> fetch(GdlSentence sentence, int argument)
+		{
+			if (next != null)
+			{
+				return next.fetch(sentence, argument + 1);
+			}
+			if (children == null)
+			{
+				return rules;
+			}
+			Object key = getIndexKey(sentence, argument);
+			if (key == null)
+			{
+				return rules;
+			}
+			IndexNode child = children.get(key);
+			return (child == null) ? unkeyedRules : child.fetch(sentence, argument + 1);
+		}
+	}
+
+	/** The index key of a function argument. */
+	private static final class Functor
+	{
+		private final GdlConstant name;
+		private final int arity;
+
+		Functor(GdlConstant name, int arity)
+		{
+			this.name = name;
+			this.arity = arity;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Functor))
+			{
+				return false;
+			}
+			Functor other = (Functor) o;
+			return name == other.name && arity == other.arity;
+		}
+
+		@Override
+		public int hashCode()
 		{
-			return new ArrayList<GdlRule>();
+			return 31 * name.hashCode() + arity;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,220 @@
+package org.ggp.base.util.prover.aima.renamer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlOr;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+
+/**
+ * Compiles rules and queries into a form where each variable is replaced
+ * by a dense integer slot, numbered from zero within its clause. Renaming a
+ * clause apart for a new use then only takes a fresh block of slots in a
+ * {@link org.ggp.base.util.prover.aima.substitution.Bindings}, instead of
+ * building a renamed copy of the clause.
+ * <p>
+ * Terms and sentences without variables are left as they are, as the GDL
+ * they came from; everything else is compiled into the nested classes
+ * below.
+ */
+public final class SlotRenamer
+{
+	/** A variable, compiled to its slot in the clause. */
+	public static final class Slot
+	{
+		public final int index;
+
+		private Slot(int index)
+		{
+			this.index = index;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "#" + index;
+		}
+	}
+
+	/** A function or relation with variables in it. */
+	public static final class Compound
+	{
+		public final GdlConstant name;
+		public final Object[] args;
+		/** True for a relation, false for a function. */
+		public final boolean sentence;
+
+		private Compound(GdlConstant name, Object[] args, boolean sentence)
+		{
+			this.name = name;
+			this.args = args;
+			this.sentence = sentence;
+		}
+	}
+
+	public static final class Distinct
+	{
+		public final Object arg1;
+		public final Object arg2;
+
+		private Distinct(Object arg1, Object arg2)
+		{
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+		}
+	}
+
+	public static final class Not
+	{
+		public final Object body;
+
+		private Not(Object body)
+		{
+			this.body = body;
+		}
+	}
+
+	public static final class Or
+	{
+		/** Each disjunct, on its own, as a body of length one. */
+		public final Object[][] disjuncts;
+
+		private Or(Object[][] disjuncts)
+		{
+			this.disjuncts = disjuncts;
+		}
+	}
+
+	/** A rule or query, with the number of slots its variables take. */
+	public static final class Clause
+	{
+		public final Object head;
+		public final Object[] body;
+		public final int slotCount;
+		/** The variable compiled into each slot. */
+		public final GdlVariable[] variables;
+
+		private Clause(Object head, Object[] body, GdlVariable[] variables)
+		{
+			this.head = head;
+			this.body = body;
+			this.slotCount = variables.length;
+			this.variables = variables;
+		}
+	}
+
+	private final Map<GdlVariable, Slot> slots = new HashMap<GdlVariable, Slot>();
+
+	private SlotRenamer()
+	{
+	}
+
+	public static Clause compile(GdlRule rule)
+	{
+		SlotRenamer renamer = new SlotRenamer();
+		Object head = renamer.compileSentence(rule.getHead());
+		Object[] body = new Object[rule.arity()];
+		for (int i = 0; i < body.length; i++)
+		{
+			body[i] = renamer.compileLiteral(rule.get(i));
+		}
+		return new Clause(head, body, renamer.getVariables());
+	}
+
+	/**
+	 * Compiles a query into a clause with the query as its head and an
+	 * empty body.
+	 */
+	public static Clause compile(GdlSentence query)
+	{
+		SlotRenamer renamer = new SlotRenamer();
+		Object head = renamer.compileSentence(query);
+		return new Clause(head, new Object[0], renamer.getVariables());
+	}
+
+	private GdlVariable[] getVariables()
+	{
+		GdlVariable[] variables = new GdlVariable[slots.size()];
+		for (Map.Entry<GdlVariable, Slot> entry : slots.entrySet())
+		{
+			variables[entry.getValue().index] = entry.getKey();
+		}
+		return variables;
+	}
+
+	private Object compileLiteral(GdlLiteral literal)
+	{
+		if (literal instanceof GdlDistinct)
+		{
+			GdlDistinct distinct = (GdlDistinct) literal;
+			return new Distinct(compileTerm(distinct.getArg1()), compileTerm(distinct.getArg2()));
+		}
+		else if (literal instanceof GdlNot)
+		{
+			return new Not(compileLiteral(((GdlNot) literal).getBody()));
+		}
+		else if (literal instanceof GdlOr)
+		{
+			GdlOr or = (GdlOr) literal;
+			Object[][] disjuncts = new Object[or.arity()][];
+			for (int i = 0; i < disjuncts.length; i++)
+			{
+				disjuncts[i] = new Object[] { compileLiteral(or.get(i)) };
+			}
+			return new Or(disjuncts);
+		}
+		else
+		{
+			return compileSentence((GdlSentence) literal);
+		}
+	}
+
+	private Object compileSentence(GdlSentence sentence)
+	{
+		if (sentence.isGround())
+		{
+			return sentence;
+		}
+		GdlRelation relation = (GdlRelation) sentence;
+		Object[] args = new Object[relation.arity()];
+		for (int i = 0; i < args.length; i++)
+		{
+			args[i] = compileTerm(relation.get(i));
+		}
+		return new Compound(relation.getName(), args, true);
+	}
+
+	private Object compileTerm(GdlTerm term)
+	{
+		if (term instanceof GdlVariable)
+		{
+			Slot slot = slots.get(term);
+			if (slot == null)
+			{
+				slot = new Slot(slots.size());
+				slots.put((GdlVariable) term, slot);
+			}
+			return slot;
+		}
+		else if (term.isGround())
+		{
+			return term;
+		}
+		GdlFunction function = (GdlFunction) term;
+		Object[] args = new Object[function.arity()];
+		for (int i = 0; i < args.length; i++)
+		{
+			args[i] = compileTerm(function.get(i));
+		}
+		return new Compound(function.getName(), args, false);
+	}
+}
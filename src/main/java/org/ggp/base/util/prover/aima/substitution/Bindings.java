@@ -0,0 +1,404 @@
+package org.ggp.base.util.prover.aima.substitution;
+
+import java.util.Arrays;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.prover.aima.renamer.SlotRenamer.Compound;
+import org.ggp.base.util.prover.aima.renamer.SlotRenamer.Slot;
+
+/**
+ * The variable bindings of a proof in progress, kept in an array with an
+ * undo trail, as in the Warren Abstract Machine. This replaces building a
+ * new {@link Substitution} at every resolution step.
+ * <p>
+ * Each use of a clause compiled by {@link org.ggp.base.util.prover.aima.renamer.SlotRenamer}
+ * gets a frame: a block of cells, one per slot, starting at the frame's
+ * base index. A compiled term is only meaningful together with the frame
+ * its slots refer to. A cell is either unbound or bound to a term and the
+ * frame of that term, so bindings share structure rather than copying it.
+ * <p>
+ * Every binding is recorded on the trail. {@link #undo(int)} unbinds the
+ * cells bound since a {@link #mark()}, in time proportional to the number
+ * of bindings undone, and frames are released in stack order, so
+ * backtracking allocates nothing.
+ * <p>
+ * Bindings are not thread-safe.
+ */
+public final class Bindings
+{
+	private static final GdlVariable[] CANONICAL_VARIABLES = new GdlVariable[32];
+	static
+	{
+		for (int i = 0; i < CANONICAL_VARIABLES.length; i++)
+		{
+			CANONICAL_VARIABLES[i] = GdlPool.getVariable("?R" + i);
+		}
+	}
+
+	private Object[] terms = new Object[64];
+	private int[] frames = new int[64];
+	private int top = 0;
+	private int[] trail = new int[64];
+	private int trailTop = 0;
+
+	// The result of the last call to deref
+	private Object derefTerm;
+	private int derefFrame;
+
+	// The cells of the unbound variables seen so far by toSentence
+	private int[] namedCells = new int[8];
+	private int namedCellCount;
+	// The names toSentence gives to the unbound cells of one frame, if any
+	private GdlVariable[] frameVariables;
+	private int variablesFrame;
+
+	/**
+	 * Allocates a frame of the given number of cells, all unbound, and
+	 * returns its base index.
+	 */
+	public int allocate(int slotCount)
+	{
+		int base = top;
+		top += slotCount;
+		if (top > terms.length)
+		{
+			int capacity = Math.max(top, 2 * terms.length);
+			terms = Arrays.copyOf(terms, capacity);
+			frames = Arrays.copyOf(frames, capacity);
+		}
+		return base;
+	}
+
+	/**
+	 * Releases the frame with the given base, and every frame allocated
+	 * after it. Their cells must have been unbound with {@link #undo(int)}.
+	 */
+	public void release(int base)
+	{
+		top = base;
+	}
+
+	/**
+	 * Returns a mark to which the bindings can be restored with {@link #undo(int)}.
+	 */
+	public int mark()
+	{
+		return trailTop;
+	}
+
+	/**
+	 * Unbinds every cell bound since the given mark was taken.
+	 */
+	public void undo(int mark)
+	{
+		while (trailTop > mark)
+		{
+			int cell = trail[--trailTop];
+			terms[cell] = null;
+		}
+	}
+
+	/**
+	 * Unifies two compiled terms or sentences, each in its own frame, and
+	 * returns whether they unify. On failure, some bindings may have been
+	 * made anyway; the caller should undo them.
+	 */
+	public boolean unify(Object x, int xFrame, Object y, int yFrame)
+	{
+		deref(x, xFrame);
+		x = derefTerm;
+		xFrame = derefFrame;
+		deref(y, yFrame);
+		y = derefTerm;
+		yFrame = derefFrame;
+
+		if (x instanceof Slot)
+		{
+			int xCell = xFrame + ((Slot) x).index;
+			if (y instanceof Slot && yFrame + ((Slot) y).index == xCell)
+			{
+				return true;
+			}
+			bind(xCell, y, yFrame);
+			return true;
+		}
+		else if (y instanceof Slot)
+		{
+			bind(yFrame + ((Slot) y).index, x, xFrame);
+			return true;
+		}
+		else if (x == y)
+		{
+			return true;
+		}
+		else if (x instanceof Compound)
+		{
+			Compound xCompound = (Compound) x;
+			if (y instanceof Compound)
+			{
+				Compound yCompound = (Compound) y;
+				if (xCompound.name != yCompound.name || xCompound.args.length != yCompound.args.length)
+				{
+					return false;
+				}
+				for (int i = 0; i < xCompound.args.length; i++)
+				{
+					if (!unify(xCompound.args[i], xFrame, yCompound.args[i], yFrame))
+					{
+						return false;
+					}
+				}
+				return true;
+			}
+			return unifyWithGround(xCompound, xFrame, y);
+		}
+		else if (y instanceof Compound)
+		{
+			return unifyWithGround((Compound) y, yFrame, x);
+		}
+		// Distinct ground terms; GDL is interned, so these can't be equal.
+		return false;
+	}
+
+	private boolean unifyWithGround(Compound compound, int frame, Object ground)
+	{
+		GdlConstant name;
+		int arity;
+		if (ground instanceof GdlFunction)
+		{
+			name = ((GdlFunction) ground).getName();
+			arity = ((GdlFunction) ground).arity();
+		}
+		else if (ground instanceof GdlRelation)
+		{
+			name = ((GdlRelation) ground).getName();
+			arity = ((GdlRelation) ground).arity();
+		}
+		else
+		{
+			return false;
+		}
+		if (compound.name != name || compound.args.length != arity)
+		{
+			return false;
+		}
+		for (int i = 0; i < arity; i++)
+		{
+			if (!unify(compound.args[i], frame, getArg(ground, i), 0))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether two compiled terms are identical under the current
+	 * bindings. Unbound variables are only identical to themselves.
+	 */
+	public boolean identical(Object x, int xFrame, Object y, int yFrame)
+	{
+		deref(x, xFrame);
+		x = derefTerm;
+		xFrame = derefFrame;
+		deref(y, yFrame);
+		y = derefTerm;
+		yFrame = derefFrame;
+
+		if (x instanceof Slot || y instanceof Slot)
+		{
+			return x instanceof Slot && y instanceof Slot
+					&& xFrame + ((Slot) x).index == yFrame + ((Slot) y).index;
+		}
+		else if (x == y)
+		{
+			return true;
+		}
+		else if (!(x instanceof Compound) && !(y instanceof Compound))
+		{
+			return false;
+		}
+		// at least one is a compound; compare them argument by argument
+		if (!getName(x).equals(getName(y)) || getArity(x) != getArity(y))
+		{
+			return false;
+		}
+		for (int i = 0; i < getArity(x); i++)
+		{
+			Object xArg = (x instanceof Compound) ? ((Compound) x).args[i] : getArg(x, i);
+			Object yArg = (y instanceof Compound) ? ((Compound) y).args[i] : getArg(y, i);
+			if (!identical(xArg, xFrame, yArg, yFrame))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the GDL for a compiled term under the current bindings. Unbound
+	 * variables become ?R0, ?R1 and so on, in order of first appearance, so
+	 * sentences that are the same up to variable renaming give the same GDL.
+	 */
+	public GdlTerm toTerm(Object term, int frame)
+	{
+		namedCellCount = 0;
+		frameVariables = null;
+		return buildTerm(term, frame);
+	}
+
+	/**
+	 * Builds the GDL for a compiled sentence under the current bindings, like
+	 * {@link #toTerm(Object, int)}.
+	 */
+	public GdlSentence toSentence(Object sentence, int frame)
+	{
+		return toSentence(sentence, frame, null);
+	}
+
+	/**
+	 * Builds the GDL for a compiled sentence under the current bindings, like
+	 * {@link #toSentence(Object, int)}, except that the unbound variables of
+	 * the given frame keep the names they were compiled from.
+	 */
+	public GdlSentence toSentence(Object sentence, int frame, GdlVariable[] variables)
+	{
+		if (sentence instanceof GdlSentence)
+		{
+			return (GdlSentence) sentence;
+		}
+		namedCellCount = 0;
+		frameVariables = variables;
+		variablesFrame = frame;
+		Compound compound = (Compound) sentence;
+		GdlTerm[] body = new GdlTerm[compound.args.length];
+		for (int i = 0; i < body.length; i++)
+		{
+			body[i] = buildTerm(compound.args[i], frame);
+		}
+		frameVariables = null;
+		return GdlPool.getRelation(compound.name, body);
+	}
+
+	private GdlTerm buildTerm(Object term, int frame)
+	{
+		deref(term, frame);
+		term = derefTerm;
+		frame = derefFrame;
+
+		if (term instanceof Slot)
+		{
+			return getCanonicalVariable(frame + ((Slot) term).index);
+		}
+		else if (term instanceof Compound)
+		{
+			Compound compound = (Compound) term;
+			GdlTerm[] body = new GdlTerm[compound.args.length];
+			for (int i = 0; i < body.length; i++)
+			{
+				body[i] = buildTerm(compound.args[i], frame);
+			}
+			return GdlPool.getFunction(compound.name, body);
+		}
+		return (GdlTerm) term;
+	}
+
+	private GdlVariable getCanonicalVariable(int cell)
+	{
+		if (frameVariables != null && cell >= variablesFrame && cell < variablesFrame + frameVariables.length)
+		{
+			return frameVariables[cell - variablesFrame];
+		}
+		int index = 0;
+		while (index < namedCellCount && namedCells[index] != cell)
+		{
+			index++;
+		}
+		if (index == namedCellCount)
+		{
+			if (namedCellCount == namedCells.length)
+			{
+				namedCells = Arrays.copyOf(namedCells, 2 * namedCells.length);
+			}
+			namedCells[namedCellCount++] = cell;
+		}
+		return (index < CANONICAL_VARIABLES.length) ? CANONICAL_VARIABLES[index] : GdlPool.getVariable("?R" + index);
+	}
+
+	private void bind(int cell, Object term, int frame)
+	{
+		terms[cell] = term;
+		frames[cell] = frame;
+		if (trailTop == trail.length)
+		{
+			trail = Arrays.copyOf(trail, 2 * trail.length);
+		}
+		trail[trailTop++] = cell;
+	}
+
+	/**
+	 * Follows the bindings of a term until it reaches a term that isn't a
+	 * bound variable, and leaves it in derefTerm and derefFrame.
+	 */
+	private void deref(Object term, int frame)
+	{
+		while (term instanceof Slot)
+		{
+			int cell = frame + ((Slot) term).index;
+			Object bound = terms[cell];
+			if (bound == null)
+			{
+				break;
+			}
+			term = bound;
+			frame = frames[cell];
+		}
+		derefTerm = term;
+		derefFrame = frame;
+	}
+
+	private static Object getArg(Object ground, int i)
+	{
+		return (ground instanceof GdlFunction) ? ((GdlFunction) ground).get(i) : ((GdlRelation) ground).get(i);
+	}
+
+	private static Object getName(Object term)
+	{
+		if (term instanceof Compound)
+		{
+			return ((Compound) term).name;
+		}
+		else if (term instanceof GdlFunction)
+		{
+			return ((GdlFunction) term).getName();
+		}
+		else if (term instanceof GdlSentence)
+		{
+			return ((GdlSentence) term).getName();
+		}
+		return term;
+	}
+
+	private static int getArity(Object term)
+	{
+		if (term instanceof Compound)
+		{
+			return ((Compound) term).args.length;
+		}
+		else if (term instanceof GdlFunction)
+		{
+			return ((GdlFunction) term).arity();
+		}
+		else if (term instanceof GdlSentence)
+		{
+			return ((GdlSentence) term).arity();
+		}
+		return 0;
+	}
+}
@@ -1,9 +1,13 @@
 package org.ggp.base.util.reasoner.gdl;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
 import org.ggp.base.util.gdl.GdlUtils;
@@ -15,6 +19,7 @@ import org.ggp.base.util.gdl.grammar.GdlOr;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.model.DependencyGraphs;
 import org.ggp.base.util.gdl.model.SentenceDomainModel;
 import org.ggp.base.util.gdl.model.SentenceDomainModels;
 import org.ggp.base.util.gdl.model.SentenceDomainModels.VarDomainOpts;
@@ -22,12 +27,13 @@ import org.ggp.base.util.gdl.model.SentenceForm;
 import org.ggp.base.util.gdl.model.SentenceFormModel;
 import org.ggp.base.util.gdl.model.assignments.AddibleFunctionInfo;
 import org.ggp.base.util.gdl.model.assignments.AssignmentIterator;
-import org.ggp.base.util.gdl.model.assignments.Assignments;
 import org.ggp.base.util.gdl.model.assignments.AssignmentsImpl;
 import org.ggp.base.util.gdl.model.assignments.FunctionInfo;
+import org.ggp.base.util.gdl.model.assignments.IterationOrderCandidate;
 import org.ggp.base.util.gdl.transforms.CommonTransforms;
 import org.ggp.base.util.reasoner.DifferentialForwardChainingReasoner;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.SetMultimap;
 
@@ -39,6 +45,11 @@ public class GdlChainingReasoner implements
 		DifferentialForwardChainingReasoner<GdlRule, GdlSentenceSet> {
 	private final SentenceFormModel model;
 	private final ImmutableMultimap<SentenceForm, GdlSentence> constants;
+	// Rules are evaluated many times over, e.g. once per state by a state
+	// machine, so we keep the parts of the work that never change.
+	private final ConcurrentMap<GdlSentence, SentenceForm> literalForms = new ConcurrentHashMap<GdlSentence, SentenceForm>();
+	private final ConcurrentMap<GdlRule, Map<GdlVariable, Set<GdlConstant>>> varDomainsByRule = new ConcurrentHashMap<GdlRule, Map<GdlVariable, Set<GdlConstant>>>();
+	private final ConcurrentMap<IterationOrderKey, IterationOrderCandidate> iterationOrders = new ConcurrentHashMap<IterationOrderKey, IterationOrderCandidate>();
 
 	private GdlChainingReasoner(SentenceFormModel model, ImmutableMultimap<SentenceForm, GdlSentence> constants) {
 		this.model = model;
@@ -63,12 +74,15 @@ public class GdlChainingReasoner implements
 			SentenceDomainModel domainModel,
 			GdlSentenceSet sentencesSoFar) throws InterruptedException {
 		ConcurrencyUtils.checkForInterruption();
-		SentenceForm headForm = model.getSentenceForm(rule.getHead());
-		Map<GdlVariable, Set<GdlConstant>> varDomains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
+		SentenceForm headForm = getSentenceForm(rule.getHead());
+		Map<GdlVariable, Set<GdlConstant>> varDomains = getVarDomains(rule, domainModel);
 		Map<SentenceForm, ? extends FunctionInfo> functionInfoMap = sentencesSoFar.getFunctionInfo();
 		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = sentencesSoFar.getSentences().asMap();
 
-		AssignmentsImpl assignments = new AssignmentsImpl(rule, varDomains, functionInfoMap, completedSentenceFormValues);
+		IterationOrderKey orderKey = getIterationOrderKey(rule, null, domainModel, completedSentenceFormValues);
+		AssignmentsImpl assignments = new AssignmentsImpl(Collections.<GdlVariable, GdlConstant>emptyMap(),
+				rule, varDomains, functionInfoMap, completedSentenceFormValues, getIterationOrder(orderKey));
+		putIterationOrder(orderKey, assignments);
 		AssignmentIterator asnItr = assignments.getIterator();
 		GdlSentenceSet sentencesToAdd = GdlSentenceSet.create();
 		while (asnItr.hasNext()) {
@@ -91,6 +105,57 @@ public class GdlChainingReasoner implements
 		return sentencesToAdd;
 	}
 
+	/**
+	 * Applies the rules producing the sentence forms in the given strata,
+	 * one stratum at a time, adding their results to the given sentences
+	 * until a fixed point is reached. Returns the resulting set of sentences;
+	 * the given set is invalidated, as with {@link #getUnion}.
+	 *
+	 * The strata should be in an order such as the one returned by
+	 * {@link DependencyGraphs#toposortSafe}: the rules of each stratum may
+	 * only depend on sentence forms in that stratum, in earlier strata, or
+	 * whose sentences are all in the given set already.
+	 */
+	public GdlSentenceSet addRuleResults(List<Set<SentenceForm>> strata,
+			SentenceDomainModel domainModel,
+			GdlSentenceSet sentences) throws InterruptedException {
+		for (Set<SentenceForm> stratum : strata) {
+			// One non-differential pass, collecting the changes
+			GdlSentenceSet newlyTrueSentences = GdlSentenceSet.create();
+			for (SentenceForm form : stratum) {
+				for (GdlRule rule : model.getRules(form)) {
+					GdlSentenceSet ruleResults =
+							getRuleResults(rule, domainModel, sentences);
+					if (!isSubsetOf(sentences, ruleResults)) {
+						sentences = getUnion(sentences, ruleResults);
+						newlyTrueSentences = getUnion(newlyTrueSentences, ruleResults);
+					}
+				}
+			}
+
+			// Now a lot of differential passes to deal with recursion efficiently
+			boolean somethingChanged = !newlyTrueSentences.getSentences().isEmpty();
+			while (somethingChanged) {
+				somethingChanged = false;
+				GdlSentenceSet newStuffInThisPass = GdlSentenceSet.create();
+				for (SentenceForm form : stratum) {
+					for (GdlRule rule : model.getRules(form)) {
+						GdlSentenceSet ruleResults =
+								getRuleResultsForNewSentences(rule, domainModel, sentences,
+										newlyTrueSentences);
+						if (!isSubsetOf(sentences, ruleResults)) {
+							somethingChanged = true;
+							newStuffInThisPass = getUnion(newStuffInThisPass, ruleResults);
+						}
+					}
+				}
+				sentences = getUnion(sentences, newStuffInThisPass);
+				newlyTrueSentences = newStuffInThisPass;
+			}
+		}
+		return sentences;
+	}
+
 	private boolean satisfies(Map<GdlVariable, GdlConstant> assignment,
 			GdlLiteral literal, SetMultimap<SentenceForm, GdlSentence> sentencesSoFar) {
 		if (literal instanceof GdlSentence) {
@@ -120,11 +185,121 @@ public class GdlChainingReasoner implements
 	private boolean satisfiesSentence(Map<GdlVariable, GdlConstant> assignment,
 			GdlSentence sentence,
 			SetMultimap<SentenceForm, GdlSentence> sentencesSoFar) {
+		// Variables are only ever assigned constants, so the form doesn't
+		// change when they are replaced.
+		SentenceForm form = getSentenceForm(sentence);
 		sentence = CommonTransforms.replaceVariables(sentence, assignment);
-		SentenceForm form = model.getSentenceForm(sentence);
 		return sentencesSoFar.get(form).contains(sentence);
 	}
 
+	private SentenceForm getSentenceForm(GdlSentence sentence) {
+		SentenceForm form = literalForms.get(sentence);
+		if (form == null) {
+			form = model.getSentenceForm(sentence);
+			literalForms.put(sentence, form);
+		}
+		return form;
+	}
+
+	private Map<GdlVariable, Set<GdlConstant>> getVarDomains(GdlRule rule, SentenceDomainModel domainModel) {
+		if (domainModel != model) {
+			return SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
+		}
+		Map<GdlVariable, Set<GdlConstant>> varDomains = varDomainsByRule.get(rule);
+		if (varDomains == null) {
+			varDomains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
+			varDomainsByRule.put(rule, varDomains);
+		}
+		return varDomains;
+	}
+
+	/**
+	 * Returns the key under which to cache the iteration order of the given
+	 * rule, or null if it shouldn't be cached. The best order depends on which
+	 * of the sentence forms in the body have any sentences, as only those can
+	 * be iterated over, so that is part of the key; the exact numbers of
+	 * sentences don't matter as much.
+	 */
+	private IterationOrderKey getIterationOrderKey(GdlRule rule, GdlSentence chosenLiteral,
+			SentenceDomainModel domainModel,
+			Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues) {
+		if (domainModel != model || rule.arity() > 64) {
+			return null;
+		}
+		long formsWithSentences = 0;
+		for (int i = 0; i < rule.arity(); i++) {
+			GdlLiteral literal = rule.get(i);
+			if (literal instanceof GdlSentence
+					&& completedSentenceFormValues.containsKey(getSentenceForm((GdlSentence) literal))) {
+				formsWithSentences |= 1L << i;
+			}
+		}
+		return new IterationOrderKey(rule, chosenLiteral, formsWithSentences);
+	}
+
+	private IterationOrderCandidate getIterationOrder(IterationOrderKey key) {
+		return (key == null) ? null : iterationOrders.get(key);
+	}
+
+	private void putIterationOrder(IterationOrderKey key, AssignmentsImpl assignments) {
+		IterationOrderCandidate order = assignments.getIterationOrder();
+		if (key != null && order != null && isReusable(order)) {
+			iterationOrders.putIfAbsent(key, order);
+		}
+	}
+
+	/**
+	 * Some orders are only valid for the sentences they were chosen for:
+	 * orders that compute variables from a conjunct only work while that
+	 * conjunct is functional, which is only guaranteed if its sentences
+	 * never change, i.e. if they are all listed as true in the game.
+	 * Orders with several source conjuncts are picked when those have very
+	 * few sentences, and the iterator can miss assignments when the sources
+	 * share variables, so we don't reuse them either.
+	 */
+	private boolean isReusable(IterationOrderCandidate order) {
+		if (order.getSourceConjuncts().size() > 1) {
+			return false;
+		}
+		for (GdlSentence conjunct : order.getFunctionalConjuncts()) {
+			if (conjunct != null) {
+				SentenceForm form = getSentenceForm(conjunct);
+				if (!model.getConstantSentenceForms().contains(form) || !model.getRules(form).isEmpty()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static final class IterationOrderKey {
+		private final GdlRule rule;
+		private final GdlSentence chosenLiteral;
+		private final long formsWithSentences;
+
+		public IterationOrderKey(GdlRule rule, GdlSentence chosenLiteral, long formsWithSentences) {
+			this.rule = rule;
+			this.chosenLiteral = chosenLiteral;
+			this.formsWithSentences = formsWithSentences;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(rule, chosenLiteral, formsWithSentences);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof IterationOrderKey)) {
+				return false;
+			}
+			IterationOrderKey other = (IterationOrderKey) obj;
+			return rule.equals(other.rule)
+					&& Objects.equal(chosenLiteral, other.chosenLiteral)
+					&& formsWithSentences == other.formsWithSentences;
+		}
+	}
+
 	private boolean satisfiesDistinct(Map<GdlVariable, GdlConstant> assignment,
 			GdlDistinct distinct) {
 		distinct = CommonTransforms.replaceVariables(distinct, assignment);
@@ -160,7 +335,7 @@ public class GdlChainingReasoner implements
 		for (GdlLiteral literal : rule.getBody()) {
 			ConcurrencyUtils.checkForInterruption();
 			if (literal instanceof GdlSentence) {
-				SentenceForm literalForm = domainModel.getSentenceForm((GdlSentence) literal);
+				SentenceForm literalForm = getSentenceForm((GdlSentence) literal);
 				addRuleResultsForChosenLiteral(
 						rule,
 						(GdlSentence) literal,
@@ -180,15 +355,18 @@ public class GdlChainingReasoner implements
 			SentenceDomainModel domainModel,
 			GdlSentenceSet allSentences,
 			GdlSentenceSet sentencesToAdd) {
-		SentenceForm headForm = model.getSentenceForm(rule.getHead());
-		Map<GdlVariable, Set<GdlConstant>> varDomains = SentenceDomainModels.getVarDomains(rule, domainModel, VarDomainOpts.INCLUDE_HEAD);
+		SentenceForm headForm = getSentenceForm(rule.getHead());
+		Map<GdlVariable, Set<GdlConstant>> varDomains = getVarDomains(rule, domainModel);
 		Map<SentenceForm, AddibleFunctionInfo> functionInfoMap = allSentences.getFunctionInfo();
 		Map<SentenceForm, ? extends Collection<GdlSentence>> completedSentenceFormValues = allSentences.getSentences().asMap();
 
+		IterationOrderKey orderKey = getIterationOrderKey(rule, chosenLiteral, domainModel, completedSentenceFormValues);
 		for (GdlSentence chosenNewSentence : chosenNewSentences) {
 			Map<GdlVariable, GdlConstant> preassignments = GdlUtils.getAssignmentMakingLeftIntoRight(chosenLiteral, chosenNewSentence);
 			if (preassignments != null) {
-				Assignments assignments = new AssignmentsImpl(preassignments, rule, varDomains, functionInfoMap, completedSentenceFormValues);
+				AssignmentsImpl assignments = new AssignmentsImpl(preassignments, rule, varDomains, functionInfoMap,
+						completedSentenceFormValues, getIterationOrder(orderKey));
+				putIterationOrder(orderKey, assignments);
 				AssignmentIterator asnItr = assignments.getIterator();
 				while (asnItr.hasNext()) {
 					Map<GdlVariable, GdlConstant> assignment = asnItr.next();
@@ -0,0 +1,163 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * A BasePropositionIndex assigns a dense integer index to each base
+ * proposition of a game, so that states can be encoded as bitsets over
+ * those indices (see {@link BitSetMachineState}).
+ * <p>
+ * An index can be seeded with every base proposition up front, which is what
+ * propnet-based machines do, or it can grow as new sentences are interned,
+ * which suits machines like the prover that only discover base propositions
+ * as they derive states. Lookups never block; interning new sentences is
+ * synchronized.
+ * <p>
+ * Each index also provides a Zobrist key for each of its sentences, used to
+ * compute state hashes. The keys are derived from the text of the sentence
+ * rather than from its index, so equal states hash the same in every index,
+ * whatever order the base propositions were indexed in.
+ */
+public final class BasePropositionIndex
+{
+	private final ConcurrentMap<GdlSentence, Integer> indices;
+	private volatile GdlSentence[] sentences;
+	private volatile int[] hashCodes;
+	private volatile long[] zobristKeys;
+	private volatile int size;
+
+	/**
+	 * Creates an empty index that grows as sentences are interned.
+	 */
+	public BasePropositionIndex()
+	{
+		this.indices = new ConcurrentHashMap<GdlSentence, Integer>();
+		this.sentences = new GdlSentence[64];
+		this.hashCodes = new int[64];
+		this.zobristKeys = new long[64];
+		this.size = 0;
+	}
+
+	/**
+	 * Creates an index over the given sentences, assigning indices in the
+	 * order of iteration.
+	 */
+	public BasePropositionIndex(Collection<? extends GdlSentence> baseSentences)
+	{
+		this();
+		for (GdlSentence sentence : baseSentences) {
+			intern(sentence);
+		}
+	}
+
+	/**
+	 * Returns the index of the given sentence, or -1 if it has not been
+	 * interned.
+	 */
+	public int getIndex(GdlSentence sentence)
+	{
+		Integer index = indices.get(sentence);
+		return (index == null) ? -1 : index;
+	}
+
+	/**
+	 * Returns the index of the given sentence, assigning it the next free
+	 * index if it has not been seen before.
+	 */
+	public int intern(GdlSentence sentence)
+	{
+		Integer index = indices.get(sentence);
+		if (index != null)
+			return index;
+
+		synchronized (this) {
+			index = indices.get(sentence);
+			if (index != null)
+				return index;
+
+			int next = size;
+			if (next == sentences.length) {
+				sentences = Arrays.copyOf(sentences, next * 2);
+				hashCodes = Arrays.copyOf(hashCodes, next * 2);
+				zobristKeys = Arrays.copyOf(zobristKeys, next * 2);
+			}
+			sentences[next] = sentence;
+			hashCodes[next] = sentence.hashCode();
+			zobristKeys[next] = getZobristKey(sentence);
+			size = next + 1;
+			indices.put(sentence, next);
+			return next;
+		}
+	}
+
+	/**
+	 * Returns the sentence with the given index.
+	 */
+	public GdlSentence getSentence(int index)
+	{
+		return sentences[index];
+	}
+
+	/**
+	 * Returns the hash code of the sentence with the given index, without
+	 * having to go through the sentence itself.
+	 */
+	public int getSentenceHashCode(int index)
+	{
+		return hashCodes[index];
+	}
+
+	/**
+	 * Returns the Zobrist key of the sentence with the given index, as
+	 * computed by {@link #getZobristKey(GdlSentence)}.
+	 */
+	public long getSentenceZobristKey(int index)
+	{
+		return zobristKeys[index];
+	}
+
+	/**
+	 * Returns the number of sentences in the index so far.
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the Zobrist key for the given index. Keys are derived from the
+	 * index with the SplitMix64 finalizer, so they do not need to be stored
+	 * and are the same for every index instance.
+	 */
+	public static long getZobristKey(int index)
+	{
+		return mix((index + 1) * 0x9E3779B97F4A7C15L);
+	}
+
+	/**
+	 * Returns the Zobrist key for the given sentence: a 64-bit hash of its
+	 * text, so that it's the same for every index and every state machine.
+	 */
+	public static long getZobristKey(GdlSentence sentence)
+	{
+		String text = sentence.toString();
+		long z = 0L;
+		for (int i = 0; i < text.length(); i++) {
+			z = (z + text.charAt(i)) * 0x9E3779B97F4A7C15L;
+		}
+		return mix(z);
+	}
+
+	// the SplitMix64 finalizer
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
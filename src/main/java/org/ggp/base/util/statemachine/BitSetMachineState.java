@@ -0,0 +1,171 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+
+/**
+ * A MachineState that stores which base propositions are true as a bitset
+ * over a {@link BasePropositionIndex}, rather than as a set of sentences.
+ * <p>
+ * Comparing two states from the same index is an array comparison, and both
+ * {@link #hashCode()} and the 64-bit {@link #getZobristHash()} are computed
+ * once, when the state is created. The GDL sentences are only materialized
+ * when {@link #getContents()} is first called, e.g. when the state is
+ * appended to a match.
+ * <p>
+ * The hash code is the same as that of a plain MachineState with the same
+ * contents, so the two kinds of states can be mixed in hash-based collections.
+ * Mixing them is slow, though: comparing a bitset state with a plain one
+ * materializes the contents of the bitset state. State machines that produce
+ * bitset states should therefore also override
+ * {@link StateMachine#getMachineStateFromSentenceList(Set)}.
+ * <p>
+ * BitSetMachineStates are immutable.
+ */
+public final class BitSetMachineState extends MachineState
+{
+	private final BasePropositionIndex index;
+	private final long[] words;
+	private final long zobristHash;
+	private final int hashCode;
+	private volatile Set<GdlSentence> contents;
+
+	/**
+	 * Creates a state from a bitset over the given index, in which bit i
+	 * is set if the base proposition with index i is true. The state takes
+	 * ownership of the array, which must not be modified afterwards.
+	 */
+	public BitSetMachineState(BasePropositionIndex index, long[] words)
+	{
+		this.index = index;
+		this.words = trim(words);
+
+		long zobristHash = 0L;
+		int hashCode = 0;
+		for (int w = 0; w < this.words.length; w++) {
+			long word = this.words[w];
+			while (word != 0L) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(word);
+				zobristHash ^= index.getSentenceZobristKey(i);
+				hashCode += index.getSentenceHashCode(i);
+				word &= word - 1;
+			}
+		}
+		this.zobristHash = zobristHash;
+		this.hashCode = hashCode;
+	}
+
+	/**
+	 * Creates a state with the given contents, interning any sentences
+	 * that the index has not seen yet.
+	 */
+	public static BitSetMachineState create(BasePropositionIndex index, Set<GdlSentence> contents)
+	{
+		int[] indices = new int[contents.size()];
+		int maxIndex = -1;
+		int n = 0;
+		for (GdlSentence sentence : contents) {
+			int i = index.intern(sentence);
+			indices[n++] = i;
+			maxIndex = Math.max(maxIndex, i);
+		}
+
+		long[] words = new long[(maxIndex >> 6) + 1];
+		for (int i : indices) {
+			words[i >> 6] |= 1L << i;
+		}
+		return new BitSetMachineState(index, words);
+	}
+
+	private static long[] trim(long[] words)
+	{
+		int length = words.length;
+		while (length > 0 && words[length - 1] == 0L) {
+			length--;
+		}
+		return (length == words.length) ? words : Arrays.copyOf(words, length);
+	}
+
+	public BasePropositionIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Returns whether the base proposition with the given index is true.
+	 */
+	public boolean get(int i)
+	{
+		int w = i >> 6;
+		return w < words.length && (words[w] & (1L << i)) != 0L;
+	}
+
+	/**
+	 * Returns the underlying bitset, without any trailing zero words. The
+	 * array is shared with this state and must not be modified.
+	 */
+	public long[] getWords()
+	{
+		return words;
+	}
+
+	/**
+	 * Returns the XOR of the Zobrist keys of the true base propositions.
+	 */
+	public long getZobristHash()
+	{
+		return zobristHash;
+	}
+
+	@Override
+	public Set<GdlSentence> getContents()
+	{
+		Set<GdlSentence> contents = this.contents;
+		if (contents == null) {
+			contents = new HashSet<GdlSentence>();
+			for (int w = 0; w < words.length; w++) {
+				long word = words[w];
+				while (word != 0L) {
+					contents.add(index.getSentence((w << 6) + Long.numberOfTrailingZeros(word)));
+					word &= word - 1;
+				}
+			}
+			contents = Collections.unmodifiableSet(contents);
+			this.contents = contents;
+		}
+		return contents;
+	}
+
+	/**
+	 * Returns this state, since BitSetMachineStates are immutable.
+	 */
+	@Override
+	public MachineState clone()
+	{
+		return this;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hashCode;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+		if (o instanceof BitSetMachineState) {
+			BitSetMachineState state = (BitSetMachineState) o;
+			if (state.index == index) {
+				return state.zobristHash == zobristHash && Arrays.equals(state.words, words);
+			}
+		}
+		return super.equals(o);
+	}
+}
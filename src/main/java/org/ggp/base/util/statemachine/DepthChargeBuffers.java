@@ -0,0 +1,48 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Scratch space for running depth charges without allocating on every ply,
+ * used by {@link StateMachine#simulate(MachineState, DepthChargeBuffers, Random)}
+ * and {@link StateMachine#getRandomJointMove(MachineState, DepthChargeBuffers, Random)}.
+ * <p>
+ * A search thread should create one set of buffers with
+ * {@link StateMachine#newDepthChargeBuffers()} and pass it to every call.
+ * The results of a call are only valid until the buffers are used again, so
+ * callers that need to keep them have to copy them out.
+ * <p>
+ * DepthChargeBuffers are not thread-safe.
+ */
+public final class DepthChargeBuffers
+{
+	/** The joint move chosen last, one move per role. */
+	public final List<Move> jointMove;
+	/**
+	 * The index of each role's move in the joint move chosen last, within
+	 * that role's legal moves as listed by {@link StateMachine#getLegalMoves}.
+	 */
+	public final int[] moveIndices;
+	/** The goal value of each role at the end of the last depth charge. */
+	public final int[] goals;
+	/** The number of joint moves made in the last depth charge. */
+	public int depth;
+	/**
+	 * The terminal state reached by the last depth charge. State machines
+	 * that play the depth charge out on their own internal representation
+	 * leave this null, rather than creating a state that is rarely needed.
+	 */
+	public MachineState state;
+
+	public DepthChargeBuffers(int roleCount)
+	{
+		this.jointMove = new ArrayList<Move>(roleCount);
+		for (int i = 0; i < roleCount; i++) {
+			jointMove.add(null);
+		}
+		this.moveIndices = new int[roleCount];
+		this.goals = new int[roleCount];
+	}
+}
@@ -0,0 +1,344 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Runs batches of depth charges on a pool of worker threads.
+ * <p>
+ * The executor owns one state machine per worker thread. They are all created
+ * by the same factory and initialized with the same game description, so that
+ * no state machine is ever used by two threads at once. Each worker also has
+ * its own {@link DepthChargeBuffers} and random number generator, and runs its
+ * depth charges through {@link StateMachine#simulate(MachineState, DepthChargeBuffers, Random)}.
+ * <p>
+ * A batch is a list of {@link Request}s, each asking for a number of depth
+ * charges from a state. The depth charges of a request are split between the
+ * workers, and the goal values they reach are summed into one {@link Result}
+ * per request. Depth charges that haven't started by the deadline of the batch
+ * are skipped, so a batch returns shortly after its deadline even if it asked
+ * for more depth charges than can be run in time; results report how many
+ * depth charges actually ran.
+ * <p>
+ * The states in a request must be usable by every worker's state machine,
+ * e.g. produced by a state machine of the same kind, or plain MachineStates.
+ * <p>
+ * {@link #run(List, long)} may be called from one thread at a time. The
+ * executor should be shut down with {@link #shutdown()} once it's no longer
+ * needed.
+ */
+public final class DepthChargeExecutor
+{
+	/**
+	 * A request for a number of depth charges from a state. If a role and a
+	 * move are given, the first joint move of every depth charge has that role
+	 * make that move, and random moves for the other roles.
+	 */
+	public static final class Request
+	{
+		private final MachineState state;
+		private final Role role;
+		private final Move move;
+		private final int count;
+
+		public Request(MachineState state, int count)
+		{
+			this(state, null, null, count);
+		}
+
+		public Request(MachineState state, Role role, Move move, int count)
+		{
+			if (count < 0)
+				throw new IllegalArgumentException("Negative depth charge count: " + count);
+			this.state = state;
+			this.role = role;
+			this.move = move;
+			this.count = count;
+		}
+
+		public MachineState getState()
+		{
+			return state;
+		}
+
+		public Role getRole()
+		{
+			return role;
+		}
+
+		public Move getMove()
+		{
+			return move;
+		}
+
+		public int getCount()
+		{
+			return count;
+		}
+	}
+
+	/**
+	 * The goal values reached by the depth charges of one request, summed
+	 * over the depth charges that were run.
+	 */
+	public static final class Result
+	{
+		private final long[] goalSums;
+		private long depthSum;
+		private int count;
+
+		private Result(int roleCount)
+		{
+			this.goalSums = new long[roleCount];
+		}
+
+		private void add(Result other)
+		{
+			for (int i = 0; i < goalSums.length; i++) {
+				goalSums[i] += other.goalSums[i];
+			}
+			depthSum += other.depthSum;
+			count += other.count;
+		}
+
+		/**
+		 * Returns the number of depth charges that were run.
+		 */
+		public int getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Returns the sum of the goal values of the role with the given index.
+		 */
+		public long getGoalSum(int role)
+		{
+			return goalSums[role];
+		}
+
+		/**
+		 * Returns the average goal value of each role, in the same order as
+		 * {@link StateMachine#getRoles()}, or all zeros if no depth charges
+		 * were run.
+		 */
+		public double[] getAverageGoals()
+		{
+			double[] averages = new double[goalSums.length];
+			for (int i = 0; i < averages.length; i++) {
+				averages[i] = (count == 0) ? 0 : (double) goalSums[i] / count;
+			}
+			return averages;
+		}
+
+		/**
+		 * Returns the average number of joint moves made by the depth
+		 * charges, not counting the move fixed by the request.
+		 */
+		public double getAverageDepth()
+		{
+			return (count == 0) ? 0 : (double) depthSum / count;
+		}
+	}
+
+	/** The state machine of a worker, with the scratch space that goes with it. */
+	private static final class Worker
+	{
+		private final StateMachine machine;
+		private final DepthChargeBuffers buffers;
+		private final Random random = new Random();
+
+		private Worker(StateMachine machine)
+		{
+			this.machine = machine;
+			this.buffers = machine.newDepthChargeBuffers();
+		}
+	}
+
+	private final ExecutorService executor;
+	private final BlockingQueue<Worker> workers;
+	private final int threadCount;
+	private final int roleCount;
+
+	/**
+	 * Creates an executor with one worker per available processor.
+	 *
+	 * @param factory creates the state machines of the workers, which are
+	 * then initialized with the given description.
+	 */
+	public DepthChargeExecutor(Supplier<? extends StateMachine> factory, List<Gdl> description)
+	{
+		this(factory, description, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates an executor with the given number of workers. The state machines
+	 * of the workers are initialized in parallel, on the worker threads.
+	 *
+	 * @param factory creates the state machines of the workers, which are
+	 * then initialized with the given description.
+	 */
+	public DepthChargeExecutor(final Supplier<? extends StateMachine> factory, final List<Gdl> description, int threadCount)
+	{
+		if (threadCount < 1)
+			throw new IllegalArgumentException("Need at least one thread, got " + threadCount);
+		this.threadCount = threadCount;
+		this.workers = new LinkedBlockingQueue<Worker>();
+
+		final AtomicInteger threadNumber = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "DepthChargeExecutor-worker-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		List<Future<Worker>> futures = new ArrayList<Future<Worker>>(threadCount);
+		for (int i = 0; i < threadCount; i++) {
+			futures.add(executor.submit(new Callable<Worker>() {
+				@Override
+				public Worker call() {
+					StateMachine machine = factory.get();
+					machine.initialize(description);
+					return new Worker(machine);
+				}
+			}));
+		}
+		try {
+			for (Future<Worker> future : futures) {
+				workers.add(waitFor(future));
+			}
+		} catch (Exception e) {
+			shutdown();
+			throw new RuntimeException("Failed to initialize the state machines of the workers", e);
+		}
+		this.roleCount = workers.peek().machine.getRoles().size();
+	}
+
+	public int getThreadCount()
+	{
+		return threadCount;
+	}
+
+	/**
+	 * Runs the depth charges of the given requests, and returns one result per
+	 * request, in the same order. Depth charges that haven't started by the
+	 * deadline are skipped.
+	 *
+	 * @param deadline the time, in milliseconds since the epoch, after which
+	 * no more depth charges should be started.
+	 */
+	public List<Result> run(List<Request> requests, final long deadline)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		List<List<Future<Result>>> futures = new ArrayList<List<Future<Result>>>(requests.size());
+		try {
+			for (final Request request : requests) {
+				List<Future<Result>> chunks = new ArrayList<Future<Result>>();
+				int chunkCount = Math.min(request.count, threadCount);
+				for (int i = 0; i < chunkCount; i++) {
+					// spread the remainder over the first chunks
+					final int count = request.count / chunkCount + ((i < request.count % chunkCount) ? 1 : 0);
+					chunks.add(executor.submit(new Callable<Result>() {
+						@Override
+						public Result call() throws Exception {
+							return runChunk(request, count, deadline);
+						}
+					}));
+				}
+				futures.add(chunks);
+			}
+
+			List<Result> results = new ArrayList<Result>(requests.size());
+			for (List<Future<Result>> chunks : futures) {
+				Result result = new Result(roleCount);
+				for (Future<Result> chunk : chunks) {
+					result.add(waitFor(chunk));
+				}
+				results.add(result);
+			}
+			return results;
+		} finally {
+			// only has an effect if we're bailing out because of an exception
+			for (List<Future<Result>> chunks : futures) {
+				for (Future<Result> chunk : chunks) {
+					chunk.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the worker threads. The executor can't be used afterwards.
+	 */
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+
+	private Result runChunk(Request request, int count, long deadline)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException, InterruptedException
+	{
+		Result result = new Result(roleCount);
+		Worker worker = workers.take();
+		try {
+			StateMachine machine = worker.machine;
+			DepthChargeBuffers buffers = worker.buffers;
+			for (int i = 0; i < count; i++) {
+				if (System.currentTimeMillis() >= deadline || Thread.currentThread().isInterrupted())
+					break;
+				MachineState state = request.state.clone();
+				if (request.move != null)
+					state = machine.getNextStateDestructively(state, machine.getRandomJointMove(state, request.role, request.move, buffers, worker.random));
+				int[] goals = machine.simulate(state, buffers, worker.random);
+				for (int r = 0; r < roleCount; r++) {
+					result.goalSums[r] += goals[r];
+				}
+				result.depthSum += buffers.depth;
+				result.count++;
+			}
+		} finally {
+			workers.add(worker);
+		}
+		return result;
+	}
+
+	private static <T> T waitFor(Future<T> future)
+			throws GoalDefinitionException, MoveDefinitionException, TransitionDefinitionException
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof GoalDefinitionException)
+				throw (GoalDefinitionException) cause;
+			if (cause instanceof MoveDefinitionException)
+				throw (MoveDefinitionException) cause;
+			if (cause instanceof TransitionDefinitionException)
+				throw (TransitionDefinitionException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+}
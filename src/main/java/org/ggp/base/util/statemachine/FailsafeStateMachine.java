@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine;
 
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -355,6 +356,52 @@ public class FailsafeStateMachine extends StateMachine
         return performDepthCharge(state, theDepth);
     }
 
+    @Override
+    public DepthChargeBuffers newDepthChargeBuffers() {
+        if(theBackingMachine == null)
+            return super.newDepthChargeBuffers();
+
+        try {
+            return theBackingMachine.newDepthChargeBuffers();
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return newDepthChargeBuffers();
+    }
+
+    @Override
+    public int[] simulate(MachineState state, DepthChargeBuffers buffers, Random random) throws GoalDefinitionException, TransitionDefinitionException, MoveDefinitionException {
+        if(theBackingMachine == null)
+            return buffers.goals;
+
+        try {
+            return theBackingMachine.simulate(state, buffers, random);
+        } catch (TransitionDefinitionException te) {
+        	throw te;
+        } catch (MoveDefinitionException me) {
+        	throw me;
+        } catch (GoalDefinitionException ge) {
+        	throw ge;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return simulate(state, buffers, random);
+    }
+
     @Override
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
         if(theBackingMachine == null)
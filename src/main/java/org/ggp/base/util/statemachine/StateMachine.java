@@ -142,6 +142,44 @@ public abstract class StateMachine
     	return getGoals(performDepthCharge(state, depth));
     }
 
+    /**
+     * Returns a new set of scratch buffers for
+     * {@link #simulate(MachineState, DepthChargeBuffers, Random)} and
+     * {@link #getRandomJointMove(MachineState, DepthChargeBuffers, Random)}.
+     */
+    public DepthChargeBuffers newDepthChargeBuffers() {
+        return new DepthChargeBuffers(getRoles().size());
+    }
+
+    /** Override this to provide depth charges that don't allocate on every ply.
+     * <p>
+     * Makes random joint moves from the given state until reaching the end of
+     * the game, choosing moves with the given random number generator, and
+     * returns the goal values of the roles in the terminal state. The results
+     * are written to the given buffers, and the returned array is
+     * <tt>buffers.goals</tt>.
+     * <p>
+     * The default implementation reuses the joint move list of the buffers,
+     * but otherwise allocates as much as {@link #performDepthCharge(MachineState, int[])}.
+     * <p>
+     * CONTRACT: Like {@link #getNextStateDestructively(MachineState, List)},
+     *           "state" should not be accessed after calling this method.
+     */
+    public int[] simulate(MachineState state, DepthChargeBuffers buffers, Random random) throws GoalDefinitionException, TransitionDefinitionException, MoveDefinitionException {
+        int nDepth = 0;
+        while (!isTerminal(state)) {
+            nDepth++;
+            state = getNextStateDestructively(state, getRandomJointMove(state, buffers, random));
+        }
+        List<Role> roles = getRoles();
+        for (int i = 0; i < roles.size(); i++) {
+            buffers.goals[i] = getGoal(state, roles.get(i));
+        }
+        buffers.depth = nDepth;
+        buffers.state = state;
+        return buffers.goals;
+    }
+
     // ============================================
     //   Implementations of convenience methods
     // ============================================
@@ -322,6 +360,40 @@ public abstract class StateMachine
         return random;
     }
 
+    /**
+     * Chooses a random joint move in the given state, using the given random
+     * number generator, and writes it to <tt>buffers.jointMove</tt> and
+     * <tt>buffers.moveIndices</tt>. Returns <tt>buffers.jointMove</tt>,
+     * which is overwritten by the next call that uses the same buffers.
+     */
+    public List<Move> getRandomJointMove(MachineState state, DepthChargeBuffers buffers, Random random) throws MoveDefinitionException
+    {
+        return getRandomJointMove(state, null, null, buffers, random);
+    }
+
+    /**
+     * Like {@link #getRandomJointMove(MachineState, DepthChargeBuffers, Random)},
+     * but the given role makes the given move. The move index of that role is
+     * set to -1.
+     */
+    public List<Move> getRandomJointMove(MachineState state, Role role, Move move, DepthChargeBuffers buffers, Random random) throws MoveDefinitionException
+    {
+        List<Role> roles = getRoles();
+        for (int i = 0; i < roles.size(); i++) {
+            Role r = roles.get(i);
+            if (r.equals(role)) {
+                buffers.jointMove.set(i, move);
+                buffers.moveIndices[i] = -1;
+            } else {
+                List<Move> legals = getLegalMoves(state, r);
+                int index = random.nextInt(legals.size());
+                buffers.jointMove.set(i, legals.get(index));
+                buffers.moveIndices[i] = index;
+            }
+        }
+        return buffers.jointMove;
+    }
+
     /**
      * Returns a random move from among the possible legal moves for the
      * given role in the given state.
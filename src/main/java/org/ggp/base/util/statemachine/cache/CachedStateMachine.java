@@ -1,10 +1,16 @@
 package org.ggp.base.util.statemachine.cache;
 
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.BitSetMachineState;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -15,101 +21,180 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 import com.google.common.collect.ImmutableList;
 
+/**
+ * A state machine decorator that caches the results of the backing state
+ * machine, per state.
+ *
+ * The cache is a {@link ClockCache} bounded by an approximate memory budget;
+ * entries that haven't been used since the previous move are also pruned in
+ * {@link #doPerMoveWork()}. Lookups never take a lock, so a CachedStateMachine
+ * may be shared between search threads as long as the backing state machine
+ * is thread-safe too. When two threads miss on the same query at once, both
+ * ask the backing state machine and either answer may end up cached.
+ */
 public final class CachedStateMachine extends StateMachine
 {
+	// Rough object sizes, used to estimate the memory held by the cache.
+	private static final long ENTRY_BYTES = 128;
+	private static final long NEXT_STATE_BYTES = 96;
+	private static final long REFERENCE_BYTES = 8;
+
+	private static final byte UNKNOWN = 0;
+	private static final byte NOT_TERMINAL = 1;
+	private static final byte TERMINAL = 2;
+
 	private final StateMachine backingStateMachine;
-	private final TtlCache<MachineState, Entry> ttlCache;
+	private final ClockCache<MachineState, Entry> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
 
-	private final class Entry
+	private static final class Entry extends ClockCache.Node
 	{
-		public Map<Role, Integer> goals;
-		public Map<Role, List<Move>> moves;
-		public Map<List<Move>, MachineState> nexts;
-		public Boolean terminal;
+		// Goal values by role index, or -1 when not known yet.
+		public final AtomicIntegerArray goals;
+		public final AtomicReferenceArray<List<Move>> moves;
+		public final AtomicReference<ConcurrentHashMap<List<Move>, MachineState>> nexts;
+		public volatile byte terminal;
 
-		public Entry()
+		public Entry(int roleCount)
 		{
-			goals = new HashMap<Role, Integer>();
-			moves = new HashMap<Role, List<Move>>();
-			nexts = new HashMap<List<Move>, MachineState>();
-			terminal = null;
+			goals = new AtomicIntegerArray(roleCount);
+			for (int i = 0; i < roleCount; i++)
+			{
+				goals.set(i, -1);
+			}
+			moves = new AtomicReferenceArray<List<Move>>(roleCount);
+			nexts = new AtomicReference<ConcurrentHashMap<List<Move>, MachineState>>();
+			terminal = UNKNOWN;
 		}
 	}
 
+	/**
+	 * Creates a CachedStateMachine that may use up to a quarter of the
+	 * maximum heap size.
+	 */
 	public CachedStateMachine(StateMachine backingStateMachine)
+	{
+		this(backingStateMachine, Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	/**
+	 * Creates a CachedStateMachine that holds about <tt>maxCacheBytes</tt>
+	 * bytes of cached results at most.
+	 */
+	public CachedStateMachine(StateMachine backingStateMachine, long maxCacheBytes)
 	{
 		this.backingStateMachine = backingStateMachine;
-		ttlCache = new TtlCache<MachineState, Entry>(1);
+		this.cache = new ClockCache<MachineState, Entry>(maxCacheBytes);
 	}
 
 	private Entry getEntry(MachineState state)
 	{
-		if (!ttlCache.containsKey(state))
+		Entry entry = cache.get(state);
+		if (entry == null)
 		{
-			ttlCache.put(state, new Entry());
+			entry = cache.putIfAbsent(state, new Entry(getRoles().size()), ENTRY_BYTES + estimateBytes(state));
 		}
 
-		return ttlCache.get(state);
+		return entry;
 	}
 
 	@Override
 	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
 	{
 		Entry entry = getEntry(state);
-		synchronized (entry)
+		int index = getRoleIndices().get(role);
+		int goal = entry.goals.get(index);
+		if (goal >= 0)
 		{
-			if (!entry.goals.containsKey(role))
-			{
-				entry.goals.put(role, backingStateMachine.getGoal(state, role));
-			}
-
-			return entry.goals.get(role);
+			hits.incrementAndGet();
+			return goal;
 		}
+
+		misses.incrementAndGet();
+		goal = backingStateMachine.getGoal(state, role);
+		entry.goals.set(index, goal);
+		return goal;
 	}
 
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
 	{
 		Entry entry = getEntry(state);
-		synchronized (entry)
+		int index = getRoleIndices().get(role);
+		List<Move> moves = entry.moves.get(index);
+		if (moves != null)
 		{
-			if (!entry.moves.containsKey(role))
-			{
-				entry.moves.put(role, ImmutableList.copyOf(backingStateMachine.getLegalMoves(state, role)));
-			}
+			hits.incrementAndGet();
+			return moves;
+		}
 
-			return entry.moves.get(role);
+		misses.incrementAndGet();
+		moves = ImmutableList.copyOf(backingStateMachine.getLegalMoves(state, role));
+		if (entry.moves.compareAndSet(index, null, moves))
+		{
+			cache.addWeight(entry, REFERENCE_BYTES * (moves.size() + 3));
 		}
+		return moves;
 	}
 
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
 	{
 		Entry entry = getEntry(state);
-		synchronized (entry)
+		ConcurrentHashMap<List<Move>, MachineState> nexts = entry.nexts.get();
+		if (nexts == null)
+		{
+			entry.nexts.compareAndSet(null, new ConcurrentHashMap<List<Move>, MachineState>(4, 0.75f, 1));
+			nexts = entry.nexts.get();
+		}
+		else
 		{
-			if (!entry.nexts.containsKey(moves))
+			MachineState next = nexts.get(moves);
+			if (next != null)
 			{
-				entry.nexts.put(moves, backingStateMachine.getNextState(state, moves));
+				hits.incrementAndGet();
+				return next;
 			}
+		}
 
-			return entry.nexts.get(moves);
+		misses.incrementAndGet();
+		MachineState next = backingStateMachine.getNextState(state, moves);
+		if (nexts.putIfAbsent(ImmutableList.copyOf(moves), next) == null)
+		{
+			cache.addWeight(entry, NEXT_STATE_BYTES + REFERENCE_BYTES * moves.size() + estimateBytes(next));
 		}
+		return next;
 	}
 
 	@Override
 	public boolean isTerminal(MachineState state)
 	{
 		Entry entry = getEntry(state);
-		synchronized (entry)
+		byte terminal = entry.terminal;
+		if (terminal != UNKNOWN)
 		{
-			if (entry.terminal == null)
-			{
-				entry.terminal = backingStateMachine.isTerminal(state);
-			}
+			hits.incrementAndGet();
+			return terminal == TERMINAL;
+		}
 
-			return entry.terminal;
+		misses.incrementAndGet();
+		boolean isTerminal = backingStateMachine.isTerminal(state);
+		entry.terminal = isTerminal ? TERMINAL : NOT_TERMINAL;
+		return isTerminal;
+	}
+
+	/**
+	 * Estimates the memory held by a state, in bytes. States may be shared
+	 * with other entries, so this errs on the side of counting them twice.
+	 */
+	private static long estimateBytes(MachineState state)
+	{
+		if (state instanceof BitSetMachineState)
+		{
+			return 48 + REFERENCE_BYTES * ((BitSetMachineState) state).getWords().length;
 		}
+		return 64 + 48 * state.getContents().size();
 	}
 
 	@Override
@@ -120,11 +205,53 @@ public final class CachedStateMachine extends StateMachine
 
 	public void prune()
 	{
-		ttlCache.prune();
+		cache.prune();
+	}
+
+	/**
+	 * Returns the number of queries answered from the cache.
+	 */
+	public long getCacheHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of queries passed on to the backing state machine.
+	 */
+	public long getCacheMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of states evicted from the cache, either to stay
+	 * within its memory budget or by {@link #prune()}.
+	 */
+	public long getCacheEvictions()
+	{
+		return cache.getEvictions();
+	}
+
+	/**
+	 * Returns the number of states in the cache.
+	 */
+	public int getCacheSize()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * Returns the estimated memory held by the cache, in bytes.
+	 */
+	public long getCacheBytes()
+	{
+		return cache.getWeight();
 	}
 
 	@Override
 	public void initialize(List<Gdl> description) {
+		cache.clear();
 		backingStateMachine.initialize(description);
 	}
 
@@ -139,4 +266,9 @@ public final class CachedStateMachine extends StateMachine
 		// TODO(schreib): Should this be cached as well?
 		return backingStateMachine.getInitialState();
 	}
-}
\ No newline at end of file
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+		return backingStateMachine.getMachineStateFromSentenceList(sentenceList);
+	}
+}
@@ -0,0 +1,195 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A concurrent cache that is bounded by an approximate memory budget, and
+ * evicts entries using the CLOCK algorithm (a cheap approximation of LRU).
+ *
+ * Values are stored in a {@link ConcurrentHashMap}, so lookups never block.
+ * Every value carries a weight, its estimated size in bytes, which may grow
+ * after the value has been inserted (see {@link #addWeight}). When the total
+ * weight exceeds the budget, one thread sweeps the clock: values that were
+ * accessed since the last sweep get a second chance, and the others are
+ * evicted until the cache is back under budget.
+ *
+ * {@link #prune()} runs one full sweep regardless of the weight, evicting
+ * every value that hasn't been accessed since the previous sweep. This gives
+ * the same behavior as a time-to-live of one sweep.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class ClockCache<K, V extends ClockCache.Node>
+{
+	/**
+	 * The base class of values stored in a ClockCache, which holds the
+	 * bookkeeping needed for eviction.
+	 */
+	public abstract static class Node
+	{
+		private static final long EVICTED = Long.MIN_VALUE;
+
+		volatile Object key;
+		volatile boolean referenced = true;
+		final AtomicLong weight = new AtomicLong();
+	}
+
+	private final ConcurrentHashMap<K, V> contents;
+	private final Queue<V> clock;
+	private final long maxWeight;
+	private final AtomicLong weight = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	/**
+	 * Creates a cache whose values weigh at most about <tt>maxWeight</tt>
+	 * bytes in total.
+	 */
+	public ClockCache(long maxWeight)
+	{
+		this.contents = new ConcurrentHashMap<K, V>();
+		this.clock = new ConcurrentLinkedQueue<V>();
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Returns the value for the given key, or null if there is none, and
+	 * marks the value as recently used.
+	 */
+	public V get(K key)
+	{
+		V value = contents.get(key);
+		if (value != null && !value.referenced)
+			value.referenced = true;
+		return value;
+	}
+
+	/**
+	 * Inserts the given value with the given initial weight, unless the key
+	 * already has a value. Returns the value that ends up in the cache.
+	 */
+	public V putIfAbsent(K key, V value, long initialWeight)
+	{
+		value.key = key;
+		V existing = contents.putIfAbsent(key, value);
+		if (existing != null) {
+			existing.referenced = true;
+			return existing;
+		}
+		clock.offer(value);
+		addWeight(value, initialWeight);
+		return value;
+	}
+
+	/**
+	 * Adds to the weight of a value in the cache, e.g. because more results
+	 * have been stored in it. Has no effect if the value has been evicted.
+	 */
+	public void addWeight(V value, long delta)
+	{
+		while (true) {
+			long current = value.weight.get();
+			if (current == Node.EVICTED)
+				return;
+			if (value.weight.compareAndSet(current, current + delta))
+				break;
+		}
+		if (weight.addAndGet(delta) > maxWeight)
+			sweep(false);
+	}
+
+	/**
+	 * Evicts every value that hasn't been accessed since the last call to
+	 * prune, or since it was inserted.
+	 */
+	public void prune()
+	{
+		sweep(true);
+	}
+
+	public void clear()
+	{
+		V value;
+		while ((value = clock.poll()) != null) {
+			remove(value);
+		}
+	}
+
+	/**
+	 * Returns the number of values in the cache.
+	 */
+	public int size()
+	{
+		return contents.size();
+	}
+
+	/**
+	 * Returns the estimated total size of the values in the cache, in bytes.
+	 */
+	public long getWeight()
+	{
+		return weight.get();
+	}
+
+	public long getMaxWeight()
+	{
+		return maxWeight;
+	}
+
+	/**
+	 * Returns the number of values evicted so far.
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * Sweeps the clock, giving recently used values a second chance and
+	 * evicting the others. A full sweep visits every value once; otherwise
+	 * the sweep stops as soon as the cache is back under budget. Only one
+	 * thread sweeps at a time; others return immediately.
+	 */
+	private void sweep(boolean full)
+	{
+		if (!sweeping.compareAndSet(false, true))
+			return;
+		try {
+			int remaining = full ? contents.size() : Integer.MAX_VALUE;
+			while (remaining-- > 0 && (full || weight.get() > maxWeight)) {
+				V value = clock.poll();
+				if (value == null)
+					break;
+				if (value.referenced) {
+					value.referenced = false;
+					clock.offer(value);
+				} else {
+					evict(value);
+				}
+			}
+		} finally {
+			sweeping.set(false);
+		}
+	}
+
+	private void evict(V value)
+	{
+		if (remove(value))
+			evictions.incrementAndGet();
+	}
+
+	private boolean remove(V value)
+	{
+		long removed = value.weight.getAndSet(Node.EVICTED);
+		if (removed == Node.EVICTED)
+			return false;
+		contents.remove(value.key, value);
+		weight.addAndGet(-removed);
+		return true;
+	}
+}
@@ -0,0 +1,269 @@
+package org.ggp.base.util.statemachine.implementation.forwardchaining;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.model.DependencyGraphs;
+import org.ggp.base.util.gdl.model.SentenceDomainModel;
+import org.ggp.base.util.gdl.model.SentenceDomainModelFactory;
+import org.ggp.base.util.gdl.model.SentenceDomainModelOptimizer;
+import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.transforms.DeORer;
+import org.ggp.base.util.gdl.transforms.GdlCleaner;
+import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.reasoner.gdl.GdlChainingReasoner;
+import org.ggp.base.util.reasoner.gdl.GdlSentenceSet;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A state machine that evaluates the rules of the game bottom-up, with a
+ * {@link GdlChainingReasoner}, instead of proving each query top-down like
+ * the {@link org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine}.
+ * <p>
+ * When a state is first queried, every rule that doesn't depend on the moves
+ * is applied once, in the stratum order of the {@link SentenceDomainModel},
+ * and every legal, goal and terminal query about that state is answered from
+ * the resulting set of sentences. Subgoals shared by several queries are thus
+ * only derived once. Computing the next state adds the moves to a copy of
+ * that set and applies the remaining rules. Sentences of constant sentence
+ * forms are computed once, when the machine is initialized.
+ * <p>
+ * Unlike the propnet state machines, this needs no expensive build step, so
+ * it can be used on games whose propnets take too long to build. Whether it
+ * beats the prover depends on the game: it pays off on rule sets where many
+ * queries share subgoals, while on small games the cost of applying every
+ * rule to each state can outweigh the work saved.
+ * <p>
+ * A ForwardChainingStateMachine is not thread-safe.
+ */
+public class ForwardChainingStateMachine extends StateMachine
+{
+	private static final GdlConstant DOES = GdlPool.getConstant("does");
+	private static final GdlConstant GOAL = GdlPool.getConstant("goal");
+	private static final GdlConstant INIT = GdlPool.getConstant("init");
+	private static final GdlConstant LEGAL = GdlPool.getConstant("legal");
+	private static final GdlConstant NEXT = GdlPool.getConstant("next");
+	private static final GdlConstant TERMINAL = GdlPool.getConstant("terminal");
+	private static final GdlConstant TRUE = GdlPool.getConstant("true");
+
+	private SentenceDomainModel model;
+	private GdlChainingReasoner reasoner;
+	private ImmutableList<Role> roles;
+	private MachineState initialState;
+	/** The sentences of constant sentence forms. */
+	private GdlSentenceSet constantSentences;
+	/** The strata of forms that depend on the state, but not on the moves. */
+	private List<Set<SentenceForm>> stateStrata;
+	/** The strata of forms that depend on the moves. */
+	private List<Set<SentenceForm>> moveStrata;
+	private Set<SentenceForm> legalForms;
+	private Set<SentenceForm> goalForms;
+	private Set<SentenceForm> terminalForms;
+	private Set<SentenceForm> nextForms;
+
+	/** The state whose sentences were computed last, and those sentences. */
+	private MachineState loadedState;
+	private GdlSentenceSet loadedSentences;
+
+	@Override
+	public void initialize(List<Gdl> description)
+	{
+		try {
+			roles = ImmutableList.copyOf(Role.computeRoles(description));
+			description = GdlCleaner.run(description);
+			description = DeORer.run(description);
+			description = VariableConstrainer.replaceFunctionValuedVariables(description);
+			model = SentenceDomainModelFactory.createWithCartesianDomains(description);
+			model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
+			reasoner = GdlChainingReasoner.create(model);
+
+			legalForms = getFormsNamed(LEGAL);
+			goalForms = getFormsNamed(GOAL);
+			terminalForms = getFormsNamed(TERMINAL);
+			nextForms = getFormsNamed(NEXT);
+
+			Set<SentenceForm> constantForms = model.getConstantSentenceForms();
+			Set<SentenceForm> moveForms = DependencyGraphs.getMatchingAndDownstream(model.getSentenceForms(),
+					HashMultimap.create(model.getDependencyGraph()), new Predicate<SentenceForm>() {
+				@Override
+				public boolean apply(SentenceForm form) {
+					return form.getName() == DOES;
+				}
+			});
+			List<Set<SentenceForm>> constantStrata = new ArrayList<Set<SentenceForm>>();
+			stateStrata = new ArrayList<Set<SentenceForm>>();
+			moveStrata = new ArrayList<Set<SentenceForm>>();
+			for (Set<SentenceForm> stratum : DependencyGraphs.toposortSafe(model.getSentenceForms(), model.getDependencyGraph())) {
+				// a stratum is a set of mutually recursive forms, so these are all-or-nothing
+				SentenceForm form = stratum.iterator().next();
+				if (constantForms.contains(form)) {
+					constantStrata.add(stratum);
+				} else if (moveForms.contains(form)) {
+					moveStrata.add(stratum);
+				} else {
+					stateStrata.add(stratum);
+				}
+			}
+			constantSentences = reasoner.addRuleResults(constantStrata, model, reasoner.getConstantSentences());
+
+			Set<GdlSentence> initialContents = new HashSet<GdlSentence>();
+			for (SentenceForm form : getFormsNamed(INIT)) {
+				for (GdlSentence sentence : constantSentences.getSentences().get(form)) {
+					initialContents.add(GdlPool.getRelation(TRUE, new GdlTerm[] { sentence.get(0) }));
+				}
+			}
+			initialState = new MachineState(initialContents);
+			loadedState = null;
+			loadedSentences = null;
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		GdlSentenceSet sentences = loadState(state);
+		for (SentenceForm form : terminalForms) {
+			if (!sentences.getSentences().get(form).isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		GdlSentenceSet sentences = loadState(state);
+		GdlTerm goal = null;
+		for (SentenceForm form : goalForms) {
+			for (GdlSentence sentence : sentences.getSentences().get(form)) {
+				if (sentence.get(0) == role.getName()) {
+					if (goal != null)
+						throw new GoalDefinitionException(state, role);
+					goal = sentence.get(1);
+				}
+			}
+		}
+		if (goal == null)
+			throw new GoalDefinitionException(state, role);
+
+		try {
+			return Integer.parseInt(goal.toString());
+		} catch (NumberFormatException e) {
+			throw new GoalDefinitionException(state, role);
+		}
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+	{
+		GdlSentenceSet sentences = loadState(state);
+		List<Move> moves = new ArrayList<Move>();
+		for (SentenceForm form : legalForms) {
+			for (GdlSentence sentence : sentences.getSentences().get(form)) {
+				if (sentence.get(0) == role.getName())
+					moves.add(new Move(sentence.get(1)));
+			}
+		}
+		if (moves.isEmpty())
+			throw new MoveDefinitionException(state, role);
+		return moves;
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		GdlSentenceSet sentences = GdlSentenceSet.create(loadState(state).getSentences());
+		for (int i = 0; i < roles.size(); i++) {
+			put(sentences, ProverQueryBuilder.toDoes(roles.get(i), moves.get(i)));
+		}
+		try {
+			sentences = reasoner.addRuleResults(moveStrata, model, sentences);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		Set<GdlSentence> contents = new HashSet<GdlSentence>();
+		for (SentenceForm form : nextForms) {
+			for (GdlSentence sentence : sentences.getSentences().get(form)) {
+				if (!sentence.isGround())
+					throw new TransitionDefinitionException(state, moves);
+				contents.add(GdlPool.getRelation(TRUE, new GdlTerm[] { sentence.get(0) }));
+			}
+		}
+		return new MachineState(contents);
+	}
+
+	@Override
+	public MachineState getInitialState()
+	{
+		return initialState;
+	}
+
+	@Override
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	/**
+	 * Returns every sentence true in the given state, other than those of
+	 * sentence forms that depend on the moves. The sentences of the state
+	 * queried last are kept, so that the queries about one state that
+	 * usually come together (terminal, goals, legal moves, next state) only
+	 * apply the rules once.
+	 */
+	private GdlSentenceSet loadState(MachineState state)
+	{
+		if (loadedState != null && (state == loadedState || state.equals(loadedState)))
+			return loadedSentences;
+
+		GdlSentenceSet sentences = GdlSentenceSet.create(constantSentences.getSentences());
+		for (GdlSentence sentence : state.getContents()) {
+			put(sentences, sentence);
+		}
+		try {
+			sentences = reasoner.addRuleResults(stateStrata, model, sentences);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		loadedState = state;
+		loadedSentences = sentences;
+		return sentences;
+	}
+
+	private void put(GdlSentenceSet sentences, GdlSentence sentence)
+	{
+		sentences.put(model.getSentenceForm(sentence), sentence);
+	}
+
+	private Set<SentenceForm> getFormsNamed(GdlConstant name)
+	{
+		ImmutableSet.Builder<SentenceForm> forms = ImmutableSet.builder();
+		for (SentenceForm form : model.getSentenceForms()) {
+			if (form.getName() == name)
+				forms.add(form);
+		}
+		return forms.build();
+	}
+}
@@ -0,0 +1,606 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.BytecodePropNet;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.DifferentialPropagator;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.BasePropositionIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
+import org.ggp.base.util.statemachine.DepthChargeBuffers;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+
+/**
+ * A state machine backed by a {@link CompiledPropNet}. The propnet is built
+ * with the {@link OptimizingPropNetFactory} and then flattened into arrays,
+ * so that answering a query amounts to loading the state into a value vector
+ * and making one topological pass over it. The value vector is allocated once,
+ * when the machine is initialized.
+ * <p>
+ * If the propnet has no cycles, the machine defaults to differential mode,
+ * where a {@link DifferentialPropagator} keeps the value vector from one query
+ * to the next and only propagates the components affected by the base and
+ * input propositions that changed. Since consecutive states usually differ in
+ * only a few base propositions, this is much cheaper than a full pass. The
+ * state set with {@link #setRootState(MachineState)} is snapshotted, so that
+ * searches which keep returning to it (e.g. MCTS rollouts from the root) can
+ * reset to it for the cost of an array copy.
+ * <p>
+ * In bytecode mode, a class is generated for the game (see
+ * {@link BytecodePropNet}) which evaluates the whole propnet in one
+ * straight-line pass, and packs and unpacks states without looking at the
+ * base arrays. If the class can't be generated, for instance because the
+ * propnet is too large, the machine falls back to differential mode, or to
+ * full passes over the compiled propnet if it has cycles.
+ * <p>
+ * Building the propnet is the slow part of initializing the machine. A
+ * machine created with a {@link PropNetCache} loads the compiled propnet
+ * from disk instead when the game has been played before. A deadline set with
+ * {@link #setBuildDeadline(long)} bounds the time spent building, so that a
+ * player can fall back to another machine within its start clock.
+ * <p>
+ * The value vector remembers which state was loaded last, so asking several
+ * questions about the same state (terminal, then legal moves for each role,
+ * and so on) only evaluates the propnet once.
+ * <p>
+ * States are produced as {@link BitSetMachineState}s over the base index of
+ * the compiled propnet, so loading a state produced by this machine (or by
+ * any other machine sharing the same compiled propnet) reads the bitset
+ * directly. States of other kinds are loaded through their contents.
+ * <p>
+ * Depth charges run through {@link #simulate(MachineState, DepthChargeBuffers, Random)}
+ * are played out on the value vector itself, without creating any states or
+ * move lists along the way.
+ * <p>
+ * Like most state machines, a PropNetStateMachine is not thread-safe; search
+ * threads should each use their own instance.
+ */
+public class PropNetStateMachine extends StateMachine
+{
+	/** How the machine brings the propnet up to date after a change. */
+	public enum Evaluation
+	{
+		/** A full pass over the compiled propnet. */
+		FULL_PASS,
+		/** Propagating only the changes, with a {@link DifferentialPropagator}. */
+		DIFFERENTIAL,
+		/** A full pass through a class generated for the game. */
+		BYTECODE
+	}
+
+	private final Evaluation requestedEvaluation;
+	/** Where the propnet is loaded from and saved to, or null. */
+	private final PropNetCache cache;
+	private CompiledPropNet propNet;
+	private BasePropositionIndex baseIndex;
+	private List<Role> roles;
+	private MachineState initialState;
+
+	/** Propagates changes to the value vector in differential mode, or null. */
+	private DifferentialPropagator propagator;
+	/** Evaluates the propnet in bytecode mode, or null. */
+	private BytecodePropNet bytecode;
+	/** Scratch space for the next state in bytecode mode. */
+	private long[] nextWords;
+	/** The value of every component of the propnet. */
+	private boolean[] values;
+	/** Scratch space for the base values of the next state to load. */
+	private boolean[] nextBases;
+	/** The state snapshotted by setRootState, or null. */
+	private MachineState rootState;
+	private DifferentialPropagator.Snapshot rootSnapshot;
+	/** The state whose base propositions are loaded in the value vector. */
+	private MachineState loadedState;
+	/** The input index set for each role, or -1 if none is set. */
+	private int[] loadedInputs;
+	/** Whether the value vector reflects the loaded state and inputs. */
+	private boolean evaluated;
+	/** When initialize(List) gives up on building the propnet. */
+	private long buildDeadline = Long.MAX_VALUE;
+
+	public PropNetStateMachine()
+	{
+		this(true);
+	}
+
+	/**
+	 * Creates a PropNetStateMachine. If <tt>differential</tt> is false, or
+	 * the propnet turns out to have cycles, every query that changes the
+	 * loaded state or moves makes a full pass over the propnet instead of
+	 * propagating differences.
+	 */
+	public PropNetStateMachine(boolean differential)
+	{
+		this(differential, null);
+	}
+
+	/**
+	 * Creates a PropNetStateMachine that gets its propnet from the given
+	 * cache, so that initializing it for a game that's been seen before
+	 * doesn't rebuild the propnet. The cache may be null.
+	 */
+	public PropNetStateMachine(boolean differential, PropNetCache cache)
+	{
+		this(differential ? Evaluation.DIFFERENTIAL : Evaluation.FULL_PASS, cache);
+	}
+
+	/**
+	 * Creates a PropNetStateMachine that evaluates its propnet the given way,
+	 * if it can, and gets its propnet from the given cache, which may be null.
+	 */
+	public PropNetStateMachine(Evaluation evaluation, PropNetCache cache)
+	{
+		this.requestedEvaluation = evaluation;
+		this.cache = cache;
+	}
+
+	/**
+	 * Makes {@link #initialize(List)} throw a RuntimeException if the propnet
+	 * isn't built or loaded by the given time, in milliseconds since the
+	 * epoch. The build is then interrupted.
+	 */
+	public void setBuildDeadline(long deadline)
+	{
+		this.buildDeadline = deadline;
+	}
+
+	@Override
+	public void initialize(final List<Gdl> description)
+	{
+		if (buildDeadline == Long.MAX_VALUE) {
+			try {
+				initialize(getPropNet(description));
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+
+		// Build on another thread, so that the build can be abandoned at the deadline.
+		FutureTask<CompiledPropNet> build = new FutureTask<CompiledPropNet>(new Callable<CompiledPropNet>() {
+			@Override
+			public CompiledPropNet call() throws InterruptedException {
+				return getPropNet(description);
+			}
+		});
+		Thread thread = new Thread(build, "PropNetBuilder");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			initialize(build.get(Math.max(buildDeadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS));
+		} catch (TimeoutException e) {
+			build.cancel(true);
+			throw new RuntimeException("Propnet not built by the deadline", e);
+		} catch (InterruptedException e) {
+			build.cancel(true);
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private CompiledPropNet getPropNet(List<Gdl> description) throws InterruptedException
+	{
+		if (cache != null)
+			return cache.getPropNet(description);
+		return CompiledPropNet.compile(OptimizingPropNetFactory.create(description));
+	}
+
+	/**
+	 * Initializes the state machine from an already compiled propnet. The
+	 * compiled propnet is only read, so it can be shared between machines.
+	 */
+	public void initialize(CompiledPropNet propNet)
+	{
+		this.propNet = propNet;
+		this.baseIndex = propNet.getBasePropositionIndex();
+		this.roles = propNet.getRoles();
+		this.bytecode = null;
+		this.propagator = null;
+		if (requestedEvaluation == Evaluation.BYTECODE) {
+			this.bytecode = BytecodePropNet.generate(propNet);
+			if (bytecode == null)
+				System.err.println("Falling back to evaluating the propnet from its arrays");
+		}
+		if (bytecode == null && requestedEvaluation != Evaluation.FULL_PASS && DifferentialPropagator.supports(propNet)) {
+			this.propagator = new DifferentialPropagator(propNet);
+			this.values = propagator.getValues();
+		} else {
+			this.values = propNet.newValueVector();
+		}
+		this.nextWords = newBitSet();
+		this.nextBases = new boolean[propNet.getBaseCount()];
+		this.rootState = null;
+		this.rootSnapshot = null;
+		this.loadedInputs = new int[roles.size()];
+		Arrays.fill(loadedInputs, -1);
+		this.loadedState = null;
+		this.evaluated = false;
+
+		long[] words = newBitSet();
+		for (int base : propNet.getInitialBases()) {
+			words[base >> 6] |= 1L << base;
+		}
+		this.initialState = new BitSetMachineState(baseIndex, words);
+	}
+
+	public CompiledPropNet getPropNet()
+	{
+		return propNet;
+	}
+
+	/**
+	 * Returns whether this machine propagates changes differentially.
+	 */
+	public boolean isDifferential()
+	{
+		return propagator != null;
+	}
+
+	/**
+	 * Returns how this machine actually evaluates its propnet, which may
+	 * differ from what was asked for if that wasn't possible.
+	 */
+	public Evaluation getEvaluation()
+	{
+		if (bytecode != null)
+			return Evaluation.BYTECODE;
+		return (propagator != null) ? Evaluation.DIFFERENTIAL : Evaluation.FULL_PASS;
+	}
+
+	/**
+	 * Snapshots the propnet in the given state, so that loading that state
+	 * again later restores the snapshot instead of propagating every change
+	 * made since. Only has an effect in differential mode.
+	 */
+	public void setRootState(MachineState state)
+	{
+		if (propagator == null)
+			return;
+		loadState(state);
+		rootState = state;
+		rootSnapshot = propagator.snapshot();
+	}
+
+	/**
+	 * Snapshots the given state as {@link #setRootState(MachineState)} does,
+	 * so that searches holding this machine through a wrapper such as
+	 * {@link org.ggp.base.util.statemachine.FailsafeStateMachine} can set it.
+	 */
+	@Override
+	public void updateRoot(MachineState theState)
+	{
+		setRootState(theState);
+	}
+
+	/**
+	 * Returns the value of the terminal proposition in the given state.
+	 */
+	@Override
+	public boolean isTerminal(MachineState state)
+	{
+		int terminal = propNet.getTerminal();
+		if (terminal < 0)
+			return false;
+		loadState(state);
+		return values[terminal];
+	}
+
+	/**
+	 * Returns the value of the single goal proposition that is true for the
+	 * given role in the given state.
+	 *
+	 * @throws GoalDefinitionException if the number of true goal propositions
+	 * for that role is not exactly one.
+	 */
+	@Override
+	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+	{
+		loadState(state);
+		return getLoadedGoal(getRoleIndices().get(role));
+	}
+
+	@Override
+	public MachineState getInitialState()
+	{
+		return initialState;
+	}
+
+	@Override
+	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+	{
+		loadState(state);
+		int r = getRoleIndices().get(role);
+		int[] legals = propNet.getLegalComponents()[r];
+		List<Move> moves = new ArrayList<Move>();
+		for (int i = 0; i < legals.length; i++) {
+			if (values[legals[i]])
+				moves.add(propNet.getLegalMoves()[r][i]);
+		}
+		if (moves.isEmpty())
+			throw new MoveDefinitionException(state, role);
+		return moves;
+	}
+
+	@Override
+	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+	{
+		loadBases(state);
+		for (int r = 0; r < roles.size(); r++) {
+			setInput(r, propNet.getInputIndex(r, moves.get(r)));
+		}
+		evaluate();
+
+		long[] words = newBitSet();
+		if (bytecode != null) {
+			bytecode.storeNextState(values, words);
+			return new BitSetMachineState(baseIndex, words);
+		}
+		int[] transitions = propNet.getBaseTransitions();
+		for (int i = 0; i < transitions.length; i++) {
+			if (values[transitions[i]])
+				words[i >> 6] |= 1L << i;
+		}
+		return new BitSetMachineState(baseIndex, words);
+	}
+
+	/**
+	 * Plays a random depth charge on the value vector, copying the next state
+	 * straight from the transitions to the base propositions at every ply.
+	 * Apart from the exceptions thrown for broken game descriptions, this
+	 * allocates nothing; in particular, the terminal state is not created,
+	 * so <tt>buffers.state</tt> is set to null.
+	 */
+	@Override
+	public int[] simulate(MachineState state, DepthChargeBuffers buffers, Random random)
+			throws GoalDefinitionException, MoveDefinitionException
+	{
+		loadState(state);
+		int terminal = propNet.getTerminal();
+		int[] bases = propNet.getBaseComponents();
+		int[] transitions = propNet.getBaseTransitions();
+		int depth = 0;
+		while (terminal < 0 || !values[terminal]) {
+			for (int r = 0; r < roles.size(); r++) {
+				buffers.moveIndices[r] = chooseRandomLegal(r, random);
+			}
+			for (int r = 0; r < roles.size(); r++) {
+				int legal = findLegal(r, buffers.moveIndices[r]);
+				buffers.jointMove.set(r, propNet.getLegalMoves()[r][legal]);
+				setInput(r, propNet.getLegalInputs()[r][legal]);
+			}
+			evaluate();
+
+			if (bytecode != null) {
+				bytecode.storeNextState(values, nextWords);
+				bytecode.loadBases(nextWords, values);
+				evaluated = false;
+			} else {
+				for (int i = 0; i < transitions.length; i++) {
+					nextBases[i] = values[transitions[i]];
+				}
+				for (int i = 0; i < bases.length; i++) {
+					setValue(bases[i], nextBases[i]);
+				}
+			}
+			for (int r = 0; r < roles.size(); r++) {
+				setInput(r, -1);
+			}
+			// the value vector no longer matches any state object
+			loadedState = null;
+			evaluate();
+			depth++;
+		}
+
+		for (int r = 0; r < roles.size(); r++) {
+			buffers.goals[r] = getLoadedGoal(r);
+		}
+		buffers.depth = depth;
+		buffers.state = null;
+		return buffers.goals;
+	}
+
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+	{
+		return BitSetMachineState.create(baseIndex, sentenceList);
+	}
+
+	@Override
+	public List<Role> getRoles()
+	{
+		return roles;
+	}
+
+	/**
+	 * Loads the given state with no moves selected, and evaluates the propnet
+	 * if it isn't already up to date.
+	 */
+	private void loadState(MachineState state)
+	{
+		loadBases(state);
+		for (int r = 0; r < roles.size(); r++) {
+			setInput(r, -1);
+		}
+		evaluate();
+	}
+
+	private void loadBases(MachineState state)
+	{
+		if (state == loadedState)
+			return;
+
+		if (rootSnapshot != null && state.equals(rootState)) {
+			propagator.restore(rootSnapshot);
+			Arrays.fill(loadedInputs, -1);
+			loadedState = state;
+			evaluated = true;
+			return;
+		}
+
+		if (state instanceof BitSetMachineState && ((BitSetMachineState) state).getIndex() == baseIndex) {
+			BitSetMachineState bitSetState = (BitSetMachineState) state;
+			if (bytecode != null) {
+				long[] words = bitSetState.getWords();
+				if (words.length < nextWords.length) {
+					// Pad out the trailing zero words that the state leaves off.
+					Arrays.fill(nextWords, 0L);
+					System.arraycopy(words, 0, nextWords, 0, words.length);
+					words = nextWords;
+				}
+				bytecode.loadBases(words, values);
+				loadedState = state;
+				evaluated = false;
+				return;
+			}
+			for (int i = 0; i < nextBases.length; i++) {
+				nextBases[i] = bitSetState.get(i);
+			}
+		} else {
+			Arrays.fill(nextBases, false);
+			for (GdlSentence sentence : state.getContents()) {
+				int index = propNet.getBaseIndex(sentence);
+				if (index >= 0)
+					nextBases[index] = true;
+			}
+		}
+
+		int[] bases = propNet.getBaseComponents();
+		for (int i = 0; i < bases.length; i++) {
+			setValue(bases[i], nextBases[i]);
+		}
+		loadedState = state;
+	}
+
+	/**
+	 * Returns the goal value of the given role in the loaded state.
+	 */
+	private int getLoadedGoal(int role) throws GoalDefinitionException
+	{
+		int[] goals = propNet.getGoalComponents()[role];
+		int goal = -1;
+		for (int i = 0; i < goals.length; i++) {
+			if (values[goals[i]]) {
+				if (goal != -1)
+					throw new GoalDefinitionException(getLoadedState(), roles.get(role));
+				goal = propNet.getGoalValues()[role][i];
+			}
+		}
+		if (goal == -1)
+			throw new GoalDefinitionException(getLoadedState(), roles.get(role));
+		return goal;
+	}
+
+	/**
+	 * Returns a random index among the legal moves of the given role in the
+	 * loaded state.
+	 */
+	private int chooseRandomLegal(int role, Random random) throws MoveDefinitionException
+	{
+		int[] legals = propNet.getLegalComponents()[role];
+		int count = 0;
+		for (int i = 0; i < legals.length; i++) {
+			if (values[legals[i]])
+				count++;
+		}
+		if (count == 0)
+			throw new MoveDefinitionException(getLoadedState(), roles.get(role));
+		return random.nextInt(count);
+	}
+
+	/**
+	 * Returns the position in the legal components of the given role of its
+	 * n-th true legal proposition.
+	 */
+	private int findLegal(int role, int n)
+	{
+		int[] legals = propNet.getLegalComponents()[role];
+		for (int i = 0; i < legals.length; i++) {
+			if (values[legals[i]] && n-- == 0)
+				return i;
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Returns the state whose base propositions are loaded in the value
+	 * vector, creating it if necessary.
+	 */
+	private MachineState getLoadedState()
+	{
+		if (loadedState != null)
+			return loadedState;
+		int[] bases = propNet.getBaseComponents();
+		long[] words = newBitSet();
+		for (int i = 0; i < bases.length; i++) {
+			if (values[bases[i]])
+				words[i >> 6] |= 1L << i;
+		}
+		return new BitSetMachineState(baseIndex, words);
+	}
+
+	private long[] newBitSet()
+	{
+		return new long[(propNet.getBaseCount() + 63) >> 6];
+	}
+
+	private void setInput(int role, int input)
+	{
+		int previous = loadedInputs[role];
+		if (previous == input)
+			return;
+
+		int[] inputs = propNet.getInputComponents();
+		if (previous >= 0)
+			setValue(inputs[previous], false);
+		if (input >= 0)
+			setValue(inputs[input], true);
+		loadedInputs[role] = input;
+	}
+
+	private void setValue(int component, boolean value)
+	{
+		if (values[component] == value)
+			return;
+		if (propagator != null) {
+			propagator.set(component, value);
+		} else {
+			values[component] = value;
+		}
+		evaluated = false;
+	}
+
+	private void evaluate()
+	{
+		if (!evaluated) {
+			if (bytecode != null) {
+				bytecode.evaluate(values);
+			} else if (propagator != null) {
+				propagator.propagate();
+			} else {
+				propNet.evaluate(values);
+			}
+			evaluated = true;
+		}
+	}
+}
@@ -9,8 +9,10 @@ import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.logging.GamerLogger;
-import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.prover.aima.AimaProver.StateCache;
+import org.ggp.base.util.statemachine.BasePropositionIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -27,15 +29,29 @@ import com.google.common.collect.ImmutableList;
 public class ProverStateMachine extends StateMachine
 {
 	private MachineState initialState;
-	private Prover prover;
+	private AimaProver prover;
+	// The answers shared by the queries about the last state asked about
+	private volatile StateCache stateCache;
 	private ImmutableList<Role> roles;
+	private final boolean useBitSetStates;
+	private BasePropositionIndex baseIndex;
 
 	/**
 	 * Initialize must be called before using the StateMachine
 	 */
 	public ProverStateMachine()
 	{
+		this(false);
+	}
 
+	/**
+	 * Creates a ProverStateMachine that produces {@link BitSetMachineState}s
+	 * if <tt>useBitSetStates</tt> is true. Base propositions are indexed as
+	 * the prover derives them, so the index grows over the course of a game.
+	 */
+	public ProverStateMachine(boolean useBitSetStates)
+	{
+		this.useBitSetStates = useBitSetStates;
 	}
 
 	@Override
@@ -43,19 +59,53 @@ public class ProverStateMachine extends StateMachine
 	{
 		prover = new AimaProver(description);
 		roles = ImmutableList.copyOf(Role.computeRoles(description));
+		baseIndex = useBitSetStates ? new BasePropositionIndex() : null;
 		initialState = computeInitialState();
 	}
 
 	private MachineState computeInitialState()
 	{
 		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getInitQuery(), new HashSet<GdlSentence>());
+		return toState(results);
+	}
+
+	/**
+	 * Returns the cache of answers for the given state, opening a new one if
+	 * the state isn't the one the last query was about. The legal, goal,
+	 * terminal and next queries about a state then share what they prove
+	 * about it, and the cache is dropped once the search moves on.
+	 */
+	private StateCache getStateCache(MachineState state)
+	{
+		Set<GdlSentence> contents = ProverQueryBuilder.getContext(state);
+		StateCache cache = stateCache;
+		if (cache == null || cache.getState() != contents)
+		{
+			cache = prover.openStateCache(contents);
+			stateCache = cache;
+		}
+		return cache;
+	}
+
+	private MachineState toState(Set<GdlSentence> results)
+	{
+		if (baseIndex != null)
+			return new ProverResultParser().toState(results, baseIndex);
 		return new ProverResultParser().toState(results);
 	}
 
+	@Override
+	public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+	{
+		if (baseIndex != null)
+			return BitSetMachineState.create(baseIndex, sentenceList);
+		return super.getMachineStateFromSentenceList(sentenceList);
+	}
+
 	@Override
 	public int getGoal(MachineState state, Role role) throws GoalDefinitionException
 	{
-		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getGoalQuery(role), ProverQueryBuilder.getContext(state));
+		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getGoalQuery(role), ProverQueryBuilder.getContext(state), getStateCache(state));
 
 		if (results.size() != 1)
 		{
@@ -85,7 +135,7 @@ public class ProverStateMachine extends StateMachine
 	@Override
 	public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
 	{
-		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getLegalQuery(role), ProverQueryBuilder.getContext(state));
+		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getLegalQuery(role), ProverQueryBuilder.getContext(state), getStateCache(state));
 
 		if (results.size() == 0)
 		{
@@ -98,7 +148,7 @@ public class ProverStateMachine extends StateMachine
 	@Override
 	public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
 	{
-		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getNextQuery(), ProverQueryBuilder.getContext(state, getRoles(), moves));
+		Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getNextQuery(), ProverQueryBuilder.getContext(state, getRoles(), moves), getStateCache(state));
 
 		for (GdlSentence sentence : results)
 		{
@@ -108,7 +158,7 @@ public class ProverStateMachine extends StateMachine
 			}
 		}
 
-		return new ProverResultParser().toState(results);
+		return toState(results);
 	}
 
 	@Override
@@ -120,6 +170,6 @@ public class ProverStateMachine extends StateMachine
 	@Override
 	public boolean isTerminal(MachineState state)
 	{
-		return prover.prove(ProverQueryBuilder.getTerminalQuery(), ProverQueryBuilder.getContext(state));
+		return prover.prove(ProverQueryBuilder.getTerminalQuery(), ProverQueryBuilder.getContext(state), getStateCache(state));
 	}
 }
\ No newline at end of file
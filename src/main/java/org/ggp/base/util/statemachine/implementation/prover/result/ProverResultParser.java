@@ -1,6 +1,7 @@
 package org.ggp.base.util.statemachine.implementation.prover.result;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -9,6 +10,8 @@ import org.ggp.base.util.gdl.grammar.GdlConstant;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.BasePropositionIndex;
+import org.ggp.base.util.statemachine.BitSetMachineState;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -51,4 +54,19 @@ public final class ProverResultParser
 		}
 		return new MachineState(trues);
 	}
+
+	public MachineState toState(Set<GdlSentence> results, BasePropositionIndex index)
+	{
+		long[] words = new long[(index.size() >> 6) + 1];
+		for (GdlSentence result : results)
+		{
+			int i = index.intern(GdlPool.getRelation(TRUE, new GdlTerm[] { result.get(0) }));
+			if ((i >> 6) >= words.length)
+			{
+				words = Arrays.copyOf(words, Math.max(words.length * 2, (i >> 6) + 1));
+			}
+			words[i >> 6] |= 1L << i;
+		}
+		return new BitSetMachineState(index, words);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,141 @@
+package kkukreja.algorithms;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AlphaBetaTranspositionTableTest extends Assert {
+	@Test
+	public void testStoreAndProbe() {
+		AlphaBetaTranspositionTable table = new AlphaBetaTranspositionTable(1024);
+		AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
+		long hash = 0x123456789ABCDEFL;
+		assertFalse(table.probe(hash, entry));
+
+		table.store(hash, 5, AlphaBetaTranspositionTable.LOWER_BOUND, 100.0 / 3, 7);
+		assertTrue(table.probe(hash, entry));
+		assertEquals(100.0 / 3, entry.score, 0.0);
+		assertEquals(5, entry.depth);
+		assertEquals(AlphaBetaTranspositionTable.LOWER_BOUND, entry.bound);
+		assertEquals(7, entry.move);
+
+		// depths beyond MAX_DEPTH are stored as MAX_DEPTH
+		table.store(hash, 1000, AlphaBetaTranspositionTable.EXACT, -1.5, AlphaBetaTranspositionTable.NO_MOVE);
+		assertTrue(table.probe(hash, entry));
+		assertEquals(AlphaBetaTranspositionTable.MAX_DEPTH, entry.depth);
+		assertEquals(AlphaBetaTranspositionTable.EXACT, entry.bound);
+		assertEquals(-1.5, entry.score, 0.0);
+		// a result without a best move keeps the one found before
+		assertEquals(7, entry.move);
+
+		table.clear();
+		assertFalse(table.probe(hash, entry));
+	}
+
+	@Test
+	public void testMismatchedHashIsRejected() throws Exception {
+		AlphaBetaTranspositionTable table = new AlphaBetaTranspositionTable(1024);
+		AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
+		long hash = 0x0F0F0F0F00000010L;
+		table.store(hash, 3, AlphaBetaTranspositionTable.EXACT, 42.0, 1);
+
+		// same bucket, different hash
+		long other = hash ^ (1L << 40);
+		assertFalse(table.probe(other, entry));
+
+		// an entry torn by a concurrent writer no longer matches its hash
+		int slot = (int) hash & (table.getCapacity() - 1);
+		Field field = AlphaBetaTranspositionTable.class.getDeclaredField("scores");
+		field.setAccessible(true);
+		long[] scores = (long[]) field.get(table);
+		scores[slot] = Double.doubleToLongBits(43.0);
+		assertFalse(table.probe(hash, entry));
+	}
+
+	@Test
+	public void testDeeperEntryIsKeptWithinGeneration() {
+		AlphaBetaTranspositionTable table = new AlphaBetaTranspositionTable(1024);
+		AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
+		long hash = 0x77L;
+		table.store(hash, 6, AlphaBetaTranspositionTable.LOWER_BOUND, 10.0, 2);
+
+		// a shallower bound doesn't replace a deeper result of the same search
+		table.store(hash, 3, AlphaBetaTranspositionTable.UPPER_BOUND, 20.0, 4);
+		assertTrue(table.probe(hash, entry));
+		assertEquals(6, entry.depth);
+		assertEquals(10.0, entry.score, 0.0);
+		assertEquals(2, entry.move);
+
+		// but a shallower exact score does
+		table.store(hash, 3, AlphaBetaTranspositionTable.EXACT, 30.0, 4);
+		assertTrue(table.probe(hash, entry));
+		assertEquals(3, entry.depth);
+		assertEquals(30.0, entry.score, 0.0);
+
+		// and so does a shallower bound once the deeper result is from an earlier search
+		table.store(hash, 6, AlphaBetaTranspositionTable.LOWER_BOUND, 10.0, 2);
+		table.newGeneration();
+		table.store(hash, 1, AlphaBetaTranspositionTable.UPPER_BOUND, 40.0, 5);
+		assertTrue(table.probe(hash, entry));
+		assertEquals(1, entry.depth);
+		assertEquals(40.0, entry.score, 0.0);
+	}
+
+	@Test
+	public void testVictimChoiceAcrossGenerations() {
+		// a single bucket, so every store competes for the same four slots
+		AlphaBetaTranspositionTable table = new AlphaBetaTranspositionTable(4);
+		assertEquals(4, table.getCapacity());
+		AlphaBetaTranspositionTable.Entry entry = new AlphaBetaTranspositionTable.Entry();
+		long[] hashes = new long[6];
+		for (int i = 0; i < hashes.length; i++)
+			hashes[i] = (i + 1L) << 8;
+		int[] depths = {4, 1, 3, 2};
+		for (int i = 0; i < depths.length; i++)
+			table.store(hashes[i], depths[i], AlphaBetaTranspositionTable.EXACT, i, 0);
+
+		// with the bucket full of the current generation, the shallowest entry goes
+		table.store(hashes[4], 5, AlphaBetaTranspositionTable.EXACT, 4, 0);
+		assertFalse(table.probe(hashes[1], entry));
+		assertTrue(table.probe(hashes[4], entry));
+
+		// after newGeneration, entries from the earlier search go first, even if they are deeper
+		table.newGeneration();
+		table.store(hashes[3], 2, AlphaBetaTranspositionTable.EXACT, 3, 0);
+		table.store(hashes[5], 0, AlphaBetaTranspositionTable.EXACT, 5, 0);
+		assertTrue(table.probe(hashes[3], entry));
+		assertTrue(table.probe(hashes[5], entry));
+		assertFalse(table.probe(hashes[2], entry));
+		assertTrue(table.probe(hashes[0], entry));
+		assertTrue(table.probe(hashes[4], entry));
+	}
+
+	// workers sharing a table may use separately built propnets, or fall back to the prover
+	@Test
+	public void testStatesHashTheSameOnEveryMachine() throws Exception {
+		List<Gdl> rules = new TestGameRepository().getGame("connectFour").getRules();
+		StateMachine[] machines = {new PropNetStateMachine(), new PropNetStateMachine(), new ProverStateMachine()};
+		MachineState[] states = new MachineState[machines.length];
+		for (int m = 0; m < machines.length; m++) {
+			machines[m].initialize(rules);
+			states[m] = machines[m].getInitialState();
+		}
+		for (int i = 0; i < 10 && !machines[0].isTerminal(states[0]); i++) {
+			long hash = AlphaBetaTranspositionTable.hash(states[0]);
+			for (int m = 1; m < machines.length; m++)
+				assertEquals(hash, AlphaBetaTranspositionTable.hash(states[m]));
+			List<Move> jointMove = machines[0].getRandomJointMove(states[0]);
+			for (int m = 0; m < machines.length; m++)
+				states[m] = machines[m].getNextState(states[m], jointMove);
+		}
+	}
+}
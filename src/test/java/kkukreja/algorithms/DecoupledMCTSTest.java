@@ -0,0 +1,80 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DecoupledMCTSTest extends Assert {
+	// matching pennies, except that p2 can also settle for 40 by playing safe. Its value for p2
+	// is 50 when both mix heads and tails evenly, but a p1 that sees p2's move coming can hold
+	// p2 to 40.
+	private static final String[] MATCHING_PENNIES = {
+		"(role p1)", "(role p2)", "(init (step 0))",
+		"(legal p1 heads)", "(legal p1 tails)", "(legal p2 safe)", "(legal p2 heads)", "(legal p2 tails)",
+		"(<= (next (chose ?r ?m)) (does ?r ?m))", "(<= (next (step 1)) (true (step 0)))",
+		"(<= terminal (true (step 1)))",
+		"(<= (goal p2 40) (true (chose p2 safe)))",
+		"(<= (goal p2 100) (true (chose p2 heads)) (true (chose p1 heads)))",
+		"(<= (goal p2 100) (true (chose p2 tails)) (true (chose p1 tails)))",
+		"(<= (goal p2 0) (true (chose p2 heads)) (true (chose p1 tails)))",
+		"(<= (goal p2 0) (true (chose p2 tails)) (true (chose p1 heads)))",
+		"(<= (goal p1 ?x) (goal p2 ?y) (sub ?y ?x))", "(sub 40 60)", "(sub 100 0)", "(sub 0 100)",
+	};
+
+	private StateMachine machine;
+	private Role p2;
+
+	@Before
+	public void setUp() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : MATCHING_PENNIES)
+			rules.add(GdlFactory.create(gdl));
+		machine = new ProverStateMachine();
+		machine.initialize(rules);
+		p2 = machine.getRoles().get(1);
+	}
+
+	@Test
+	public void testAdversarialBanditsReachTheMixedValue() throws Exception {
+		for (DecoupledMCTS.Selection selection : new DecoupledMCTS.Selection[] {DecoupledMCTS.Selection.EXP3, DecoupledMCTS.Selection.REGRET_MATCHING}) {
+			DecoupledMCTS search = new DecoupledMCTS(machine, p2, selection);
+			Move move = search.nextMove(machine.getInitialState(), System.currentTimeMillis() + 1000);
+			double value = search.getRoot().utility[1];
+			assertTrue(selection + " value " + value, value > 45 && value < 55);
+			assertFalse(selection.toString(), move.toString().equals("safe"));
+		}
+	}
+
+	@Test
+	public void testUCTIsExploited() throws Exception {
+		DecoupledMCTS search = new DecoupledMCTS(machine, p2, DecoupledMCTS.Selection.UCT);
+		Move move = search.nextMove(machine.getInitialState(), System.currentTimeMillis() + 1000);
+		double value = search.getRoot().utility[1];
+		assertTrue("UCT value " + value, value < 42);
+		assertEquals("safe", move.toString());
+	}
+
+	@Test
+	public void testChildrenAreCreatedOnFirstPlay() throws Exception {
+		DecoupledMCTS search = new DecoupledMCTS(machine, p2, DecoupledMCTS.Selection.EXP3);
+		MachineState state = machine.getInitialState();
+		search.search(state, System.currentTimeMillis() + 100);
+		DecoupledMCTSNode root = search.getRoot();
+		assertTrue(root.simultaneous);
+		// joint move indices are mixed-radix in role order, and every joint move is tried quickly
+		long index = root.getJointMoveIndex(new int[] {0, 1});
+		assertEquals(1, index);
+		assertNotNull(root.getChild(index));
+		assertNull(new DecoupledMCTSNode(2).getChild(0));
+	}
+}
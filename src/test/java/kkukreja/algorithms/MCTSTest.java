@@ -0,0 +1,148 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.analysis.LatchAnalysis;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MCTSTest extends Assert {
+	// pressing red lights the lamp for good, and the lamp decides the goal, but the game only
+	// ends after three presses
+	private static final String[] BUTTONS = {
+		"(role player)",
+		"(init (step 1))",
+		"(succ 1 2)", "(succ 2 3)", "(succ 3 4)",
+		"(<= (next (step ?y)) (true (step ?x)) (succ ?x ?y))",
+		"(legal player red)", "(legal player blue)",
+		"(<= (next lit) (does player red))",
+		"(<= (next lit) (true lit))",
+		"(<= (goal player 100) (true lit))",
+		"(<= (goal player 0) (not (true lit)))",
+		"(<= terminal (true (step 4)))",
+	};
+
+	// two steps of a or b; only the second move counts
+	private static final String[] LAST_MOVE = {
+		"(role player)", "(init (step 1))", "(succ 1 2)", "(succ 2 3)",
+		"(<= (next (step ?y)) (true (step ?x)) (succ ?x ?y))",
+		"(legal player a)", "(legal player b)",
+		"(<= (next (last ?m)) (does player ?m))",
+		"(<= terminal (true (step 3)))",
+		"(<= (goal player 100) (true (last a)))",
+		"(<= (goal player 0) (true (last b)))",
+	};
+
+	// the root's AMAF statistics count a move whenever it is played in an iteration, even if
+	// only after the first move, down the tree or in the playout
+	@Test
+	public void testAmafCountsMovesPlayedLater() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : LAST_MOVE)
+			rules.add(GdlFactory.create(gdl));
+		StateMachine machine = new PropNetStateMachine();
+		machine.initialize(rules);
+		Role player = machine.getRoles().get(0);
+
+		for (MCTS.Selection selection : new MCTS.Selection[] {MCTS.Selection.RAVE, MCTS.Selection.GRAVE}) {
+			MCTS search = new MCTS(machine, machine.getRoles(), player, 0);
+			search.setPolicies(selection, MCTS.Playout.RANDOM);
+			search.search(machine.getInitialState(), System.currentTimeMillis() + 100);
+			MCTSNode root = search.getRoot();
+			assertEquals(selection.toString(), 2, root.children.size());
+			for (MCTSNode child : root.children) {
+				int amafVisits = root.amafVisits[child.moveId];
+				assertTrue(selection + " " + child.jointMove, amafVisits > child.visits);
+				assertTrue(selection + " " + child.jointMove, amafVisits <= root.visits);
+			}
+
+			// a is worth 100 whenever it comes last, so its AMAF average beats b's
+			int a = root.children.get(0).jointMove.get(0).toString().equals("a") ? 0 : 1;
+			int idA = root.children.get(a).moveId;
+			int idB = root.children.get(1 - a).moveId;
+			assertTrue(root.amafUtility[idA] / root.amafVisits[idA] > root.amafUtility[idB] / root.amafVisits[idB]);
+		}
+	}
+
+	@Test
+	public void testMoveFromDecidedRoot() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : BUTTONS)
+			rules.add(GdlFactory.create(gdl));
+		CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(rules));
+		PropNetStateMachine machine = new PropNetStateMachine();
+		machine.initialize(propNet);
+		Role player = machine.getRoles().get(0);
+
+		MachineState state = machine.getNextState(machine.getInitialState(), Collections.singletonList(new Move(GdlPool.getConstant("red"))));
+		LatchAnalysis latches = LatchAnalysis.analyze(propNet, Long.MAX_VALUE);
+		assertFalse(machine.isTerminal(state));
+		assertNotNull(latches.getDecidedGoals(state));
+
+		for (MCTS.Selection selection : MCTS.Selection.values()) {
+			MCTS search = new MCTS(machine, machine.getRoles(), player, 0);
+			search.setPolicies(selection, MCTS.Playout.RANDOM);
+			search.setLatchAnalysis(latches);
+			Move move = search.nextMove(state, System.currentTimeMillis() + 100);
+			assertTrue(selection.toString(), machine.getLegalMoves(state, player).contains(move));
+		}
+	}
+
+	// pondering after playing blue only grows the tree below blue
+	@Test
+	public void testPonderBelowOurMove() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : BUTTONS)
+			rules.add(GdlFactory.create(gdl));
+		StateMachine machine = new PropNetStateMachine();
+		machine.initialize(rules);
+		Role player = machine.getRoles().get(0);
+		MachineState state = machine.getInitialState();
+		Move blue = new Move(GdlPool.getConstant("blue"));
+
+		MCTS search = new MCTS(machine, machine.getRoles(), player, 0);
+		search.ponder(state, blue, System.currentTimeMillis() + 100);
+		MCTSNode root = search.getRoot();
+		assertEquals(2, root.children.size());
+		for (MCTSNode child : root.children) {
+			if (child.jointMove.get(0).equals(blue))
+				assertEquals(root.visits, child.visits);
+			else
+				assertEquals(0, child.visits);
+		}
+		assertTrue(root.visits > 1);
+
+		// the next turn starts from the pondered subtree
+		int visits = root.visits;
+		search.advance(Collections.singletonList(blue));
+		assertEquals(visits, search.getRoot().visits);
+	}
+
+	// the tree has no moves when no iteration fits in the time given
+	@Test
+	public void testMoveWithoutIterations() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : BUTTONS)
+			rules.add(GdlFactory.create(gdl));
+		StateMachine machine = new PropNetStateMachine();
+		machine.initialize(rules);
+		Role player = machine.getRoles().get(0);
+		MachineState state = machine.getInitialState();
+
+		MCTS search = new MCTS(machine, machine.getRoles(), player, 0);
+		Move move = search.nextMove(state, System.currentTimeMillis() - 1000);
+		assertTrue(machine.getLegalMoves(state, player).contains(move));
+	}
+}
@@ -0,0 +1,60 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelAlphaBetaTest extends Assert {
+	// both roles move at once. p2 can guess p1's coin for 100 or 0, or play safe for 50. Alpha-beta
+	// treats the opponent as moving after us, so guessing is worth 0 to it and safe is best.
+	private static final String[] GUESS_OR_SAFE = {
+		"(role p1)", "(role p2)", "(init (step 0))",
+		"(legal p1 heads)", "(legal p1 tails)", "(legal p2 safe)", "(legal p2 heads)", "(legal p2 tails)",
+		"(<= (next (chose ?r ?m)) (does ?r ?m))", "(<= (next (step 1)) (true (step 0)))",
+		"(<= terminal (true (step 1)))",
+		"(<= (goal p2 50) (true (chose p2 safe)))",
+		"(<= (goal p2 100) (true (chose p2 heads)) (true (chose p1 heads)))",
+		"(<= (goal p2 100) (true (chose p2 tails)) (true (chose p1 tails)))",
+		"(<= (goal p2 0) (true (chose p2 heads)) (true (chose p1 tails)))",
+		"(<= (goal p2 0) (true (chose p2 tails)) (true (chose p1 heads)))",
+		"(<= (goal p1 ?x) (goal p2 ?y) (sub ?y ?x))", "(sub 50 50)", "(sub 100 0)", "(sub 0 100)",
+	};
+
+	@Test
+	public void testSimultaneousMovesAsSecondRole() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : GUESS_OR_SAFE)
+			rules.add(GdlFactory.create(gdl));
+
+		for (int threads = 1; threads <= 2; threads++) {
+			List<StateMachine> machines = new ArrayList<StateMachine>();
+			for (int i = 0; i < threads; i++) {
+				StateMachine machine = new ProverStateMachine();
+				machine.initialize(rules);
+				machines.add(machine);
+			}
+			StateMachine machine = machines.get(0);
+			Role p1 = machine.getRoles().get(0);
+			Role p2 = machine.getRoles().get(1);
+			// only the goal feature counts
+			LinearCombinationHeuristic heuristic = new LinearCombinationHeuristic(machine, p2, new double[] {0, 0, 0, 0, 1});
+
+			ParallelAlphaBeta search = new ParallelAlphaBeta(machines, p2, p1, heuristic);
+			try {
+				assertEquals(threads, search.getThreadCount());
+				Move move = search.nextMove(machine.getInitialState(), System.currentTimeMillis() + 2000);
+				assertEquals(threads + " machines", "safe", move.toString());
+			} finally {
+				search.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelMCTSTest extends Assert {
+	// p1 picks a number, then p2 answers x or y. Picking 3 wins outright; any other number wins
+	// only if p2 answers x, which p2 won't.
+	private static final String[] PICK_THREE = {
+		"(role p1)", "(role p2)", "(init (step 0))",
+		"(number 1)", "(number 2)", "(number 3)", "(number 4)", "(number 5)",
+		"(<= (legal p1 (pick ?n)) (number ?n) (true (step 0)))",
+		"(<= (legal p2 noop) (true (step 0)))",
+		"(<= (legal p1 noop) (true (step 1)))",
+		"(<= (legal p2 x) (true (step 1)))", "(<= (legal p2 y) (true (step 1)))",
+		"(<= (next (picked ?n)) (does p1 (pick ?n)))",
+		"(<= (next (picked ?n)) (true (picked ?n)))",
+		"(<= (next (answered ?m)) (does p2 ?m) (true (step 1)))",
+		"(<= (next (step 1)) (true (step 0)))", "(<= (next (step 2)) (true (step 1)))",
+		"(<= terminal (true (step 2)))",
+		"(<= win (true (picked 3)))", "(<= win (true (answered x)))",
+		"(<= (goal p1 100) win)", "(<= (goal p1 0) (not win))",
+		"(<= (goal p2 0) win)", "(<= (goal p2 100) (not win))",
+	};
+
+	@Test
+	public void testForcedWinWithSeveralThreads() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : PICK_THREE)
+			rules.add(GdlFactory.create(gdl));
+		List<StateMachine> machines = new ArrayList<StateMachine>();
+		for (int i = 0; i < 4; i++) {
+			StateMachine machine = new PropNetStateMachine();
+			machine.initialize(rules);
+			machines.add(machine);
+		}
+		StateMachine machine = machines.get(0);
+		Role p1 = machine.getRoles().get(0);
+
+		for (ParallelMCTS.Mode mode : ParallelMCTS.Mode.values()) {
+			ParallelMCTS search = new ParallelMCTS(machines, p1, mode);
+			try {
+				assertEquals(4, search.getThreadCount());
+				Move move = search.nextMove(machine.getInitialState(), System.currentTimeMillis() + 500);
+				assertEquals(mode.toString(), "( pick 3 )", move.toString());
+				assertTrue(search.getLastIterations() > 0);
+				assertEquals(mode == ParallelMCTS.Mode.TREE ? 1 : 4, search.getLastRoots().size());
+
+				// every virtual loss added on the way down was removed on the way back up
+				for (ParallelMCTSNode root : search.getLastRoots()) {
+					assertTrue(root.getVisits() > 0);
+					assertNoVirtualLosses(root);
+				}
+			} finally {
+				search.shutdown();
+			}
+		}
+	}
+
+	private static void assertNoVirtualLosses(ParallelMCTSNode node) {
+		assertEquals(node.toString(), 0, node.getVirtualLosses());
+		if (node.getChildren() != null) {
+			for (ParallelMCTSNode child : node.getChildren())
+				assertNoVirtualLosses(child);
+		}
+	}
+}
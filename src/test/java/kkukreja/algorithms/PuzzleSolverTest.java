@@ -0,0 +1,153 @@
+package kkukreja.algorithms;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PuzzleSolverTest extends Assert {
+	// a lock with four dials of three digits. It opens for 2 1 0 2, and a first 2 is worth 50.
+	private static final String[] LOCK = {
+		"(role player)", "(init (step 0))",
+		"(digit 0)", "(digit 1)", "(digit 2)",
+		"(succ 0 1)", "(succ 1 2)", "(succ 2 3)", "(succ 3 4)",
+		"(<= (legal player (press ?d)) (digit ?d))",
+		"(<= (next (pressed ?s ?d)) (does player (press ?d)) (true (step ?s)))",
+		"(<= (next (pressed ?s ?d)) (true (pressed ?s ?d)))",
+		"(<= (next (step ?y)) (true (step ?x)) (succ ?x ?y))",
+		"(<= terminal (true (step 4)))",
+		"(<= open (true (pressed 0 2)) (true (pressed 1 1)) (true (pressed 2 0)) (true (pressed 3 2)))",
+		"(<= half (true (pressed 0 2)) (not open))",
+		"(<= (goal player 100) open)",
+		"(<= (goal player 50) half)",
+		"(<= (goal player 0) (not (true (pressed 0 2))))",
+	};
+	private static final List<String> SOLUTION = Arrays.asList("( press 2 )", "( press 1 )", "( press 0 )", "( press 2 )");
+
+	private static List<Gdl> getRules() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : LOCK)
+			rules.add(GdlFactory.create(gdl));
+		return rules;
+	}
+
+	private static List<String> toStrings(List<Move> moves) {
+		List<String> strings = new ArrayList<String>();
+		for (Move move : moves)
+			strings.add(move.toString());
+		return strings;
+	}
+
+	// the table holds far fewer entries than there are states, so states are evicted and solved again
+	@Test
+	public void testSolveWithSmallTable() throws Exception {
+		StateMachine machine = new PropNetStateMachine();
+		machine.initialize(getRules());
+		Role player = machine.getRoles().get(0);
+
+		PuzzleSolver solver = new PuzzleSolver(Collections.singletonList(machine), player, 4);
+		try {
+			assertTrue(solver.solve(machine.getInitialState(), System.currentTimeMillis() + 10000));
+			assertEquals(100, solver.getScore());
+			assertEquals(SOLUTION, toStrings(solver.getPlan()));
+		} finally {
+			solver.shutdown();
+		}
+	}
+
+	// separately built machines may number the legal moves differently
+	@Test
+	public void testParallelRootWin() throws Exception {
+		List<Gdl> rules = getRules();
+		List<StateMachine> machines = new ArrayList<StateMachine>();
+		machines.add(new PropNetStateMachine());
+		machines.add(new PropNetStateMachine());
+		machines.add(new ProverStateMachine());
+		for (StateMachine machine : machines)
+			machine.initialize(rules);
+		StateMachine machine = machines.get(0);
+		Role player = machine.getRoles().get(0);
+
+		for (int capacity : new int[] {4, 1024}) {
+			PuzzleSolver solver = new PuzzleSolver(machines, player, capacity);
+			try {
+				assertTrue(solver.solve(machine.getInitialState(), System.currentTimeMillis() + 10000));
+				assertEquals(100, solver.getScore());
+				assertEquals(SOLUTION, toStrings(solver.getPlan()));
+
+				// the plan is followed from the states it reaches
+				MachineState state = machine.getInitialState();
+				for (String expected : SOLUTION) {
+					Move move = solver.nextMove(state, System.currentTimeMillis() + 10000);
+					assertEquals(expected, move.toString());
+					state = machine.getNextState(state, Collections.singletonList(move));
+				}
+				assertEquals(100, machine.getGoal(state, player));
+			} finally {
+				solver.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testSaveAndLoadPlan() throws Exception {
+		StateMachine machine = new PropNetStateMachine();
+		machine.initialize(getRules());
+		Role player = machine.getRoles().get(0);
+		MachineState initial = machine.getInitialState();
+		File file = File.createTempFile("puzzle", ".plan");
+		try {
+			PuzzleSolver solver = new PuzzleSolver(Collections.singletonList(machine), player, 1024);
+			assertTrue(solver.solve(initial, System.currentTimeMillis() + 10000));
+			solver.savePlan(file);
+			solver.shutdown();
+
+			PuzzleSolver loader = new PuzzleSolver(Collections.singletonList(machine), player, 1024);
+			assertTrue(loader.loadPlan(file, initial));
+			assertEquals(100, loader.getScore());
+			assertEquals(SOLUTION, toStrings(loader.getPlan()));
+			// nothing is solved when the plan is loaded
+			assertEquals(0, loader.getNodes());
+
+			// a plan that doesn't reach its score, has an illegal move, or can't be read is rejected
+			PuzzleSolver rejecter = new PuzzleSolver(Collections.singletonList(machine), player, 1024);
+			writeFile(file, "100\n( press 2 )\n( press 1 )\n( press 1 )\n( press 2 )\n");
+			assertFalse(rejecter.loadPlan(file, initial));
+			writeFile(file, "100\n( press 2 )\n( press 1 )\n( press 0 )\n");
+			assertFalse(rejecter.loadPlan(file, initial));
+			writeFile(file, "100\n( press 2 )\n( press 1 )\n( press 3 )\n( press 2 )\n");
+			assertFalse(rejecter.loadPlan(file, initial));
+			writeFile(file, "a hundred\n");
+			assertFalse(rejecter.loadPlan(file, initial));
+			assertFalse(rejecter.isSolved());
+			file.delete();
+			assertFalse(rejecter.loadPlan(file, initial));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void writeFile(File file, String contents) throws Exception {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package kkukreja.algorithms;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TranspositionMCTSTest extends Assert {
+	// three switches, turned on one at a time in any order; the game ends when all are on
+	private static final String[] SWITCHES = {
+		"(role player)",
+		"(switch a)", "(switch b)", "(switch c)",
+		"(<= (legal player (flip ?s)) (switch ?s) (not (true (on ?s))))",
+		"(<= (next (on ?s)) (does player (flip ?s)))",
+		"(<= (next (on ?s)) (true (on ?s)))",
+		"(<= terminal (true (on a)) (true (on b)) (true (on c)))",
+		"(<= (goal player 100) (true (on a)))",
+		"(<= (goal player 0) (not (true (on a))))",
+	};
+
+	private StateMachine machine;
+	private Role player;
+
+	@Before
+	public void setUp() throws Exception {
+		List<Gdl> rules = new ArrayList<Gdl>();
+		for (String gdl : SWITCHES)
+			rules.add(GdlFactory.create(gdl));
+		machine = new PropNetStateMachine();
+		machine.initialize(rules);
+		player = machine.getRoles().get(0);
+	}
+
+	private MachineState flip(MachineState state, String name) throws Exception {
+		Move move = new Move(GdlFactory.createTerm("( flip " + name + " )"));
+		return machine.getNextState(state, Collections.singletonList(move));
+	}
+
+	// visits of the edge for the given move out of the given entry
+	private static int getEdgeVisits(MCTSTranspositionTable.Entry entry, String move) {
+		int visits = 0;
+		for (Map.Entry<Long, MCTSTranspositionTable.Edge> edge : entry.getEdges().entrySet()) {
+			if (entry.getMove(edge.getKey(), 0).toString().equals(move))
+				visits += edge.getValue().getVisits();
+		}
+		return visits;
+	}
+
+	@Test
+	public void testTranspositionsShareOneNode() throws Exception {
+		TranspositionMCTS search = new TranspositionMCTS(machine, player);
+		MachineState initial = machine.getInitialState();
+		search.search(initial, System.currentTimeMillis() + 200);
+		MCTSTranspositionTable table = search.getTable();
+
+		MachineState a = flip(initial, "a");
+		MachineState b = flip(initial, "b");
+		MachineState ab = flip(a, "b");
+		MachineState ba = flip(b, "a");
+		assertNotSame(ab, ba);
+		MCTSTranspositionTable.Entry entry = table.get(ab);
+		assertNotNull(entry);
+		assertSame(entry, table.get(ba));
+
+		// the state is reached through both orders, and keeps the visits of both; only the
+		// iteration that expanded a or b and played out through the other didn't add to it
+		int throughA = getEdgeVisits(table.get(a), "( flip b )");
+		int throughB = getEdgeVisits(table.get(b), "( flip a )");
+		assertTrue(throughA > 1 && throughB > 1);
+		assertTrue(entry.getVisits() <= throughA + throughB);
+		assertTrue(entry.getVisits() >= throughA + throughB - 2);
+	}
+
+	@Test
+	public void testEdgesAreCreatedOnFirstPlay() throws Exception {
+		MCTSTranspositionTable table = new MCTSTranspositionTable(16);
+		MachineState initial = machine.getInitialState();
+		List<List<Move>> legalMoves = Collections.singletonList(machine.getLegalMoves(initial, player));
+		MCTSTranspositionTable.Entry entry = table.put(initial, null, legalMoves);
+		assertTrue(entry.getEdges().isEmpty());
+
+		long jointMove = entry.getJointMove(new int[] {1});
+		entry.update(jointMove, new int[] {100});
+		entry.update(jointMove, new int[] {0});
+		assertEquals(1, entry.getEdges().size());
+		assertEquals(2, entry.getEdges().get(jointMove).getVisits());
+		assertEquals(100, entry.getEdges().get(jointMove).getUtilitySum(0));
+		assertEquals(2, entry.getVisits());
+
+		// the search only creates edges for the joint moves it plays
+		TranspositionMCTS search = new TranspositionMCTS(machine, player);
+		search.search(initial, System.currentTimeMillis() + 100);
+		MCTSTranspositionTable.Entry root = search.getTable().get(initial);
+		for (MCTSTranspositionTable.Edge edge : root.getEdges().values())
+			assertTrue(edge.getVisits() > 0);
+		assertTrue(root.getEdges().size() <= 3);
+	}
+}
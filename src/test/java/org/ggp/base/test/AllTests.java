@@ -1,5 +1,13 @@
 package org.ggp.base.test;
 
+import kkukreja.algorithms.AlphaBetaTranspositionTableTest;
+import kkukreja.algorithms.DecoupledMCTSTest;
+import kkukreja.algorithms.MCTSTest;
+import kkukreja.algorithms.ParallelAlphaBetaTest;
+import kkukreja.algorithms.ParallelMCTSTest;
+import kkukreja.algorithms.PuzzleSolverTest;
+import kkukreja.algorithms.TranspositionMCTSTest;
+
 import org.ggp.base.apps.tiltyard.TiltyardRequestFarmTest;
 import org.ggp.base.player.gamer.clojure.ClojureGamerTest;
 import org.ggp.base.player.gamer.python.PythonGamerTest;
@@ -7,6 +15,7 @@ import org.ggp.base.util.crypto.BaseCryptographyTest;
 import org.ggp.base.util.crypto.CanonicalJSONTest;
 import org.ggp.base.util.crypto.SignableJSONTest;
 import org.ggp.base.util.game.GameParsingTest;
+import org.ggp.base.util.gdl.grammar.GdlPoolArenaTest;
 import org.ggp.base.util.gdl.model.DependencyGraphsTest;
 import org.ggp.base.util.gdl.model.SimpleSentenceFormTest;
 import org.ggp.base.util.gdl.scrambler.GdlRendererTest;
@@ -14,6 +23,17 @@ import org.ggp.base.util.gdl.scrambler.GdlScramblerTest;
 import org.ggp.base.util.gdl.transforms.GdlCleanerTest;
 import org.ggp.base.util.http.HttpTest;
 import org.ggp.base.util.presence.InfoResponseTest;
+import org.ggp.base.util.propnet.analysis.FactorAnalysisTest;
+import org.ggp.base.util.propnet.analysis.LatchAnalysisTest;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactoryTest;
+import org.ggp.base.util.propnet.factory.PropNetCacheTest;
+import org.ggp.base.util.prover.aima.AimaProverTest;
+import org.ggp.base.util.prover.aima.knowledge.KnowledgeBaseTest;
+import org.ggp.base.util.statemachine.BitSetMachineStateTest;
+import org.ggp.base.util.statemachine.DepthChargeExecutorTest;
+import org.ggp.base.util.statemachine.cache.CachedStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.forwardchaining.ForwardChainingStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachineTest;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineTest;
 import org.ggp.base.validator.StaticValidationTest;
 import org.junit.runner.RunWith;
@@ -21,23 +41,42 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+	AimaProverTest.class,
+	AlphaBetaTranspositionTableTest.class,
 	BaseCryptographyTest.class,
+	BitSetMachineStateTest.class,
+	CachedStateMachineTest.class,
 	CanonicalJSONTest.class,
 	ClojureGamerTest.class,
+	DecoupledMCTSTest.class,
 	DependencyGraphsTest.class,
+	DepthChargeExecutorTest.class,
+	FactorAnalysisTest.class,
+	ForwardChainingStateMachineTest.class,
 	GameParsingTest.class,
 	GdlCleanerTest.class,
+	GdlPoolArenaTest.class,
 	GdlRendererTest.class,
 	GdlScramblerTest.class,
 	HttpTest.class,
 	InfoResponseTest.class,
+	KnowledgeBaseTest.class,
+	LatchAnalysisTest.class,
+	MCTSTest.class,
 	NoTabsInRulesheetsTest.class,
+	OptimizingPropNetFactoryTest.class,
+	ParallelAlphaBetaTest.class,
+	ParallelMCTSTest.class,
+	PropNetCacheTest.class,
+	PropNetStateMachineTest.class,
 	ProverStateMachineTest.class,
+	PuzzleSolverTest.class,
 	PythonGamerTest.class,
 	SignableJSONTest.class,
 	SimpleSentenceFormTest.class,
 	StaticValidationTest.class,
 	TiltyardRequestFarmTest.class,
+	TranspositionMCTSTest.class,
                      })
 public class AllTests {
 
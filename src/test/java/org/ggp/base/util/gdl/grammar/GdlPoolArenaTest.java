@@ -0,0 +1,132 @@
+package org.ggp.base.util.gdl.grammar;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GdlPoolArenaTest extends Assert {
+	@After
+	public void detachArena() {
+		GdlPool.setArena(null);
+	}
+
+	@Test
+	public void testArenasAreSeparate() throws Exception {
+		GdlPoolArena first = new GdlPoolArena("first");
+		GdlPoolArena second = new GdlPoolArena("second");
+
+		GdlPool.setArena(first);
+		Gdl cell = GdlFactory.create("(true (cell 1 1 x))");
+		assertSame(cell, GdlFactory.create("(true (cell 1 1 x))"));
+		assertSame(first, GdlPool.getArena());
+
+		GdlPool.setArena(second);
+		Gdl otherCell = GdlFactory.create("(true (cell 1 1 x))");
+		assertNotSame(cell, otherCell);
+		assertSame(otherCell, GdlFactory.create("(true (cell 1 1 x))"));
+		// Keywords are shared by every arena.
+		assertSame(((GdlRelation) cell).getName(), ((GdlRelation) otherCell).getName());
+		assertSame(GdlPool.TRUE, GdlPool.getConstant("TRUE"));
+		assertSame(GdlPool.getProposition(GdlPool.TERMINAL), GdlFactory.create("terminal"));
+
+		GdlPool.setArena(null);
+		assertSame(GdlPool.getDefaultArena(), GdlPool.getArena());
+		assertEquals(GdlPoolArena.Retention.SOFT, GdlPool.getDefaultArena().getRetention());
+		assertEquals(GdlPoolArena.Retention.STRONG, first.getRetention());
+		assertNotSame(cell, GdlFactory.create("(true (cell 1 1 x))"));
+	}
+
+	@Test
+	public void testReleaseEmptiesArena() throws Exception {
+		GdlPoolArena arena = new GdlPoolArena("match");
+		GdlPool.setArena(arena);
+		GdlFactory.create("(<= (next (cell ?m ?n x)) (does xplayer (mark ?m ?n)) (not (true (cell ?m ?n o))))");
+		assertEquals(1, (int) arena.getSizes().get("rules"));
+		assertEquals(2, (int) arena.getSizes().get("variables"));
+		assertTrue(arena.getSize() > 0);
+		assertTrue(GdlPool.getMemoryReport().contains(arena.toString()));
+
+		arena.release();
+		assertEquals(0, arena.getSize());
+		assertSame(GdlPool.TRUE, GdlPool.getConstant("true"));
+	}
+
+	@Test
+	public void testThreadsShareArena() throws Exception {
+		GdlPoolArena arena = new GdlPoolArena("match");
+		// Started before the arena is attached, like a shared pool
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			executor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+
+			GdlPool.setArena(arena);
+			final Gdl cell = GdlFactory.create("(cell 1 1 x)");
+			final AtomicReference<Gdl> fromThread = new AtomicReference<Gdl>();
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						fromThread.set(GdlFactory.create("(cell 1 1 x)"));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			thread.start();
+			thread.join();
+			assertSame(cell, fromThread.get());
+
+			Callable<Gdl> task = new Callable<Gdl>() {
+				@Override
+				public Gdl call() throws Exception {
+					return GdlFactory.create("(cell 1 1 x)");
+				}
+			};
+			assertNotSame(cell, executor.submit(task).get());
+			assertSame(cell, executor.submit(GdlPool.inCurrentArena(task)).get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testWeakArenaLetsGoOfUnusedObjects() throws Exception {
+		GdlPoolArena arena = new GdlPoolArena("weak", GdlPoolArena.Retention.WEAK);
+		GdlPool.setArena(arena);
+		Gdl kept = GdlFactory.create("(cell 1 1 x)");
+		WeakReference<Gdl> dropped = new WeakReference<Gdl>(GdlFactory.create("(cell 2 2 o)"));
+		for (int i = 0; i < 100 && dropped.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(dropped.get());
+		assertSame(kept, GdlFactory.create("(cell 1 1 x)"));
+	}
+
+	@Test
+	public void testProverInArena() throws Exception {
+		GdlPool.setArena(new GdlPoolArena("match"));
+		List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+		StateMachine first = new ProverStateMachine();
+		first.initialize(rules);
+		StateMachine second = new ProverStateMachine();
+		second.initialize(rules);
+		assertTrue(StateMachineVerifier.checkMachineConsistency(first, second, 1000));
+	}
+}
@@ -0,0 +1,142 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FactorAnalysisTest extends Assert {
+	// Tic-tac-toe on two boards at once; each player marks a cell on either
+	// board, and scores by the number of boards with a line of theirs.
+	private static final String[] DOUBLE_TIC_TAC_TOE = {
+		"(role xplayer)", "(role oplayer)",
+		"(index 1)", "(index 2)", "(index 3)", "(board a)", "(board b)",
+		"(<= (init (cell ?b ?m ?n blank)) (board ?b) (index ?m) (index ?n))",
+		"(init (control xplayer))",
+		"(<= (marked ?b ?m ?n) (does ?w (mark ?b ?m ?n)))",
+		"(<= (next (cell ?b ?m ?n x)) (does xplayer (mark ?b ?m ?n)) (true (cell ?b ?m ?n blank)))",
+		"(<= (next (cell ?b ?m ?n o)) (does oplayer (mark ?b ?m ?n)) (true (cell ?b ?m ?n blank)))",
+		"(<= (next (cell ?b ?m ?n blank)) (true (cell ?b ?m ?n blank)) (not (marked ?b ?m ?n)))",
+		"(<= (next (cell ?b ?m ?n ?w)) (true (cell ?b ?m ?n ?w)) (distinct ?w blank))",
+		"(<= (next (control oplayer)) (true (control xplayer)))",
+		"(<= (next (control xplayer)) (true (control oplayer)))",
+		"(<= (row ?b ?m ?x) (true (cell ?b ?m 1 ?x)) (true (cell ?b ?m 2 ?x)) (true (cell ?b ?m 3 ?x)))",
+		"(<= (column ?b ?n ?x) (true (cell ?b 1 ?n ?x)) (true (cell ?b 2 ?n ?x)) (true (cell ?b 3 ?n ?x)))",
+		"(<= (diagonal ?b ?x) (true (cell ?b 1 1 ?x)) (true (cell ?b 2 2 ?x)) (true (cell ?b 3 3 ?x)))",
+		"(<= (diagonal ?b ?x) (true (cell ?b 1 3 ?x)) (true (cell ?b 2 2 ?x)) (true (cell ?b 3 1 ?x)))",
+		"(<= (line ?b ?x) (row ?b ?m ?x))",
+		"(<= (line ?b ?x) (column ?b ?m ?x))",
+		"(<= (line ?b ?x) (diagonal ?b ?x))",
+		"(<= (open ?b) (true (cell ?b ?m ?n blank)))",
+		"(<= (legal ?w (mark ?b ?x ?y)) (true (cell ?b ?x ?y blank)) (true (control ?w)))",
+		"(<= (legal xplayer noop) (true (control oplayer)))",
+		"(<= (legal oplayer noop) (true (control xplayer)))",
+		"(<= (goal xplayer 100) (line a x) (line b x))",
+		"(<= (goal xplayer 50) (line a x) (not (line b x)))",
+		"(<= (goal xplayer 50) (not (line a x)) (line b x))",
+		"(<= (goal xplayer 0) (not (line a x)) (not (line b x)))",
+		"(<= (goal oplayer 100) (line a o) (line b o))",
+		"(<= (goal oplayer 50) (line a o) (not (line b o)))",
+		"(<= (goal oplayer 50) (not (line a o)) (line b o))",
+		"(<= (goal oplayer 0) (not (line a o)) (not (line b o)))",
+		"(<= terminal (not (open a)) (not (open b)))",
+	};
+
+	@Test
+	public void testDoubleTicTacToeSplitsIntoBoards() throws Exception {
+		FactorAnalysis analysis = FactorAnalysis.analyze(OptimizingPropNetFactory.create(description(DOUBLE_TIC_TAC_TOE)), Long.MAX_VALUE);
+		assertTrue(analysis.isComplete());
+		assertTrue(analysis.isFactored());
+		assertEquals(2, analysis.getFactors().size());
+
+		Set<GdlTerm> boards = new HashSet<GdlTerm>();
+		for (Factor factor : analysis.getFactors()) {
+			assertEquals(27, factor.getBasePropositions().size());
+			assertEquals(18, factor.getInputPropositions().size());
+			Set<GdlTerm> factorBoards = new HashSet<GdlTerm>();
+			for (Proposition base : factor.getBasePropositions()) {
+				factorBoards.add(((GdlFunction) ((GdlRelation) base.getName()).get(0)).get(0));
+			}
+			for (Proposition input : factor.getInputPropositions()) {
+				factorBoards.add(((GdlFunction) ((GdlRelation) input.getName()).get(1)).get(0));
+			}
+			assertEquals(1, factorBoards.size());
+			boards.addAll(factorBoards);
+		}
+		assertEquals(2, boards.size());
+		// Whose turn it is doesn't depend on the moves, and noop does nothing.
+		assertEquals(2, analysis.getSharedBases().size());
+		assertEquals(2, analysis.getNoOpInputs().size());
+	}
+
+	@Test
+	public void testCoupledGamesAreNotSplit() throws Exception {
+		// The columns of connect four only meet in the goals, but through
+		// lines made of individual cells, so they aren't independent.
+		for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_2c"}) {
+			List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+			FactorAnalysis analysis = FactorAnalysis.analyze(OptimizingPropNetFactory.create(rules), Long.MAX_VALUE);
+			assertTrue(gameKey, analysis.isComplete());
+			assertFalse(gameKey, analysis.isFactored());
+		}
+	}
+
+	@Test
+	public void testFactorMachineFollowsFullGame() throws Exception {
+		List<Gdl> rules = description(DOUBLE_TIC_TAC_TOE);
+		FactorAnalysis analysis = FactorAnalysis.analyze(OptimizingPropNetFactory.create(rules), Long.MAX_VALUE);
+		StateMachine full = new ProverStateMachine();
+		full.initialize(rules);
+		for (Factor factor : analysis.getFactors()) {
+			PropNetStateMachine machine = factor.createStateMachine();
+			MachineState fullState = full.getInitialState();
+			MachineState state = factor.getFactorState(machine, fullState);
+			assertEquals(machine.getInitialState(), state);
+			int depth = 0;
+			while (!machine.isTerminal(state)) {
+				List<Move> jointMove = machine.getRandomJointMove(state);
+				assertTrue(full.getLegalJointMoves(fullState).contains(jointMove));
+				fullState = full.getNextState(fullState, jointMove);
+				state = machine.getNextState(state, jointMove);
+				assertEquals(factor.getFactorState(machine, fullState), state);
+				assertEquals(full.getGoals(fullState), machine.getGoals(state));
+				depth++;
+			}
+			// The factor's game ends once its board is full.
+			assertEquals(9, depth);
+		}
+	}
+
+	@Test
+	public void testAnalysisStopsAtDeadline() throws Exception {
+		PropNet propNet = OptimizingPropNetFactory.create(description(DOUBLE_TIC_TAC_TOE));
+		FactorAnalysis analysis = FactorAnalysis.analyze(propNet, System.currentTimeMillis() - 1);
+		assertFalse(analysis.isComplete());
+		assertTrue(analysis.getFactors().isEmpty());
+	}
+
+	private static List<Gdl> description(String... strings) throws Exception {
+		List<Gdl> description = new ArrayList<Gdl>();
+		for (String s : strings) {
+			description.add(GdlFactory.create(s));
+		}
+		return description;
+	}
+}
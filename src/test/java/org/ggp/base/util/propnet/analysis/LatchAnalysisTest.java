@@ -0,0 +1,133 @@
+package org.ggp.base.util.propnet.analysis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatchAnalysisTest extends Assert {
+	// Pressing the red button at any point lights the lamp for good, and the
+	// lamp decides the goal, but the game only ends after three presses.
+	private static final String[] BUTTONS = {
+		"(role player)",
+		"(init (step 1))",
+		"(succ 1 2)", "(succ 2 3)", "(succ 3 4)",
+		"(<= (next (step ?y)) (true (step ?x)) (succ ?x ?y))",
+		"(legal player red)", "(legal player blue)",
+		"(<= (next lit) (does player red))",
+		"(<= (next lit) (true lit))",
+		"(<= (goal player 100) (true lit))",
+		"(<= (goal player 0) (not (true lit)))",
+		"(<= terminal (true (step 4)))",
+	};
+
+	@Test
+	public void testLatchDecidesGoalBeforeTerminal() throws Exception {
+		List<Gdl> rules = description(BUTTONS);
+		CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(rules));
+		LatchAnalysis analysis = LatchAnalysis.analyze(propNet, Long.MAX_VALUE);
+		GdlSentence lit = (GdlSentence) GdlFactory.create("(true lit)");
+		assertTrue(analysis.isComplete());
+		assertTrue(analysis.getPositiveLatches().contains(lit));
+		assertFalse(analysis.getNegativeLatches().contains(lit));
+		assertEquals(Collections.singleton(lit), analysis.getGoalLatches(new Role(GdlPool.getConstant("player"))));
+		assertTrue(analysis.canDecideGoals());
+
+		// States from any machine can be asked about.
+		for (StateMachine machine : new StateMachine[] {new ProverStateMachine(), new PropNetStateMachine()}) {
+			machine.initialize(rules);
+			MachineState state = machine.getInitialState();
+			assertNull(analysis.getDecidedGoals(state));
+			state = machine.getNextState(state, Arrays.asList(new Move(GdlPool.getConstant("blue"))));
+			assertNull(analysis.getDecidedGoals(state));
+			state = machine.getNextState(state, Arrays.asList(new Move(GdlPool.getConstant("red"))));
+			assertFalse(machine.isTerminal(state));
+			assertArrayEquals(new int[] {100}, analysis.getDecidedGoals(state));
+			assertEquals(100, analysis.getDecidedGoal(state, 0));
+		}
+	}
+
+	@Test
+	public void testTicTacToeLatches() throws Exception {
+		CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(getRules("ticTacToe")));
+		LatchAnalysis analysis = LatchAnalysis.analyze(propNet, Long.MAX_VALUE);
+		// Marked cells stay marked, and blank cells never become blank again.
+		assertEquals(18, analysis.getPositiveLatches().size());
+		assertEquals(9, analysis.getNegativeLatches().size());
+		for (GdlSentence latch : analysis.getNegativeLatches()) {
+			assertTrue(latch.toString(), latch.toString().endsWith("b ) )"));
+		}
+	}
+
+	@Test
+	public void testDecidedGoalsMatchOutcome() throws Exception {
+		List<List<Gdl>> games = new ArrayList<List<Gdl>>();
+		games.add(description(BUTTONS));
+		games.add(getRules("ticTacToe"));
+		games.add(getRules("connectFour"));
+		Random random = new Random(0);
+		for (List<Gdl> rules : games) {
+			CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(rules));
+			LatchAnalysis analysis = LatchAnalysis.analyze(propNet, Long.MAX_VALUE);
+			PropNetStateMachine machine = new PropNetStateMachine();
+			machine.initialize(propNet);
+			for (int game = 0; game < 50; game++) {
+				List<MachineState> states = new ArrayList<MachineState>();
+				MachineState state = machine.getInitialState();
+				states.add(state);
+				while (!machine.isTerminal(state)) {
+					List<List<Move>> jointMoves = machine.getLegalJointMoves(state);
+					state = machine.getNextState(state, jointMoves.get(random.nextInt(jointMoves.size())));
+					states.add(state);
+				}
+				int[] goals = new int[machine.getRoles().size()];
+				for (int r = 0; r < goals.length; r++) {
+					goals[r] = machine.getGoal(state, machine.getRoles().get(r));
+				}
+				for (MachineState visited : states) {
+					int[] decided = analysis.getDecidedGoals(visited);
+					if (decided != null)
+						assertArrayEquals(goals, decided);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAnalysisStopsAtDeadline() throws Exception {
+		CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(getRules("ticTacToe")));
+		LatchAnalysis analysis = LatchAnalysis.analyze(propNet, System.currentTimeMillis() - 1);
+		assertFalse(analysis.isComplete());
+		assertTrue(analysis.getPositiveLatches().isEmpty());
+		assertFalse(analysis.canDecideGoals());
+	}
+
+	private static List<Gdl> getRules(String gameKey) {
+		return new TestGameRepository().getGame(gameKey).getRules();
+	}
+
+	private static List<Gdl> description(String... strings) throws Exception {
+		List<Gdl> description = new ArrayList<Gdl>();
+		for (String s : strings) {
+			description.add(GdlFactory.create(s));
+		}
+		return description;
+	}
+}
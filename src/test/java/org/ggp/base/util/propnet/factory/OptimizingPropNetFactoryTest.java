@@ -0,0 +1,48 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OptimizingPropNetFactoryTest extends Assert {
+	@Test
+	public void testSamePropNetWithAnyNumberOfThreads() throws Exception {
+		TestGameRepository repo = new TestGameRepository();
+		assertSameWithAnyNumberOfThreads("connectFour", repo.getGame("connectFour").getRules());
+		assertSameWithAnyNumberOfThreads("ticTacToe", repo.getGame("ticTacToe").getRules());
+		String maze = FileUtils.readFileAsString(new File("games/games/maze/maze.kif"));
+		assertSameWithAnyNumberOfThreads("maze", Game.createEphemeralGame(Game.preprocessRulesheet(maze)).getRules());
+	}
+
+	private static void assertSameWithAnyNumberOfThreads(String gameKey, List<Gdl> rules) throws Exception {
+		PropNet expected = create(rules, 1);
+		for (int threads : new int[] {4, 8}) {
+			PropNet propNet = create(rules, threads);
+			String message = gameKey + " with " + threads + " threads";
+			assertEquals(message, expected.getComponents().size(), propNet.getComponents().size());
+			assertEquals(message, expected.getNumLinks(), propNet.getNumLinks());
+			assertEquals(message, expected.getNumAnds(), propNet.getNumAnds());
+			assertEquals(message, expected.getNumOrs(), propNet.getNumOrs());
+			assertEquals(message, expected.getNumNots(), propNet.getNumNots());
+			assertEquals(message, expected.getBasePropositions().keySet(), propNet.getBasePropositions().keySet());
+			assertEquals(message, expected.getInputPropositions().keySet(), propNet.getInputPropositions().keySet());
+		}
+	}
+
+	private static PropNet create(List<Gdl> rules, int threads) throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return OptimizingPropNetFactory.create(rules, false, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
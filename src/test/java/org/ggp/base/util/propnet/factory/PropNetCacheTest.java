@@ -0,0 +1,119 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.CompiledPropNetFile;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PropNetCacheTest extends Assert {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFileRoundTrip() throws Exception {
+		for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_3c"}) {
+			CompiledPropNet propNet = CompiledPropNet.compile(OptimizingPropNetFactory.create(getRules(gameKey)));
+			File file = new File(folder.getRoot(), gameKey + ".bin");
+			CompiledPropNetFile.write(propNet, file);
+			CompiledPropNet loaded = CompiledPropNetFile.read(file);
+
+			assertEquals(propNet.getRoles(), loaded.getRoles());
+			assertArrayEquals(propNet.getTypes(), loaded.getTypes());
+			assertArrayEquals(propNet.getInputOffsets(), loaded.getInputOffsets());
+			assertArrayEquals(propNet.getInputs(), loaded.getInputs());
+			assertArrayEquals(propNet.getOutputOffsets(), loaded.getOutputOffsets());
+			assertArrayEquals(propNet.getOutputs(), loaded.getOutputs());
+			assertArrayEquals(propNet.getOrdering(), loaded.getOrdering());
+			assertArrayEquals(propNet.getCycles(), loaded.getCycles());
+			assertArrayEquals(propNet.getBaseComponents(), loaded.getBaseComponents());
+			assertArrayEquals(propNet.getBaseTransitions(), loaded.getBaseTransitions());
+			assertArrayEquals(propNet.getBaseNames(), loaded.getBaseNames());
+			assertArrayEquals(propNet.getInitialBases(), loaded.getInitialBases());
+			assertArrayEquals(propNet.getInputComponents(), loaded.getInputComponents());
+			assertArrayEquals(propNet.getInputNames(), loaded.getInputNames());
+			for (int r = 0; r < propNet.getRoles().size(); r++) {
+				assertArrayEquals(propNet.getLegalComponents()[r], loaded.getLegalComponents()[r]);
+				assertArrayEquals(propNet.getLegalMoves()[r], loaded.getLegalMoves()[r]);
+				assertArrayEquals(propNet.getLegalInputs()[r], loaded.getLegalInputs()[r]);
+				assertArrayEquals(propNet.getGoalComponents()[r], loaded.getGoalComponents()[r]);
+				assertArrayEquals(propNet.getGoalValues()[r], loaded.getGoalValues()[r]);
+			}
+			assertEquals(propNet.getTerminal(), loaded.getTerminal());
+		}
+	}
+
+	@Test
+	public void testKeyIgnoresRuleOrderButNotRoleOrder() throws Exception {
+		List<Gdl> rules = getRules("ticTacToe");
+		String key = PropNetCache.getKey(rules);
+
+		List<Gdl> reordered = new ArrayList<Gdl>(rules);
+		Collections.reverse(reordered);
+		// Keep the roles in their original order
+		List<Gdl> roles = new ArrayList<Gdl>();
+		for (Gdl gdl : rules) {
+			if (gdl instanceof GdlRelation && ((GdlRelation) gdl).getName() == GdlPool.ROLE)
+				roles.add(gdl);
+		}
+		reordered.removeAll(roles);
+		reordered.addAll(0, roles);
+		assertEquals(key, PropNetCache.getKey(reordered));
+
+		Collections.reverse(roles);
+		reordered.removeAll(roles);
+		reordered.addAll(0, roles);
+		assertFalse(key.equals(PropNetCache.getKey(reordered)));
+		assertFalse(key.equals(PropNetCache.getKey(getRules("connectFour"))));
+	}
+
+	@Test
+	public void testMachineFromCache() throws Exception {
+		PropNetCache cache = new PropNetCache(folder.getRoot());
+		List<Gdl> rules = getRules("ticTacToe");
+		new PropNetStateMachine(true, cache).initialize(rules);
+		File cached = new File(new File(folder.getRoot(), PropNetCache.getKey(rules)), "propnet.bin");
+		assertTrue(cached.exists());
+
+		// The second machine loads the propnet written by the first.
+		long lastModified = cached.lastModified();
+		StateMachine machine = new PropNetStateMachine(true, cache);
+		machine.initialize(rules);
+		assertEquals(lastModified, cached.lastModified());
+		StateMachine reference = new ProverStateMachine();
+		reference.initialize(rules);
+		assertTrue(StateMachineVerifier.checkMachineConsistency(reference, machine, 2000));
+	}
+
+	@Test
+	public void testCorruptEntryIsRebuilt() throws Exception {
+		PropNetCache cache = new PropNetCache(folder.getRoot());
+		List<Gdl> rules = getRules("ticTacToe");
+		File directory = new File(folder.getRoot(), PropNetCache.getKey(rules));
+		directory.mkdirs();
+		File cached = new File(directory, "propnet.bin");
+		FileUtils.writeStringToFile(cached, "not a propnet");
+
+		CompiledPropNet propNet = cache.getPropNet(rules);
+		assertEquals(propNet.getRoles(), CompiledPropNetFile.read(cached).getRoles());
+	}
+
+	private static List<Gdl> getRules(String gameKey) {
+		return new TestGameRepository().getGame(gameKey).getRules();
+	}
+}
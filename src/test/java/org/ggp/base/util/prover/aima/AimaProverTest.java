@@ -0,0 +1,140 @@
+package org.ggp.base.util.prover.aima;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.prover.Prover;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AimaProverTest extends Assert {
+	private static final String[] DESCRIPTION = {
+		"(succ 1 2)", "(succ 2 3)", "(succ 3 4)",
+		"(<= (less ?x ?y) (succ ?x ?y))",
+		"(<= (less ?x ?z) (succ ?x ?y) (less ?y ?z))",
+		"(<= (pair (f ?x ?y) ?x) (less ?x ?y) (distinct ?y 4))",
+		"(<= (small ?x) (or (succ ?x 2) (succ ?x 3)))",
+		"(<= (big ?x) (succ ?y ?x) (not (small ?x)))",
+		"(<= (marked ?x) (true (cell ?x)))",
+		"(<= (same ?x ?x) (succ ?x ?y))",
+	};
+
+	@Test
+	public void testAnswers() throws Exception {
+		Prover prover = new AimaProver(description(DESCRIPTION));
+		Set<GdlSentence> noContext = Collections.emptySet();
+
+		assertEquals(sentences("(less 1 2)", "(less 1 3)", "(less 1 4)", "(less 2 3)", "(less 2 4)", "(less 3 4)"),
+				prover.askAll(sentence("(less ?a ?b)"), noContext));
+		assertEquals(sentences("(less 1 4)", "(less 2 4)", "(less 3 4)"), prover.askAll(sentence("(less ?a 4)"), noContext));
+		assertEquals(sentences("(pair (f 1 2) 1)", "(pair (f 1 3) 1)", "(pair (f 2 3) 2)"),
+				prover.askAll(sentence("(pair ?p ?q)"), noContext));
+		assertEquals(sentences("(pair (f 1 3) 1)"), prover.askAll(sentence("(pair (f ?q 3) 1)"), noContext));
+		assertEquals(sentences("(small 1)", "(small 2)"), prover.askAll(sentence("(small ?x)"), noContext));
+		assertEquals(sentences("(big 3)", "(big 4)"), prover.askAll(sentence("(big ?x)"), noContext));
+		assertEquals(sentences("(same 2 2)"), prover.askAll(sentence("(same 2 ?x)"), noContext));
+		assertTrue(prover.prove(sentence("(less 1 4)"), noContext));
+		assertFalse(prover.prove(sentence("(less 4 1)"), noContext));
+
+		Set<GdlSentence> context = sentences("(true (cell 2))", "(true (cell 3))");
+		assertEquals(sentences("(marked 2)", "(marked 3)"), prover.askAll(sentence("(marked ?x)"), context));
+		// answers that depend on the context aren't cached across queries
+		assertEquals(sentences(), prover.askAll(sentence("(marked ?x)"), noContext));
+		assertNotNull(prover.askOne(sentence("(marked ?x)"), context));
+	}
+
+	@Test
+	public void testStateCacheOnlySharesAnswersAboutTheState() throws Exception {
+		AimaProver prover = new AimaProver(description(
+				"(role a)", "(cell 1)", "(cell 2)", "(cell 3)",
+				"(<= (open ?c) (cell ?c) (not (true (taken ?c))))",
+				"(<= (picked ?c) (does a (pick ?c)))",
+				"(<= (legal a (pick ?c)) (open ?c))",
+				"(<= (next (taken ?c)) (true (taken ?c)))",
+				"(<= (next (taken ?c)) (picked ?c) (open ?c))",
+				"(<= anyOpen (open ?c))",
+				"(<= terminal (not anyOpen))"));
+		Set<GdlSentence> state = sentences("(true (taken 2))");
+		AimaProver.StateCache stateCache = prover.openStateCache(state);
+
+		assertEquals(sentences("(legal a (pick 1))", "(legal a (pick 3))"),
+				prover.askAll(sentence("(legal a ?m)"), state, stateCache));
+		assertFalse(prover.prove(sentence("terminal"), state, stateCache));
+		for (String cell : new String[] {"1", "3"}) {
+			Set<GdlSentence> context = new HashSet<GdlSentence>(state);
+			context.add(sentence("(does a (pick " + cell + "))"));
+			assertEquals(sentences("(next (taken 2))", "(next (taken " + cell + "))"),
+					prover.askAll(sentence("(next ?x)"), context, stateCache));
+		}
+
+		// a new state gets a new cache
+		Set<GdlSentence> fullState = sentences("(true (taken 1))", "(true (taken 2))", "(true (taken 3))");
+		assertTrue(prover.prove(sentence("terminal"), fullState, prover.openStateCache(fullState)));
+		assertEquals(sentences(), prover.askAll(sentence("(legal a ?m)"), fullState));
+	}
+
+	@Test
+	public void testAgreesWithSubstitutionProver() throws Exception {
+		for (String gameKey : new String[] {"ticTacToe", "connectFour", "simpleMutex", "test_case_2c", "test_case_3e", "test_case_3f"}) {
+			List<Gdl> rules = new TestGameRepository().getGame(gameKey).getRules();
+			Prover prover = new AimaProver(rules);
+			Prover reference = new SubstitutionAimaProver(rules);
+			StateMachine theMachine = new ProverStateMachine();
+			theMachine.initialize(rules);
+			List<Role> roles = theMachine.getRoles();
+
+			MachineState state = theMachine.getInitialState();
+			for (int depth = 0; depth < 30; depth++) {
+				Set<GdlSentence> context = state.getContents();
+				for (String query : new String[] {"(legal ?r ?m)", "(goal ?r ?g)", "terminal"}) {
+					assertEquals(gameKey, reference.askAll(sentence(query), context), prover.askAll(sentence(query), context));
+				}
+				if (theMachine.isTerminal(state)) {
+					break;
+				}
+
+				List<Move> jointMove = theMachine.getRandomJointMove(state);
+				Set<GdlSentence> transition = new HashSet<GdlSentence>(context);
+				for (int i = 0; i < roles.size(); i++) {
+					transition.add(GdlPool.getRelation(GdlPool.DOES, new GdlTerm[] {roles.get(i).getName(), jointMove.get(i).getContents()}));
+				}
+				assertEquals(gameKey, reference.askAll(sentence("(next ?x)"), transition), prover.askAll(sentence("(next ?x)"), transition));
+				state = theMachine.getNextState(state, jointMove);
+			}
+		}
+	}
+
+	private static List<Gdl> description(String... strings) throws Exception {
+		List<Gdl> description = new ArrayList<Gdl>();
+		for (String s : strings) {
+			description.add(GdlFactory.create(s));
+		}
+		return description;
+	}
+
+	private static GdlSentence sentence(String s) throws Exception {
+		return (GdlSentence) GdlFactory.create(s);
+	}
+
+	private static Set<GdlSentence> sentences(String... strings) throws Exception {
+		Set<GdlSentence> sentences = new HashSet<GdlSentence>();
+		for (String s : strings) {
+			sentences.add(sentence(s));
+		}
+		return sentences;
+	}
+}
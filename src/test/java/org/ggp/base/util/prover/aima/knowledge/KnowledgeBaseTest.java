@@ -0,0 +1,79 @@
+package org.ggp.base.util.prover.aima.knowledge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KnowledgeBaseTest extends Assert {
+	private static final String[] DESCRIPTION = {
+		"(cell 1 1 b)", "(cell 1 2 x)", "(cell 2 1 o)", "(cell 2 2 b)",
+		"(<= (cell ?x 3 b) (col ?x))", "(cell 3 1 b)",
+		"(succ 1 2)", "(succ 2 3)", "(succ 3 4)", "(succ 4 5)",
+		"(pos (f 1) a)", "(pos (f 2) b)", "(pos (g 1) c)", "(pos z d)",
+	};
+
+	@Test
+	public void testFetchKeepsOnlyMatchingRulesInOrder() throws Exception {
+		List<Gdl> gdl = new ArrayList<Gdl>();
+		for (String s : DESCRIPTION) {
+			gdl.add(GdlFactory.create(s));
+		}
+		KnowledgeBase kb = new KnowledgeBase(new LinkedHashSet<Gdl>(gdl));
+
+		assertEquals(rules("(cell 1 1 b)", "(cell 1 2 x)", "(<= (cell ?x 3 b) (col ?x))"),
+				kb.fetch(sentence("(cell 1 ?y ?z)")));
+		assertEquals(rules("(<= (cell ?x 3 b) (col ?x))", "(cell 3 1 b)"), kb.fetch(sentence("(cell 3 3 ?z)")));
+		// ground queries get the one fact they match, if any, and the other rules
+		assertEquals(rules("(cell 2 2 b)", "(<= (cell ?x 3 b) (col ?x))"), kb.fetch(sentence("(cell 2 2 b)")));
+		assertEquals(rules("(<= (cell ?x 3 b) (col ?x))"), kb.fetch(sentence("(cell 2 2 x)")));
+		assertEquals(rules("(succ 2 3)"), kb.fetch(sentence("(succ 2 3)")));
+		assertEquals(rules(), kb.fetch(sentence("(succ 2 4)")));
+		assertEquals(6, kb.fetch(sentence("(cell ?x ?y ?z)")).size());
+		assertEquals(rules("(succ 3 4)"), kb.fetch(sentence("(succ 3 ?y)")));
+		// only a prefix of the arguments is indexed
+		assertEquals(4, kb.fetch(sentence("(succ ?x 3)")).size());
+		assertEquals(rules("(pos (f 1) a)", "(pos (f 2) b)"), kb.fetch(sentence("(pos (f ?x) ?y)")));
+		assertEquals(rules("(pos z d)"), kb.fetch(sentence("(pos z ?y)")));
+		assertEquals(rules(), kb.fetch(sentence("(missing ?x)")));
+	}
+
+	@Test
+	public void testContextIndex() throws Exception {
+		Set<GdlSentence> facts = new LinkedHashSet<GdlSentence>();
+		for (String s : new String[] {"(true (cell 1 1 b))", "(true (cell 1 2 x))", "(true (control x))", "(does x noop)"}) {
+			facts.add(sentence(s));
+		}
+		ContextIndex context = new ContextIndex(facts);
+
+		assertEquals(Arrays.asList(sentence("(true (cell 1 2 x))")), context.fetch(sentence("(true (cell 1 2 x))")));
+		assertEquals(Arrays.asList(), context.fetch(sentence("(true (cell 1 2 o))")));
+		assertEquals(Arrays.asList(sentence("(true (cell 1 1 b))"), sentence("(true (cell 1 2 x))")),
+				context.fetch(sentence("(true (cell 1 ?y ?z))")));
+		assertEquals(Arrays.asList(sentence("(true (control x))")), context.fetch(sentence("(true (control ?p))")));
+		assertEquals(3, context.fetch(sentence("(true ?x)")).size());
+		assertEquals(Arrays.asList(sentence("(does x noop)")), context.fetch(sentence("(does x ?m)")));
+	}
+
+	private static GdlSentence sentence(String s) throws Exception {
+		return (GdlSentence) GdlFactory.create(s);
+	}
+
+	private static List<GdlRule> rules(String... strings) throws Exception {
+		List<GdlRule> rules = new ArrayList<GdlRule>();
+		for (String s : strings) {
+			Gdl gdl = GdlFactory.create(s);
+			rules.add((gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl));
+		}
+		return rules;
+	}
+}
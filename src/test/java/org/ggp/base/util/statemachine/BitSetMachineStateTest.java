@@ -0,0 +1,102 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BitSetMachineStateTest extends Assert {
+
+    @Test
+    public void testEqualityWithPlainStates() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        StateMachine bitSetProver = new ProverStateMachine(true);
+        bitSetProver.initialize(rules);
+        StateMachine propNet = new PropNetStateMachine();
+        propNet.initialize(rules);
+
+        MachineState plain = prover.getInitialState();
+        MachineState bitSet = bitSetProver.getInitialState();
+        MachineState compiled = propNet.getInitialState();
+        assertTrue(bitSet instanceof BitSetMachineState);
+        assertTrue(compiled instanceof BitSetMachineState);
+        assertEquals(plain, bitSet);
+        assertEquals(bitSet, plain);
+        assertEquals(compiled, plain);
+        assertEquals(plain.hashCode(), bitSet.hashCode());
+        assertEquals(plain.hashCode(), compiled.hashCode());
+        assertEquals(plain.getContents(), compiled.getContents());
+
+        Set<MachineState> states = new HashSet<MachineState>();
+        states.add(plain);
+        assertTrue(states.contains(bitSet));
+        assertTrue(states.contains(compiled));
+    }
+
+    @Test
+    public void testRoundTripThroughSentences() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine propNet = new PropNetStateMachine();
+        propNet.initialize(rules);
+
+        MachineState state = propNet.getInitialState();
+        for (int i = 0; i < 4; i++) {
+            state = propNet.getRandomNextState(state);
+        }
+        Set<GdlSentence> contents = new HashSet<GdlSentence>(state.getContents());
+        BitSetMachineState copy = (BitSetMachineState) propNet.getMachineStateFromSentenceList(contents);
+        assertEquals(state, copy);
+        assertEquals(((BitSetMachineState) state).getZobristHash(), copy.getZobristHash());
+        assertNotEquals(((BitSetMachineState) propNet.getInitialState()).getZobristHash(), copy.getZobristHash());
+        assertEquals(propNet.getLegalJointMoves(state), propNet.getLegalJointMoves(copy));
+    }
+
+    @Test
+    public void testZobristHashDoesNotDependOnIndexOrder() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        // Each machine indexes the base propositions in its own order.
+        StateMachine[] machines = {new PropNetStateMachine(), new PropNetStateMachine(), new ProverStateMachine(true)};
+        for (StateMachine machine : machines) {
+            machine.initialize(rules);
+        }
+
+        MachineState[] states = new MachineState[machines.length];
+        for (int m = 0; m < machines.length; m++) {
+            states[m] = machines[m].getInitialState();
+        }
+        while (!machines[0].isTerminal(states[0])) {
+            long hash = ((BitSetMachineState) states[0]).getZobristHash();
+            for (int m = 1; m < machines.length; m++) {
+                assertEquals(hash, ((BitSetMachineState) states[m]).getZobristHash());
+            }
+            List<Move> jointMove = machines[0].getRandomJointMove(states[0]);
+            for (int m = 0; m < machines.length; m++) {
+                states[m] = machines[m].getNextState(states[m], jointMove);
+            }
+        }
+    }
+
+    @Test
+    public void testBitSetProverConsistency() throws Exception {
+        TestGameRepository repo = new TestGameRepository();
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_2a", "test_case_5b"}) {
+            List<Gdl> rules = repo.getGame(gameKey).getRules();
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(new ArrayList<Gdl>(rules));
+            StateMachine bitSetProver = new ProverStateMachine(true);
+            bitSetProver.initialize(new ArrayList<Gdl>(rules));
+            assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(prover, bitSetProver, 500));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+
+public class DepthChargeExecutorTest extends Assert {
+
+    private static final Supplier<StateMachine> PROVER_FACTORY = new Supplier<StateMachine>() {
+        @Override
+        public StateMachine get() {
+            return new ProverStateMachine();
+        }
+    };
+
+    @Test
+    public void testBatchOfRequests() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine sm = new ProverStateMachine();
+        sm.initialize(rules);
+        DepthChargeExecutor executor = new DepthChargeExecutor(PROVER_FACTORY, rules, 3);
+        try {
+            MachineState initial = sm.getInitialState();
+            Role xRole = sm.getRoles().get(0);
+            Move center = new Move(GdlPool.getFunction(GdlPool.getConstant("mark"),
+                    new GdlTerm[] {GdlPool.getConstant("2"), GdlPool.getConstant("2")}));
+            MachineState terminal = sm.performDepthCharge(initial, null);
+
+            List<DepthChargeExecutor.Result> results = executor.run(Arrays.asList(
+                    new DepthChargeExecutor.Request(initial, 100),
+                    new DepthChargeExecutor.Request(initial, xRole, center, 10),
+                    new DepthChargeExecutor.Request(terminal, 7),
+                    new DepthChargeExecutor.Request(initial, 0)), Long.MAX_VALUE);
+            assertEquals(4, results.size());
+
+            DepthChargeExecutor.Result random = results.get(0);
+            assertEquals(100, random.getCount());
+            assertTrue(random.getAverageDepth() >= 5 && random.getAverageDepth() <= 9);
+            for (double goal : random.getAverageGoals()) {
+                assertTrue(goal >= 0 && goal <= 100);
+            }
+
+            // after the first move is fixed, only the remaining moves are counted
+            DepthChargeExecutor.Result fixed = results.get(1);
+            assertEquals(10, fixed.getCount());
+            assertTrue(fixed.getAverageDepth() >= 4 && fixed.getAverageDepth() <= 8);
+
+            DepthChargeExecutor.Result atEnd = results.get(2);
+            assertEquals(7, atEnd.getCount());
+            assertEquals(0.0, atEnd.getAverageDepth(), 0.0);
+            assertEquals(7L * sm.getGoal(terminal, xRole), atEnd.getGoalSum(0));
+
+            assertEquals(0, results.get(3).getCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        DepthChargeExecutor executor = new DepthChargeExecutor(PROVER_FACTORY, rules, 2);
+        try {
+            StateMachine sm = new ProverStateMachine();
+            sm.initialize(rules);
+            MachineState initial = sm.getInitialState();
+
+            // nothing starts after the deadline
+            List<DepthChargeExecutor.Result> results = executor.run(Arrays.asList(
+                    new DepthChargeExecutor.Request(initial, 1000)), System.currentTimeMillis() - 1);
+            assertEquals(0, results.get(0).getCount());
+
+            // far more depth charges than fit before the deadline
+            long start = System.currentTimeMillis();
+            results = executor.run(Arrays.asList(
+                    new DepthChargeExecutor.Request(initial, Integer.MAX_VALUE)), start + 200);
+            assertTrue(System.currentTimeMillis() - start < 2000);
+            assertTrue(results.get(0).getCount() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.ggp.base.util.statemachine.cache;
+
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachedStateMachineTest extends Assert {
+
+    @Test
+    public void testConsistentWithBackingMachine() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(rules);
+        CachedStateMachine cached = new CachedStateMachine(new ProverStateMachine());
+        cached.initialize(rules);
+
+        assertTrue(StateMachineVerifier.checkMachineConsistency(prover, cached, 2000));
+        assertTrue(cached.getCacheHits() > 0);
+        assertTrue(cached.getCacheMisses() > 0);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        CachedStateMachine cached = new CachedStateMachine(new ProverStateMachine());
+        cached.initialize(rules);
+
+        MachineState state = cached.getInitialState();
+        Role role = cached.getRoles().get(0);
+        List<Move> moves = cached.getLegalMoves(state, role);
+        assertEquals(0, cached.getCacheHits());
+        assertEquals(1, cached.getCacheMisses());
+        assertSame(moves, cached.getLegalMoves(state, role));
+        assertFalse(cached.isTerminal(state));
+        assertFalse(cached.isTerminal(state));
+        assertEquals(2, cached.getCacheHits());
+        assertEquals(2, cached.getCacheMisses());
+        assertEquals(1, cached.getCacheSize());
+
+        // the state was used since the last prune, so it survives one prune but not two
+        cached.doPerMoveWork();
+        assertEquals(1, cached.getCacheSize());
+        cached.doPerMoveWork();
+        assertEquals(0, cached.getCacheSize());
+        assertEquals(1, cached.getCacheEvictions());
+        assertEquals(0, cached.getCacheBytes());
+    }
+
+    @Test
+    public void testMemoryBound() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        long maxBytes = 16 * 1024;
+        CachedStateMachine cached = new CachedStateMachine(new ProverStateMachine(), maxBytes);
+        cached.initialize(rules);
+
+        for (int i = 0; i < 200; i++) {
+            cached.performDepthCharge(cached.getInitialState(), null);
+            assertTrue(cached.getCacheBytes() <= maxBytes);
+        }
+        assertTrue(cached.getCacheEvictions() > 0);
+    }
+}
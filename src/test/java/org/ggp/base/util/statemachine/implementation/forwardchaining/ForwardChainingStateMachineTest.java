@@ -0,0 +1,86 @@
+package org.ggp.base.util.statemachine.implementation.forwardchaining;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.ggp.base.validator.StaticValidator;
+import org.ggp.base.validator.ValidatorException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ForwardChainingStateMachineTest extends Assert {
+
+    @Test
+    public void testForwardChainingOnTicTacToe() throws Exception {
+        StateMachine sm = new ForwardChainingStateMachine();
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        MachineState state = sm.getInitialState();
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        assertEquals(Arrays.asList(xRole, oRole), sm.getRoles());
+        assertFalse(sm.isTerminal(state));
+        assertEquals(9, sm.getLegalMoves(state, xRole).size());
+        assertEquals(1, sm.getLegalMoves(state, oRole).size());
+
+        Move noop = new Move(GdlPool.getConstant("noop"));
+        for (String[] turn : new String[][] {{"1", "1"}, {"1", "3"}, {"3", "1"}, {"2", "2"}, {"2", "1"}}) {
+            Move mark = new Move(GdlPool.getFunction(GdlPool.getConstant("mark"),
+                    new GdlTerm[] {GdlPool.getConstant(turn[0]), GdlPool.getConstant(turn[1])}));
+            boolean xToMove = sm.getLegalMoves(state, xRole).contains(mark);
+            state = sm.getNextState(state, xToMove ? Arrays.asList(mark, noop) : Arrays.asList(noop, mark));
+        }
+        assertTrue(sm.isTerminal(state));
+        assertEquals(Arrays.asList(100, 0), sm.getGoals(state));
+    }
+
+    @Test
+    public void testConsistencyWithProverOnTestGames() throws Exception {
+        TestGameRepository repo = new TestGameRepository();
+        for (String gameKey : repo.getGameKeys()) {
+            // Test case 5A nests functions without bound, which the
+            // sentence domain model does not support.
+            if (gameKey.equals("test_case_5a"))
+                continue;
+            try {
+                new StaticValidator().checkValidity(repo.getGame(gameKey));
+            } catch (ValidatorException e) {
+                continue;
+            }
+            assertConsistent(gameKey, repo.getGame(gameKey).getRules());
+        }
+    }
+
+    @Test
+    public void testConsistencyWithProverOnBundledGames() throws Exception {
+        for (File gameDir : new File("games/games").listFiles()) {
+            File rulesheet = new File(gameDir, gameDir.getName() + ".kif");
+            if (!rulesheet.exists())
+                continue;
+            String rules = Game.preprocessRulesheet(FileUtils.readFileAsString(rulesheet));
+            assertConsistent(gameDir.getName(), Game.createEphemeralGame(rules).getRules());
+        }
+    }
+
+    private void assertConsistent(String gameKey, List<Gdl> rules) {
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(new ArrayList<Gdl>(rules));
+        StateMachine forwardChaining = new ForwardChainingStateMachine();
+        forwardChaining.initialize(new ArrayList<Gdl>(rules));
+        assertEquals(gameKey, prover.getInitialState(), forwardChaining.getInitialState());
+        assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(prover, forwardChaining, 1000));
+    }
+}
@@ -0,0 +1,225 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.statemachine.DepthChargeBuffers;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetStateMachine.Evaluation;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.ggp.base.validator.StaticValidator;
+import org.ggp.base.validator.ValidatorException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetStateMachineTest extends Assert {
+
+    @Test
+    public void testPropNetOnTicTacToe() throws Exception {
+        StateMachine sm = new PropNetStateMachine();
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        MachineState state = sm.getInitialState();
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        assertEquals(Arrays.asList(xRole, oRole), sm.getRoles());
+        assertFalse(sm.isTerminal(state));
+        assertEquals(9, sm.getLegalMoves(state, xRole).size());
+        assertEquals(1, sm.getLegalMoves(state, oRole).size());
+
+        Move noop = new Move(GdlPool.getConstant("noop"));
+        for (String[] turn : new String[][] {{"1", "1"}, {"1", "3"}, {"3", "1"}, {"2", "2"}, {"2", "1"}}) {
+            Move mark = new Move(GdlPool.getFunction(GdlPool.getConstant("mark"),
+                    new GdlTerm[] {GdlPool.getConstant(turn[0]), GdlPool.getConstant(turn[1])}));
+            boolean xToMove = sm.getLegalMoves(state, xRole).contains(mark);
+            state = sm.getNextState(state, xToMove ? Arrays.asList(mark, noop) : Arrays.asList(noop, mark));
+        }
+        assertTrue(sm.isTerminal(state));
+        assertEquals(Arrays.asList(100, 0), sm.getGoals(state));
+    }
+
+    @Test
+    public void testConsistencyWithProverOnTestGames() throws Exception {
+        TestGameRepository repo = new TestGameRepository();
+        for (String gameKey : repo.getGameKeys()) {
+            // Test case 5A nests functions without bound, which the
+            // OptimizingPropNetFactory does not support.
+            if (gameKey.equals("test_case_5a"))
+                continue;
+            try {
+                new StaticValidator().checkValidity(repo.getGame(gameKey));
+            } catch (ValidatorException e) {
+                continue;
+            }
+            assertConsistent(gameKey, repo.getGame(gameKey).getRules());
+        }
+    }
+
+    @Test
+    public void testConsistencyWithProverOnBundledGames() throws Exception {
+        for (File gameDir : new File("games/games").listFiles()) {
+            File rulesheet = new File(gameDir, gameDir.getName() + ".kif");
+            if (!rulesheet.exists())
+                continue;
+            String rules = Game.preprocessRulesheet(FileUtils.readFileAsString(rulesheet));
+            assertConsistent(gameDir.getName(), Game.createEphemeralGame(rules).getRules());
+        }
+    }
+
+    @Test
+    public void testFullEvaluationMode() throws Exception {
+        TestGameRepository repo = new TestGameRepository();
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_3c", "test_case_5b"}) {
+            List<Gdl> rules = repo.getGame(gameKey).getRules();
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(new ArrayList<Gdl>(rules));
+            PropNetStateMachine propNet = new PropNetStateMachine(false);
+            propNet.initialize(new ArrayList<Gdl>(rules));
+            assertFalse(propNet.isDifferential());
+            assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(prover, propNet, 500));
+        }
+    }
+
+    @Test
+    public void testBytecodeEvaluationMode() throws Exception {
+        TestGameRepository repo = new TestGameRepository();
+        for (String gameKey : new String[] {"ticTacToe", "connectFour", "test_case_3c", "test_case_5b"}) {
+            List<Gdl> rules = repo.getGame(gameKey).getRules();
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(new ArrayList<Gdl>(rules));
+            PropNetStateMachine propNet = new PropNetStateMachine(Evaluation.BYTECODE, null);
+            propNet.initialize(new ArrayList<Gdl>(rules));
+            assertEquals(Evaluation.BYTECODE, propNet.getEvaluation());
+            assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(prover, propNet, 500));
+        }
+    }
+
+    @Test
+    public void testBytecodeEvaluationWithCycles() throws Exception {
+        // "reach" is defined recursively, so the propnet has a cycle.
+        List<Gdl> rules = new ArrayList<Gdl>();
+        for (String rule : new String[] {
+                "(role robot)", "(node 1)", "(node 2)", "(node 3)",
+                "(init (edge 1 2))", "(init (step 0))", "(succ 0 1)", "(succ 1 2)", "(succ 2 3)",
+                "(<= (reach ?y) (true (edge 1 ?y)))",
+                "(<= (reach ?y) (reach ?x) (true (edge ?x ?y)))",
+                "(<= (reach ?y) (reach ?x) (true (edge ?y ?x)))",
+                "(<= (legal robot (link ?x ?y)) (node ?x) (node ?y) (distinct ?x ?y) (not (true (edge ?x ?y))))",
+                "(<= (legal robot noop))",
+                "(<= (next (edge ?x ?y)) (does robot (link ?x ?y)))",
+                "(<= (next (edge ?x ?y)) (true (edge ?x ?y)))",
+                "(<= (next (step ?n)) (true (step ?m)) (succ ?m ?n))",
+                "(<= terminal (true (step 3)))",
+                "(<= (goal robot 100) (reach 3))",
+                "(<= (goal robot 0) (not (reach 3)))"}) {
+            rules.add(GdlFactory.create(rule));
+        }
+        PropNetStateMachine fullPass = new PropNetStateMachine(false);
+        fullPass.initialize(rules);
+        assertTrue(fullPass.getPropNet().getCycles().length > 0);
+        PropNetStateMachine bytecode = new PropNetStateMachine(Evaluation.BYTECODE, null);
+        bytecode.initialize(fullPass.getPropNet());
+        assertEquals(Evaluation.BYTECODE, bytecode.getEvaluation());
+        assertTrue(StateMachineVerifier.checkMachineConsistency(fullPass, bytecode, 500));
+    }
+
+    @Test
+    public void testResetToRootState() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("connectFour").getRules();
+        PropNetStateMachine propNet = new PropNetStateMachine();
+        propNet.initialize(rules);
+        assertTrue(propNet.isDifferential());
+
+        MachineState root = propNet.getRandomNextState(propNet.getInitialState());
+        List<List<Move>> rootMoves = propNet.getLegalJointMoves(root);
+        propNet.setRootState(root);
+        for (int i = 0; i < 20; i++) {
+            MachineState terminal = propNet.performDepthCharge(root, null);
+            assertTrue(propNet.isTerminal(terminal));
+            assertFalse(propNet.isTerminal(root));
+            assertEquals(rootMoves, propNet.getLegalJointMoves(root));
+        }
+
+        // Searches that hold the machine through a failsafe set the root with updateRoot.
+        MachineState next = propNet.getRandomNextState(root);
+        new FailsafeStateMachine(propNet).updateRoot(next);
+        Field rootState = PropNetStateMachine.class.getDeclaredField("rootState");
+        rootState.setAccessible(true);
+        assertSame(next, rootState.get(propNet));
+    }
+
+    @Test
+    public void testBuildDeadline() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("connectFour").getRules();
+        PropNetStateMachine propNet = new PropNetStateMachine();
+        propNet.setBuildDeadline(System.currentTimeMillis() + 60000);
+        propNet.initialize(rules);
+        assertTrue(propNet.isDifferential());
+
+        // A build that can't finish in time makes the failsafe fall back to the prover.
+        PropNetStateMachine late = new PropNetStateMachine();
+        late.setBuildDeadline(System.currentTimeMillis());
+        try {
+            late.initialize(rules);
+            fail();
+        } catch (RuntimeException e) {
+        }
+        FailsafeStateMachine failsafe = new FailsafeStateMachine(late);
+        failsafe.initialize(rules);
+        assertTrue(failsafe.getBackingMachine() instanceof ProverStateMachine);
+    }
+
+    @Test
+    public void testDepthChargeBuffers() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("connectFour").getRules();
+        for (Evaluation evaluation : Evaluation.values()) {
+            PropNetStateMachine propNet = new PropNetStateMachine(evaluation, null);
+            propNet.initialize(rules);
+            // the cache doesn't override simulate, so this runs the default depth charge.
+            // It shares the compiled propnet, so that legal moves are listed in the same order.
+            PropNetStateMachine backing = new PropNetStateMachine(evaluation, null);
+            backing.initialize(propNet.getPropNet());
+            StateMachine reference = new CachedStateMachine(backing);
+
+            MachineState root = propNet.getInitialState();
+            List<List<Move>> rootMoves = propNet.getLegalJointMoves(root);
+            DepthChargeBuffers buffers = propNet.newDepthChargeBuffers();
+            DepthChargeBuffers referenceBuffers = reference.newDepthChargeBuffers();
+            Random random = new Random(42);
+            Random referenceRandom = new Random(42);
+            for (int i = 0; i < 20; i++) {
+                int[] goals = propNet.simulate(root, buffers, random);
+                reference.simulate(root, referenceBuffers, referenceRandom);
+                assertArrayEquals(referenceBuffers.goals, goals);
+                assertEquals(referenceBuffers.depth, buffers.depth);
+                assertEquals(referenceBuffers.jointMove, buffers.jointMove);
+                assertEquals(rootMoves, propNet.getLegalJointMoves(root));
+            }
+        }
+    }
+
+    private void assertConsistent(String gameKey, List<Gdl> rules) {
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(new ArrayList<Gdl>(rules));
+        StateMachine propNet = new PropNetStateMachine();
+        propNet.initialize(new ArrayList<Gdl>(rules));
+        assertEquals(gameKey, prover.getInitialState(), propNet.getInitialState());
+        assertTrue(gameKey, StateMachineVerifier.checkMachineConsistency(prover, propNet, 1000));
+    }
+}